@@ -31,8 +31,9 @@ public class Benchmark {
                                                                  int batchsize, MatcherFactory<T> matcherFactory) throws IOException {
         BenchmarkResults<T> results = new BenchmarkResults<>();
         for (DocumentBatch batch : batchDocuments(documents, batchsize)) {
+            long start = System.nanoTime();
             Matches<T> matches = monitor.match(batch, matcherFactory);
-            results.add(matches);
+            results.add(matches, System.nanoTime() - start);
         }
         return results;
     }
@@ -16,33 +16,162 @@ package uk.co.flax.luwak.benchmark;
  */
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
-import com.codahale.metrics.ConsoleReporter;
-import com.codahale.metrics.Histogram;
-import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.Timer;
+import com.codahale.metrics.*;
+import org.apache.lucene.util.Version;
 import uk.co.flax.luwak.Matches;
+import uk.co.flax.luwak.Monitor;
 import uk.co.flax.luwak.QueryMatch;
 
+/**
+ * Timings and presearcher candidate counts recorded by a benchmark run
+ *
+ * Results can be written to a JSON file with {@link #writeJson(Path)}, along with a
+ * description of the environment and any configuration set with
+ * {@link #setConfiguration(String, Object)}, and compared with earlier results using
+ * {@link ResultsComparator}.  The JSON includes a uniform sample of up to 1028 of the
+ * recorded values of each metric.
+ */
 public class BenchmarkResults<T extends QueryMatch> {
 
+    /** The value of the "format" field of a JSON results file */
+    public static final String FORMAT = "luwak-benchmark-results";
+
+    /** The version of the JSON results format */
+    public static final int VERSION = 1;
+
     private final MetricRegistry metrics = new MetricRegistry();
-    private final Timer timer = metrics.timer("searchTimes");
-    private final Histogram queryBuildTimes = metrics.histogram("queryBuildTimes");
+    private final Timer timer = metrics.register("searchTimes", new Timer(new UniformReservoir()));
+    private final Histogram queryBuildTimes = metrics.register("queryBuildTimes", new Histogram(new UniformReservoir()));
+    private final Histogram candidates = metrics.register("candidates", new Histogram(new UniformReservoir()));
+
+    private final Map<String, String> configuration = new LinkedHashMap<>();
+
+    private long documents;
+    private long totalTime;
 
     public void add(Matches<T> benchmarkMatches) {
-        timer.update(benchmarkMatches.getSearchTime(), TimeUnit.MILLISECONDS);
+        add(benchmarkMatches, TimeUnit.MILLISECONDS.toNanos(benchmarkMatches.getSearchTime()));
+    }
+
+    /**
+     * Record the results of a match run
+     * @param benchmarkMatches the matches
+     * @param nanos the time taken by the match run
+     */
+    public void add(Matches<T> benchmarkMatches, long nanos) {
+        timer.update(nanos, TimeUnit.NANOSECONDS);
         queryBuildTimes.update(benchmarkMatches.getQueryBuildTime());
+        candidates.update(benchmarkMatches.getQueriesRun());
+        documents += benchmarkMatches.getBatchSize();
+        totalTime += nanos;
     }
 
     public Timer getTimer() {
         return timer;
     }
 
+    /**
+     * @return the number of candidate queries run for each batch
+     */
+    public Histogram getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @return the number of documents matched per second of search time
+     */
+    public double getThroughput() {
+        return totalTime == 0 ? 0 : documents / (totalTime / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Describe the configuration the results were recorded with, for example the presearcher or batch size
+     * @param key the name of the setting
+     * @param value the value of the setting
+     * @return the BenchmarkResults
+     */
+    public BenchmarkResults<T> setConfiguration(String key, Object value) {
+        configuration.put(key, String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * @return the results as JSON
+     */
+    public String toJson() {
+        return Json.write(toJsonMap());
+    }
+
+    /**
+     * Write the results to a JSON file
+     * @param path the file to write to
+     * @throws IOException on IO errors
+     */
+    public void writeJson(Path path) throws IOException {
+        Files.write(path, toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the contents of the JSON results, which subclasses may add to
+     */
+    protected Map<String, Object> toJsonMap() {
+        SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+        timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("format", FORMAT);
+        json.put("version", VERSION);
+        json.put("timestamp", timestamp.format(new Date()));
+        json.put("environment", environment());
+        json.put("configuration", configuration);
+        json.put("batches", timer.getCount());
+        json.put("documents", documents);
+        json.put("throughput", getThroughput());
+        json.put("searchTimes", sampled("ns", timer.getCount(), timer.getSnapshot()));
+        json.put("queryBuildTimes", sampled("ms", queryBuildTimes.getCount(), queryBuildTimes.getSnapshot()));
+        json.put("candidates", sampled("queries", candidates.getCount(), candidates.getSnapshot()));
+        return json;
+    }
+
+    private static Map<String, Object> sampled(String unit, long count, Snapshot snapshot) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("unit", unit);
+        json.put("count", count);
+        json.put("mean", snapshot.getMean());
+        json.put("p50", snapshot.getMedian());
+        json.put("p99", snapshot.get99thPercentile());
+        json.put("p999", snapshot.get999thPercentile());
+        json.put("max", snapshot.getMax());
+        json.put("samples", snapshot.getValues());
+        return json;
+    }
+
+    static Map<String, Object> environment() {
+        Map<String, Object> env = new LinkedHashMap<>();
+        env.put("java.version", System.getProperty("java.version"));
+        env.put("java.vm.name", System.getProperty("java.vm.name"));
+        env.put("os.name", System.getProperty("os.name"));
+        env.put("os.arch", System.getProperty("os.arch"));
+        env.put("processors", Runtime.getRuntime().availableProcessors());
+        env.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        env.put("lucene.version", Version.LATEST.toString());
+        env.put("luwak.version", Monitor.class.getPackage().getImplementationVersion());
+        return env;
+    }
+
     @Override
     public String toString() {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -0,0 +1,129 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Command-line tool to build a queryindex from a file of queries, using {@link Monitor#bulkLoad(Iterable, int, Path)}
+ *
+ * Each line of the query file holds a query id and a lucene query string, separated by a tab.
+ * Queries are parsed with a {@link LuceneQueryParser} and indexed using a {@link TermFilteredPresearcher}.
+ *
+ * Usage: BulkLoad indexdir queryfile [defaultfield] [threads]
+ */
+public class BulkLoad {
+
+    public static void main(String... args) throws IOException {
+
+        if (args.length < 2) {
+            System.err.println("Usage: BulkLoad indexdir queryfile [defaultfield] [threads]");
+            System.exit(1);
+        }
+
+        Path indexDir = Paths.get(args[0]);
+        Path queryFile = Paths.get(args[1]);
+        String field = args.length > 2 ? args[2] : StandardBenchmark.FIELD;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        Path tempDir = Files.createTempDirectory(indexDir.toAbsolutePath().getParent(), "luwak-bulk-load");
+        try (Directory directory = FSDirectory.open(indexDir);
+             Monitor monitor = new Monitor(new LuceneQueryParser(field), new TermFilteredPresearcher(), directory);
+             BufferedReader reader = Files.newBufferedReader(queryFile, StandardCharsets.UTF_8)) {
+            long start = System.nanoTime();
+            List<QueryError> errors = monitor.bulkLoad(readQueries(reader), threads, tempDir);
+            for (QueryError error : errors) {
+                System.err.println(error);
+            }
+            System.out.println("Loaded " + monitor.getQueryCount() + " queries in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, with " + errors.size() + " errors");
+        }
+        finally {
+            Files.deleteIfExists(tempDir);
+        }
+
+    }
+
+    /**
+     * Read queries from tab-separated lines of id and query string
+     * @param reader the reader to read lines from
+     * @return an Iterable over the queries, which may only be iterated once
+     */
+    public static Iterable<MonitorQuery> readQueries(final BufferedReader reader) {
+        return new Iterable<MonitorQuery>() {
+            @Override
+            public Iterator<MonitorQuery> iterator() {
+                return new Iterator<MonitorQuery>() {
+
+                    String line = readLine();
+
+                    private String readLine() {
+                        try {
+                            String line;
+                            do {
+                                line = reader.readLine();
+                            } while (line != null && line.trim().isEmpty());
+                            return line;
+                        }
+                        catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return line != null;
+                    }
+
+                    @Override
+                    public MonitorQuery next() {
+                        if (line == null)
+                            throw new NoSuchElementException();
+                        int tab = line.indexOf('\t');
+                        if (tab == -1)
+                            throw new IllegalArgumentException("Expected a tab-separated query id and query: " + line);
+                        MonitorQuery query = new MonitorQuery(line.substring(0, tab), line.substring(tab + 1));
+                        line = readLine();
+                        return query;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+}
@@ -0,0 +1,115 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import uk.co.flax.luwak.MonitorMetrics;
+
+/**
+ * A {@link MonitorMetrics} implementation that records timings and counts in a
+ * dropwizard {@link MetricRegistry}
+ */
+public class DropwizardMonitorMetrics extends MonitorMetrics {
+
+    private final Timer batchBuildTimes;
+    private final Timer presearcherQueryTimes;
+    private final Timer queryIndexSearchTimes;
+    private final Timer candidateMatchTimes;
+    private final Timer resultAssemblyTimes;
+    private final Timer commitTimes;
+    private final Timer purgeTimes;
+
+    private final Counter documents;
+    private final Counter candidates;
+    private final Counter matches;
+    private final Meter committedDocuments;
+
+    private final AtomicInteger cachedQueries = new AtomicInteger();
+
+    /**
+     * Create a new DropwizardMonitorMetrics
+     * @param registry the registry to record metrics in
+     * @param prefix a prefix for the names of the metrics
+     */
+    public DropwizardMonitorMetrics(MetricRegistry registry, String prefix) {
+        this.batchBuildTimes = registry.timer(MetricRegistry.name(prefix, "batchBuildTimes"));
+        this.presearcherQueryTimes = registry.timer(MetricRegistry.name(prefix, "presearcherQueryTimes"));
+        this.queryIndexSearchTimes = registry.timer(MetricRegistry.name(prefix, "queryIndexSearchTimes"));
+        this.candidateMatchTimes = registry.timer(MetricRegistry.name(prefix, "candidateMatchTimes"));
+        this.resultAssemblyTimes = registry.timer(MetricRegistry.name(prefix, "resultAssemblyTimes"));
+        this.commitTimes = registry.timer(MetricRegistry.name(prefix, "commitTimes"));
+        this.purgeTimes = registry.timer(MetricRegistry.name(prefix, "purgeTimes"));
+        this.documents = registry.counter(MetricRegistry.name(prefix, "documents"));
+        this.candidates = registry.counter(MetricRegistry.name(prefix, "candidates"));
+        this.matches = registry.counter(MetricRegistry.name(prefix, "matches"));
+        this.committedDocuments = registry.meter(MetricRegistry.name(prefix, "committedDocuments"));
+        registry.register(MetricRegistry.name(prefix, "cachedQueries"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return cachedQueries.get();
+            }
+        });
+    }
+
+    @Override
+    public void documentBatchBuilt(int documents, long nanos) {
+        this.documents.inc(documents);
+        batchBuildTimes.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void presearcherQueryBuilt(long nanos) {
+        presearcherQueryTimes.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void queryIndexSearched(long nanos) {
+        queryIndexSearchTimes.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void candidatesMatched(int candidates, long nanos) {
+        this.candidates.inc(candidates);
+        candidateMatchTimes.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void resultsAssembled(int matches, long nanos) {
+        this.matches.inc(matches);
+        resultAssemblyTimes.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void committed(int documents, long nanos) {
+        committedDocuments.mark(documents);
+        commitTimes.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void cachePurged(int cachedQueries, long nanos) {
+        this.cachedQueries.set(cachedQueries);
+        purgeTimes.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+}
@@ -0,0 +1,105 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.Version;
+import org.codehaus.jackson.map.DeserializationContext;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.deser.std.UntypedObjectDeserializer;
+import org.codehaus.jackson.map.module.SimpleModule;
+
+/**
+ * JSON writing and parsing for benchmark result files
+ *
+ * Objects are parsed into Maps with a stable key order, arrays into Lists, and numbers
+ * into Longs if they are integral, or Doubles otherwise.  NaN and infinite
+ * values are not valid JSON, and are rejected rather than written.
+ */
+final class Json {
+
+    private Json() {}
+
+    private static final JsonSerializer<Number> FINITE = new JsonSerializer<Number>() {
+        @Override
+        public void serialize(Number value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            double d = value.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d))
+                throw new JsonGenerationException("Cannot write non-finite number " + value);
+            generator.writeNumber(d);
+        }
+    };
+
+    // parses integral numbers as Longs, whatever their size, so that values compare consistently
+    private static final UntypedObjectDeserializer UNTYPED = new UntypedObjectDeserializer() {
+        @Override
+        public Object deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT)
+                return parser.getLongValue();
+            return super.deserialize(parser, context);
+        }
+    };
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    static {
+        SimpleModule module = new SimpleModule("FiniteNumbers", Version.unknownVersion());
+        module.addSerializer(Double.class, FINITE);
+        module.addSerializer(Float.class, FINITE);
+        module.addDeserializer(Object.class, UNTYPED);
+        MAPPER.registerModule(module);
+        MAPPER.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
+    }
+
+    /**
+     * Write a value as indented JSON
+     * @param value a Map, Collection, array, String, Number, Boolean or null
+     * @return the JSON text
+     * @throws IllegalArgumentException if the value contains a NaN or infinite number
+     */
+    static String write(Object value) {
+        try {
+            return MAPPER.writeValueAsString(value) + "\n";
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parse JSON text
+     * @param json the JSON text
+     * @return the parsed value
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    static Object parse(String json) {
+        try {
+            return MAPPER.readValue(json, Object.class);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+}
@@ -0,0 +1,291 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Drives concurrent match requests against a single Monitor, at increasing levels of load
+ *
+ * In a closed-loop run, each level runs a fixed number of clients, each of which sends a
+ * new request as soon as its previous one has completed.  In an open-loop run, each level
+ * sends requests at a fixed arrival rate to a pool of clients, whether or not earlier
+ * requests have completed, and latencies are measured from the time each request was due
+ * to be sent, so that queueing delays at saturation are included.
+ *
+ * Requests match batches of documents taken in turn from a fixed list.  While each level
+ * runs, queries can be re-added to the Monitor at a fixed rate, and the query cache
+ * can be purged at a fixed interval, to measure their effect on concurrent matches.
+ *
+ * Usage: LoadDriver closed|open [levels] [seconds] [batchsize] [clients] [updates/s]
+ *
+ * For a closed-loop run, levels are numbers of clients; for an open-loop run, they are
+ * arrival rates in requests per second, sent to the given number of clients.
+ */
+public class LoadDriver {
+
+    private final Monitor monitor;
+    private final List<InputDocument> documents;
+    private final MatcherFactory<? extends QueryMatch> matcherFactory;
+
+    private int batchSize = 1;
+    private long duration = TimeUnit.SECONDS.toNanos(10);
+    private List<MonitorQuery> churnQueries = Collections.emptyList();
+    private double updateRate = 0;
+    private long purgeInterval = 0;
+
+    private final AtomicLong nextBatch = new AtomicLong();
+    private final AtomicLong nextUpdate = new AtomicLong();
+
+    /**
+     * Create a new LoadDriver
+     * @param monitor the Monitor to send requests to
+     * @param documents the documents to match
+     * @param matcherFactory the MatcherFactory to match with
+     */
+    public LoadDriver(Monitor monitor, List<InputDocument> documents, MatcherFactory<? extends QueryMatch> matcherFactory) {
+        if (documents.isEmpty())
+            throw new IllegalArgumentException("At least one document is required");
+        this.monitor = monitor;
+        this.documents = documents;
+        this.matcherFactory = matcherFactory;
+    }
+
+    /**
+     * Set the number of documents matched by each request (defaults to 1)
+     * @param batchSize the batch size
+     * @return the LoadDriver
+     */
+    public LoadDriver setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Set how long each level of load runs for (defaults to 10 seconds)
+     * @param duration the duration
+     * @param units the units of the duration
+     * @return the LoadDriver
+     */
+    public LoadDriver setDuration(long duration, TimeUnit units) {
+        this.duration = units.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * Re-add queries to the Monitor while each level runs
+     * @param queries the queries to add, in turn, one per update
+     * @param updatesPerSecond the rate at which to send updates
+     * @return the LoadDriver
+     */
+    public LoadDriver setUpdateChurn(List<MonitorQuery> queries, double updatesPerSecond) {
+        this.churnQueries = queries;
+        this.updateRate = queries.isEmpty() ? 0 : updatesPerSecond;
+        return this;
+    }
+
+    /**
+     * Purge the Monitor's query cache while each level runs
+     * @param interval the interval between purges, or 0 for none
+     * @param units the units of the interval
+     * @return the LoadDriver
+     */
+    public LoadDriver setPurgeInterval(long interval, TimeUnit units) {
+        this.purgeInterval = units.toNanos(interval);
+        return this;
+    }
+
+    /**
+     * Run a closed-loop test at each of a number of client counts
+     * @param clientCounts the numbers of concurrent clients
+     * @return the latencies at each level
+     * @throws InterruptedException if the test is interrupted
+     */
+    public LoadResults closedLoop(int... clientCounts) throws InterruptedException {
+        LoadResults results = new LoadResults();
+        for (int clients : clientCounts) {
+            final LoadResults.Level level = results.addLevel(clients + " clients");
+            ScheduledExecutorService background = startBackgroundTasks(level);
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            long start = System.nanoTime();
+            final long end = start + duration;
+            try {
+                for (int i = 0; i < clients; i++) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            while (System.nanoTime() < end) {
+                                match(level, System.nanoTime());
+                            }
+                        }
+                    });
+                }
+            }
+            finally {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                level.setElapsedTime(System.nanoTime() - start);
+                stop(background);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run an open-loop test at each of a number of arrival rates
+     * @param clients the number of clients to send requests from
+     * @param arrivalRates the request rates, in requests per second
+     * @return the latencies at each level
+     * @throws InterruptedException if the test is interrupted
+     */
+    public LoadResults openLoop(int clients, int... arrivalRates) throws InterruptedException {
+        LoadResults results = new LoadResults();
+        for (int rate : arrivalRates) {
+            final LoadResults.Level level = results.addLevel(rate + "/s");
+            ScheduledExecutorService background = startBackgroundTasks(level);
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            long start = System.nanoTime();
+            double interval = TimeUnit.SECONDS.toNanos(1) / (double) rate;
+            try {
+                for (long i = 0; ; i++) {
+                    final long due = start + (long) (i * interval);
+                    if (due - start >= duration)
+                        break;
+                    // sleep() can wake up early, so don't send a request before it's due
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            match(level, due);
+                        }
+                    });
+                }
+            }
+            finally {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                level.setElapsedTime(System.nanoTime() - start);
+                stop(background);
+            }
+        }
+        return results;
+    }
+
+    private void match(LoadResults.Level level, long startTime) {
+        try (DocumentBatch batch = DocumentBatch.of(nextBatch())) {
+            monitor.match(batch, matcherFactory);
+            // Timer drops negative times, so never record one
+            level.matched(Math.max(0, System.nanoTime() - startTime));
+        }
+        catch (IOException | RuntimeException e) {
+            level.error();
+        }
+    }
+
+    private List<InputDocument> nextBatch() {
+        long first = nextBatch.getAndIncrement() * batchSize;
+        List<InputDocument> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(documents.get((int) ((first + i) % documents.size())));
+        }
+        return batch;
+    }
+
+    private ScheduledExecutorService startBackgroundTasks(final LoadResults.Level level) {
+        ScheduledExecutorService background = Executors.newScheduledThreadPool(2);
+        if (updateRate > 0) {
+            background.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    MonitorQuery query = churnQueries.get((int) (nextUpdate.getAndIncrement() % churnQueries.size()));
+                    long start = System.nanoTime();
+                    try {
+                        monitor.update(query);
+                        level.updated(System.nanoTime() - start);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        level.error();
+                    }
+                }
+            }, 0, (long) (TimeUnit.SECONDS.toNanos(1) / updateRate), TimeUnit.NANOSECONDS);
+        }
+        if (purgeInterval > 0) {
+            background.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        monitor.purgeCache();
+                    }
+                    catch (IOException | RuntimeException e) {
+                        level.error();
+                    }
+                }
+            }, purgeInterval, purgeInterval, TimeUnit.NANOSECONDS);
+        }
+        return background;
+    }
+
+    private static void stop(ExecutorService background) throws InterruptedException {
+        background.shutdownNow();
+        background.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    public static void main(String... args) throws IOException, InterruptedException {
+
+        if (args.length < 1 || ("closed".equals(args[0]) == false && "open".equals(args[0]) == false)) {
+            System.err.println("Usage: LoadDriver closed|open [levels] [seconds] [batchsize] [clients] [updates/s]");
+            System.exit(1);
+        }
+
+        boolean closed = "closed".equals(args[0]);
+        int[] levels = args.length > 1 ? StandardBenchmark.parseInts(args[1])
+                : closed ? new int[]{ 1, 2, 4, 8, 16 } : new int[]{ 50, 100, 200, 400, 800 };
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int clients = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        double updateRate = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+
+        List<MonitorQuery> queries = Lists.newArrayList(StandardBenchmark.loadQueries());
+        List<InputDocument> documents = Lists.newArrayList(StandardBenchmark.loadDocuments());
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(StandardBenchmark.FIELD), new TermFilteredPresearcher())) {
+            monitor.update(queries);
+            LoadDriver driver = new LoadDriver(monitor, documents, SimpleMatcher.FACTORY)
+                    .setBatchSize(batchSize)
+                    .setDuration(seconds, TimeUnit.SECONDS)
+                    .setUpdateChurn(queries, updateRate);
+            // run through once to warm up
+            Benchmark.run(monitor, documents, batchSize, SimpleMatcher.FACTORY);
+            System.out.println(closed ? driver.closedLoop(levels) : driver.openLoop(clients, levels));
+        }
+
+    }
+
+}
@@ -0,0 +1,138 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+
+/**
+ * The latencies recorded by a {@link LoadDriver} at each level of offered load
+ */
+public class LoadResults {
+
+    private final List<Level> levels = new ArrayList<>();
+
+    /**
+     * The latencies recorded at one level of offered load
+     */
+    public static class Level {
+
+        private final String load;
+        private final Timer matchTimes = new Timer(new UniformReservoir(ReplayResults.SAMPLE_SIZE));
+        private final Timer updateTimes = new Timer(new UniformReservoir(ReplayResults.SAMPLE_SIZE));
+        private final AtomicLong errors = new AtomicLong();
+
+        private long elapsedTime;
+
+        Level(String load) {
+            this.load = load;
+        }
+
+        void matched(long nanos) {
+            matchTimes.update(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        void updated(long nanos) {
+            updateTimes.update(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        void error() {
+            errors.incrementAndGet();
+        }
+
+        void setElapsedTime(long nanos) {
+            this.elapsedTime = nanos;
+        }
+
+        /**
+         * @return a description of the offered load, either a number of clients or an arrival rate
+         */
+        public String getLoad() {
+            return load;
+        }
+
+        /**
+         * @return the match latencies; for an open-loop run, these are measured from the time
+         *         at which each request was due to be sent
+         */
+        public Timer getMatchTimes() {
+            return matchTimes;
+        }
+
+        /**
+         * @return the latencies of the concurrent query updates
+         */
+        public Timer getUpdateTimes() {
+            return updateTimes;
+        }
+
+        /**
+         * @return the number of requests that failed
+         */
+        public long getErrorCount() {
+            return errors.get();
+        }
+
+        /**
+         * @return the number of matches completed per second
+         */
+        public double getThroughput() {
+            if (elapsedTime <= 0)
+                return 0;
+            return matchTimes.getCount() / (elapsedTime / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+    }
+
+    Level addLevel(String load) {
+        Level level = new Level(load);
+        levels.add(level);
+        return level;
+    }
+
+    /**
+     * @return the results for each level of offered load, in the order they were run
+     */
+    public List<Level> getLevels() {
+        return Collections.unmodifiableList(levels);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-14s %10s %12s %10s %10s %10s %10s %8s %8s%n",
+                "load", "matches", "per second", "p50 ms", "p99 ms", "p999 ms", "max ms", "updates", "errors"));
+        for (Level level : levels) {
+            Snapshot snapshot = level.matchTimes.getSnapshot();
+            sb.append(String.format(Locale.ROOT, "%-14s %10d %12.1f %10.3f %10.3f %10.3f %10.3f %8d %8d%n",
+                    level.load, level.matchTimes.getCount(), level.getThroughput(),
+                    snapshot.getMedian() / 1e6, snapshot.get99thPercentile() / 1e6,
+                    snapshot.get999thPercentile() / 1e6, snapshot.getMax() / 1e6,
+                    level.updateTimes.getCount(), level.errors.get()));
+        }
+        return sb.toString();
+    }
+
+}
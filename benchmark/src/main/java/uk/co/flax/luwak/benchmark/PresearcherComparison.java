@@ -0,0 +1,292 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MultipassTermFilteredPresearcher;
+import uk.co.flax.luwak.presearcher.PresearcherComponent;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.presearcher.WildcardNGramPresearcherComponent;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Compares the selectivity and cost of several presearcher configurations
+ *
+ * The same queries are loaded into a Monitor for each configuration, with its queryindex
+ * in a temporary directory on disk, and the same documents are then matched one at a time.
+ * For each configuration, the comparison reports the number of candidate queries selected
+ * by the presearcher for each document, the number of those that actually matched, the
+ * proportion of candidates that did not match, the size of the queryindex on disk and the
+ * heap used by the Monitor, and the time spent presearching and matching.
+ *
+ * A presearcher should never reject a query that matches, so matches found using one
+ * configuration but not another are reported as missed.
+ *
+ * Usage: PresearcherComparison [configurations] [documents]
+ *
+ * Configurations are given as a comma-separated list, each of which is "term" or "multipass-N"
+ * for a MultipassTermFilteredPresearcher with N passes, optionally followed by "-W" to set
+ * the minimum weight, and "+ngram" to add a {@link WildcardNGramPresearcherComponent}.
+ */
+public class PresearcherComparison {
+
+    public static final String DEFAULT_CONFIGURATIONS
+            = "term,term+ngram,multipass-2,multipass-2+ngram,multipass-3,multipass-2-0.5";
+
+    private final MonitorQueryParser parser;
+    private final List<MonitorQuery> queries;
+    private final List<InputDocument> documents;
+    private final Map<String, Presearcher> configurations = new LinkedHashMap<>();
+
+    /**
+     * Create a new PresearcherComparison
+     * @param parser the parser to use for queries
+     * @param queries the queries to load
+     * @param documents the documents to match
+     */
+    public PresearcherComparison(MonitorQueryParser parser, List<MonitorQuery> queries, List<InputDocument> documents) {
+        this.parser = parser;
+        this.queries = queries;
+        this.documents = documents;
+    }
+
+    /**
+     * Add a presearcher configuration to the comparison
+     * @param name the name of the configuration
+     * @param presearcher the presearcher to use
+     * @return the PresearcherComparison
+     */
+    public PresearcherComparison add(String name, Presearcher presearcher) {
+        configurations.put(name, presearcher);
+        return this;
+    }
+
+    /**
+     * The results of a single configuration
+     */
+    public static class Result {
+
+        private final String name;
+        private final Set<String> matchIds = new HashSet<>();
+
+        private int queryErrors;
+        private long candidates;
+        private long matches;
+        private long missedMatches;
+        private long indexBytes;
+        private long ramBytesUsed;
+        private long presearchTime;
+        private long matchTime;
+        private int documents;
+
+        private Result(String name) {
+            this.name = name;
+        }
+
+        /** @return the name of the configuration */
+        public String getName() {
+            return name;
+        }
+
+        /** @return the number of queries that could not be loaded */
+        public int getQueryErrors() {
+            return queryErrors;
+        }
+
+        /** @return the mean number of candidate queries selected for each document */
+        public double getCandidatesPerDocument() {
+            return documents == 0 ? 0 : candidates / (double) documents;
+        }
+
+        /** @return the mean number of queries matching each document */
+        public double getMatchesPerDocument() {
+            return documents == 0 ? 0 : matches / (double) documents;
+        }
+
+        /** @return the proportion of candidate queries that did not match */
+        public double getFalsePositiveRatio() {
+            return candidates == 0 ? 0 : (candidates - matches) / (double) candidates;
+        }
+
+        /** @return the number of matches found using other configurations but not this one */
+        public long getMissedMatches() {
+            return missedMatches;
+        }
+
+        /** @return the size of the queryindex on disk, in bytes */
+        public long getIndexBytes() {
+            return indexBytes;
+        }
+
+        /** @return the heap used by the Monitor, in bytes */
+        public long getRamBytesUsed() {
+            return ramBytesUsed;
+        }
+
+        /** @return the total time spent presearching, in nanoseconds */
+        public long getPresearchTime() {
+            return presearchTime;
+        }
+
+        /** @return the total time spent presearching and matching, in nanoseconds */
+        public long getMatchTime() {
+            return matchTime;
+        }
+
+    }
+
+    /**
+     * Run the comparison
+     * @param tempDir a directory in which to create temporary queryindexes
+     * @return the results for each configuration, in the order they were added
+     * @throws IOException on IO errors
+     */
+    public List<Result> run(Path tempDir) throws IOException {
+        List<Result> results = new ArrayList<>();
+        Set<String> allMatches = new HashSet<>();
+        for (Map.Entry<String, Presearcher> configuration : configurations.entrySet()) {
+            Result result = run(configuration.getKey(), configuration.getValue(), tempDir);
+            allMatches.addAll(result.matchIds);
+            results.add(result);
+        }
+        for (Result result : results) {
+            result.missedMatches = allMatches.size() - result.matchIds.size();
+        }
+        return results;
+    }
+
+    private Result run(String name, Presearcher presearcher, Path tempDir) throws IOException {
+        Result result = new Result(name);
+        Path indexDir = Files.createTempDirectory(tempDir, "luwak-presearcher-comparison");
+        try {
+            try (Directory directory = FSDirectory.open(indexDir);
+                 Monitor monitor = new Monitor(parser, presearcher, directory)) {
+
+                result.queryErrors = monitor.update(queries).size();
+                for (String file : directory.listAll()) {
+                    result.indexBytes += directory.fileLength(file);
+                }
+                result.ramBytesUsed = monitor.ramBytesUsed();
+
+                // run through once to warm up
+                for (InputDocument doc : documents) {
+                    monitor.match(doc, PresearcherMatcher.FACTORY);
+                }
+
+                for (InputDocument doc : documents) {
+                    long start = System.nanoTime();
+                    Matches<PresearcherMatch> candidates = monitor.match(doc, PresearcherMatcher.FACTORY);
+                    result.presearchTime += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+                    result.matchTime += System.nanoTime() - start;
+
+                    result.documents++;
+                    result.candidates += candidates.getMatchCount(doc.getId());
+                    result.matches += matches.getMatchCount(doc.getId());
+                    if (matches.getMatches(doc.getId()) != null) {
+                        for (QueryMatch match : matches.getMatches(doc.getId())) {
+                            result.matchIds.add(doc.getId() + "/" + match.getQueryId());
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            IOUtils.rm(indexDir);
+        }
+        return result;
+    }
+
+    /**
+     * Format the results of a comparison as a table
+     * @param results the results
+     * @return a table with a row for each configuration
+     */
+    public static String report(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-22s %8s %12s %10s %8s %8s %12s %12s %12s %12s%n",
+                "presearcher", "errors", "candidates", "matches", "fp ratio", "missed",
+                "disk bytes", "ram bytes", "presearch ms", "match ms"));
+        for (Result result : results) {
+            sb.append(String.format(Locale.ROOT, "%-22s %8d %12.2f %10.2f %8.3f %8d %12d %12d %12d %12d%n",
+                    result.name, result.queryErrors, result.getCandidatesPerDocument(), result.getMatchesPerDocument(),
+                    result.getFalsePositiveRatio(), result.missedMatches, result.indexBytes, result.ramBytesUsed,
+                    TimeUnit.NANOSECONDS.toMillis(result.presearchTime), TimeUnit.NANOSECONDS.toMillis(result.matchTime)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Create a presearcher from a description
+     * @param spec "term" or "multipass-N[-W]", optionally followed by "+ngram"
+     * @return a new Presearcher
+     */
+    public static Presearcher presearcher(String spec) {
+        String[] parts = spec.split("\\+");
+        PresearcherComponent[] components = new PresearcherComponent[parts.length - 1];
+        for (int i = 1; i < parts.length; i++) {
+            if ("ngram".equals(parts[i]) == false)
+                throw new IllegalArgumentException("Unknown presearcher component " + parts[i]);
+            components[i - 1] = new WildcardNGramPresearcherComponent();
+        }
+        if ("term".equals(parts[0]))
+            return new TermFilteredPresearcher(components);
+        if (parts[0].startsWith("multipass-")) {
+            String[] args = parts[0].substring("multipass-".length()).split("-");
+            float minWeight = args.length > 1 ? Float.parseFloat(args[1]) : 0.1f;
+            return new MultipassTermFilteredPresearcher(Integer.parseInt(args[0]), minWeight, components);
+        }
+        throw new IllegalArgumentException("Unknown presearcher " + spec);
+    }
+
+    public static void main(String... args) throws IOException {
+
+        String[] configurations = (args.length > 0 ? args[0] : DEFAULT_CONFIGURATIONS).split(",");
+        int documentCount = args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+
+        List<InputDocument> documents = Lists.newArrayList(StandardBenchmark.loadDocuments());
+        PresearcherComparison comparison = new PresearcherComparison(new LuceneQueryParser(StandardBenchmark.FIELD),
+                Lists.newArrayList(StandardBenchmark.loadQueries()),
+                documents.subList(0, Math.min(documentCount, documents.size())));
+        for (String configuration : configurations) {
+            comparison.add(configuration.trim(), presearcher(configuration.trim()));
+        }
+
+        Path tempDir = Files.createTempDirectory("luwak-presearcher-comparison");
+        try {
+            System.out.println(report(comparison.run(tempDir)));
+        }
+        finally {
+            IOUtils.rm(tempDir);
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import uk.co.flax.luwak.MonitorMetrics;
+
+/**
+ * The latencies recorded by a {@link TrafficReplay}
+ *
+ * Each call made to the Monitor during the replay is timed, under the stage names "update",
+ * "delete", "clear" and "match".  The stages of each match and update, as reported to
+ * {@link MonitorMetrics}, are timed under the names "batchBuild", "presearcherQuery",
+ * "queryIndexSearch", "candidateMatch", "resultAssembly" and "commit".  When the replay
+ * follows the captured timing, the time by which each call started later than scheduled
+ * is recorded as "scheduleLag".
+ *
+ * Timings are sampled uniformly, so percentiles cover the whole replay rather than
+ * favouring its most recent calls.
+ */
+public class ReplayResults {
+
+    /** The number of timings kept for each stage */
+    public static final int SAMPLE_SIZE = 100000;
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final AtomicLong errors = new AtomicLong();
+
+    private final MonitorMetrics monitorMetrics = new MonitorMetrics() {
+
+        @Override
+        public void documentBatchBuilt(int documents, long nanos) {
+            update("batchBuild", nanos);
+        }
+
+        @Override
+        public void presearcherQueryBuilt(long nanos) {
+            update("presearcherQuery", nanos);
+        }
+
+        @Override
+        public void queryIndexSearched(long nanos) {
+            update("queryIndexSearch", nanos);
+        }
+
+        @Override
+        public void candidatesMatched(int candidates, long nanos) {
+            update("candidateMatch", nanos);
+        }
+
+        @Override
+        public void resultsAssembled(int matches, long nanos) {
+            update("resultAssembly", nanos);
+        }
+
+        @Override
+        public void committed(int documents, long nanos) {
+            update("commit", nanos);
+        }
+    };
+
+    private long elapsedTime;
+
+    /**
+     * @return a MonitorMetrics that records per-stage timings in these results
+     */
+    MonitorMetrics getMonitorMetrics() {
+        return monitorMetrics;
+    }
+
+    /**
+     * Record a timing
+     * @param stage the name of the stage
+     * @param nanos the time taken, in nanoseconds
+     */
+    void update(String stage, long nanos) {
+        getTimer(stage).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void errors(int count) {
+        errors.addAndGet(count);
+    }
+
+    void setElapsedTime(long nanos) {
+        this.elapsedTime = nanos;
+    }
+
+    /**
+     * Get the timings for a stage
+     * @param stage the name of the stage
+     * @return a Timer holding the timings
+     */
+    public Timer getTimer(String stage) {
+        synchronized (metrics) {
+            SortedMap<String, Timer> timers = metrics.getTimers();
+            if (timers.containsKey(stage))
+                return timers.get(stage);
+            return metrics.register(stage, new Timer(new UniformReservoir(SAMPLE_SIZE)));
+        }
+    }
+
+    /**
+     * @return the wall-clock time taken by the replay, in nanoseconds
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * @return the number of calls that failed, and of queries that could not be added
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * Get the throughput of a stage
+     * @param stage the name of the stage
+     * @return the number of timings recorded for the stage per second of the replay
+     */
+    public double getThroughput(String stage) {
+        if (elapsedTime <= 0)
+            return 0;
+        return getTimer(stage).getCount() / (elapsedTime / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Replayed in %d ms, with %d errors%n",
+                TimeUnit.NANOSECONDS.toMillis(elapsedTime), errors.get()));
+        sb.append(String.format(Locale.ROOT, "%-18s %10s %12s %10s %10s %10s%n",
+                "stage", "count", "per second", "p50 ms", "p99 ms", "p999 ms"));
+        for (Map.Entry<String, Timer> entry : metrics.getTimers().entrySet()) {
+            Snapshot snapshot = entry.getValue().getSnapshot();
+            sb.append(String.format(Locale.ROOT, "%-18s %10d %12.1f %10.3f %10.3f %10.3f%n",
+                    entry.getKey(), entry.getValue().getCount(), getThroughput(entry.getKey()),
+                    snapshot.getMedian() / 1e6, snapshot.get99thPercentile() / 1e6, snapshot.get999thPercentile() / 1e6));
+        }
+        return sb.toString();
+    }
+
+}
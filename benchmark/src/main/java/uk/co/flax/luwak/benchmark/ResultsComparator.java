@@ -0,0 +1,372 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Compares two sets of benchmark results written by {@link BenchmarkResults#writeJson(Path)}
+ *
+ * Search time percentiles (p50, p99 and p999), throughput and the mean number of candidate
+ * queries per batch are compared.  A confidence interval for the relative change in each
+ * statistic is estimated by bootstrap resampling of the recorded samples, and a change is
+ * flagged as a regression if it is for the worse, the whole interval lies on the worse
+ * side of zero, and it is at least as large as a minimum threshold.  Note that with the
+ * default sample size, p999 is close to the maximum and its interval is wide.
+ *
+ * Differences between the environments and configurations of the two runs are reported
+ * as warnings.
+ *
+ * Usage: ResultsComparator baseline.json candidate.json [confidence] [threshold]
+ *
+ * Exits with status 1 if any regression is found.
+ */
+public class ResultsComparator {
+
+    /** The default confidence level of the intervals */
+    public static final double DEFAULT_CONFIDENCE = 0.95;
+
+    /** The default minimum relative change flagged as a regression */
+    public static final double DEFAULT_THRESHOLD = 0.05;
+
+    private static final int BOOTSTRAP_ITERATIONS = 2000;
+
+    private final double confidence;
+    private final double threshold;
+
+    private final List<String> warnings = new ArrayList<>();
+
+    /**
+     * Create a new ResultsComparator
+     * @param confidence the confidence level of the intervals, between 0 and 1
+     * @param threshold the minimum relative change flagged as a regression
+     */
+    public ResultsComparator(double confidence, double threshold) {
+        if (confidence <= 0 || confidence >= 1)
+            throw new IllegalArgumentException("Confidence must be between 0 and 1");
+        this.confidence = confidence;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Create a new ResultsComparator with the default confidence level and threshold
+     */
+    public ResultsComparator() {
+        this(DEFAULT_CONFIDENCE, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * The comparison of a single statistic
+     */
+    public static class Comparison {
+
+        private final String statistic;
+        private final double baseline;
+        private final double candidate;
+        private final double change;
+        private final double lower;
+        private final double upper;
+        private final boolean regression;
+        private final boolean improvement;
+
+        private Comparison(String statistic, double baseline, double candidate, double change,
+                           double lower, double upper, boolean regression, boolean improvement) {
+            this.statistic = statistic;
+            this.baseline = baseline;
+            this.candidate = candidate;
+            this.change = change;
+            this.lower = lower;
+            this.upper = upper;
+            this.regression = regression;
+            this.improvement = improvement;
+        }
+
+        /** @return the name of the statistic */
+        public String getStatistic() {
+            return statistic;
+        }
+
+        /** @return the value of the statistic in the baseline results */
+        public double getBaseline() {
+            return baseline;
+        }
+
+        /** @return the value of the statistic in the candidate results */
+        public double getCandidate() {
+            return candidate;
+        }
+
+        /** @return the relative change from the baseline to the candidate */
+        public double getChange() {
+            return change;
+        }
+
+        /** @return the lower bound of the confidence interval of the relative change */
+        public double getLower() {
+            return lower;
+        }
+
+        /** @return the upper bound of the confidence interval of the relative change */
+        public double getUpper() {
+            return upper;
+        }
+
+        /** @return true if the change is a significant regression */
+        public boolean isRegression() {
+            return regression;
+        }
+
+        /** @return true if the change is a significant improvement */
+        public boolean isImprovement() {
+            return improvement;
+        }
+
+    }
+
+    // a statistic computed from a sample, and whether higher values are worse
+    private static abstract class Statistic {
+
+        final String name;
+        final boolean higherIsWorse;
+
+        Statistic(String name, boolean higherIsWorse) {
+            this.name = name;
+            this.higherIsWorse = higherIsWorse;
+        }
+
+        abstract double compute(double[] samples, Map<String, Object> results);
+
+    }
+
+    private static class Percentile extends Statistic {
+
+        final double quantile;
+
+        Percentile(String name, double quantile) {
+            super(name, true);
+            this.quantile = quantile;
+        }
+
+        @Override
+        double compute(double[] samples, Map<String, Object> results) {
+            return percentile(samples, quantile);
+        }
+    }
+
+    private static final Statistic THROUGHPUT = new Statistic("throughput (docs/s)", false) {
+        @Override
+        double compute(double[] samples, Map<String, Object> results) {
+            double docsPerBatch = number(results, "documents") / Math.max(1, number(results, "batches"));
+            return docsPerBatch / (mean(samples) / 1e9);
+        }
+    };
+
+    private static final Statistic MEAN_CANDIDATES = new Statistic("candidates mean", true) {
+        @Override
+        double compute(double[] samples, Map<String, Object> results) {
+            return mean(samples);
+        }
+    };
+
+    /**
+     * Compare two results files
+     * @param baseline the baseline results
+     * @param candidate the candidate results
+     * @return a comparison of each statistic
+     * @throws IOException on IO errors
+     */
+    public List<Comparison> compare(Path baseline, Path candidate) throws IOException {
+        return compare(new String(Files.readAllBytes(baseline), StandardCharsets.UTF_8),
+                new String(Files.readAllBytes(candidate), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compare two sets of JSON results
+     * @param baselineJson the baseline results
+     * @param candidateJson the candidate results
+     * @return a comparison of each statistic
+     */
+    public List<Comparison> compare(String baselineJson, String candidateJson) {
+        Map<String, Object> baseline = parse(baselineJson);
+        Map<String, Object> candidate = parse(candidateJson);
+
+        warnings.clear();
+        checkDifferences("environment", baseline, candidate);
+        checkDifferences("configuration", baseline, candidate);
+
+        // use the same random streams for every comparison, so that results are repeatable
+        Random random = new Random(0);
+        List<Comparison> comparisons = new ArrayList<>();
+        double[] baselineTimes = samples(baseline, "searchTimes");
+        double[] candidateTimes = samples(candidate, "searchTimes");
+        comparisons.add(compare(new Percentile("search time p50 (ns)", 0.5), baselineTimes, candidateTimes, baseline, candidate, random));
+        comparisons.add(compare(new Percentile("search time p99 (ns)", 0.99), baselineTimes, candidateTimes, baseline, candidate, random));
+        comparisons.add(compare(new Percentile("search time p999 (ns)", 0.999), baselineTimes, candidateTimes, baseline, candidate, random));
+        comparisons.add(compare(THROUGHPUT, baselineTimes, candidateTimes, baseline, candidate, random));
+        comparisons.add(compare(MEAN_CANDIDATES, samples(baseline, "candidates"), samples(candidate, "candidates"),
+                baseline, candidate, random));
+        return comparisons;
+    }
+
+    /**
+     * @return differences between the environments and configurations of the last two results compared
+     */
+    public List<String> getWarnings() {
+        return Collections.unmodifiableList(warnings);
+    }
+
+    private Comparison compare(Statistic statistic, double[] baselineSamples, double[] candidateSamples,
+                               Map<String, Object> baseline, Map<String, Object> candidate, Random random) {
+        double baselineValue = statistic.compute(baselineSamples, baseline);
+        double candidateValue = statistic.compute(candidateSamples, candidate);
+        double change = relativeChange(baselineValue, candidateValue);
+
+        double[] changes = new double[BOOTSTRAP_ITERATIONS];
+        double[] baselineResample = new double[baselineSamples.length];
+        double[] candidateResample = new double[candidateSamples.length];
+        for (int i = 0; i < BOOTSTRAP_ITERATIONS; i++) {
+            resample(baselineSamples, baselineResample, random);
+            resample(candidateSamples, candidateResample, random);
+            changes[i] = relativeChange(statistic.compute(baselineResample, baseline),
+                    statistic.compute(candidateResample, candidate));
+        }
+        Arrays.sort(changes);
+        double alpha = (1 - confidence) / 2;
+        double lower = percentile(changes, alpha);
+        double upper = percentile(changes, 1 - alpha);
+
+        boolean worse = statistic.higherIsWorse ? lower > 0 : upper < 0;
+        boolean better = statistic.higherIsWorse ? upper < 0 : lower > 0;
+        boolean significant = Math.abs(change) >= threshold;
+        return new Comparison(statistic.name, baselineValue, candidateValue, change, lower, upper,
+                worse && significant, better && significant);
+    }
+
+    private void checkDifferences(String section, Map<String, Object> baseline, Map<String, Object> candidate) {
+        Map<?, ?> first = (Map<?, ?>) baseline.get(section);
+        Map<?, ?> second = (Map<?, ?>) candidate.get(section);
+        Set<Object> keys = new TreeSet<>();
+        keys.addAll(first.keySet());
+        keys.addAll(second.keySet());
+        for (Object key : keys) {
+            Object a = first.get(key);
+            Object b = second.get(key);
+            if (a == null ? b != null : a.equals(b) == false)
+                warnings.add(section + " " + key + " differs: " + a + " vs " + b);
+        }
+    }
+
+    private static Map<String, Object> parse(String json) {
+        Object parsed = Json.parse(json);
+        if (parsed instanceof Map == false || BenchmarkResults.FORMAT.equals(((Map<?, ?>) parsed).get("format")) == false)
+            throw new IllegalArgumentException("Not a benchmark results file");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> results = (Map<String, Object>) parsed;
+        if (number(results, "version") != BenchmarkResults.VERSION)
+            throw new IllegalArgumentException("Unsupported benchmark results version " + results.get("version"));
+        return results;
+    }
+
+    private static double[] samples(Map<String, Object> results, String metric) {
+        List<?> values = (List<?>) ((Map<?, ?>) results.get(metric)).get("samples");
+        double[] samples = new double[values.size()];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = ((Number) values.get(i)).doubleValue();
+        }
+        if (samples.length == 0)
+            throw new IllegalArgumentException("No samples recorded for " + metric);
+        return samples;
+    }
+
+    private static double number(Map<String, Object> results, String key) {
+        return ((Number) results.get(key)).doubleValue();
+    }
+
+    private static void resample(double[] samples, double[] into, Random random) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] = samples[random.nextInt(samples.length)];
+        }
+    }
+
+    private static double relativeChange(double baseline, double candidate) {
+        if (baseline == 0)
+            return candidate == 0 ? 0 : Math.copySign(Double.POSITIVE_INFINITY, candidate);
+        return (candidate - baseline) / baseline;
+    }
+
+    private static double mean(double[] samples) {
+        double sum = 0;
+        for (double sample : samples) {
+            sum += sample;
+        }
+        return sum / samples.length;
+    }
+
+    // nearest-rank percentile; sorts the samples in place
+    private static double percentile(double[] samples, double quantile) {
+        Arrays.sort(samples);
+        int rank = (int) Math.ceil(quantile * samples.length);
+        return samples[Math.min(samples.length - 1, Math.max(0, rank - 1))];
+    }
+
+    /**
+     * Format comparisons as a table
+     * @param comparisons the comparisons
+     * @return a table with a row for each statistic
+     */
+    public static String report(List<Comparison> comparisons) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-24s %16s %16s %9s %21s  %s%n",
+                "statistic", "baseline", "candidate", "change", "interval", ""));
+        for (Comparison c : comparisons) {
+            sb.append(String.format(Locale.ROOT, "%-24s %16.1f %16.1f %8.1f%% [%8.1f%%, %8.1f%%]  %s%n",
+                    c.statistic, c.baseline, c.candidate, c.change * 100, c.lower * 100, c.upper * 100,
+                    c.regression ? "REGRESSION" : c.improvement ? "improved" : ""));
+        }
+        return sb.toString();
+    }
+
+    public static void main(String... args) throws IOException {
+
+        if (args.length < 2) {
+            System.err.println("Usage: ResultsComparator baseline.json candidate.json [confidence] [threshold]");
+            System.exit(2);
+        }
+
+        double confidence = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_CONFIDENCE;
+        double threshold = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_THRESHOLD;
+        ResultsComparator comparator = new ResultsComparator(confidence, threshold);
+        List<Comparison> comparisons = comparator.compare(Paths.get(args[0]), Paths.get(args[1]));
+
+        for (String warning : comparator.getWarnings()) {
+            System.out.println("WARNING: " + warning);
+        }
+        System.out.print(report(comparisons));
+
+        for (Comparison comparison : comparisons) {
+            if (comparison.isRegression())
+                System.exit(1);
+        }
+
+    }
+
+}
@@ -18,6 +18,9 @@ package uk.co.flax.luwak.benchmark;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -45,6 +48,11 @@ public class StandardBenchmark {
             new MultipassTermFilteredPresearcher(2, 0.1f, new WildcardNGramPresearcherComponent())
     );
 
+    /** Names for each of the {@link #PRESEARCHERS}, as understood by {@link PresearcherComparison#presearcher(String)} */
+    public static final List<String> PRESEARCHER_NAMES = ImmutableList.of(
+            "term", "multipass-2", "term+ngram", "multipass-2+ngram"
+    );
+
     public static final List<? extends MatcherFactory<? extends QueryMatch>> MATCHERS = ImmutableList.of(
             PresearcherMatcher.FACTORY,
             SimpleMatcher.FACTORY,
@@ -52,13 +60,51 @@ public class StandardBenchmark {
             HighlightingMatcher.FACTORY
     );
 
+    /** Names for each of the {@link #MATCHERS} */
+    public static final List<String> MATCHER_NAMES = ImmutableList.of(
+            "presearcher", "simple", "scoring", "highlighting"
+    );
+
     public static final String FIELD = "text";
 
     public static final Analyzer ANALYZER = new StandardAnalyzer();
 
+    public static final int[] SYNTHETIC_QUERY_COUNTS = new int[]{ 10000, 100000, 1000000 };
+
+    public static final int[] BATCH_SIZES = new int[]{ 1, 50, 100, 1000 };
+
+    public static final int SYNTHETIC_DOCUMENTS = 5000;
+
+    /**
+     * Run the benchmarks
+     *
+     * With no arguments, each presearcher and matcher is run over the corpus in the benchmark
+     * resources.  To sweep over query counts and batch sizes with a synthetic workload instead,
+     * use: StandardBenchmark synthetic [querycounts] [batchsizes] [documents] [seed]
+     * where query counts and batch sizes are comma-separated lists.
+     *
+     * To also write the results of each corpus run to a JSON file for later comparison with
+     * {@link ResultsComparator}, use: StandardBenchmark outputdir
+     */
     public static void main(String... args) throws IOException {
 
-        for (Presearcher presearcher : PRESEARCHERS) {
+        if (args.length > 0 && "synthetic".equals(args[0])) {
+            int[] queryCounts = args.length > 1 ? parseInts(args[1]) : SYNTHETIC_QUERY_COUNTS;
+            int[] batchSizes = args.length > 2 ? parseInts(args[2]) : BATCH_SIZES;
+            int documents = args.length > 3 ? Integer.parseInt(args[3]) : SYNTHETIC_DOCUMENTS;
+            long seed = args.length > 4 ? Long.parseLong(args[4]) : 0;
+            for (Presearcher presearcher : PRESEARCHERS) {
+                sweep(new WorkloadGenerator(seed), presearcher, queryCounts, batchSizes, documents);
+            }
+            return;
+        }
+
+        Path outputDir = args.length > 0 ? Paths.get(args[0]) : null;
+        if (outputDir != null)
+            Files.createDirectories(outputDir);
+
+        for (int p = 0; p < PRESEARCHERS.size(); p++) {
+            Presearcher presearcher = PRESEARCHERS.get(p);
             System.out.println("=================================================================");
             System.out.println("Benchmarking presearcher " + presearcher.toString());
             try (Monitor monitor = new Monitor(new LuceneQueryParser(FIELD), presearcher)) {
@@ -67,10 +113,19 @@ public class StandardBenchmark {
                 System.out.println("Loaded queries in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
                 // run through once to warm up
                 Benchmark.run(monitor, loadDocuments(), 10, PresearcherMatcher.FACTORY);
-                for (MatcherFactory<? extends QueryMatch> factory : MATCHERS) {
-                    for (int batchSize : new int[]{ 1, 50, 100, 1000 }) {
+                for (int m = 0; m < MATCHERS.size(); m++) {
+                    MatcherFactory<? extends QueryMatch> factory = MATCHERS.get(m);
+                    for (int batchSize : BATCH_SIZES) {
                         System.out.println("Benchmarking presearcher " + presearcher.toString() + " with matcher " + factory.toString() + " and batchsize " + batchSize);
-                        System.out.println(Benchmark.run(monitor, loadDocuments(), batchSize, factory));
+                        BenchmarkResults<? extends QueryMatch> results = Benchmark.run(monitor, loadDocuments(), batchSize, factory);
+                        System.out.println(results);
+                        if (outputDir != null) {
+                            results.setConfiguration("presearcher", PRESEARCHER_NAMES.get(p))
+                                    .setConfiguration("matcher", MATCHER_NAMES.get(m))
+                                    .setConfiguration("batchSize", batchSize)
+                                    .setConfiguration("queries", monitor.getQueryCount());
+                            results.writeJson(outputDir.resolve(PRESEARCHER_NAMES.get(p) + "-" + MATCHER_NAMES.get(m) + "-" + batchSize + ".json"));
+                        }
                     }
                 }
             }
@@ -78,6 +133,53 @@ public class StandardBenchmark {
 
     }
 
+    /**
+     * Benchmark a presearcher against synthetic workloads of increasing size
+     *
+     * For each query count, a new Monitor is loaded with that many generated queries, and
+     * the same stream of generated documents is matched in each batch size, first timing
+     * the presearcher alone and then with a {@link SimpleMatcher}.
+     *
+     * @param generator the WorkloadGenerator to create queries and documents
+     * @param presearcher the presearcher to benchmark
+     * @param queryCounts the numbers of queries to load
+     * @param batchSizes the document batch sizes to use
+     * @param documents the number of documents to match
+     * @throws IOException on error
+     */
+    public static void sweep(WorkloadGenerator generator, Presearcher presearcher,
+                             int[] queryCounts, int[] batchSizes, int documents) throws IOException {
+        for (int queryCount : queryCounts) {
+            System.out.println("=================================================================");
+            System.out.println("Benchmarking presearcher " + presearcher.toString() + " with " + queryCount + " synthetic queries");
+            try (Monitor monitor = new Monitor(new WorkloadQueryParser(FIELD), presearcher)) {
+                long start = System.nanoTime();
+                List<QueryError> errors = monitor.bulkLoad(generator.queries(queryCount), Runtime.getRuntime().availableProcessors());
+                System.out.println("Loaded queries in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, with "
+                        + errors.size() + " errors");
+                // run through once to warm up
+                Benchmark.run(monitor, generator.documents(documents, queryCount, FIELD, ANALYZER), 10, PresearcherMatcher.FACTORY);
+                for (MatcherFactory<? extends QueryMatch> factory : ImmutableList.of(PresearcherMatcher.FACTORY, SimpleMatcher.FACTORY)) {
+                    for (int batchSize : batchSizes) {
+                        System.out.println("Benchmarking " + queryCount + " queries with matcher " + factory.toString()
+                                + " and batchsize " + batchSize);
+                        System.out.println(Benchmark.run(monitor, generator.documents(documents, queryCount, FIELD, ANALYZER),
+                                batchSize, factory));
+                    }
+                }
+            }
+        }
+    }
+
+    static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
     public static Iterable<MonitorQuery> loadQueries() throws IOException {
         List<MonitorQuery> queries = new ArrayList<>();
         int i = 0;
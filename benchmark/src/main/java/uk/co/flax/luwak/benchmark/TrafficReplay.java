@@ -0,0 +1,246 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Replays a stream of queries and documents captured by a {@link TrafficLog} against a new Monitor
+ *
+ * Entries are replayed in the order they were captured, either following the captured
+ * timing from the first entry, optionally sped up by a constant factor, or as fast as
+ * possible.  With a single thread, each call is made in turn on the calling thread.  With
+ * several threads, matches run concurrently on a pool of that size, while updates and
+ * deletes run in order on a separate thread.
+ *
+ * As analyzers are not captured, all document fields are analyzed with a single Analyzer.
+ * Queries that were already in the captured Monitor when capturing started are not in
+ * the log, and can be loaded before the replay starts with {@link #setInitialQueries(Iterable)}.
+ *
+ * Usage: TrafficReplay logfile [speed] [threads] [defaultfield] [queryfile]
+ *
+ * A speed of 1 follows the captured timing, 2 replays twice as fast, and 0 replays as fast
+ * as possible.  The query file holds tab-separated query ids and query strings, as read by
+ * {@link BulkLoad}.
+ */
+public class TrafficReplay {
+
+    private final MonitorQueryParser parser;
+    private final Presearcher presearcher;
+    private final Analyzer analyzer;
+
+    private MatcherFactory<? extends QueryMatch> matcherFactory = SimpleMatcher.FACTORY;
+    private Iterable<MonitorQuery> initialQueries = Collections.emptyList();
+    private double speed = 1;
+    private int threads = 1;
+
+    /**
+     * Create a new TrafficReplay
+     * @param parser the parser to use for queries
+     * @param presearcher the presearcher to use
+     * @param analyzer the Analyzer to use for all document fields
+     */
+    public TrafficReplay(MonitorQueryParser parser, Presearcher presearcher, Analyzer analyzer) {
+        this.parser = parser;
+        this.presearcher = presearcher;
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Set the MatcherFactory used to match documents (defaults to {@link SimpleMatcher#FACTORY})
+     * @param matcherFactory the MatcherFactory
+     * @return the TrafficReplay
+     */
+    public TrafficReplay setMatcherFactory(MatcherFactory<? extends QueryMatch> matcherFactory) {
+        this.matcherFactory = matcherFactory;
+        return this;
+    }
+
+    /**
+     * Set queries to load into the Monitor before the replay starts
+     * @param queries the queries
+     * @return the TrafficReplay
+     */
+    public TrafficReplay setInitialQueries(Iterable<MonitorQuery> queries) {
+        this.initialQueries = queries;
+        return this;
+    }
+
+    /**
+     * Set the speed of the replay (defaults to 1)
+     * @param speed the factor by which to speed up the captured timing, or 0 to replay as fast as possible
+     * @return the TrafficReplay
+     */
+    public TrafficReplay setSpeed(double speed) {
+        if (speed < 0)
+            throw new IllegalArgumentException("Speed cannot be negative");
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * Set the number of threads used to match documents (defaults to 1)
+     * @param threads the number of threads
+     * @return the TrafficReplay
+     */
+    public TrafficReplay setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread is required");
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Replay the entries of a TrafficLog against a new Monitor
+     * @param log a reader over the TrafficLog
+     * @return the timings recorded during the replay
+     * @throws IOException on IO errors
+     * @throws InterruptedException if the replay is interrupted
+     */
+    public ReplayResults replay(TrafficLog.Reader log) throws IOException, InterruptedException {
+
+        final ReplayResults results = new ReplayResults();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMetrics(results.getMonitorMetrics());
+
+        try (final Monitor monitor = new Monitor(parser, presearcher, config)) {
+
+            results.errors(monitor.update(initialQueries).size());
+
+            ExecutorService matchExecutor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+            ExecutorService updateExecutor = threads > 1 ? Executors.newSingleThreadExecutor() : null;
+            // limit the number of queued matches, so that a fast replay doesn't read the whole log ahead
+            final Semaphore permits = new Semaphore(threads * 4);
+
+            long start = System.nanoTime();
+            long firstTimestamp = -1;
+            try {
+                TrafficLog.Entry entry;
+                while ((entry = log.next()) != null) {
+                    if (firstTimestamp == -1)
+                        firstTimestamp = entry.getTimestamp();
+                    if (speed > 0) {
+                        long due = start + (long) ((entry.getTimestamp() - firstTimestamp) / speed);
+                        long wait = due - System.nanoTime();
+                        if (wait > 0)
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        results.update("scheduleLag", Math.max(0, System.nanoTime() - due));
+                    }
+                    final TrafficLog.Entry toRun = entry;
+                    Runnable call = new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                replay(monitor, toRun, results);
+                            }
+                            catch (Exception e) {
+                                results.errors(1);
+                            }
+                            finally {
+                                permits.release();
+                            }
+                        }
+                    };
+                    permits.acquire();
+                    if (threads == 1)
+                        call.run();
+                    else if (entry.getType() == TrafficLog.Entry.Type.MATCH)
+                        matchExecutor.execute(call);
+                    else
+                        updateExecutor.execute(call);
+                }
+            }
+            finally {
+                if (threads > 1) {
+                    updateExecutor.shutdown();
+                    matchExecutor.shutdown();
+                    updateExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                    matchExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                }
+            }
+            results.setElapsedTime(System.nanoTime() - start);
+        }
+
+        return results;
+    }
+
+    private void replay(Monitor monitor, TrafficLog.Entry entry, ReplayResults results) throws IOException {
+        long start = System.nanoTime();
+        switch (entry.getType()) {
+            case UPDATE:
+                results.errors(monitor.update(entry.getQueries()).size());
+                results.update("update", System.nanoTime() - start);
+                break;
+            case DELETE:
+                monitor.deleteById(entry.getIds());
+                results.update("delete", System.nanoTime() - start);
+                break;
+            case CLEAR:
+                monitor.clear();
+                results.update("clear", System.nanoTime() - start);
+                break;
+            case MATCH:
+                try (DocumentBatch batch = entry.buildBatch(analyzer)) {
+                    monitor.match(batch, matcherFactory);
+                }
+                results.update("match", System.nanoTime() - start);
+                break;
+        }
+    }
+
+    public static void main(String... args) throws IOException, InterruptedException {
+
+        if (args.length < 1) {
+            System.err.println("Usage: TrafficReplay logfile [speed] [threads] [defaultfield] [queryfile]");
+            System.exit(1);
+        }
+
+        Path logFile = Paths.get(args[0]);
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        String field = args.length > 3 ? args[3] : StandardBenchmark.FIELD;
+
+        TrafficReplay replay = new TrafficReplay(new LuceneQueryParser(field), new TermFilteredPresearcher(), StandardBenchmark.ANALYZER)
+                .setSpeed(speed)
+                .setThreads(threads);
+
+        BufferedReader queries = args.length > 4 ? Files.newBufferedReader(Paths.get(args[4]), StandardCharsets.UTF_8) : null;
+        try (TrafficLog.Reader log = new TrafficLog.Reader(logFile)) {
+            if (queries != null)
+                replay.setInitialQueries(BulkLoad.readQueries(queries));
+            System.out.println(replay.replay(log));
+        }
+        finally {
+            if (queries != null)
+                queries.close();
+        }
+
+    }
+
+}
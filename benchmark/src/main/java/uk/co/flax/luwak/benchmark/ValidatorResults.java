@@ -17,6 +17,8 @@ package uk.co.flax.luwak.benchmark;
  */
 
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.HashMultimap;
@@ -75,4 +77,17 @@ public class ValidatorResults<T extends QueryMatch> extends BenchmarkResults<T>
     public Collection<T> getExtraMatches(String docId) {
         return extraMatches.get(docId);
     }
+
+    @Override
+    protected Map<String, Object> toJsonMap() {
+        Map<String, Object> json = super.toJsonMap();
+        Map<String, Object> validation = new LinkedHashMap<>();
+        validation.put("documents", total);
+        validation.put("correct", correctMatches);
+        validation.put("badDocuments", getBadDocuments().size());
+        validation.put("missingMatches", missingMatches.size());
+        validation.put("extraMatches", extraMatches.size());
+        json.put("validation", validation);
+        return json;
+    }
 }
@@ -0,0 +1,429 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.MonitorQuery;
+
+/**
+ * Generates reproducible synthetic query sets and document streams for scale testing
+ *
+ * Queries are built from a vocabulary of words whose frequencies follow a Zipfian
+ * distribution, and are a configurable mix of term, phrase, boolean, wildcard, regexp,
+ * span and range queries.  Query strings use the syntax of
+ * {@link uk.co.flax.luwak.queryparsers.LuceneQueryParser}, except that span queries
+ * must be parsed with a {@link WorkloadQueryParser}.  Each query's type is recorded in its
+ * metadata under {@link #TYPE_KEY}.
+ *
+ * Documents are filled with words drawn from a separate filler vocabulary with the same
+ * distribution, so they do not match any queries.  A proportion of documents, given by
+ * {@link #setHitRate(double)}, then have text added that matches one or more randomly
+ * chosen queries.  Filler words can be drawn from the query vocabulary instead, using
+ * {@link #setFillerOverlap(double)}, at the cost of less control over the hit rate.
+ *
+ * Query i and document i are generated from the seed and i alone, so every run with the
+ * same configuration produces the same workload, and large workloads are generated lazily
+ * without being held in memory.
+ */
+public class WorkloadGenerator {
+
+    /** The metadata key used to record the type of each generated query */
+    public static final String TYPE_KEY = "type";
+
+    /** The types of query that can be generated */
+    public enum QueryType {
+        TERM, PHRASE, BOOLEAN, WILDCARD, REGEXP, SPAN, RANGE
+    }
+
+    private static final String QUERY_WORD_PREFIX = "t";
+    private static final String FILLER_WORD_PREFIX = "f";
+
+    // constants used to separate the random streams for queries and documents
+    private static final long QUERY_STREAM = 0x9E3779B97F4A7C15L;
+    private static final long DOCUMENT_STREAM = 0xC2B2AE3D27D4EB4FL;
+
+    private final long seed;
+
+    private final Map<QueryType, Double> mix = new EnumMap<>(QueryType.class);
+
+    private int vocabularySize = 100000;
+    private double zipfExponent = 1.0;
+    private int documentLength = 200;
+    private double hitRate = 0.1;
+    private int matchesPerHit = 1;
+    private double fillerOverlap = 0;
+
+    private double[] cumulativeFrequencies;
+
+    /**
+     * Create a new WorkloadGenerator
+     * @param seed the seed for all random choices
+     */
+    public WorkloadGenerator(long seed) {
+        this.seed = seed;
+        mix.put(QueryType.TERM, 0.3);
+        mix.put(QueryType.PHRASE, 0.15);
+        mix.put(QueryType.BOOLEAN, 0.3);
+        mix.put(QueryType.WILDCARD, 0.1);
+        mix.put(QueryType.REGEXP, 0.05);
+        mix.put(QueryType.SPAN, 0.05);
+        mix.put(QueryType.RANGE, 0.05);
+    }
+
+    /**
+     * Set the number of distinct words in the query and filler vocabularies
+     * @param vocabularySize the number of words
+     * @return the current WorkloadGenerator
+     */
+    public WorkloadGenerator setVocabularySize(int vocabularySize) {
+        if (vocabularySize < 2)
+            throw new IllegalArgumentException("Vocabulary size must be at least 2");
+        this.vocabularySize = vocabularySize;
+        this.cumulativeFrequencies = null;
+        return this;
+    }
+
+    /**
+     * Set the exponent of the Zipfian word distribution.  The word with rank r is chosen
+     * with a probability proportional to 1/r^exponent, so 0 gives a uniform distribution.
+     * @param zipfExponent the exponent
+     * @return the current WorkloadGenerator
+     */
+    public WorkloadGenerator setZipfExponent(double zipfExponent) {
+        if (zipfExponent < 0)
+            throw new IllegalArgumentException("Zipf exponent cannot be negative");
+        this.zipfExponent = zipfExponent;
+        this.cumulativeFrequencies = null;
+        return this;
+    }
+
+    /**
+     * Set the relative weight of a query type.  Weights do not need to add up to 1.
+     * @param type the query type
+     * @param weight the weight, or 0 to never generate queries of this type
+     * @return the current WorkloadGenerator
+     */
+    public WorkloadGenerator setQueryWeight(QueryType type, double weight) {
+        if (weight < 0)
+            throw new IllegalArgumentException("Query weights cannot be negative");
+        mix.put(type, weight);
+        return this;
+    }
+
+    /**
+     * Set the number of filler words in each document
+     * @param documentLength the number of words
+     * @return the current WorkloadGenerator
+     */
+    public WorkloadGenerator setDocumentLength(int documentLength) {
+        this.documentLength = documentLength;
+        return this;
+    }
+
+    /**
+     * Set the proportion of documents that contain text matching at least one query
+     * @param hitRate a proportion between 0 and 1
+     * @return the current WorkloadGenerator
+     */
+    public WorkloadGenerator setHitRate(double hitRate) {
+        if (hitRate < 0 || hitRate > 1)
+            throw new IllegalArgumentException("Hit rate must be between 0 and 1");
+        this.hitRate = hitRate;
+        return this;
+    }
+
+    /**
+     * Set the number of queries chosen to match each document that is a hit
+     * @param matchesPerHit the number of queries
+     * @return the current WorkloadGenerator
+     */
+    public WorkloadGenerator setMatchesPerHit(int matchesPerHit) {
+        this.matchesPerHit = matchesPerHit;
+        return this;
+    }
+
+    /**
+     * Set the proportion of filler words that are drawn from the query vocabulary
+     * @param fillerOverlap a proportion between 0 and 1
+     * @return the current WorkloadGenerator
+     */
+    public WorkloadGenerator setFillerOverlap(double fillerOverlap) {
+        if (fillerOverlap < 0 || fillerOverlap > 1)
+            throw new IllegalArgumentException("Filler overlap must be between 0 and 1");
+        this.fillerOverlap = fillerOverlap;
+        return this;
+    }
+
+    /**
+     * Generate a single query
+     * @param i the number of the query
+     * @return the generated query, with id i
+     */
+    public MonitorQuery query(int i) {
+        return generateQuery(i).query;
+    }
+
+    /**
+     * Generate a set of queries, numbered from 0
+     * @param count the number of queries
+     * @return an Iterable over the queries, which are generated as they are iterated over
+     */
+    public Iterable<MonitorQuery> queries(final int count) {
+        return new Iterable<MonitorQuery>() {
+            @Override
+            public Iterator<MonitorQuery> iterator() {
+                return new GeneratingIterator<MonitorQuery>(count) {
+                    @Override
+                    MonitorQuery generate(int i) {
+                        return query(i);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Generate a single document
+     * @param i the number of the document
+     * @param queryCount the number of generated queries that the document may match
+     * @param field the field to add text to
+     * @param analyzer the analyzer for the field
+     * @return the generated document, with id "doc" + i
+     */
+    public InputDocument document(int i, int queryCount, String field, Analyzer analyzer) {
+        Random random = random(DOCUMENT_STREAM, i);
+        StringBuilder text = new StringBuilder();
+        for (int j = 0; j < documentLength; j++) {
+            boolean fromQueries = fillerOverlap > 0 && random.nextDouble() < fillerOverlap;
+            text.append(fromQueries ? QUERY_WORD_PREFIX : FILLER_WORD_PREFIX).append(rank(random)).append(' ');
+        }
+        if (queryCount > 0 && random.nextDouble() < hitRate) {
+            for (int j = 0; j < matchesPerHit; j++) {
+                text.append(generateQuery(random.nextInt(queryCount)).matchingText).append(' ');
+            }
+        }
+        return InputDocument.builder("doc" + i).addField(field, text.toString(), analyzer).build();
+    }
+
+    /**
+     * Generate a stream of documents, numbered from 0
+     * @param count the number of documents
+     * @param queryCount the number of generated queries that documents may match
+     * @param field the field to add text to
+     * @param analyzer the analyzer for the field
+     * @return an Iterable over the documents, which are generated as they are iterated over
+     */
+    public Iterable<InputDocument> documents(final int count, final int queryCount, final String field, final Analyzer analyzer) {
+        return new Iterable<InputDocument>() {
+            @Override
+            public Iterator<InputDocument> iterator() {
+                return new GeneratingIterator<InputDocument>(count) {
+                    @Override
+                    InputDocument generate(int i) {
+                        return document(i, queryCount, field, analyzer);
+                    }
+                };
+            }
+        };
+    }
+
+    private static abstract class GeneratingIterator<T> implements Iterator<T> {
+
+        private final int count;
+        private int next = 0;
+
+        GeneratingIterator(int count) {
+            this.count = count;
+        }
+
+        abstract T generate(int i);
+
+        @Override
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        @Override
+        public T next() {
+            if (next >= count)
+                throw new NoSuchElementException();
+            return generate(next++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class GeneratedQuery {
+
+        final MonitorQuery query;
+        final String matchingText;
+
+        GeneratedQuery(MonitorQuery query, String matchingText) {
+            this.query = query;
+            this.matchingText = matchingText;
+        }
+    }
+
+    private GeneratedQuery generateQuery(int i) {
+        Random random = random(QUERY_STREAM, i);
+        QueryType type = chooseType(random);
+        String id = Integer.toString(i);
+        Map<String, String> metadata = Collections.singletonMap(TYPE_KEY, type.name().toLowerCase(Locale.ROOT));
+        String word = word(random);
+        switch (type) {
+            case TERM:
+                return new GeneratedQuery(new MonitorQuery(id, word, metadata), word);
+            case PHRASE: {
+                String second = distinctWord(random, word);
+                return new GeneratedQuery(new MonitorQuery(id, "\"" + word + " " + second + "\"", metadata),
+                        word + " " + second);
+            }
+            case BOOLEAN:
+                return booleanQuery(random, id, word, metadata);
+            case WILDCARD:
+                return new GeneratedQuery(new MonitorQuery(id, prefix(word) + "*", metadata), word);
+            case REGEXP:
+                return new GeneratedQuery(new MonitorQuery(id, "/" + prefix(word) + "[0-9]?/", metadata), word);
+            case SPAN: {
+                String second = distinctWord(random, word);
+                int slop = random.nextInt(4);
+                return new GeneratedQuery(new MonitorQuery(id, "\"" + word + " " + second + "\"~" + slop, metadata),
+                        second + " " + word);
+            }
+            case RANGE: {
+                String second = distinctWord(random, word);
+                String lower = word.compareTo(second) < 0 ? word : second;
+                String upper = word.compareTo(second) < 0 ? second : word;
+                return new GeneratedQuery(new MonitorQuery(id, "[" + lower + " TO " + upper + "]", metadata), lower);
+            }
+            default:
+                throw new IllegalStateException("Unknown query type " + type);
+        }
+    }
+
+    // Generates a conjunction, a disjunction or a conjunction with an excluded word
+    private GeneratedQuery booleanQuery(Random random, String id, String first, Map<String, String> metadata) {
+        List<String> words = new ArrayList<>();
+        words.add(first);
+        int clauses = 2 + random.nextInt(3);
+        while (words.size() < clauses) {
+            String word = word(random);
+            if (words.contains(word) == false)
+                words.add(word);
+        }
+        StringBuilder query = new StringBuilder();
+        StringBuilder text = new StringBuilder();
+        switch (random.nextInt(3)) {
+            case 0:
+                for (String word : words) {
+                    query.append('+').append(word).append(' ');
+                    text.append(word).append(' ');
+                }
+                break;
+            case 1:
+                for (String word : words) {
+                    query.append(word).append(' ');
+                }
+                text.append(first);
+                break;
+            default:
+                for (int j = 0; j < words.size(); j++) {
+                    query.append(j == words.size() - 1 ? '-' : '+').append(words.get(j)).append(' ');
+                    if (j < words.size() - 1)
+                        text.append(words.get(j)).append(' ');
+                }
+        }
+        return new GeneratedQuery(new MonitorQuery(id, query.toString().trim(), metadata), text.toString().trim());
+    }
+
+    // Drops the last character of a word, but always keeps the first digit
+    private static String prefix(String word) {
+        return word.length() > QUERY_WORD_PREFIX.length() + 1 ? word.substring(0, word.length() - 1) : word;
+    }
+
+    private QueryType chooseType(Random random) {
+        double total = 0;
+        for (double weight : mix.values()) {
+            total += weight;
+        }
+        if (total <= 0)
+            throw new IllegalStateException("At least one query type must have a positive weight");
+        double choice = random.nextDouble() * total;
+        QueryType chosen = null;
+        for (Map.Entry<QueryType, Double> entry : mix.entrySet()) {
+            if (entry.getValue() <= 0)
+                continue;
+            chosen = entry.getKey();
+            choice -= entry.getValue();
+            if (choice < 0)
+                break;
+        }
+        return chosen;
+    }
+
+    private String word(Random random) {
+        return QUERY_WORD_PREFIX + rank(random);
+    }
+
+    private String distinctWord(Random random, String other) {
+        String word;
+        do {
+            word = word(random);
+        } while (word.equals(other));
+        return word;
+    }
+
+    // Chooses a word rank between 1 and the vocabulary size from the Zipfian distribution
+    private int rank(Random random) {
+        double[] cumulative = cumulativeFrequencies();
+        int pos = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (pos < 0)
+            pos = -pos - 1;
+        return Math.min(pos, cumulative.length - 1) + 1;
+    }
+
+    private synchronized double[] cumulativeFrequencies() {
+        if (cumulativeFrequencies == null) {
+            double[] cumulative = new double[vocabularySize];
+            double total = 0;
+            for (int i = 0; i < vocabularySize; i++) {
+                total += 1 / Math.pow(i + 1, zipfExponent);
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < vocabularySize; i++) {
+                cumulative[i] /= total;
+            }
+            cumulativeFrequencies = cumulative;
+        }
+        return cumulativeFrequencies;
+    }
+
+    // A Random for item i of a stream, independent of the items generated before it
+    private Random random(long stream, long i) {
+        long z = seed ^ stream ^ (i * 0xBF58476D1CE4E5B9L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(z ^ (z >>> 31));
+    }
+
+}
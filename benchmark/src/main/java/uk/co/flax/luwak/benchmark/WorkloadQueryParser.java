@@ -0,0 +1,65 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import uk.co.flax.luwak.MonitorQueryParser;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Parses queries produced by a {@link WorkloadGenerator}
+ *
+ * Queries are parsed by a {@link LuceneQueryParser}, except that sloppy phrases from
+ * queries whose metadata marks them as span queries are converted to unordered
+ * {@link SpanNearQuery}s.
+ */
+public class WorkloadQueryParser implements MonitorQueryParser {
+
+    private final MonitorQueryParser parser;
+
+    /**
+     * Create a new WorkloadQueryParser
+     * @param defaultField the default field
+     */
+    public WorkloadQueryParser(String defaultField) {
+        this.parser = new LuceneQueryParser(defaultField);
+    }
+
+    @Override
+    public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+        Query query = parser.parse(queryString, metadata);
+        if (metadata == null || "span".equals(metadata.get(WorkloadGenerator.TYPE_KEY)) == false)
+            return query;
+        if (query instanceof PhraseQuery == false)
+            throw new IllegalArgumentException("Expected a phrase for span query " + queryString);
+        PhraseQuery phrase = (PhraseQuery) query;
+        Term[] terms = phrase.getTerms();
+        SpanQuery[] clauses = new SpanQuery[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            clauses[i] = new SpanTermQuery(terms[i]);
+        }
+        return new SpanNearQuery(clauses, phrase.getSlop(), false);
+    }
+
+}
@@ -18,6 +18,7 @@ package uk.co.flax.luwak.benchmark;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
@@ -105,6 +106,10 @@ public class TestBenchmark {
         assertThat(results.getExtraMatches("doc3")).isEmpty();
         assertThat(results.getMissingMatches("doc3")).containsExactly(new QueryMatch("4", "doc3"));
 
+        Map<?, ?> validation = (Map<?, ?>) ((Map<?, ?>) Json.parse(results.toJson())).get("validation");
+        assertThat(validation.get("correct")).isEqualTo(1L);
+        assertThat(validation.get("badDocuments")).isEqualTo(2L);
+
     }
 
     private static ValidatorDocument<QueryMatch> vd(String id, String text, QueryMatch... expected) {
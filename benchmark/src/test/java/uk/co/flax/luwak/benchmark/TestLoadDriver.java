@@ -0,0 +1,85 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.Monitor;
+import uk.co.flax.luwak.MonitorQuery;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestLoadDriver {
+
+    private static final String FIELD = StandardBenchmark.FIELD;
+
+    private final WorkloadGenerator generator = new WorkloadGenerator(5);
+    private final List<MonitorQuery> queries = Lists.newArrayList(generator.queries(500));
+    private final List<InputDocument> documents = Lists.newArrayList(generator.documents(50, 500, FIELD, StandardBenchmark.ANALYZER));
+
+    @Test
+    public void testClosedLoop() throws Exception {
+
+        try (Monitor monitor = new Monitor(new WorkloadQueryParser(FIELD), new TermFilteredPresearcher())) {
+            monitor.update(queries);
+            LoadResults results = new LoadDriver(monitor, documents, SimpleMatcher.FACTORY)
+                    .setBatchSize(5)
+                    .setDuration(200, TimeUnit.MILLISECONDS)
+                    .setUpdateChurn(queries, 100)
+                    .setPurgeInterval(50, TimeUnit.MILLISECONDS)
+                    .closedLoop(1, 4);
+
+            assertThat(results.getLevels()).hasSize(2);
+            for (LoadResults.Level level : results.getLevels()) {
+                assertThat(level.getErrorCount()).isEqualTo(0);
+                assertThat(level.getMatchTimes().getCount()).isGreaterThan(0);
+                assertThat(level.getUpdateTimes().getCount()).isGreaterThan(0);
+                assertThat(level.getThroughput()).isGreaterThan(0);
+            }
+            assertThat(results.getLevels().get(1).getLoad()).isEqualTo("4 clients");
+            assertThat(results.toString()).contains("p999 ms");
+        }
+    }
+
+    @Test
+    public void testOpenLoop() throws Exception {
+
+        try (Monitor monitor = new Monitor(new WorkloadQueryParser(FIELD), new TermFilteredPresearcher())) {
+            monitor.update(queries);
+            LoadResults results = new LoadDriver(monitor, documents, SimpleMatcher.FACTORY)
+                    .setDuration(500, TimeUnit.MILLISECONDS)
+                    .openLoop(2, 20, 40);
+
+            assertThat(results.getLevels()).hasSize(2);
+            // requests are sent at the offered rate, whatever the latency, and each is recorded
+            int[] sent = { 10, 20 };
+            for (int i = 0; i < sent.length; i++) {
+                LoadResults.Level level = results.getLevels().get(i);
+                assertThat(level.getErrorCount()).isEqualTo(0);
+                assertThat(level.getMatchTimes().getCount() + level.getErrorCount()).isEqualTo(sent[i]);
+            }
+            assertThat(results.getLevels().get(1).getLoad()).isEqualTo("40/s");
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.flax.luwak.presearcher.MultipassTermFilteredPresearcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestPresearcherComparison {
+
+    private static final String FIELD = StandardBenchmark.FIELD;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testConfigurationsAreCompared() throws Exception {
+
+        // the ngram component only handles simple regexps, so the mix leaves them out
+        WorkloadGenerator generator = new WorkloadGenerator(11).setHitRate(0.5)
+                .setQueryWeight(WorkloadGenerator.QueryType.REGEXP, 0);
+        PresearcherComparison comparison = new PresearcherComparison(new WorkloadQueryParser(FIELD),
+                Lists.newArrayList(generator.queries(300)),
+                Lists.newArrayList(generator.documents(30, 300, FIELD, StandardBenchmark.ANALYZER)))
+                .add("term", PresearcherComparison.presearcher("term"))
+                .add("multipass-2+ngram", PresearcherComparison.presearcher("multipass-2+ngram"));
+
+        List<PresearcherComparison.Result> results = comparison.run(tempDir.getRoot().toPath());
+        assertThat(results).hasSize(2);
+        for (PresearcherComparison.Result result : results) {
+            assertThat(result.getQueryErrors()).isEqualTo(0);
+            assertThat(result.getMatchesPerDocument()).isGreaterThan(0);
+            assertThat(result.getCandidatesPerDocument()).isGreaterThanOrEqualTo(result.getMatchesPerDocument());
+            assertThat(result.getFalsePositiveRatio()).isBetween(0.0, 1.0);
+            assertThat(result.getMissedMatches()).isEqualTo(0);
+            assertThat(result.getIndexBytes()).isGreaterThan(0);
+            assertThat(result.getRamBytesUsed()).isGreaterThan(0);
+        }
+        // both configurations find the same matches
+        assertThat(results.get(0).getMatchesPerDocument()).isEqualTo(results.get(1).getMatchesPerDocument());
+        assertThat(PresearcherComparison.report(results)).contains("fp ratio").contains("multipass-2+ngram");
+        // the temporary queryindexes are removed
+        assertThat(tempDir.getRoot().list()).isEmpty();
+    }
+
+    @Test
+    public void testPresearcherSpecs() {
+        assertThat(PresearcherComparison.presearcher("term")).isInstanceOf(TermFilteredPresearcher.class);
+        assertThat(PresearcherComparison.presearcher("term+ngram")).isInstanceOf(TermFilteredPresearcher.class);
+        assertThat(PresearcherComparison.presearcher("multipass-3-0.5+ngram"))
+                .isInstanceOf(MultipassTermFilteredPresearcher.class);
+    }
+
+}
@@ -0,0 +1,182 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.Monitor;
+import uk.co.flax.luwak.MonitorQuery;
+import uk.co.flax.luwak.QueryMatch;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class TestResultsComparator {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    // builds results with normally distributed search times and candidate counts
+    private static String results(long seed, double meanTime, double meanCandidates) {
+        Random random = new Random(seed);
+        List<Long> times = new ArrayList<>();
+        List<Long> candidates = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            times.add((long) (meanTime + random.nextGaussian() * meanTime / 10));
+            candidates.add((long) (meanCandidates + random.nextGaussian() * meanCandidates / 10));
+        }
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("format", BenchmarkResults.FORMAT);
+        json.put("version", BenchmarkResults.VERSION);
+        json.put("environment", BenchmarkResults.environment());
+        json.put("configuration", Collections.singletonMap("batchSize", "10"));
+        json.put("batches", 1000);
+        json.put("documents", 10000);
+        json.put("searchTimes", Collections.singletonMap("samples", times));
+        json.put("candidates", Collections.singletonMap("samples", candidates));
+        return Json.write(json);
+    }
+
+    private static ResultsComparator.Comparison find(List<ResultsComparator.Comparison> comparisons, String prefix) {
+        for (ResultsComparator.Comparison comparison : comparisons) {
+            if (comparison.getStatistic().startsWith(prefix))
+                return comparison;
+        }
+        throw new AssertionError("No comparison for " + prefix);
+    }
+
+    @Test
+    public void testNoiseIsNotFlagged() {
+        List<ResultsComparator.Comparison> comparisons
+                = new ResultsComparator().compare(results(1, 1000000, 100), results(2, 1000000, 100));
+        for (ResultsComparator.Comparison comparison : comparisons) {
+            assertThat(comparison.isRegression()).isFalse();
+            assertThat(comparison.isImprovement()).isFalse();
+            assertThat(comparison.getLower()).isLessThanOrEqualTo(comparison.getChange());
+            assertThat(comparison.getUpper()).isGreaterThanOrEqualTo(comparison.getChange());
+        }
+    }
+
+    @Test
+    public void testRegressionsAreFlagged() {
+        List<ResultsComparator.Comparison> comparisons
+                = new ResultsComparator().compare(results(1, 1000000, 100), results(2, 1500000, 150));
+        assertThat(find(comparisons, "search time p50").isRegression()).isTrue();
+        assertThat(find(comparisons, "search time p50").getChange()).isBetween(0.4, 0.6);
+        assertThat(find(comparisons, "throughput").isRegression()).isTrue();
+        assertThat(find(comparisons, "throughput").getBaseline()).isBetween(9000.0, 11000.0);
+        assertThat(find(comparisons, "candidates").isRegression()).isTrue();
+        assertThat(ResultsComparator.report(comparisons)).contains("REGRESSION");
+
+        comparisons = new ResultsComparator().compare(results(1, 1500000, 150), results(2, 1000000, 100));
+        assertThat(find(comparisons, "search time p50").isImprovement()).isTrue();
+        assertThat(find(comparisons, "throughput").isImprovement()).isTrue();
+    }
+
+    @Test
+    public void testSmallChangesAreBelowThreshold() {
+        // a 2% shift over 1000 samples is statistically significant, but below the default 5% threshold
+        List<ResultsComparator.Comparison> comparisons
+                = new ResultsComparator().compare(results(1, 1000000, 100), results(1, 1020000, 100));
+        assertThat(find(comparisons, "search time p50").getLower()).isGreaterThan(0);
+        assertThat(find(comparisons, "search time p50").isRegression()).isFalse();
+    }
+
+    @Test
+    public void testDifferentConfigurationsAreWarned() {
+        ResultsComparator comparator = new ResultsComparator();
+        String other = results(1, 1000000, 100).replace("\"10\"", "\"20\"");
+        comparator.compare(results(1, 1000000, 100), other);
+        assertThat(comparator.getWarnings()).containsExactly("configuration batchSize differs: 10 vs 20");
+    }
+
+    @Test
+    public void testBenchmarkResultsRoundTrip() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "cheese"), new MonitorQuery("2", "world"));
+            List<InputDocument> docs = ImmutableList.of(
+                    InputDocument.builder("doc1").addField("f", "some text about the world", new StandardAnalyzer()).build(),
+                    InputDocument.builder("doc2").addField("f", "some text about cheese", new StandardAnalyzer()).build()
+            );
+            BenchmarkResults<QueryMatch> results = Benchmark.run(monitor, docs, 1, SimpleMatcher.FACTORY)
+                    .setConfiguration("batchSize", 1);
+
+            Path file = tempDir.getRoot().toPath().resolve("results.json");
+            results.writeJson(file);
+
+            Map<?, ?> json = (Map<?, ?>) Json.parse(results.toJson());
+            assertThat(json.get("format")).isEqualTo(BenchmarkResults.FORMAT);
+            assertThat(json.get("batches")).isEqualTo(2L);
+            assertThat(json.get("documents")).isEqualTo(2L);
+            assertThat(((Map<?, ?>) json.get("configuration")).get("batchSize")).isEqualTo("1");
+            assertThat(((Map<?, ?>) json.get("environment")).get("processors"))
+                    .isEqualTo((long) Runtime.getRuntime().availableProcessors());
+            assertThat((List<?>) ((Map<?, ?>) json.get("searchTimes")).get("samples")).hasSize(2);
+            assertThat((List<?>) ((Map<?, ?>) json.get("candidates")).get("samples")).containsOnly(1L);
+
+            // results can be compared with themselves
+            for (ResultsComparator.Comparison comparison : new ResultsComparator().compare(file, file)) {
+                assertThat(comparison.getChange()).isEqualTo(0);
+                assertThat(comparison.isRegression()).isFalse();
+            }
+        }
+    }
+
+    @Test
+    public void testJsonRoundTrip() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("text", "a \"quoted\"\nline\twith \\ and \u0001");
+        json.put("numbers", Arrays.asList(1L, 5000000000L, -2.5, 1e-3));
+        json.put("nested", Collections.singletonMap("empty", Collections.emptyMap()));
+        json.put("flag", true);
+        json.put("nothing", null);
+        assertThat(Json.parse(Json.write(json))).isEqualTo(json);
+    }
+
+    @Test
+    public void testNonFiniteNumbersAreRejected() {
+        for (double value : new double[]{ Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY }) {
+            try {
+                Json.write(Collections.singletonMap("mean", value));
+                fail("Expected an IllegalArgumentException writing " + value);
+            }
+            catch (IllegalArgumentException e) {
+                assertThat(e).hasMessageContaining("non-finite");
+            }
+        }
+        try {
+            Json.parse("{\"mean\": NaN}");
+            fail("Expected an IllegalArgumentException parsing NaN");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestTrafficReplay {
+
+    private static final String FIELD = StandardBenchmark.FIELD;
+
+    private static byte[] capture(WorkloadGenerator generator) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (Monitor monitor = new Monitor(new WorkloadQueryParser(FIELD), new TermFilteredPresearcher());
+             TrafficLog log = new TrafficLog(os)) {
+            monitor.setTrafficCapture(log);
+            monitor.update(generator.queries(200));
+            List<InputDocument> docs = Lists.newArrayList(generator.documents(40, 200, FIELD, StandardBenchmark.ANALYZER));
+            for (List<InputDocument> batch : Lists.partition(docs, 4)) {
+                monitor.match(DocumentBatch.of(batch), SimpleMatcher.FACTORY);
+            }
+            monitor.deleteById("0", "1");
+        }
+        return os.toByteArray();
+    }
+
+    private static ReplayResults replay(byte[] log, double speed, int threads) throws Exception {
+        try (TrafficLog.Reader reader = new TrafficLog.Reader(new ByteArrayInputStream(log))) {
+            return new TrafficReplay(new WorkloadQueryParser(FIELD), new TermFilteredPresearcher(), StandardBenchmark.ANALYZER)
+                    .setSpeed(speed)
+                    .setThreads(threads)
+                    .replay(reader);
+        }
+    }
+
+    @Test
+    public void testSingleThreadedReplay() throws Exception {
+
+        ReplayResults results = replay(capture(new WorkloadGenerator(3)), 1, 1);
+
+        assertThat(results.getErrorCount()).isEqualTo(0);
+        assertThat(results.getTimer("update").getCount()).isEqualTo(1);
+        assertThat(results.getTimer("match").getCount()).isEqualTo(10);
+        assertThat(results.getTimer("delete").getCount()).isEqualTo(1);
+        assertThat(results.getTimer("scheduleLag").getCount()).isEqualTo(12);
+        assertThat(results.getTimer("candidateMatch").getCount()).isEqualTo(10);
+        assertThat(results.getThroughput("match")).isGreaterThan(0);
+        assertThat(results.toString()).contains("p999 ms").contains("queryIndexSearch");
+    }
+
+    @Test
+    public void testMultiThreadedReplay() throws Exception {
+
+        ReplayResults results = replay(capture(new WorkloadGenerator(3)), 0, 4);
+
+        assertThat(results.getErrorCount()).isEqualTo(0);
+        assertThat(results.getTimer("match").getCount()).isEqualTo(10);
+        assertThat(results.getTimer("scheduleLag").getCount()).isEqualTo(0);
+    }
+
+}
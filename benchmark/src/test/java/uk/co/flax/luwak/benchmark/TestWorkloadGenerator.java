@@ -0,0 +1,125 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestWorkloadGenerator {
+
+    private static final String FIELD = StandardBenchmark.FIELD;
+
+    @Test
+    public void testWorkloadsAreReproducible() {
+
+        WorkloadGenerator first = new WorkloadGenerator(42);
+        WorkloadGenerator second = new WorkloadGenerator(42);
+        WorkloadGenerator other = new WorkloadGenerator(43);
+
+        List<MonitorQuery> queries = Lists.newArrayList(first.queries(100));
+        assertThat(queries).hasSize(100);
+        assertThat(Lists.newArrayList(second.queries(100))).isEqualTo(queries);
+        assertThat(Lists.newArrayList(other.queries(100))).isNotEqualTo(queries);
+
+        // queries can be generated individually, in any order
+        assertThat(first.query(57)).isEqualTo(queries.get(57));
+
+        InputDocument doc = first.document(7, 100, FIELD, StandardBenchmark.ANALYZER);
+        assertThat(doc.getId()).isEqualTo("doc7");
+    }
+
+    @Test
+    public void testQueryMix() throws Exception {
+
+        WorkloadGenerator generator = new WorkloadGenerator(1)
+                .setQueryWeight(WorkloadGenerator.QueryType.TERM, 1)
+                .setQueryWeight(WorkloadGenerator.QueryType.SPAN, 1)
+                .setQueryWeight(WorkloadGenerator.QueryType.PHRASE, 0)
+                .setQueryWeight(WorkloadGenerator.QueryType.BOOLEAN, 0)
+                .setQueryWeight(WorkloadGenerator.QueryType.WILDCARD, 0)
+                .setQueryWeight(WorkloadGenerator.QueryType.REGEXP, 0)
+                .setQueryWeight(WorkloadGenerator.QueryType.RANGE, 0);
+
+        WorkloadQueryParser parser = new WorkloadQueryParser(FIELD);
+        Map<String, Integer> types = new HashMap<>();
+        for (MonitorQuery query : generator.queries(1000)) {
+            String type = query.getMetadata().get(WorkloadGenerator.TYPE_KEY);
+            types.put(type, types.containsKey(type) ? types.get(type) + 1 : 1);
+            if ("span".equals(type))
+                assertThat(parser.parse(query.getQuery(), query.getMetadata())).isInstanceOf(SpanNearQuery.class);
+        }
+        assertThat(types.keySet()).containsOnly("term", "span");
+        assertThat(types.get("term")).isBetween(400, 600);
+    }
+
+    @Test
+    public void testZipfianVocabulary() {
+
+        WorkloadGenerator generator = new WorkloadGenerator(1)
+                .setVocabularySize(1000)
+                .setQueryWeight(WorkloadGenerator.QueryType.TERM, 1)
+                .setQueryWeight(WorkloadGenerator.QueryType.PHRASE, 0)
+                .setQueryWeight(WorkloadGenerator.QueryType.BOOLEAN, 0)
+                .setQueryWeight(WorkloadGenerator.QueryType.WILDCARD, 0)
+                .setQueryWeight(WorkloadGenerator.QueryType.REGEXP, 0)
+                .setQueryWeight(WorkloadGenerator.QueryType.SPAN, 0)
+                .setQueryWeight(WorkloadGenerator.QueryType.RANGE, 0);
+
+        int top = 0, tail = 0;
+        for (MonitorQuery query : generator.queries(10000)) {
+            if (query.getQuery().equals("t1"))
+                top++;
+            if (query.getQuery().equals("t1000"))
+                tail++;
+        }
+        // with an exponent of 1, the first word is 1000 times as likely as the last
+        assertThat(top).isGreaterThan(1000);
+        assertThat(tail).isLessThan(10);
+    }
+
+    @Test
+    public void testHitRate() throws IOException {
+
+        WorkloadGenerator generator = new WorkloadGenerator(7)
+                .setVocabularySize(10000)
+                .setDocumentLength(50)
+                .setHitRate(0.25);
+
+        try (Monitor monitor = new Monitor(new WorkloadQueryParser(FIELD), new TermFilteredPresearcher())) {
+            assertThat(monitor.update(generator.queries(1000))).isEmpty();
+
+            int hits = 0;
+            for (InputDocument doc : generator.documents(400, 1000, FIELD, StandardBenchmark.ANALYZER)) {
+                if (monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount(doc.getId()) > 0)
+                    hits++;
+            }
+            assertThat(hits).isBetween(70, 130);
+        }
+    }
+
+}
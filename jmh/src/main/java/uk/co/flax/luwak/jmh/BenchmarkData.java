@@ -0,0 +1,112 @@
+package uk.co.flax.luwak.jmh;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.benchmark.StandardBenchmark;
+import uk.co.flax.luwak.presearcher.MultipassTermFilteredPresearcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * The query and document corpus shared by the JMH benchmarks
+ *
+ * Queries and documents are taken from the benchmark module's resources, and are loaded
+ * once per forked JVM.
+ */
+public final class BenchmarkData {
+
+    private BenchmarkData() {}
+
+    private static List<MonitorQuery> queries;
+    private static List<InputDocument> documents;
+
+    /**
+     * @return the benchmark queries
+     * @throws IOException on error
+     */
+    public static synchronized List<MonitorQuery> queries() throws IOException {
+        if (queries == null) {
+            queries = new ArrayList<>();
+            for (MonitorQuery query : StandardBenchmark.loadQueries()) {
+                queries.add(query);
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * @return the benchmark documents, analyzed with {@link StandardBenchmark#ANALYZER}
+     * @throws IOException on error
+     */
+    public static synchronized List<InputDocument> documents() throws IOException {
+        if (documents == null) {
+            documents = new ArrayList<>();
+            for (InputDocument doc : StandardBenchmark.loadDocuments()) {
+                documents.add(doc);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Build a DocumentBatch from the first documents of the corpus
+     * @param size the number of documents in the batch
+     * @return a new DocumentBatch
+     * @throws IOException on error
+     */
+    public static DocumentBatch batch(int size) throws IOException {
+        List<InputDocument> docs = documents();
+        if (size > docs.size())
+            throw new IllegalArgumentException("Batch size " + size + " is larger than the corpus (" + docs.size() + " documents)");
+        return DocumentBatch.of(docs.subList(0, size));
+    }
+
+    /**
+     * Create a presearcher by name
+     * @param name either "term", or "multipass-N" for a MultipassTermFilteredPresearcher with N passes
+     * @return a new Presearcher
+     */
+    public static Presearcher presearcher(String name) {
+        if ("term".equals(name))
+            return new TermFilteredPresearcher();
+        if (name.startsWith("multipass-"))
+            return new MultipassTermFilteredPresearcher(Integer.parseInt(name.substring("multipass-".length())), 0.1f);
+        throw new IllegalArgumentException("Unknown presearcher " + name);
+    }
+
+    /**
+     * Create a Monitor holding the benchmark queries
+     *
+     * A few of the queries in the corpus cannot be indexed by the presearchers, and are left
+     * out, as they are by {@link StandardBenchmark}.
+     *
+     * @param presearcher the presearcher to use
+     * @return a new Monitor
+     * @throws IOException on error
+     */
+    public static Monitor monitor(Presearcher presearcher) throws IOException {
+        Monitor monitor = new Monitor(new LuceneQueryParser(StandardBenchmark.FIELD), presearcher);
+        monitor.update(queries());
+        return monitor;
+    }
+
+}
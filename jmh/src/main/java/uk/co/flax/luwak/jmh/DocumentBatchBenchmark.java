@@ -0,0 +1,58 @@
+package uk.co.flax.luwak.jmh;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.InputDocument;
+
+/**
+ * Measures the time taken to index a batch of documents into a DocumentBatch
+ *
+ * A batch size of 1 builds a singleton batch, backed by a MemoryIndex; larger sizes
+ * build a multi-document batch backed by a MultiMemoryIndex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DocumentBatchBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int batchSize;
+
+    private List<InputDocument> documents;
+
+    @Setup
+    public void setup() throws IOException {
+        documents = BenchmarkData.documents().subList(0, batchSize);
+    }
+
+    @Benchmark
+    public int buildBatch() throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(documents)) {
+            return batch.getIndexReader().maxDoc();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package uk.co.flax.luwak.jmh;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks, writing results as JSON so that runs from different
+ * commits can be compared
+ *
+ * Takes the standard JMH command-line options.  Unless a result format or file is given
+ * with -rf or -rff, results are written in JSON format to jmh-result.json.
+ *
+ * Usage: java -jar jmh/target/benchmarks.jar [jmh options] [benchmark regexps]
+ */
+public class LuwakBenchmarks {
+
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String... args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp()) {
+            cmdOptions.showHelp();
+            return;
+        }
+        if (cmdOptions.shouldList()) {
+            new Runner(cmdOptions).list();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+        if (cmdOptions.getResultFormat().hasValue() == false)
+            options.resultFormat(ResultFormatType.JSON);
+        if (cmdOptions.getResult().hasValue() == false)
+            options.result(DEFAULT_RESULT_FILE);
+        new Runner(options.build()).run();
+    }
+
+}
@@ -0,0 +1,99 @@
+package uk.co.flax.luwak.jmh;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.benchmark.PresearcherMatcher;
+import uk.co.flax.luwak.matchers.*;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+
+/**
+ * Measures a complete match run of a DocumentBatch against all the benchmark queries,
+ * for each of the shipped matchers
+ *
+ * Each run includes the presearch; the "presearcher" matcher only collects the
+ * presearcher's candidates, and so gives the baseline to subtract.  The parallel and
+ * partition matchers wrap a SimpleMatcher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatcherBenchmark {
+
+    @Param({"presearcher", "simple", "scoring", "highlighting", "parallel", "partition"})
+    public String matcherName;
+
+    @Param({"1", "10", "100"})
+    public int batchSize;
+
+    @Param({"4"})
+    public int threads;
+
+    private ExecutorService executor;
+    private Monitor monitor;
+    private MatcherFactory<? extends QueryMatch> factory;
+    private DocumentBatch batch;
+
+    @Setup
+    public void setup() throws IOException {
+        executor = Executors.newFixedThreadPool(threads);
+        monitor = BenchmarkData.monitor(new TermFilteredPresearcher());
+        factory = matcherFactory(matcherName);
+        batch = BenchmarkData.batch(batchSize);
+    }
+
+    private MatcherFactory<? extends QueryMatch> matcherFactory(String name) {
+        switch (name) {
+            case "presearcher":
+                return PresearcherMatcher.FACTORY;
+            case "simple":
+                return SimpleMatcher.FACTORY;
+            case "scoring":
+                return ScoringMatcher.FACTORY;
+            case "highlighting":
+                return HighlightingMatcher.FACTORY;
+            case "parallel":
+                return ParallelMatcher.factory(executor, SimpleMatcher.FACTORY, threads);
+            case "partition":
+                return PartitionMatcher.factory(executor, SimpleMatcher.FACTORY, threads);
+            default:
+                throw new IllegalArgumentException("Unknown matcher " + name);
+        }
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        batch.close();
+        monitor.close();
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public Matches<? extends QueryMatch> match() throws IOException {
+        return monitor.match(batch, factory);
+    }
+
+}
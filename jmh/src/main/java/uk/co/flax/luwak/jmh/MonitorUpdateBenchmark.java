@@ -0,0 +1,78 @@
+package uk.co.flax.luwak.jmh;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.benchmark.StandardBenchmark;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Measures the throughput of Monitor.update(), in queries per second
+ *
+ * Each invocation adds a batch of queries with new ids, so the queryindex grows over the
+ * course of an iteration.  The Monitor is recreated for each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MonitorUpdateBenchmark {
+
+    @Param({"term", "multipass-2"})
+    public String presearcherName;
+
+    private Monitor monitor;
+    private List<MonitorQuery> queries;
+    private int invocation;
+
+    @Setup(Level.Trial)
+    public void loadQueries() throws IOException {
+        queries = BenchmarkData.queries();
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        monitor = new Monitor(new LuceneQueryParser(StandardBenchmark.FIELD), BenchmarkData.presearcher(presearcherName));
+        invocation = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown() throws IOException {
+        monitor.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public List<QueryError> update() throws IOException {
+        List<MonitorQuery> batch = new ArrayList<>(100);
+        int start = (invocation++ * 100) % queries.size();
+        for (int i = 0; i < 100; i++) {
+            MonitorQuery mq = queries.get((start + i) % queries.size());
+            batch.add(new MonitorQuery(invocation + "_" + i, mq.getQuery(), mq.getMetadata()));
+        }
+        return monitor.update(batch);
+    }
+
+}
@@ -0,0 +1,91 @@
+package uk.co.flax.luwak.jmh;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.RAMDirectory;
+import org.openjdk.jmh.annotations.*;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.benchmark.StandardBenchmark;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Measures the time taken by a presearcher to build its query from a DocumentBatch
+ *
+ * The presearcher's term filter is built over a queryindex holding all the benchmark
+ * queries.  The "multipass-N" presearchers are MultipassTermFilteredPresearchers with
+ * N passes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PresearcherBenchmark {
+
+    @Param({"term", "multipass-1", "multipass-2", "multipass-3", "multipass-4"})
+    public String presearcherName;
+
+    @Param({"1", "10", "100"})
+    public int batchSize;
+
+    private Presearcher presearcher;
+    private DirectoryReader queryIndex;
+    private QueryTermFilter termFilter;
+    private DocumentBatch batch;
+
+    @Setup
+    public void setup() throws Exception {
+        presearcher = BenchmarkData.presearcher(presearcherName);
+        MonitorQueryParser parser = new LuceneQueryParser(StandardBenchmark.FIELD);
+        RAMDirectory directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()))) {
+            for (MonitorQuery mq : BenchmarkData.queries()) {
+                try {
+                    Query query = parser.parse(mq.getQuery(), mq.getMetadata());
+                    writer.addDocument(presearcher.indexQuery(query, mq.getMetadata()));
+                }
+                catch (Exception e) {
+                    // the Monitor would reject this query as well, so leave it out
+                }
+            }
+        }
+        queryIndex = DirectoryReader.open(directory);
+        termFilter = new QueryTermFilter(queryIndex);
+        batch = BenchmarkData.batch(batchSize);
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        batch.close();
+        queryIndex.close();
+    }
+
+    @Benchmark
+    public Query buildQuery() throws IOException {
+        return presearcher.buildQuery(batch.getIndexReader(), termFilter);
+    }
+
+}
@@ -0,0 +1,118 @@
+package uk.co.flax.luwak.jmh;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Query;
+import org.openjdk.jmh.annotations.*;
+import uk.co.flax.luwak.*;
+
+/**
+ * Measures the time taken to run a presearcher query against the queryindex and
+ * collect the candidate queries, not including building the presearcher query
+ *
+ * The Monitor's presearcher builds its query from the benchmark's DocumentBatch once, and
+ * then returns the same query for every match run.  Candidates are passed to a matcher
+ * that doesn't run them, so each run is dominated by the queryindex search and the
+ * query cache lookups for the candidates it selects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryIndexBenchmark {
+
+    @Param({"term", "multipass-2"})
+    public String presearcherName;
+
+    @Param({"1", "10", "100"})
+    public int batchSize;
+
+    private Monitor monitor;
+    private DocumentBatch batch;
+
+    @Setup
+    public void setup() throws IOException {
+        monitor = BenchmarkData.monitor(new FixedQueryPresearcher(BenchmarkData.presearcher(presearcherName)));
+        batch = BenchmarkData.batch(batchSize);
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        batch.close();
+        monitor.close();
+    }
+
+    @Benchmark
+    public int search() throws IOException {
+        return monitor.match(batch, CandidateCollector.FACTORY).getPresearcherHits().size();
+    }
+
+    // Builds its query once, from the first DocumentBatch it is given
+    private static class FixedQueryPresearcher extends Presearcher {
+
+        final Presearcher presearcher;
+        Query query;
+
+        FixedQueryPresearcher(Presearcher presearcher) {
+            this.presearcher = presearcher;
+        }
+
+        @Override
+        public synchronized Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
+            if (query == null)
+                query = presearcher.buildQuery(reader, queryTermFilter);
+            return query;
+        }
+
+        @Override
+        public Document indexQuery(Query query, Map<String, String> metadata) {
+            return presearcher.indexQuery(query, metadata);
+        }
+    }
+
+    // Records the candidates selected by the presearcher, without running them
+    private static class CandidateCollector extends CandidateMatcher<QueryMatch> {
+
+        static final MatcherFactory<QueryMatch> FACTORY = new MatcherFactory<QueryMatch>() {
+            @Override
+            public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+                return new CandidateCollector(docs);
+            }
+        };
+
+        CandidateCollector(DocumentBatch docs) {
+            super(docs);
+        }
+
+        @Override
+        protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {}
+
+        @Override
+        public QueryMatch resolve(QueryMatch match1, QueryMatch match2) {
+            return match1;
+        }
+    }
+
+}
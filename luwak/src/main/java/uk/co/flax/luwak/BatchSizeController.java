@@ -0,0 +1,205 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses a DocumentBatch size from the observed cost of matching batches, aiming
+ * for the highest throughput that keeps document latency under a target.
+ *
+ * The best batch size depends on the presearcher, the matcher, the queries and the
+ * documents, and so can change as traffic changes.  The controller is told the size,
+ * service time (the time taken to build, presearch and match the batch) and latency (the
+ * longest time from a document being submitted to its batch completing, including time
+ * spent queueing) of every batch, and reconsiders its batch size after each window of
+ * batches.  A document can wait for the batch ahead of it as well as for its own, so
+ * batches are kept to a service time of half the latency target:
+ * <ul>
+ *     <li>If a batch took longer than half the target, or a document's latency was over
+ *     the target, the batch size is cut.</li>
+ *     <li>If the batch size was increased at the end of the previous window, but the service
+ *     time per document did not fall, the increase is reverted.</li>
+ *     <li>Otherwise, if most batches were full and a larger batch is predicted to take less
+ *     than half the target, without pushing latency over the target, the batch size is
+ *     increased to look for higher throughput.</li>
+ * </ul>
+ * After a cut or a revert, the batch size is held for several windows before being
+ * increased again.
+ *
+ * Predictions use the cost of each extra document in a batch, measured by comparing windows
+ * of full batches at different sizes.  Until that has been measured, service time is assumed
+ * to grow in proportion to batch size.
+ *
+ * Time spent waiting for a batch to fill up counts towards latency, so when batching a
+ * stream of documents the maximum wait should be well within the target.
+ *
+ * Methods may be called from several threads.  See {@link MatchStream} for a batching
+ * front end that uses a controller.
+ */
+public class BatchSizeController {
+
+    /** The number of batches observed before each decision */
+    public static final int WINDOW = 8;
+
+    /** The number of windows to hold the batch size for after a cut or a revert */
+    public static final int HOLD_WINDOWS = 8;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+    private static final double GROWTH = 1.5;
+    private static final double CUT = 0.75;
+    private static final double MIN_IMPROVEMENT = 0.02;
+
+    private final long latencyTargetNanos;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+
+    private int batchSize;
+    private int previousSize = 0;
+    private double previousCost;
+    private int hold = 0;
+
+    private int measuredSize = 0;
+    private double measuredServiceNanos;
+    private double documentNanos = -1;
+
+    private int batches = 0;
+    private long documents = 0;
+    private long serviceNanos = 0;
+    private long maxServiceNanos = 0;
+    private long maxLatencyNanos = 0;
+    private int fullBatches = 0;
+
+    /**
+     * Create a new BatchSizeController choosing batch sizes between 1 and {@link #DEFAULT_MAX_BATCH_SIZE}
+     * @param latencyTarget the latency that documents should be matched within
+     * @param unit the units of the latency target
+     */
+    public BatchSizeController(long latencyTarget, TimeUnit unit) {
+        this(latencyTarget, unit, 1, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Create a new BatchSizeController
+     * @param latencyTarget the latency that documents should be matched within
+     * @param unit the units of the latency target
+     * @param minBatchSize the smallest batch size to choose, and the initial batch size
+     * @param maxBatchSize the largest batch size to choose
+     */
+    public BatchSizeController(long latencyTarget, TimeUnit unit, int minBatchSize, int maxBatchSize) {
+        if (minBatchSize < 1 || maxBatchSize < minBatchSize)
+            throw new IllegalArgumentException("Batch sizes must satisfy 1 <= minBatchSize <= maxBatchSize");
+        this.latencyTargetNanos = unit.toNanos(latencyTarget);
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.batchSize = minBatchSize;
+    }
+
+    /**
+     * @return the current batch size
+     */
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Record the cost of a completed batch
+     * @param size the number of documents in the batch
+     * @param serviceNanos the time taken to build, presearch and match the batch, in nanoseconds
+     * @param latencyNanos the longest time from a document in the batch being submitted to the
+     *                     batch completing, in nanoseconds
+     * @return true if the batch size has changed
+     */
+    public synchronized boolean batchCompleted(int size, long serviceNanos, long latencyNanos) {
+        this.batches++;
+        this.documents += size;
+        this.serviceNanos += serviceNanos;
+        this.maxServiceNanos = Math.max(this.maxServiceNanos, serviceNanos);
+        this.maxLatencyNanos = Math.max(this.maxLatencyNanos, latencyNanos);
+        if (size >= batchSize)
+            fullBatches++;
+        if (batches < WINDOW)
+            return false;
+
+        int oldSize = batchSize;
+        if (fullBatches == batches)
+            measure(this.serviceNanos / (double) batches);
+        decide(this.serviceNanos / (double) documents);
+        batches = 0;
+        documents = 0;
+        this.serviceNanos = 0;
+        maxServiceNanos = 0;
+        maxLatencyNanos = 0;
+        fullBatches = 0;
+        return batchSize != oldSize;
+    }
+
+    // compare the mean service time of full batches with that of the last size measured
+    private void measure(double meanServiceNanos) {
+        if (measuredSize != 0 && measuredSize != batchSize)
+            documentNanos = Math.max(0, (meanServiceNanos - measuredServiceNanos) / (batchSize - measuredSize));
+        measuredSize = batchSize;
+        measuredServiceNanos = meanServiceNanos;
+    }
+
+    private void decide(double cost) {
+        if (maxServiceNanos * 2 > latencyTargetNanos || maxLatencyNanos > latencyTargetNanos) {
+            batchSize = Math.max(minBatchSize, (int) (batchSize * CUT));
+            previousSize = 0;
+            hold = HOLD_WINDOWS;
+            return;
+        }
+        if (previousSize != 0 && cost > previousCost * (1 - MIN_IMPROVEMENT)) {
+            batchSize = previousSize;
+            previousSize = 0;
+            hold = HOLD_WINDOWS;
+            return;
+        }
+        previousSize = 0;
+        if (hold > 0) {
+            hold--;
+            return;
+        }
+        // if batches aren't filling up, a larger limit won't make any difference
+        if (fullBatches * 2 < batches)
+            return;
+        // don't grow by more than the extra documents can be predicted to fit into the time
+        // left before the slowest batch reaches half the target, or latency reaches the target
+        long headroom = Math.min(latencyTargetNanos / 2 - maxServiceNanos, latencyTargetNanos - maxLatencyNanos);
+        long fits;
+        if (documentNanos < 0)
+            fits = maxServiceNanos == 0 ? Integer.MAX_VALUE : batchSize + batchSize * headroom / maxServiceNanos;
+        else
+            fits = documentNanos == 0 ? Integer.MAX_VALUE : batchSize + (long) (headroom / documentNanos);
+        if (fits <= batchSize)
+            return;
+        int newSize = (int) Math.min(maxBatchSize, Math.min(fits, Math.max(batchSize + 1, (long) (batchSize * GROWTH))));
+        if (newSize > batchSize) {
+            previousSize = batchSize;
+            previousCost = cost;
+            batchSize = newSize;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BatchSizeController(batchSize=" + batchSize + ", target="
+                + TimeUnit.NANOSECONDS.toMillis(latencyTargetNanos) + "ms)";
+    }
+
+}
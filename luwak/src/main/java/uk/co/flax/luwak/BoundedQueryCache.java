@@ -0,0 +1,207 @@
+package uk.co.flax.luwak;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.util.BytesRef;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * A query cache with a fixed budget of entries and bytes, keyed by query hash.
+ *
+ * Each entry keeps a small access counter.  When the cache is over budget, a clock hand
+ * sweeps over the entries in insertion order, halving the counter of each entry it
+ * passes and evicting the first entry whose counter has reached zero.  Frequently used
+ * entries therefore survive several sweeps, while entries that have not been used since
+ * they were last passed are evicted.
+ */
+class BoundedQueryCache {
+
+    private static final int MAX_FREQUENCY = 15;
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final ConcurrentMap<BytesRef, Node> nodes = new ConcurrentHashMap<>();
+
+    /* The clock, guarded by this */
+    private final Deque<Node> clock = new ArrayDeque<>();
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Node {
+
+        final QueryCacheEntry entry;
+        final long bytes;
+        volatile int frequency = 0;
+        boolean removed = false;
+
+        Node(QueryCacheEntry entry) {
+            this.entry = entry;
+            this.bytes = entry.ramBytesUsed();
+        }
+    }
+
+    /**
+     * Create a new BoundedQueryCache
+     * @param maxEntries the maximum number of entries to hold, or -1 for no limit
+     * @param maxBytes   the maximum estimated size of the cache, or -1 for no limit
+     */
+    BoundedQueryCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Split a Monitor-wide budget between its shards, so that the shares add up to the budget
+     * @param budget     the budget for the whole Monitor, or -1 for no limit
+     * @param shard      the number of the shard
+     * @param shardCount the number of shards
+     * @return the shard's share of the budget, or -1 for no limit
+     */
+    static long share(long budget, int shard, int shardCount) {
+        if (budget < 0)
+            return -1;
+        return budget / shardCount + (shard < budget % shardCount ? 1 : 0);
+    }
+
+    /**
+     * Look up an entry, recording a hit or a miss
+     * @param hash the hash of the entry
+     * @return the entry, or null if it is not in the cache
+     */
+    QueryCacheEntry get(BytesRef hash) {
+        Node node = nodes.get(hash);
+        if (node == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // racy increments may be lost, which is fine for an approximate count
+        int frequency = node.frequency;
+        if (frequency < MAX_FREQUENCY)
+            node.frequency = frequency + 1;
+        return node.entry;
+    }
+
+    /**
+     * Look up an entry without recording an access
+     * @param hash the hash of the entry
+     * @return the entry, or null if it is not in the cache
+     */
+    QueryCacheEntry peek(BytesRef hash) {
+        Node node = nodes.get(hash);
+        return node == null ? null : node.entry;
+    }
+
+    /**
+     * Add an entry to the cache, evicting other entries if the cache is then over budget
+     * @param entry the entry to add
+     * @return the cached entry for the hash, which may have been added concurrently by another thread
+     */
+    QueryCacheEntry put(QueryCacheEntry entry) {
+        Node node = new Node(entry);
+        Node existing = nodes.putIfAbsent(entry.hash, node);
+        if (existing != null)
+            return existing.entry;
+        synchronized (this) {
+            clock.addLast(node);
+            bytes += node.bytes;
+            evict();
+        }
+        return entry;
+    }
+
+    // Called while holding the lock
+    private void evict() {
+        while (overBudget() && clock.isEmpty() == false) {
+            Node node = clock.pollFirst();
+            if (node.removed)
+                continue;
+            if (node.frequency > 0) {
+                node.frequency = node.frequency >> 1;
+                clock.addLast(node);
+                continue;
+            }
+            remove(node);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private boolean overBudget() {
+        return (maxEntries >= 0 && nodes.size() > maxEntries) || (maxBytes >= 0 && bytes > maxBytes);
+    }
+
+    private void remove(Node node) {
+        node.removed = true;
+        nodes.remove(node.entry.hash, node);
+        bytes -= node.bytes;
+    }
+
+    /**
+     * Remove all entries whose hashes are not in a set of live hashes
+     * @param liveHashes the hashes to keep
+     */
+    synchronized void retainAll(Set<BytesRef> liveHashes) {
+        Iterator<Node> it = clock.iterator();
+        while (it.hasNext()) {
+            Node node = it.next();
+            if (liveHashes.contains(node.entry.hash) == false) {
+                remove(node);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the cached entries
+     */
+    Collection<QueryCacheEntry> entries() {
+        List<QueryCacheEntry> entries = new ArrayList<>(nodes.size());
+        for (Node node : nodes.values()) {
+            entries.add(node.entry);
+        }
+        return entries;
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    synchronized long ramBytesUsed() {
+        return bytes;
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+
+}
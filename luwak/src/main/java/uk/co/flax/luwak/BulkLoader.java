@@ -0,0 +1,256 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * Loads a large number of queries into a Monitor.
+ *
+ * Each worker thread parses and indexes queries into its own temporary index for
+ * each shard of the queryindex.  Once all queries have been indexed, the temporary
+ * indexes for each shard are added to it in a single step, and its query cache is
+ * filled from the parsed queries.
+ *
+ * Queries are numbered as they are read, and if an id appears more than once, every
+ * version but the last is deleted from the temporary indexes before they are added.
+ */
+class BulkLoader {
+
+    private static final double RAM_BUFFER_SIZE_MB = 64;
+
+    private final Monitor monitor;
+    private final List<QueryIndex> shards;
+    private final int threads;
+    private final Path tempDir;
+
+    private final Iterator<MonitorQuery> queries;
+    private long sequence = 0;
+    private volatile boolean failed = false;
+    private final List<QueryError> errors = Collections.synchronizedList(new ArrayList<QueryError>());
+
+    /**
+     * Create a new BulkLoader
+     * @param monitor the Monitor to load queries into
+     * @param shards the shards of the Monitor's queryindex
+     * @param queries the queries to load
+     * @param threads the number of threads to index queries with
+     * @param tempDir a directory to hold the temporary indexes, or null to hold them in memory
+     */
+    BulkLoader(Monitor monitor, List<QueryIndex> shards, Iterable<MonitorQuery> queries, int threads, Path tempDir) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Cannot bulk load queries with " + threads + " threads");
+        this.monitor = monitor;
+        this.shards = shards;
+        this.queries = queries.iterator();
+        this.threads = threads;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Load the queries
+     * @return a list of errors for queries that could not be loaded
+     * @throws IOException on IO errors
+     */
+    List<QueryError> load() throws IOException {
+
+        List<Worker> workers = new ArrayList<>(threads);
+        List<Path> tempPaths = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                Directory[] directories = new Directory[shards.size()];
+                for (int j = 0; j < shards.size(); j++) {
+                    if (tempDir == null) {
+                        directories[j] = new RAMDirectory();
+                    }
+                    else {
+                        Path path = tempDir.resolve("luwak_bulk_" + i + "_" + j);
+                        tempPaths.add(path);
+                        directories[j] = FSDirectory.open(path);
+                    }
+                }
+                workers.add(new Worker(directories));
+            }
+
+            runWorkers(workers);
+
+            for (int j = 0; j < shards.size(); j++) {
+                Directory[] directories = new Directory[workers.size()];
+                Map<String, Loaded> latest = new HashMap<>();
+                for (int i = 0; i < workers.size(); i++) {
+                    Worker worker = workers.get(i);
+                    directories[i] = worker.directories[j];
+                    for (Loaded loaded : worker.loaded.get(j).values()) {
+                        // if two workers loaded the same id, delete the earlier version
+                        Loaded previous = latest.get(loaded.id);
+                        if (previous == null) {
+                            latest.put(loaded.id, loaded);
+                        }
+                        else if (previous.sequence < loaded.sequence) {
+                            previous.writer.deleteDocuments(new Term(Monitor.FIELDS.del, loaded.id));
+                            latest.put(loaded.id, loaded);
+                        }
+                        else {
+                            loaded.writer.deleteDocuments(new Term(Monitor.FIELDS.del, loaded.id));
+                        }
+                    }
+                }
+                List<QueryCacheEntry> entries = new ArrayList<>();
+                for (Loaded loaded : latest.values()) {
+                    entries.addAll(loaded.entries);
+                }
+                for (Worker worker : workers) {
+                    worker.writers[j].close();
+                }
+                shards.get(j).addIndexes(directories, latest.keySet(), entries);
+            }
+        }
+        finally {
+            for (Worker worker : workers) {
+                IOUtils.closeWhileHandlingException(worker.writers);
+                IOUtils.closeWhileHandlingException(worker.directories);
+            }
+            IOUtils.rm(tempPaths.toArray(new Path[tempPaths.size()]));
+        }
+
+        return errors;
+    }
+
+    private void runWorkers(List<Worker> workers) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> future : executor.invokeAll(workers)) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while bulk loading queries", e);
+        }
+        catch (IOException | RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new IOException(t);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Reads queries lazily in input order, numbering each one for the worker that takes it
+    private MonitorQuery nextQuery(Worker worker) {
+        synchronized (queries) {
+            // once a worker has failed, the load is abandoned, so stop reading input
+            if (failed || queries.hasNext() == false)
+                return null;
+            worker.sequence = sequence++;
+            return queries.next();
+        }
+    }
+
+    // A query indexed by a worker, which replaces any query with the same id and a lower sequence number
+    private static class Loaded {
+
+        final String id;
+        final long sequence;
+        final IndexWriter writer;
+        final List<QueryCacheEntry> entries = new ArrayList<>();
+
+        Loaded(String id, long sequence, IndexWriter writer) {
+            this.id = id;
+            this.sequence = sequence;
+            this.writer = writer;
+        }
+    }
+
+    private class Worker implements Callable<Void> {
+
+        final Directory[] directories;
+        final IndexWriter[] writers;
+        final List<Map<String, Loaded>> loaded = new ArrayList<>();
+        long sequence;
+
+        Worker(Directory[] directories) throws IOException {
+            this.directories = directories;
+            this.writers = new IndexWriter[directories.length];
+            for (int i = 0; i < directories.length; i++) {
+                IndexWriterConfig iwc = new IndexWriterConfig(shards.get(i).getAnalyzer());
+                iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+                iwc.setRAMBufferSizeMB(RAM_BUFFER_SIZE_MB);
+                writers[i] = new IndexWriter(directories[i], iwc);
+                loaded.add(new HashMap<String, Loaded>());
+            }
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                index();
+            }
+            catch (Throwable t) {
+                failed = true;
+                throw t;
+            }
+            return null;
+        }
+
+        private void index() throws IOException {
+            MonitorQuery query;
+            while ((query = nextQuery(this)) != null) {
+                List<Indexable> indexables;
+                try {
+                    indexables = monitor.buildIndexables(query);
+                }
+                catch (Exception e) {
+                    errors.add(new QueryError(query.getId(), query.getQuery(), e.getMessage()));
+                    continue;
+                }
+                int shard = monitor.shardIndexFor(query.getId());
+                Loaded current = new Loaded(query.getId(), sequence, writers[shard]);
+                List<Document> documents = new ArrayList<>(indexables.size());
+                for (Indexable indexable : indexables) {
+                    documents.add(indexable.document);
+                    current.entries.add(indexable.queryCacheEntry);
+                }
+                // queries reach each worker in input order, so a repeated id replaces its earlier version
+                if (loaded.get(shard).put(query.getId(), current) == null)
+                    writers[shard].addDocuments(documents);
+                else
+                    writers[shard].updateDocuments(new Term(Monitor.FIELDS.del, query.getId()), documents);
+            }
+        }
+    }
+
+}
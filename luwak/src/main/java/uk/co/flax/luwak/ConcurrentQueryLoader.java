@@ -18,8 +18,7 @@ package uk.co.flax.luwak;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
 
 import uk.co.flax.luwak.util.CollectionUtils;
@@ -27,8 +26,13 @@ import uk.co.flax.luwak.util.CollectionUtils;
 /**
  * Utility class for concurrently loading queries into a Monitor.
  *
- * This is useful to speed up startup times for a Monitor.  You can use multiple
- * threads to parse and index queries before starting matches.
+ * This is useful to speed up startup times for a Monitor.  Queries are parsed,
+ * decomposed and converted to queryindex documents by several worker threads, and
+ * passed to a single writer thread that adds them to the Monitor in batches.  Batches
+ * are committed once they hold more than the Monitor's query update buffer size
+ * (see {@link QueryIndexConfiguration#setQueryUpdateBufferSize(int)}), or once the commit
+ * interval has passed since their first query was added.  Both stages are connected by
+ * bounded queues, so adding queries blocks if the writer falls behind.
  *
  * Use as follows:
  * <pre class="prettyprint">
@@ -39,22 +43,29 @@ import uk.co.flax.luwak.util.CollectionUtils;
  *     }
  * </pre>
  *
- * The Monitor's MonitorQueryParser must be thread-safe for this to work correctly.
+ * The Monitor's MonitorQueryParser and Presearcher must be thread-safe for this to work
+ * correctly.  The writer commits queries in the order that they were added, and if a
+ * query id is added more than once, the last version wins, as with {@link Monitor#update(Iterable)}.
  */
 public class ConcurrentQueryLoader implements Closeable {
 
     private final Monitor monitor;
     private final ExecutorService executor;
-    private final CountDownLatch shutdownLatch;
-    private final BlockingQueue<MonitorQuery> queue;
+    private final CountDownLatch parsersFinished;
+    private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+    private final BlockingQueue<Slot> queue;
+    private final BlockingQueue<Slot> indexQueue;
     private final List<QueryError> errors = new CopyOnWriteArrayList<>();
     private final List<QueryError> errorOutput;
+    private final long commitIntervalNanos;
 
-    private boolean shutdown = false;
-    private IOException error;
+    private volatile boolean shutdown = false;
+    private volatile Throwable error;
 
     public static final int DEFAULT_QUEUE_SIZE = 2000;
 
+    public static final long DEFAULT_COMMIT_INTERVAL_MS = 1000;
+
     /**
      * Create a new ConcurrentQueryLoader for a {@link Monitor}
      * @param monitor Monitor
@@ -68,18 +79,35 @@ public class ConcurrentQueryLoader implements Closeable {
      * Create a new ConcurrentQueryLoader
      * @param monitor the Monitor to load queries to
      * @param errors a List that will be populated with any query errors
-     * @param threads the number of threads to use
-     * @param queueSize the size of the buffer to hold queries in
+     * @param threads the number of threads to use to parse queries
+     * @param queueSize the size of the buffers to hold queries in
      */
     public ConcurrentQueryLoader(Monitor monitor, List<QueryError> errors, int threads, int queueSize) {
+        this(monitor, errors, threads, queueSize, DEFAULT_COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new ConcurrentQueryLoader
+     * @param monitor the Monitor to load queries to
+     * @param errors a List that will be populated with any query errors
+     * @param threads the number of threads to use to parse queries
+     * @param queueSize the size of the buffers to hold queries in
+     * @param commitInterval the maximum time to hold parsed queries before committing them
+     * @param units the units of the commit interval
+     */
+    public ConcurrentQueryLoader(Monitor monitor, List<QueryError> errors, int threads, int queueSize,
+                                 long commitInterval, TimeUnit units) {
         this.monitor = monitor;
         this.errorOutput = errors;
         this.queue = new LinkedBlockingQueue<>(queueSize);
-        this.executor = Executors.newFixedThreadPool(threads);
-        this.shutdownLatch = new CountDownLatch(threads);
+        this.indexQueue = new LinkedBlockingQueue<>(queueSize);
+        this.commitIntervalNanos = units.toNanos(commitInterval);
+        this.executor = Executors.newFixedThreadPool(threads + 1);
+        this.parsersFinished = new CountDownLatch(threads);
         for (int i = 0; i < threads; i++) {
-            this.executor.submit(new Worker(queueSize / threads));
+            this.executor.submit(new Worker(Math.max(1, queueSize / threads)));
         }
+        this.executor.submit(new Writer(queueSize));
     }
 
     /**
@@ -94,9 +122,20 @@ public class ConcurrentQueryLoader implements Closeable {
     public void add(MonitorQuery mq) throws InterruptedException {
         if (shutdown)
             throw new IllegalStateException("ConcurrentQueryLoader has been shutdown, cannot add new queries");
-        this.queue.put(mq);
+        monitor.getTrafficCapture().queriesUpdated(Collections.singletonList(mq));
+        Slot slot = new Slot(mq);
+        this.indexQueue.put(slot);
+        this.queue.put(slot);
     }
 
+    /**
+     * Wait for all added queries to be committed, and shut down the loader's threads
+     *
+     * If parsing or committing a query failed with an Error, the Error is rethrown here,
+     * and queries added after the failure are discarded.
+     *
+     * @throws IOException if queries could not be committed to the Monitor
+     */
     @Override
     public void close() throws IOException {
         this.shutdown = true;
@@ -107,13 +146,31 @@ public class ConcurrentQueryLoader implements Closeable {
             // fine
         }
         errorOutput.addAll(errors);
-        if (error != null)
-            throw error;
+        Throwable t = error;
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t instanceof IOException)
+            throw (IOException) t;
+        if (t != null)
+            throw new IOException(t);
     }
 
+    // A query waiting to be committed, which is added to the writer's queue in order and
+    // filled in by whichever worker parses it
+    private static class Slot {
+
+        final MonitorQuery query;
+        final CompletableFuture<List<Indexable>> indexables = new CompletableFuture<>();
+
+        Slot(MonitorQuery query) {
+            this.query = query;
+        }
+    }
+
+    // Parses queries and builds their queryindex documents
     private class Worker implements Runnable {
 
-        final List<MonitorQuery> workerQueue;
+        final List<Slot> workerQueue;
         final int queueSize;
         boolean running = true;
 
@@ -130,13 +187,69 @@ public class ConcurrentQueryLoader implements Closeable {
                     CollectionUtils.drain(queue, workerQueue, queueSize, 100, TimeUnit.MILLISECONDS);
                     if (workerQueue.size() == 0 && shutdown)
                         running = false;
-                    if (workerQueue.size() > 0) {
-                        errors.addAll(monitor.update(workerQueue));
+                    for (Slot slot : workerQueue) {
+                        MonitorQuery mq = slot.query;
+                        try {
+                            slot.indexables.complete(monitor.buildIndexables(mq));
+                        }
+                        catch (Exception e) {
+                            errors.add(new QueryError(mq.getId(), mq.getQuery(), e.getMessage()));
+                            slot.indexables.complete(null);
+                        }
+                        catch (Throwable t) {
+                            // the writer is waiting on this slot, so pass the error on to it
+                            slot.indexables.completeExceptionally(t);
+                        }
                     }
                 }
             }
-            catch (IOException e) {
-                error = e;
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                parsersFinished.countDown();
+            }
+        }
+    }
+
+    // Adds parsed queries to the Monitor in batches
+    private class Writer implements Runnable {
+
+        final List<Slot> writerQueue;
+        final Map<String, List<Indexable>> updates = new LinkedHashMap<>();
+        final int queueSize;
+        int updateCount = 0;
+        long batchStart = -1;
+
+        Writer(int queueSize) {
+            this.writerQueue = new ArrayList<>(queueSize);
+            this.queueSize = queueSize;
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean finished = false;
+                while (finished == false || indexQueue.isEmpty() == false) {
+                    // queries are queued for the writer before their parsers can finish, so check first
+                    finished = parsersFinished.getCount() == 0;
+                    writerQueue.clear();
+                    CollectionUtils.drain(indexQueue, writerQueue, queueSize, 100, TimeUnit.MILLISECONDS);
+                    for (Slot slot : writerQueue) {
+                        List<Indexable> indexables = getIndexables(slot);
+                        if (indexables == null)
+                            continue;
+                        if (batchStart == -1)
+                            batchStart = System.nanoTime();
+                        // a later version of a query replaces any earlier version in the batch
+                        List<Indexable> previous = updates.put(slot.query.getId(), indexables);
+                        updateCount += indexables.size() - (previous == null ? 0 : previous.size());
+                    }
+                    if (updateCount > monitor.getCommitBatchSize() || finished
+                            || (batchStart != -1 && System.nanoTime() - batchStart >= commitIntervalNanos)) {
+                        commit();
+                    }
+                }
             }
             catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -145,5 +258,36 @@ public class ConcurrentQueryLoader implements Closeable {
                 shutdownLatch.countDown();
             }
         }
+
+        // Returns null if the query could not be parsed, recording any fatal error from its parser
+        private List<Indexable> getIndexables(Slot slot) throws InterruptedException {
+            try {
+                return slot.indexables.get();
+            }
+            catch (ExecutionException e) {
+                if (error == null)
+                    error = e.getCause();
+                return null;
+            }
+        }
+
+        // After an error, queries are discarded so that add() is not blocked
+        private void commit() {
+            if (updates.isEmpty() == false && error == null) {
+                List<Indexable> indexables = new ArrayList<>(updateCount);
+                for (List<Indexable> query : updates.values()) {
+                    indexables.addAll(query);
+                }
+                try {
+                    monitor.commit(indexables);
+                }
+                catch (Throwable t) {
+                    error = t;
+                }
+            }
+            updates.clear();
+            updateCount = 0;
+            batchStart = -1;
+        }
     }
 }
@@ -19,7 +19,12 @@ package uk.co.flax.luwak;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.memory.MemoryIndex;
 import org.apache.lucene.search.IndexSearcher;
@@ -33,7 +38,17 @@ import org.apache.lucene.util.IOUtils;
  * A collection of InputDocuments to be matched.
  *
  * A batch containing a single InputDocument uses a lucene MemoryIndex for indexing,
- * otherwise a RAMDirectory is used to hold the documents.
+ * otherwise the documents are held in a {@link MultiMemoryIndex}.  Batches containing
+ * documents with doc values or points are indexed into a RAMDirectory instead.
+ *
+ * Analysis of large batches can be spread over several threads by giving the Builder an
+ * executor with {@link Builder#setAnalysisExecutor(ExecutorService)}.  Each indexed field
+ * value is then analyzed as a separate task into a buffer of tokens, and the buffers are
+ * indexed into a MultiMemoryIndex on the calling thread.
+ *
+ * Callers matching a stream of single documents can use {@link #reusable(InputDocument)},
+ * which resets and reuses a MemoryIndex held by the calling thread rather than creating
+ * a new one for each document.
  *
  * To build a batch, either use one of the static factory methods, or a Builder object:
  * <pre>
@@ -53,6 +68,17 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
     /** A list of {@link InputDocument} objects to match */
     protected final List<InputDocument> documents = new ArrayList<>();
 
+    private long buildTime = -1;
+
+    private volatile IndexSearcher searcher;
+
+    private static final ThreadLocal<ReusableDocumentBatch> reusableBatches = new ThreadLocal<ReusableDocumentBatch>() {
+        @Override
+        protected ReusableDocumentBatch initialValue() {
+            return new ReusableDocumentBatch();
+        }
+    };
+
     /**
      * Create a DocumentBatch containing a single InputDocument
      */
@@ -60,6 +86,32 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         return new DocumentBatch.Builder().add(doc).build();
     }
 
+    /**
+     * Create a DocumentBatch containing a single InputDocument, reusing the calling thread's
+     * MemoryIndex, IndexSearcher and token streams
+     *
+     * The batch must be closed once matching is finished, and must not be used after that,
+     * as its index will be reset for the next document matched on the same thread.  If the
+     * thread's batch is still in use, a new batch is created as by {@link #of(InputDocument)}.
+     *
+     * Batches are scored using a {@link BM25Similarity}.
+     */
+    public static DocumentBatch reusable(InputDocument doc) throws IOException {
+        ReusableDocumentBatch batch = reusableBatches.get();
+        if (batch.acquire() == false)
+            return of(doc);
+        long startTime = System.nanoTime();
+        try {
+            batch.index(doc);
+        }
+        catch (RuntimeException e) {
+            batch.close();
+            throw e;
+        }
+        ((DocumentBatch) batch).buildTime = System.nanoTime() - startTime;
+        return batch;
+    }
+
     /**
      * Create a DocumentBatch containing a set of InputDocuments
      */
@@ -81,6 +133,7 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
 
         private Similarity similarity = new BM25Similarity();
         private List<InputDocument> documents = new ArrayList<>();
+        private ExecutorService analysisExecutor = null;
 
         /** Add an InputDocument */
         public Builder add(InputDocument doc) {
@@ -100,13 +153,42 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
             return this;
         }
 
+        /**
+         * Analyze documents on an executor while building the batch
+         *
+         * The executor should not be one that builds batches itself, as the building
+         * thread waits for the analysis tasks to complete.  Batches that contain doc values
+         * or points are analyzed on the calling thread.
+         */
+        public Builder setAnalysisExecutor(ExecutorService executor) {
+            this.analysisExecutor = executor;
+            return this;
+        }
+
         /** Create the DocumentBatch */
         public DocumentBatch build() {
             if (documents.size() == 0)
                 throw new IllegalStateException("Cannot build DocumentBatch with zero documents");
-            if (documents.size() == 1)
-                return new SingletonDocumentBatch(documents, similarity);
-            return new MultiDocumentBatch(documents, similarity);
+            long startTime = System.nanoTime();
+            DocumentBatch batch;
+            if (analysisExecutor != null && canUseMemoryIndex(documents))
+                batch = new MultiDocumentBatch(documents, similarity, analysisExecutor);
+            else if (documents.size() == 1)
+                batch = new SingletonDocumentBatch(documents, similarity);
+            else if (canUseMemoryIndex(documents))
+                batch = new MultiDocumentBatch(documents, similarity, null);
+            else
+                batch = new RAMDirectoryDocumentBatch(documents, similarity);
+            batch.buildTime = System.nanoTime() - startTime;
+            return batch;
+        }
+
+        private static boolean canUseMemoryIndex(List<InputDocument> documents) {
+            for (InputDocument doc : documents) {
+                if (MultiMemoryIndex.canIndex(doc) == false)
+                    return false;
+            }
+            return true;
         }
 
     }
@@ -139,8 +221,13 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
      * @throws IOException on error
      */
     public IndexSearcher getSearcher() throws IOException {
-        IndexSearcher searcher = new IndexSearcher(getIndexReader());
-        searcher.setSimilarity(similarity);
+        // matchers ask for a searcher for every query they run, so it's only created once
+        IndexSearcher searcher = this.searcher;
+        if (searcher == null) {
+            searcher = new IndexSearcher(getIndexReader());
+            searcher.setSimilarity(similarity);
+            this.searcher = searcher;
+        }
         return searcher;
     }
 
@@ -156,17 +243,132 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         return documents.size();
     }
 
-    // Implementation of DocumentBatch for collections of documents
+    /**
+     * @return the time in nanoseconds taken to analyze and index the documents in the batch,
+     *         or -1 if the batch was not created by a {@link Builder} or by {@link #reusable(InputDocument)}
+     */
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    // Implementation of DocumentBatch for collections of documents - documents are inverted
+    // directly into a MultiMemoryIndex, so docids are assigned in insertion order.  If an
+    // executor is given, fields are analyzed on it and inverted from the buffered tokens.
     private static class MultiDocumentBatch extends DocumentBatch {
 
+        private final LeafReader reader;
+        private final String[] docIds;
+
+        MultiDocumentBatch(List<InputDocument> docs, Similarity similarity, ExecutorService executor) {
+            super(docs, similarity);
+            MultiMemoryIndex index = new MultiMemoryIndex(similarity);
+            docIds = new String[docs.size()];
+            List<List<Future<TokenBuffer>>> analyzed = executor == null ? null : analyze(docs, executor);
+            try {
+                for (int i = 0; i < docIds.length; i++) {
+                    InputDocument doc = docs.get(i);
+                    if (analyzed == null)
+                        index.addDocument(doc.getDocument(), doc.getAnalyzers());
+                    else
+                        index.addDocument(doc.getDocument(), doc.getAnalyzers(), collect(analyzed.get(i)).iterator());
+                    docIds[i] = doc.getId();
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);  // Analysis is done in memory, so should never happen...
+            }
+            finally {
+                if (analyzed != null) {
+                    // no-op for completed tasks, and stops the rest if indexing failed
+                    for (List<Future<TokenBuffer>> futures : analyzed) {
+                        for (Future<TokenBuffer> future : futures) {
+                            future.cancel(true);
+                        }
+                    }
+                }
+            }
+            reader = index.createReader();
+        }
+
+        private static List<List<Future<TokenBuffer>>> analyze(List<InputDocument> docs, ExecutorService executor) {
+            List<List<Future<TokenBuffer>>> analyzed = new ArrayList<>(docs.size());
+            for (InputDocument doc : docs) {
+                List<Future<TokenBuffer>> futures = new ArrayList<>();
+                for (Callable<TokenBuffer> task : MultiMemoryIndex.analysisTasks(doc.getDocument(), doc.getAnalyzers())) {
+                    futures.add(executor.submit(task));
+                }
+                analyzed.add(futures);
+            }
+            return analyzed;
+        }
+
+        private static List<TokenBuffer> collect(List<Future<TokenBuffer>> futures) throws IOException {
+            List<TokenBuffer> buffers = new ArrayList<>(futures.size());
+            try {
+                for (Future<TokenBuffer> future : futures) {
+                    buffers.add(future.get());
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while analyzing documents", e);
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+            return buffers;
+        }
+
+        @Override
+        public LeafReader getIndexReader() throws IOException {
+            return reader;
+        }
+
+        @Override
+        public String resolveDocId(int docId) {
+            return docIds[docId];
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+    }
+
+    // Analyzes each field with the analyzers of the document currently being indexed, as
+    // an IndexWriter only takes a single analyzer
+    private static class DocumentAnalyzer extends DelegatingAnalyzerWrapper {
+
+        InputDocument document;
+
+        DocumentAnalyzer() {
+            super(PER_FIELD_REUSE_STRATEGY);
+        }
+
+        @Override
+        protected Analyzer getWrappedAnalyzer(String fieldName) {
+            return document.getAnalyzers();
+        }
+    }
+
+    // Implementation of DocumentBatch for collections of documents that contain doc values
+    // or points, which cannot be held in a MultiMemoryIndex
+    private static class RAMDirectoryDocumentBatch extends DocumentBatch {
+
         private final Directory directory = new RAMDirectory();
+        private final DocumentAnalyzer analyzer = new DocumentAnalyzer();
         private LeafReader reader = null;
         private String[] docIds = null;
 
-        MultiDocumentBatch(List<InputDocument> docs, Similarity similarity) {
+        RAMDirectoryDocumentBatch(List<InputDocument> docs, Similarity similarity) {
             super(docs, similarity);
             assert docs.size() > 1;
-            IndexWriterConfig iwc = new IndexWriterConfig(docs.get(0).getAnalyzers()).setSimilarity(similarity);
+            IndexWriterConfig iwc = new IndexWriterConfig(analyzer).setSimilarity(similarity);
             try (IndexWriter writer = new IndexWriter(directory, iwc)) {
                 this.reader = build(writer);
             }
@@ -183,6 +385,7 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         private LeafReader build(IndexWriter writer) throws IOException {
 
             for (InputDocument doc : documents) {
+                analyzer.document = doc;
                 writer.addDocument(doc.getDocument());
             }
 
@@ -249,4 +452,75 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         }
     }
 
+    // A singleton batch held by a thread and reset for each document it is used for.  The
+    // MemoryIndex's reader reads the index's current contents, so the reader and searcher
+    // are created once and survive resets
+    private static class ReusableDocumentBatch extends DocumentBatch {
+
+        private static final long MAX_REUSED_BYTES = 1024 * 1024;
+
+        private final AtomicBoolean inUse = new AtomicBoolean(false);
+        // fromDocument() is the only public way to create a MemoryIndex that recycles its
+        // byte and int pools when it is reset
+        private final MemoryIndex memoryindex = MemoryIndex.fromDocument(Collections.<IndexableField>emptyList(),
+                null, true, true, MAX_REUSED_BYTES);
+        private final LeafReader reader;
+        private final IndexSearcher searcher;
+
+        private TokenStream keywordStream = null;
+
+        private ReusableDocumentBatch() {
+            super(Collections.<InputDocument>emptyList(), new BM25Similarity());
+            reader = (LeafReader) memoryindex.createSearcher().getIndexReader();
+            searcher = new IndexSearcher(reader);
+            searcher.setSimilarity(similarity);
+            // the reader's cache key doesn't change when the index is reset
+            searcher.setQueryCache(null);
+        }
+
+        boolean acquire() {
+            return inUse.compareAndSet(false, true);
+        }
+
+        void index(InputDocument doc) {
+            documents.clear();
+            documents.add(doc);
+            memoryindex.reset();
+            memoryindex.setSimilarity(similarity);
+            for (IndexableField field : doc.getDocument()) {
+                TokenStream ts = field.tokenStream(doc.getAnalyzers(), keywordStream);
+                // analyzers reuse their own token streams, but untokenized fields need
+                // to be passed the stream from the previous document
+                if (field.fieldType().tokenized() == false)
+                    keywordStream = ts;
+                memoryindex.addField(field.name(), ts);
+            }
+            memoryindex.freeze();
+        }
+
+        @Override
+        public LeafReader getIndexReader() throws IOException {
+            return reader;
+        }
+
+        @Override
+        public IndexSearcher getSearcher() throws IOException {
+            return searcher;
+        }
+
+        @Override
+        public String resolveDocId(int docId) {
+            assert docId == 0;
+            return documents.get(0).getId();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // don't keep the document and its indexed terms alive until the thread's next match
+            documents.clear();
+            memoryindex.reset();
+            inUse.set(false);
+        }
+    }
+
 }
@@ -19,6 +19,7 @@ package uk.co.flax.luwak;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Records matches from a match run for a specific {@link InputDocument} within a {@link DocumentBatch}
@@ -30,6 +31,8 @@ public class DocumentMatches<T extends QueryMatch> implements Iterable<T> {
 
     private final Collection<T> matches;
 
+    private final List<MatchError> errors;
+
     /** Create a DocumentMatches object recording no matches for a given document */
     public static <T extends QueryMatch> DocumentMatches<T> noMatches(String docId) {
         return new DocumentMatches<>(docId, Collections.<T>emptyList());
@@ -41,8 +44,19 @@ public class DocumentMatches<T extends QueryMatch> implements Iterable<T> {
      * @param matches a collection of QueryMatch objects
      */
     public DocumentMatches(String docId, Collection<T> matches) {
+        this(docId, matches, Collections.<MatchError>emptyList());
+    }
+
+    /**
+     * Create a DocumentMatches object for a specific document, with the errors from its match run
+     * @param docId the document id
+     * @param matches a collection of QueryMatch objects
+     * @param errors the MatchErrors created while matching the document's batch
+     */
+    public DocumentMatches(String docId, Collection<T> matches, List<MatchError> errors) {
         this.docId = docId;
         this.matches = matches;
+        this.errors = errors;
     }
 
     @Override
@@ -59,4 +73,13 @@ public class DocumentMatches<T extends QueryMatch> implements Iterable<T> {
     public Collection<T> getMatches() {
         return matches;
     }
+
+    /**
+     * Return any MatchErrors created while matching this document.  Errors are raised by
+     * queries rather than documents, so these are the errors for the whole batch that the
+     * document was matched in; a query that failed may have matched the document.
+     */
+    public List<MatchError> getErrors() {
+        return errors;
+    }
 }
@@ -0,0 +1,329 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.flax.luwak.util.CollectionUtils;
+
+/**
+ * Matches a stream of individual InputDocuments against a Monitor, grouping them
+ * into DocumentBatches behind the scenes.
+ *
+ * Batching documents improves matching throughput, at the cost of latency.  A MatchStream
+ * bounds that cost: a batch is matched as soon as it holds the maximum number of documents,
+ * or as soon as its first document has waited for the maximum wait time, whichever comes
+ * first.  Under light load documents are matched almost as they arrive, and under heavy
+ * load batches fill up before the wait time expires.
+ *
+ * Batches are formed and matched by a pool of matcher threads, each of which waits for a
+ * document, collects further documents into a batch and then matches it.  Submitting a
+ * document returns a future that is completed with the {@link DocumentMatches} for that
+ * document alone, once its batch has been run:
+ * <pre class="prettyprint">
+ *     try (MatchStream&lt;QueryMatch&gt; stream = monitor.stream(SimpleMatcher.FACTORY, 50, 10, TimeUnit.MILLISECONDS)) {
+ *         for (InputDocument doc : getDocuments()) {
+ *             stream.submit(doc).thenAccept(matches -&gt; handle(matches));
+ *         }
+ *     }
+ * </pre>
+ *
+ * Any {@link MatchError}s from the batch are reported with each document's matches.  Documents
+ * with the same id are never matched in the same batch, so submitters don't need to coordinate
+ * their ids.
+ *
+ * Rather than fixing the maximum batch size, a stream can be given a {@link BatchSizeController},
+ * which is told the service time of each batch and the latency of its documents, from submission
+ * to completion, and chooses the maximum batch size from them.
+ * Changes to the batch size are reported to {@link MonitorMetrics#batchSizeChanged(int)}.
+ *
+ * Futures are completed on the matcher threads, so callbacks should not block.
+ */
+public class MatchStream<T extends QueryMatch> implements Closeable {
+
+    private final Monitor monitor;
+    private final MatcherFactory<T> factory;
+    private final int maxBatchSize;
+    private final BatchSizeController controller;
+    private final long maxWaitNanos;
+    private final ExecutorService executor;
+    private final CountDownLatch shutdownLatch;
+    private final BlockingQueue<Pending<T>> queue;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong documentCount = new AtomicLong();
+
+    private volatile boolean shutdown = false;
+
+    private static final long SHUTDOWN_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    public static final long DEFAULT_MAX_WAIT_MS = 10;
+
+    public static final int DEFAULT_QUEUE_SIZE = 2000;
+
+    /**
+     * Create a new MatchStream with a single matcher thread and the default batch size and wait time
+     * @param monitor the Monitor to match documents against
+     * @param factory a {@link MatcherFactory} to use to match each batch
+     */
+    public MatchStream(Monitor monitor, MatcherFactory<T> factory) {
+        this(monitor, factory, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a new MatchStream with a single matcher thread
+     * @param monitor the Monitor to match documents against
+     * @param factory a {@link MatcherFactory} to use to match each batch
+     * @param maxBatchSize the maximum number of documents in a batch
+     * @param maxWait the maximum time a document should wait for its batch to fill up
+     * @param unit the units of the wait time
+     */
+    public MatchStream(Monitor monitor, MatcherFactory<T> factory, int maxBatchSize, long maxWait, TimeUnit unit) {
+        this(monitor, factory, maxBatchSize, maxWait, unit, 1, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Create a new MatchStream
+     * @param monitor the Monitor to match documents against
+     * @param factory a {@link MatcherFactory} to use to match each batch
+     * @param maxBatchSize the maximum number of documents in a batch
+     * @param maxWait the maximum time a document should wait for its batch to fill up
+     * @param unit the units of the wait time
+     * @param threads the number of threads to form and match batches on
+     * @param queueSize the number of submitted documents to hold before submit() blocks
+     */
+    public MatchStream(Monitor monitor, MatcherFactory<T> factory, int maxBatchSize, long maxWait, TimeUnit unit,
+                       int threads, int queueSize) {
+        this(monitor, factory, maxBatchSize, null, maxWait, unit, threads, queueSize);
+    }
+
+    /**
+     * Create a new MatchStream with batch sizes chosen by a {@link BatchSizeController}
+     * @param monitor the Monitor to match documents against
+     * @param factory a {@link MatcherFactory} to use to match each batch
+     * @param controller the BatchSizeController to choose the maximum number of documents in a batch
+     * @param maxWait the maximum time a document should wait for its batch to fill up
+     * @param unit the units of the wait time
+     * @param threads the number of threads to form and match batches on
+     * @param queueSize the number of submitted documents to hold before submit() blocks
+     */
+    public MatchStream(Monitor monitor, MatcherFactory<T> factory, BatchSizeController controller,
+                       long maxWait, TimeUnit unit, int threads, int queueSize) {
+        this(monitor, factory, 0, controller, maxWait, unit, threads, queueSize);
+    }
+
+    private MatchStream(Monitor monitor, MatcherFactory<T> factory, int maxBatchSize, BatchSizeController controller,
+                        long maxWait, TimeUnit unit, int threads, int queueSize) {
+        if (controller == null && maxBatchSize < 1)
+            throw new IllegalArgumentException("Maximum batch size must be at least 1");
+        this.monitor = monitor;
+        this.factory = factory;
+        this.maxBatchSize = maxBatchSize;
+        this.controller = controller;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.shutdownLatch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            this.executor.submit(new Batcher());
+        }
+    }
+
+    /**
+     * Submit a document to be matched
+     *
+     * If the stream's buffer is full, this will block until there is room to add the document
+     *
+     * @param doc the document to match
+     * @return a future holding the {@link DocumentMatches} for the document
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public CompletableFuture<DocumentMatches<T>> submit(InputDocument doc) throws InterruptedException {
+        if (shutdown)
+            throw new IllegalStateException("MatchStream has been closed, cannot submit new documents");
+        Pending<T> pending = new Pending<>(doc);
+        queue.put(pending);
+        // if close() drained the queue while we were blocked, nothing will take the document
+        if (shutdown && queue.remove(pending))
+            throw new IllegalStateException("MatchStream has been closed, cannot submit new documents");
+        return pending.future;
+    }
+
+    /**
+     * @return the number of batches matched so far
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return the number of documents matched so far
+     */
+    public long getDocumentCount() {
+        return documentCount.get();
+    }
+
+    /**
+     * Stop accepting documents, and wait for all documents already submitted to be matched
+     */
+    @Override
+    public void close() throws IOException {
+        this.shutdown = true;
+        this.executor.shutdown();
+        try {
+            this.shutdownLatch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // documents that raced with close() after the matcher threads finished
+        List<Pending<T>> unmatched = new ArrayList<>();
+        queue.drainTo(unmatched);
+        for (Pending<T> pending : unmatched) {
+            pending.future.completeExceptionally(new IllegalStateException("MatchStream was closed before document was matched"));
+        }
+    }
+
+    private static class Pending<T extends QueryMatch> {
+
+        final InputDocument doc;
+        final long submitted = System.nanoTime();
+        final CompletableFuture<DocumentMatches<T>> future = new CompletableFuture<>();
+
+        Pending(InputDocument doc) {
+            this.doc = doc;
+        }
+    }
+
+    // Collects documents from the queue into batches, and matches them
+    private class Batcher implements Runnable {
+
+        final List<Pending<T>> batch = new ArrayList<>();
+        final List<Pending<T>> duplicates = new ArrayList<>();
+        final List<InputDocument> docs = new ArrayList<>();
+        final Set<String> ids = new HashSet<>();
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Pending<T> first = queue.poll(SHUTDOWN_CHECK_NANOS, TimeUnit.NANOSECONDS);
+                    if (first == null) {
+                        if (shutdown)
+                            return;
+                        continue;
+                    }
+                    int batchSize = controller == null ? maxBatchSize : controller.getBatchSize();
+                    batch.clear();
+                    batch.add(first);
+                    long deadline = first.submitted + maxWaitNanos;
+                    long remaining = deadline - System.nanoTime();
+                    // wait in slices, so that once closed we don't wait for documents that won't arrive
+                    while (batch.size() < batchSize && remaining > 0 && shutdown == false) {
+                        CollectionUtils.drain(queue, batch, batchSize - batch.size(),
+                                Math.min(remaining, SHUTDOWN_CHECK_NANOS), TimeUnit.NANOSECONDS);
+                        remaining = deadline - System.nanoTime();
+                    }
+                    queue.drainTo(batch, batchSize - batch.size());
+                    matchAll();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                // fail anything left behind if the thread was interrupted
+                batch.addAll(duplicates);
+                for (Pending<T> pending : batch) {
+                    pending.future.completeExceptionally(new CancellationException("MatchStream was interrupted"));
+                }
+                shutdownLatch.countDown();
+            }
+        }
+
+        // documents sharing an id can't be told apart in a batch's Matches, so match
+        // any repeated ids in a further batch
+        private void matchAll() {
+            while (batch.isEmpty() == false) {
+                ids.clear();
+                for (int i = 0; i < batch.size(); i++) {
+                    Pending<T> pending = batch.get(i);
+                    if (ids.add(pending.doc.getId()) == false) {
+                        duplicates.add(pending);
+                        batch.remove(i--);
+                    }
+                }
+                match();
+                batch.addAll(duplicates);
+                duplicates.clear();
+            }
+        }
+
+        private void match() {
+            long start = System.nanoTime();
+            docs.clear();
+            for (Pending<T> pending : batch) {
+                docs.add(pending.doc);
+            }
+            try {
+                Matches<T> matches;
+                try (DocumentBatch documents = docs.size() == 1
+                        ? DocumentBatch.reusable(docs.get(0)) : DocumentBatch.of(docs)) {
+                    matches = monitor.match(documents, factory);
+                }
+                if (controller != null) {
+                    long end = System.nanoTime();
+                    long submitted = end;
+                    for (Pending<T> pending : batch) {
+                        submitted = Math.min(submitted, pending.submitted);
+                    }
+                    if (controller.batchCompleted(batch.size(), end - start, end - submitted))
+                        monitor.getMetrics().batchSizeChanged(controller.getBatchSize());
+                }
+                batchCount.incrementAndGet();
+                documentCount.addAndGet(batch.size());
+                for (Pending<T> pending : batch) {
+                    String id = pending.doc.getId();
+                    DocumentMatches<T> docMatches = matches.getMatches(id);
+                    pending.future.complete(new DocumentMatches<>(id,
+                            docMatches == null ? Collections.<T>emptyList() : docMatches.getMatches(),
+                            matches.getErrors()));
+                }
+            }
+            catch (Throwable t) {
+                // fail this batch only, so that the thread survives to match later batches
+                for (Pending<T> pending : batch) {
+                    pending.future.completeExceptionally(t);
+                }
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+}
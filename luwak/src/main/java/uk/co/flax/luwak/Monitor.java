@@ -2,9 +2,13 @@ package uk.co.flax.luwak;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.*;
@@ -15,9 +19,14 @@ import uk.co.flax.luwak.util.RewriteException;
 import uk.co.flax.luwak.util.SpanExtractor;
 import uk.co.flax.luwak.util.SpanRewriter;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
 import uk.co.flax.luwak.presearcher.PresearcherMatches;
 import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
 
@@ -41,13 +50,16 @@ import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
  * A Monitor contains a set of MonitorQuery objects, and runs them against
  * passed-in InputDocuments.
  */
-public class Monitor implements Closeable {
+public class Monitor implements Closeable, Accountable {
 
     protected final MonitorQueryParser queryParser;
     protected final Presearcher presearcher;
     protected final QueryDecomposer decomposer;
 
-    private final QueryIndex queryIndex;
+    private final List<QueryIndex> shards = new ArrayList<>();
+
+    /* Used to search shards concurrently, null if there is only one shard */
+    private final ExecutorService shardExecutor;
 
     private final List<QueryIndexUpdateListener> listeners = new ArrayList<>();
 
@@ -55,6 +67,8 @@ public class Monitor implements Closeable {
 
     private final long commitBatchSize;
     private final boolean storeQueries;
+    private final boolean useUpdateLog;
+    private final boolean useQueryCacheSnapshot;
 
     public static final class FIELDS {
         public static final String id = "_id";
@@ -65,31 +79,64 @@ public class Monitor implements Closeable {
 
     private final ScheduledExecutorService purgeExecutor;
 
+    private final MonitorMetrics metrics;
+
+    private volatile TrafficCapture capture = TrafficCapture.NOOP;
+
+    /* Limit the number of incomplete asynchronous calls, null if there is no limit */
+    private final Semaphore matchPermits;
+    private final Semaphore updatePermits;
+
     private long lastPurged = -1;
 
     /**
-     * Create a new Monitor instance, using a passed in IndexWriter for its queryindex
+     * Create a new Monitor instance, using a passed in IndexWriter for each shard of its queryindex
      *
-     * Note that when the Monitor is closed, both the IndexWriter and its underlying
-     * Directory will also be closed.
+     * Note that when the Monitor is closed, the IndexWriters and their underlying
+     * Directories will also be closed.
      *
      * @param queryParser the query parser to use
      * @param presearcher the presearcher to use
-     * @param indexWriter an indexWriter for the query index
+     * @param indexWriters one indexWriter for each shard of the query index
      * @param configuration the MonitorConfiguration
      * @throws IOException on IO errors
+     * @throws IllegalArgumentException if the number of IndexWriters does not match the configured shard count,
+     *                                  if an update log, cache snapshot or bounded query cache is configured
+     *                                  without storing queries, or if an update log is configured for a
+     *                                  queryindex that is not in an FSDirectory.  The IndexWriters are
+     *                                  closed before the exception is thrown.
      */
     public Monitor(MonitorQueryParser queryParser, Presearcher presearcher,
-                   IndexWriter indexWriter, QueryIndexConfiguration configuration) throws IOException {
+                   List<IndexWriter> indexWriters, QueryIndexConfiguration configuration) throws IOException {
 
         this.queryParser = queryParser;
         this.presearcher = presearcher;
         this.decomposer = configuration.getQueryDecomposer();
-        
-        this.queryIndex = new QueryIndex(indexWriter);
+
+        try {
+            checkConfiguration(indexWriters, configuration);
+        }
+        catch (IllegalArgumentException e) {
+            // the Monitor owns its IndexWriters, so release their write locks before failing
+            IOUtils.closeWhileHandlingException(indexWriters);
+            throw e;
+        }
+        QueryIndex.QueryLoader queryLoader = new QueryIndex.QueryLoader() {
+            @Override
+            public Iterable<QueryCacheEntry> load(MonitorQuery mq) throws Exception {
+                return decomposeQuery(mq);
+            }
+        };
+        for (int i = 0; i < indexWriters.size(); i++) {
+            this.shards.add(new QueryIndex(indexWriters.get(i), configuration, queryLoader, i));
+        }
+        this.shardExecutor = shards.size() == 1 ? null : Executors.newFixedThreadPool(shards.size() - 1);
+        this.listeners.addAll(configuration.getQueryIndexUpdateListeners());
 
         this.storeQueries = configuration.storeQueries();
-        prepareQueryCache(this.storeQueries);
+        this.useUpdateLog = configuration.useUpdateLog();
+        this.useQueryCacheSnapshot = configuration.useQueryCacheSnapshot();
+        prepareQueryCache(this.storeQueries, configuration.getWarmupExecutor());
 
         long purgeFrequency = configuration.getPurgeFrequency();
         this.purgeExecutor = Executors.newSingleThreadScheduledExecutor();
@@ -105,7 +152,63 @@ public class Monitor implements Closeable {
             }
         }, purgeFrequency, purgeFrequency, configuration.getPurgeFrequencyUnits());
 
+        if (useUpdateLog) {
+            long commitFrequency = configuration.getCommitFrequency();
+            this.purgeExecutor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    }
+                    catch (Throwable e) {
+                        afterFlushError(e);
+                    }
+                }
+            }, commitFrequency, commitFrequency, configuration.getCommitFrequencyUnits());
+        }
+
         this.commitBatchSize = configuration.getQueryUpdateBufferSize();
+        this.metrics = configuration.getMetrics();
+        this.matchPermits = configuration.getMaxInFlightMatches() < 0
+                ? null : new Semaphore(configuration.getMaxInFlightMatches());
+        this.updatePermits = configuration.getMaxInFlightUpdates() < 0
+                ? null : new Semaphore(configuration.getMaxInFlightUpdates());
+    }
+
+    private static void checkConfiguration(List<IndexWriter> indexWriters, QueryIndexConfiguration configuration) {
+        if (indexWriters.size() != configuration.getShardCount())
+            throw new IllegalArgumentException("Configuration specifies " + configuration.getShardCount()
+                    + " shards, but " + indexWriters.size() + " IndexWriters were supplied");
+        if (configuration.useUpdateLog() && configuration.storeQueries() == false)
+            throw new IllegalArgumentException("An update log can only be used if queries are stored");
+        if (configuration.useUpdateLog()) {
+            for (IndexWriter indexWriter : indexWriters) {
+                if (FilterDirectory.unwrap(indexWriter.getDirectory()) instanceof FSDirectory == false)
+                    throw new IllegalArgumentException("An update log requires a queryindex in an FSDirectory");
+            }
+        }
+        if (configuration.useQueryCacheSnapshot() && configuration.storeQueries() == false)
+            throw new IllegalArgumentException("A query cache snapshot can only be used if queries are stored");
+        if ((configuration.getMaxCachedQueries() >= 0 || configuration.getMaxQueryCacheBytes() >= 0)
+                && configuration.storeQueries() == false)
+            throw new IllegalArgumentException("A bounded query cache can only be used if queries are stored");
+    }
+
+    /**
+     * Create a new Monitor instance, using a passed in IndexWriter for its queryindex
+     *
+     * Note that when the Monitor is closed, both the IndexWriter and its underlying
+     * Directory will also be closed.
+     *
+     * @param queryParser the query parser to use
+     * @param presearcher the presearcher to use
+     * @param indexWriter an indexWriter for the query index
+     * @param configuration the MonitorConfiguration
+     * @throws IOException on IO errors
+     */
+    public Monitor(MonitorQueryParser queryParser, Presearcher presearcher,
+                   IndexWriter indexWriter, QueryIndexConfiguration configuration) throws IOException {
+        this(queryParser, presearcher, Collections.singletonList(indexWriter), configuration);
     }
 
     /**
@@ -115,18 +218,18 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public Monitor(MonitorQueryParser queryParser, Presearcher presearcher) throws IOException {
-        this(queryParser, presearcher, defaultIndexWriter(new RAMDirectory()), new QueryIndexConfiguration());
+        this(queryParser, presearcher, new QueryIndexConfiguration());
     }
 
     /**
-     * Create a new Monitor instance using a RAMDirectory
+     * Create a new Monitor instance using a RAMDirectory for each shard
      * @param queryParser the query parser to use
      * @param presearcher the presearcher to use
      * @param config the monitor configuration
      * @throws IOException on IO errors
      */
     public Monitor(MonitorQueryParser queryParser, Presearcher presearcher, QueryIndexConfiguration config) throws IOException {
-        this(queryParser, presearcher, defaultIndexWriter(new RAMDirectory()), config);
+        this(queryParser, presearcher, defaultIndexWriters(config.getShardCount()), config);
     }
 
     /**
@@ -176,6 +279,25 @@ public class Monitor implements Closeable {
 
     }
 
+    private static List<IndexWriter> defaultIndexWriters(int shardCount) throws IOException {
+        List<IndexWriter> writers = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            writers.add(defaultIndexWriter(new RAMDirectory()));
+        }
+        return writers;
+    }
+
+    // Queries are assigned to shards by the hash of their id
+    int shardIndexFor(String queryId) {
+        return (queryId.hashCode() & Integer.MAX_VALUE) % shards.size();
+    }
+
+    private QueryIndex shardFor(String queryId) {
+        if (shards.size() == 1)
+            return shards.get(0);
+        return shards.get(shardIndexFor(queryId));
+    }
+
     /**
      * Register a {@link QueryIndexUpdateListener} that will be notified whenever changes
      * are made to the Monitor's queryindex
@@ -185,10 +307,77 @@ public class Monitor implements Closeable {
     }
 
     /**
+     * Statistics for the internal query index and cache
+     *
+     * Memory estimates are kept for each queryindex segment as it is opened, purged or
+     * merged away, so reading them only sums the per-segment totals.  Entries for deleted
+     * queries are counted until the cache is purged or their segment is merged.  The number
+     * of cached queries is counted by scanning each segment's cache, which takes time
+     * proportional to the number of queries, so this should not be called on every match run.
+     *
      * @return Statistics for the internal query index and cache
      */
     public QueryCacheStats getQueryCacheStats() {
-        return new QueryCacheStats(queryIndex.numDocs(), queryIndex.cacheSize(), lastPurged);
+        int queries = 0;
+        int cachedQueries = 0;
+        long hits = 0, misses = 0, evictions = 0;
+        long queryCacheBytes = 0, termFilterBytes = 0, queryIndexBytes = 0;
+        for (QueryIndex shard : shards) {
+            queries += shard.numDocs();
+            cachedQueries += shard.cacheSize();
+            hits += shard.cacheHits();
+            misses += shard.cacheMisses();
+            evictions += shard.cacheEvictions();
+            queryCacheBytes += shard.queryCacheRamBytesUsed();
+            termFilterBytes += shard.termFilterRamBytesUsed();
+            queryIndexBytes += shard.queryIndexRamBytesUsed();
+        }
+        return new QueryCacheStats(queries, cachedQueries, lastPurged, hits, misses, evictions,
+                queryCacheBytes, termFilterBytes, queryIndexBytes);
+    }
+
+    /**
+     * Errors from re-parsing queries that had been evicted from a bounded query cache
+     *
+     * Queries are parsed when they are added, so this will only contain errors if the
+     * query parser has changed since.  Queries that fail to parse are skipped during matching.
+     *
+     * @return a list of errors for queries that could not be reloaded into the query cache
+     */
+    public List<QueryError> getQueryLoadErrors() {
+        List<QueryError> errors = new ArrayList<>();
+        for (QueryIndex shard : shards) {
+            errors.addAll(shard.getLoadErrors());
+        }
+        return errors;
+    }
+
+    /**
+     * An estimate of the memory used by the Monitor's query cache, presearcher term
+     * filters and RAM-resident queryindex data
+     *
+     * The size of parsed queries is estimated from their structure; see
+     * {@link QueryCacheEntry#ramBytesUsed()}.  Use {@link #getChildResources()} or
+     * {@link #getQueryCacheStats()} for a breakdown by component.
+     */
+    @Override
+    public long ramBytesUsed() {
+        long size = 0;
+        for (QueryIndex shard : shards) {
+            size += shard.ramBytesUsed();
+        }
+        return size;
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        if (shards.size() == 1)
+            return shards.get(0).getChildResources();
+        List<Accountable> resources = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            resources.add(Accountables.namedAccountable("shard " + i, shards.get(i)));
+        }
+        return Collections.unmodifiableList(resources);
     }
 
     /**
@@ -205,14 +394,53 @@ public class Monitor implements Closeable {
         /** Time the query cache was last purged */
         public final long lastPurged;
 
+        /** Number of presearcher hits found in a bounded query cache */
+        public final long cacheHits;
+
+        /** Number of presearcher hits that had to be parsed for a bounded query cache */
+        public final long cacheMisses;
+
+        /** Number of entries evicted from a bounded query cache */
+        public final long cacheEvictions;
+
+        /** Estimated memory used by the query cache and decoded query ids, in bytes */
+        public final long queryCacheRamBytesUsed;
+
+        /** Estimated memory used by the presearcher's QueryTermFilters and their term sets, in bytes */
+        public final long termFilterRamBytesUsed;
+
+        /** Memory used by buffered queryindex documents and RAM-resident queryindex files, in bytes */
+        public final long queryIndexRamBytesUsed;
+
+        /** Total estimated memory used by the Monitor, in bytes */
+        public final long ramBytesUsed;
+
         public QueryCacheStats(int queries, int cachedQueries, long lastPurged) {
+            this(queries, cachedQueries, lastPurged, 0, 0, 0);
+        }
+
+        public QueryCacheStats(int queries, int cachedQueries, long lastPurged,
+                               long cacheHits, long cacheMisses, long cacheEvictions) {
+            this(queries, cachedQueries, lastPurged, cacheHits, cacheMisses, cacheEvictions, 0, 0, 0);
+        }
+
+        public QueryCacheStats(int queries, int cachedQueries, long lastPurged,
+                               long cacheHits, long cacheMisses, long cacheEvictions,
+                               long queryCacheRamBytesUsed, long termFilterRamBytesUsed, long queryIndexRamBytesUsed) {
             this.queries = queries;
             this.cachedQueries = cachedQueries;
             this.lastPurged = lastPurged;
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
+            this.cacheEvictions = cacheEvictions;
+            this.queryCacheRamBytesUsed = queryCacheRamBytesUsed;
+            this.termFilterRamBytesUsed = termFilterRamBytesUsed;
+            this.queryIndexRamBytesUsed = queryIndexRamBytesUsed;
+            this.ramBytesUsed = queryCacheRamBytesUsed + termFilterRamBytesUsed + queryIndexRamBytesUsed;
         }
     }
 
-    private void prepareQueryCache(boolean storeQueries) throws IOException {
+    private void prepareQueryCache(boolean storeQueries, ExecutorService warmupExecutor) throws IOException {
 
         if (storeQueries == false) {
             // we're not storing the queries, so ensure that the queryindex is empty
@@ -223,47 +451,62 @@ public class Monitor implements Closeable {
 
         // load any queries that have already been added to the queryindex
         final List<Exception> parseErrors = new LinkedList<>();
-        final Set<BytesRef> seenHashes = new HashSet<>();
-        final Set<String> seenIds = new HashSet<>();
+        long startTime = System.nanoTime();
+        long docs = 0;
+        for (QueryIndex queryIndex : shards) {
+            docs += queryIndex.maxDoc();
+        }
+        final long totalDocs = docs;
+        final AtomicLong processedDocs = new AtomicLong();
+        for (QueryIndex queryIndex : shards) {
+            parseErrors.addAll(queryIndex.populateCache(new QueryIndex.CacheLoader() {
+                @Override
+                public Iterable<QueryCacheEntry> load(MonitorQuery mq) throws Exception {
+                    return decomposeQuery(mq);
+                }
 
-        queryIndex.purgeCache(new QueryIndex.CachePopulator() {
-            @Override
-            public void populateCacheWithIndex(final Map<BytesRef, QueryCacheEntry> newCache) throws IOException {
-                queryIndex.scan(new QueryIndex.QueryCollector() {
-                    @Override
-                    public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
-                        if (seenIds.contains(id)) {
-                            return;
-                        }
-                        seenIds.add(id);
-
-                        BytesRef serializedMQ = dataValues.mq.get(dataValues.doc);
-                        MonitorQuery mq = MonitorQuery.deserialize(serializedMQ);
-
-                        BytesRef hash = mq.hash();
-                        if (seenHashes.contains(hash)) {
-                            return;
-                        }
-                        seenHashes.add(hash);
-
-                        try {
-                            for (QueryCacheEntry ce : decomposeQuery(mq)) {
-                                newCache.put(ce.hash, ce);
-                            }
-                        } catch (Exception e) {
-                            parseErrors.add(e);
-                        }
-                    }
-                });
-            }
-        });
+                @Override
+                public void rangeLoaded(int docs) {
+                    warmupProgress(processedDocs.addAndGet(docs), totalDocs);
+                }
+            }, warmupExecutor));
+        }
         if (parseErrors.size() != 0)
             throw new IOException("Error populating cache - some queries couldn't be parsed:" + parseErrors);
+        afterWarmup(System.nanoTime() - startTime);
+
+        // apply any changes that were logged but not committed before the queryindex was closed
+        for (QueryIndex queryIndex : shards) {
+            parseErrors.addAll(queryIndex.replayUpdateLog(new QueryIndex.IndexableBuilder() {
+                @Override
+                public List<Indexable> build(MonitorQuery mq) throws Exception {
+                    return buildIndexables(mq);
+                }
+            }));
+        }
+        if (parseErrors.size() != 0)
+            throw new IOException("Error replaying update log - some queries couldn't be parsed:" + parseErrors);
     }
 
-    private void commit(List<Indexable> updates) throws IOException {
+    void commit(List<Indexable> updates) throws IOException {
         beforeCommit(updates);
-        queryIndex.commit(updates);
+        long startTime = System.nanoTime();
+        if (shards.size() == 1) {
+            shards.get(0).commit(updates);
+        }
+        else {
+            Map<QueryIndex, List<Indexable>> shardUpdates = new HashMap<>();
+            for (Indexable update : updates) {
+                QueryIndex shard = shardFor(update.id);
+                if (shardUpdates.containsKey(shard) == false)
+                    shardUpdates.put(shard, new ArrayList<Indexable>());
+                shardUpdates.get(shard).add(update);
+            }
+            for (Map.Entry<QueryIndex, List<Indexable>> entry : shardUpdates.entrySet()) {
+                entry.getKey().commit(entry.getValue());
+            }
+        }
+        metrics.committed(updates.size(), System.nanoTime() - startTime);
         afterCommit(updates);
     }
 
@@ -279,6 +522,34 @@ public class Monitor implements Closeable {
         }
     }
 
+    private void warmupProgress(long processed, long total) {
+        for (QueryIndexUpdateListener listener : listeners) {
+            listener.onWarmupProgress(processed, total);
+        }
+    }
+
+    private void afterWarmup(long timeInNanos) {
+        int cachedQueries = 0;
+        for (QueryIndex shard : shards) {
+            cachedQueries += shard.cacheSize();
+        }
+        for (QueryIndexUpdateListener listener : listeners) {
+            listener.afterWarmup(cachedQueries, timeInNanos);
+        }
+    }
+
+    private void afterFlush() {
+        for (QueryIndexUpdateListener listener : listeners) {
+            listener.afterFlush();
+        }
+    }
+
+    private void afterFlushError(Throwable t) {
+        for (QueryIndexUpdateListener listener : listeners) {
+            listener.onFlushError(t);
+        }
+    }
+
     private void beforeCommit(List<Indexable> updates) {
         if (updates == null) {
             for (QueryIndexUpdateListener listener : listeners) {
@@ -306,30 +577,50 @@ public class Monitor implements Closeable {
     }
     
     /**
-     * Remove unused queries from the query cache.
+     * Remove cache entries for deleted queries from the query cache.
      *
-     * This is normally called from a background thread at a rate set by configurePurgeFrequency().
+     * This is normally called from a background thread at a rate set by
+     * {@link QueryIndexConfiguration#setPurgeFrequency(long, TimeUnit)}.  Cache entries for
+     * segments that have been merged away are released automatically, so a purge only needs
+     * to clear entries for deleted queries that remain in live segments.
      *
      * @throws IOException on IO errors
      */
     public void purgeCache() throws IOException {
-        queryIndex.purgeCache(new QueryIndex.CachePopulator() {
-            @Override
-            public void populateCacheWithIndex(final Map<BytesRef, QueryCacheEntry> newCache) throws IOException {
-                queryIndex.scan(new QueryIndex.QueryCollector() {
-                    @Override
-                    public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
-                        if (query != null)
-                            newCache.put(BytesRef.deepCopyOf(query.hash), query);
-                    }
-                });
-            }
-        });
-        
+        long startTime = System.nanoTime();
+        for (QueryIndex shard : shards) {
+            shard.purgeCache();
+        }
         lastPurged = System.nanoTime();
+        if (metrics != MonitorMetrics.NOOP) {
+            // counting the cache entries means scanning the whole cache, so avoid it if we can
+            int cachedQueries = 0;
+            for (QueryIndex shard : shards) {
+                cachedQueries += shard.cacheSize();
+            }
+            metrics.cachePurged(cachedQueries, lastPurged - startTime);
+        }
         afterPurge();
     }
 
+    /**
+     * Commit any changes held in the update log to the queryindex
+     *
+     * This is normally called from a background thread at a rate set by
+     * {@link QueryIndexConfiguration#setCommitFrequency(long, TimeUnit)}, and has no effect
+     * if the Monitor is not using an update log.
+     *
+     * @throws IOException on IO errors
+     */
+    public void flush() throws IOException {
+        if (useUpdateLog == false)
+            return;
+        for (QueryIndex shard : shards) {
+            shard.flush();
+        }
+        afterFlush();
+    }
+
     /**
      * Set the slow log limit
      *
@@ -347,7 +638,21 @@ public class Monitor implements Closeable {
     @Override
     public void close() throws IOException {
         purgeExecutor.shutdown();
-        queryIndex.closeWhileHandlingException();
+        if (shardExecutor != null)
+            shardExecutor.shutdown();
+        try {
+            flush();
+            if (useQueryCacheSnapshot) {
+                for (QueryIndex shard : shards) {
+                    shard.writeCacheSnapshot();
+                }
+            }
+        }
+        finally {
+            for (QueryIndex shard : shards) {
+                shard.closeWhileHandlingException();
+            }
+        }
     }
 
     /**
@@ -361,24 +666,150 @@ public class Monitor implements Closeable {
         List<QueryError> errors = new ArrayList<>();
         List<Indexable> updates = new ArrayList<>();
 
+        TrafficCapture capture = this.capture;
+        List<MonitorQuery> captured = new ArrayList<>();
+
         for (MonitorQuery query : queries) {
+            if (capture != TrafficCapture.NOOP)
+                captured.add(query);
             try {
-                for (QueryCacheEntry queryCacheEntry : decomposeQuery(query)) {
-                    updates.add(new Indexable(query.getId(), queryCacheEntry, buildIndexableQuery(query.getId(), query, queryCacheEntry)));
-                }
+                updates.addAll(buildIndexables(query));
             } catch (Exception e) {
                 errors.add(new QueryError(query.getId(), query.getQuery(), e.getMessage()));
             }
             if (updates.size() > commitBatchSize) {
+                captured = capture(capture, captured);
                 commit(updates);
                 updates.clear();
             }
         }
 
+        capture(capture, captured);
         commit(updates);
         return errors;
     }
 
+    // passes a batch of updated queries to a TrafficCapture, returning a list for the next batch
+    private static List<MonitorQuery> capture(TrafficCapture capture, List<MonitorQuery> queries) {
+        if (queries.isEmpty())
+            return queries;
+        capture.queriesUpdated(queries);
+        return new ArrayList<>();
+    }
+
+    /**
+     * Capture the queries and documents subsequently passed to this Monitor
+     *
+     * Queries added by {@link #update(Iterable)}, {@link #bulkLoad(Iterable, int)} and
+     * {@link ConcurrentQueryLoader}, deleted queries, and matched documents are all passed to
+     * the TrafficCapture.
+     *
+     * @param capture the TrafficCapture to use, or {@link TrafficCapture#NOOP} to stop capturing
+     */
+    public void setTrafficCapture(TrafficCapture capture) {
+        this.capture = capture == null ? TrafficCapture.NOOP : capture;
+    }
+
+    TrafficCapture getTrafficCapture() {
+        return capture;
+    }
+
+    MonitorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Load a large number of queries into the monitor, using several threads
+     *
+     * Queries are parsed and indexed into temporary in-memory indexes, one for each thread
+     * and queryindex shard, which are then added to the queryindex in a single step.  This
+     * is much faster than {@link #update(Iterable)} when loading a new Monitor, but is not
+     * reported to {@link QueryIndexUpdateListener}s.  Any existing queries with the same ids
+     * are replaced, and if an id appears more than once, the last query with that id is
+     * loaded, as with {@link #update(Iterable)}.
+     *
+     * The Monitor's MonitorQueryParser and Presearcher must be thread-safe.  Queries that
+     * fail to parse are reported as errors, but if a thread fails with an Error, or an
+     * IOException, the other threads stop loading, nothing is added to the queryindex, and
+     * the failure is rethrown.
+     *
+     * @param queries the MonitorQueries to load
+     * @param threads the number of threads to use
+     * @return a list of errors for queries that could not be loaded
+     * @throws IOException on IO errors
+     */
+    public List<QueryError> bulkLoad(Iterable<MonitorQuery> queries, int threads) throws IOException {
+        return new BulkLoader(this, shards, capture(queries), threads, null).load();
+    }
+
+    /**
+     * Load a large number of queries into the monitor, using several threads, and holding
+     * the temporary indexes in a directory on disk
+     *
+     * @param queries the MonitorQueries to load
+     * @param threads the number of threads to use
+     * @param tempDir the directory to write temporary indexes to
+     * @return a list of errors for queries that could not be loaded
+     * @throws IOException on IO errors
+     *
+     * @see #bulkLoad(Iterable, int)
+     */
+    public List<QueryError> bulkLoad(Iterable<MonitorQuery> queries, int threads, Path tempDir) throws IOException {
+        return new BulkLoader(this, shards, capture(queries), threads, tempDir).load();
+    }
+
+    // wraps bulk-loaded queries so that they are passed to the TrafficCapture as they are read
+    private Iterable<MonitorQuery> capture(final Iterable<MonitorQuery> queries) {
+        final TrafficCapture capture = this.capture;
+        if (capture == TrafficCapture.NOOP)
+            return queries;
+        return new Iterable<MonitorQuery>() {
+            @Override
+            public Iterator<MonitorQuery> iterator() {
+                final Iterator<MonitorQuery> it = queries.iterator();
+                return new Iterator<MonitorQuery>() {
+
+                    List<MonitorQuery> captured = new ArrayList<>();
+
+                    @Override
+                    public boolean hasNext() {
+                        if (it.hasNext())
+                            return true;
+                        captured = capture(capture, captured);
+                        return false;
+                    }
+
+                    @Override
+                    public MonitorQuery next() {
+                        MonitorQuery query = it.next();
+                        captured.add(query);
+                        if (captured.size() >= commitBatchSize)
+                            captured = capture(capture, captured);
+                        return query;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    // The number of documents that are buffered by update() before being committed
+    long getCommitBatchSize() {
+        return commitBatchSize;
+    }
+
+    List<Indexable> buildIndexables(MonitorQuery query) throws Exception {
+        List<Indexable> indexables = new ArrayList<>();
+        for (QueryCacheEntry queryCacheEntry : decomposeQuery(query)) {
+            indexables.add(new Indexable(query.getId(), queryCacheEntry, buildIndexableQuery(query.getId(), query, queryCacheEntry)));
+        }
+        return indexables;
+    }
+
     private Iterable<QueryCacheEntry> decomposeQuery(MonitorQuery query) throws Exception {
 
         Query q = queryParser.parse(query.getQuery(), query.getMetadata());
@@ -407,16 +838,51 @@ public class Monitor implements Closeable {
         return update(Arrays.asList(queries));
     }
 
+    /**
+     * Add new queries to the monitor asynchronously
+     *
+     * If the number of incomplete asynchronous updates has reached the limit set by
+     * {@link QueryIndexConfiguration#setMaxInFlightUpdates(int)}, the returned future fails
+     * with a {@link RejectedExecutionException}.
+     *
+     * @param queries the MonitorQueries to add
+     * @param executor the Executor to run the update on
+     * @return a future holding a list of errors for queries that could not be added
+     */
+    public CompletableFuture<List<QueryError>> updateAsync(final Iterable<MonitorQuery> queries, Executor executor) {
+        if (updatePermits != null && updatePermits.tryAcquire() == false)
+            return rejected("Too many updates in progress");
+        try {
+            return releaseOnCompletion(CompletableFuture.supplyAsync(new Supplier<List<QueryError>>() {
+                @Override
+                public List<QueryError> get() {
+                    try {
+                        return update(queries);
+                    }
+                    catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, executor), updatePermits);
+        }
+        catch (RuntimeException e) {
+            if (updatePermits != null)
+                updatePermits.release();
+            throw e;
+        }
+    }
+
     /**
      * Delete queries from the monitor
      * @param queries the queries to remove
      * @throws IOException on IO errors
      */
     public void delete(Iterable<MonitorQuery> queries) throws IOException {
+        List<String> ids = new ArrayList<>();
         for (MonitorQuery mq : queries) {
-            queryIndex.deleteDocuments(new Term(Monitor.FIELDS.del, mq.getId()));
+            ids.add(mq.getId());
         }
-        commit(null);
+        deleteById(ids);
     }
 
     /**
@@ -425,10 +891,28 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public void deleteById(Iterable<String> queryIds) throws IOException {
+        TrafficCapture capture = this.capture;
+        List<String> captured = new ArrayList<>();
+        Map<QueryIndex, List<String>> shardIds = new HashMap<>();
         for (String queryId : queryIds) {
-            queryIndex.deleteDocuments(new Term(FIELDS.del, queryId));
+            if (capture != TrafficCapture.NOOP)
+                captured.add(queryId);
+            QueryIndex shard = shardFor(queryId);
+            if (shardIds.containsKey(shard) == false)
+                shardIds.put(shard, new ArrayList<String>());
+            shardIds.get(shard).add(queryId);
         }
-        commit(null);
+        if (captured.isEmpty() == false)
+            capture.queriesDeleted(captured);
+        beforeCommit(null);
+        long startTime = System.nanoTime();
+        int deleted = 0;
+        for (Map.Entry<QueryIndex, List<String>> entry : shardIds.entrySet()) {
+            entry.getKey().delete(entry.getValue());
+            deleted += entry.getValue().size();
+        }
+        metrics.committed(deleted, System.nanoTime() - startTime);
+        afterCommit(null);
     }
 
     /**
@@ -445,8 +929,12 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public void clear() throws IOException {
-        queryIndex.deleteDocuments(new MatchAllDocsQuery());
-        commit(null);
+        capture.queriesCleared();
+        beforeCommit(null);
+        for (QueryIndex shard : shards) {
+            shard.clear();
+        }
+        afterCommit(null);
     }
 
     /**
@@ -460,14 +948,18 @@ public class Monitor implements Closeable {
      */
     public <T extends QueryMatch> Matches<T> match(DocumentBatch docs, MatcherFactory<T> factory) throws IOException {
         CandidateMatcher<T> matcher = factory.createMatcher(docs);
-        matcher.setSlowLogLimit(slowLogLimit);
-        match(matcher);
-        return matcher.getMatches();
+        startMatch(docs, matcher);
+        StandardQueryCollector<T> collector = new StandardQueryCollector<>(matcher, metrics != MonitorMetrics.NOOP);
+        long buildTime = search(new PresearcherQueryBuilder(matcher.getIndexReader()), collector);
+        return finishMatch(matcher, collector, buildTime);
     }
 
     /**
      * Match a single {@link InputDocument} against the queryindex, calling a {@link CandidateMatcher} produced by the
      * supplied {@link MatcherFactory} for each possible matching query.
+     *
+     * The document is indexed into a batch reused by the calling thread, see {@link DocumentBatch#reusable(InputDocument)}
+     *
      * @param doc the InputDocument to match
      * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for the match run
      * @param <T> the type of {@link QueryMatch} to return
@@ -475,7 +967,194 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public <T extends QueryMatch> Matches<T> match(InputDocument doc, MatcherFactory<T> factory) throws IOException {
-        return match(DocumentBatch.of(doc), factory);
+        try (DocumentBatch batch = DocumentBatch.reusable(doc)) {
+            return match(batch, factory);
+        }
+    }
+
+    /**
+     * Create a {@link MatchStream} to match individual documents in automatically formed batches
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for each batch
+     * @param maxBatchSize the maximum number of documents in a batch
+     * @param maxWait the maximum time a document should wait for its batch to fill up
+     * @param unit the units of the wait time
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a new MatchStream, which should be closed once all documents have been submitted
+     */
+    public <T extends QueryMatch> MatchStream<T> stream(MatcherFactory<T> factory, int maxBatchSize,
+                                                        long maxWait, TimeUnit unit) {
+        return new MatchStream<>(this, factory, maxBatchSize, maxWait, unit);
+    }
+
+    /**
+     * Create a {@link MatchStream} to match individual documents in batches whose size
+     * is chosen by a {@link BatchSizeController}
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for each batch
+     * @param controller the BatchSizeController to choose the maximum number of documents in a batch
+     * @param maxWait the maximum time a document should wait for its batch to fill up
+     * @param unit the units of the wait time
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a new MatchStream, which should be closed once all documents have been submitted
+     */
+    public <T extends QueryMatch> MatchStream<T> stream(MatcherFactory<T> factory, BatchSizeController controller,
+                                                        long maxWait, TimeUnit unit) {
+        return new MatchStream<>(this, factory, controller, maxWait, unit, 1, MatchStream.DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Match a {@link DocumentBatch} against the queryindex asynchronously
+     *
+     * The batch is first presearched against the queryindex, and the selected queries are
+     * then run by a {@link CandidateMatcher} as a separate task, so the presearch of one batch
+     * can run at the same time as the matching of another.  If the number of incomplete
+     * asynchronous match runs has reached the limit set by
+     * {@link QueryIndexConfiguration#setMaxInFlightMatches(int)}, the returned future fails
+     * with a {@link RejectedExecutionException}.
+     *
+     * @param docs the DocumentBatch to match
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for the match run
+     * @param executor the Executor to run the presearch and match tasks on
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a future holding a {@link Matches} object summarizing the match run
+     */
+    public <T extends QueryMatch> CompletableFuture<Matches<T>> matchAsync(final DocumentBatch docs,
+                                                                           final MatcherFactory<T> factory,
+                                                                           Executor executor) {
+        if (matchPermits != null && matchPermits.tryAcquire() == false)
+            return rejected("Too many match runs in progress");
+        try {
+            CompletableFuture<Matches<T>> future = CompletableFuture.supplyAsync(new Supplier<Presearch<T>>() {
+                @Override
+                public Presearch<T> get() {
+                    try {
+                        return new Presearch<>(docs, factory.createMatcher(docs));
+                    }
+                    catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, executor).thenApplyAsync(new Function<Presearch<T>, Matches<T>>() {
+                @Override
+                public Matches<T> apply(Presearch<T> presearch) {
+                    try {
+                        return presearch.match();
+                    }
+                    catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, executor);
+            return releaseOnCompletion(future, matchPermits);
+        }
+        catch (RuntimeException e) {
+            if (matchPermits != null)
+                matchPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Match a single {@link InputDocument} against the queryindex asynchronously
+     *
+     * The document is indexed into a DocumentBatch on the calling thread, which is closed
+     * before the returned future completes.
+     *
+     * @param doc the InputDocument to match
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for the match run
+     * @param executor the Executor to run the presearch and match tasks on
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a future holding a {@link Matches} object summarizing the match run
+     * @throws IOException on IO errors
+     *
+     * @see #matchAsync(DocumentBatch, MatcherFactory, Executor)
+     */
+    public <T extends QueryMatch> CompletableFuture<Matches<T>> matchAsync(InputDocument doc, MatcherFactory<T> factory,
+                                                                           Executor executor) throws IOException {
+        final DocumentBatch batch = DocumentBatch.of(doc);
+        try {
+            return matchAsync(batch, factory, executor).whenComplete(new BiConsumer<Matches<T>, Throwable>() {
+                @Override
+                public void accept(Matches<T> matches, Throwable error) {
+                    try {
+                        batch.close();
+                    }
+                    catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            batch.close();
+            throw e;
+        }
+    }
+
+    private void startMatch(DocumentBatch docs, CandidateMatcher<?> matcher) {
+        capture.batchMatched(docs);
+        matcher.setSlowLogLimit(slowLogLimit);
+        if (docs.getBuildTime() >= 0)
+            metrics.documentBatchBuilt(docs.getBatchSize(), docs.getBuildTime());
+    }
+
+    private <T extends QueryMatch> Matches<T> finishMatch(CandidateMatcher<T> matcher, StandardQueryCollector<T> collector,
+                                                          long buildTime) {
+        if (metrics == MonitorMetrics.NOOP) {
+            matcher.finish(buildTime, collector.queryCount);
+            return matcher.getMatches();
+        }
+        metrics.candidatesMatched(collector.queryCount, collector.matchTime);
+        long startTime = System.nanoTime();
+        matcher.finish(buildTime, collector.queryCount);
+        Matches<T> matches = matcher.getMatches();
+        int matchCount = 0;
+        for (DocumentMatches<T> docMatches : matches) {
+            matchCount += docMatches.getMatches().size();
+        }
+        metrics.resultsAssembled(matchCount, System.nanoTime() - startTime);
+        return matches;
+    }
+
+    /*
+     * The queries selected by the presearcher for a CandidateMatcher, waiting to be run.
+     * matchAsync() buffers candidates rather than running them as they are collected, so
+     * that the presearch and the match run can be run as separate tasks
+     */
+    private class Presearch<T extends QueryMatch> {
+
+        final CandidateMatcher<T> matcher;
+        final CandidateBuffer candidates = new CandidateBuffer();
+        final long buildTime;
+
+        Presearch(DocumentBatch docs, CandidateMatcher<T> matcher) throws IOException {
+            this.matcher = matcher;
+            startMatch(docs, matcher);
+            this.buildTime = search(new PresearcherQueryBuilder(matcher.getIndexReader()), candidates);
+        }
+
+        Matches<T> match() throws IOException {
+            StandardQueryCollector<T> collector = new StandardQueryCollector<>(matcher, metrics != MonitorMetrics.NOOP);
+            candidates.replay(collector);
+            return finishMatch(matcher, collector, buildTime);
+        }
+    }
+
+    private static <V> CompletableFuture<V> rejected(String message) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        future.completeExceptionally(new RejectedExecutionException(message));
+        return future;
+    }
+
+    // The returned future completes once the permit has been released
+    private static <V> CompletableFuture<V> releaseOnCompletion(CompletableFuture<V> future, final Semaphore permits) {
+        if (permits == null)
+            return future;
+        return future.whenComplete(new BiConsumer<V, Throwable>() {
+            @Override
+            public void accept(V result, Throwable error) {
+                permits.release();
+            }
+        });
     }
 
     private class PresearcherQueryBuilder implements QueryIndex.QueryBuilder {
@@ -492,10 +1171,75 @@ public class Monitor implements Closeable {
         }
     }
 
-    private <T extends QueryMatch> void match(CandidateMatcher<T> matcher) throws IOException {
-        StandardQueryCollector<T> collector = new StandardQueryCollector<>(matcher);
-        long buildTime = queryIndex.search(new PresearcherQueryBuilder(matcher.getIndexReader()), collector);
-        matcher.finish(buildTime, collector.queryCount);
+    /*
+     * Runs a query over all shards of the queryindex.  If there is more than one shard, then
+     * the shards are searched concurrently, and their candidate queries are buffered and
+     * then passed to the collector from the calling thread.
+     *
+     * Returns the total time taken to build the shard queries
+     */
+    private long search(final QueryIndex.QueryBuilder queryBuilder, QueryIndex.QueryCollector collector) throws IOException {
+
+        if (shards.size() == 1)
+            return shards.get(0).search(queryBuilder, collector);
+
+        List<CandidateBuffer> buffers = new ArrayList<>(shards.size());
+        List<Future<Long>> futures = new ArrayList<>(shards.size() - 1);
+        for (int i = 0; i < shards.size(); i++) {
+            buffers.add(new CandidateBuffer());
+        }
+        for (int i = 1; i < shards.size(); i++) {
+            final QueryIndex shard = shards.get(i);
+            final CandidateBuffer buffer = buffers.get(i);
+            futures.add(shardExecutor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return shard.search(queryBuilder, buffer);
+                }
+            }));
+        }
+
+        long buildTime = shards.get(0).search(queryBuilder, buffers.get(0));
+        try {
+            for (Future<Long> future : futures) {
+                buildTime += future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while searching queryindex shards", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+
+        for (CandidateBuffer buffer : buffers) {
+            buffer.replay(collector);
+        }
+        return buildTime;
+    }
+
+    // Holds candidate queries selected from a single shard
+    private static class CandidateBuffer implements QueryIndex.QueryCollector {
+
+        final List<String> ids = new ArrayList<>();
+        final List<QueryCacheEntry> queries = new ArrayList<>();
+
+        @Override
+        public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
+            ids.add(id);
+            queries.add(query);
+        }
+
+        void replay(QueryIndex.QueryCollector collector) throws IOException {
+            for (int i = 0; i < ids.size(); i++) {
+                collector.matchQuery(ids.get(i), queries.get(i), null);
+            }
+        }
     }
 
     /**
@@ -509,7 +1253,7 @@ public class Monitor implements Closeable {
         if (storeQueries == false)
             throw new IllegalStateException("Cannot call getQuery() as queries are not stored");
         final MonitorQuery[] queryHolder = new MonitorQuery[]{ null };
-        queryIndex.search(new TermQuery(new Term(FIELDS.id, queryId)), new QueryIndex.QueryCollector() {
+        shardFor(queryId).search(new TermQuery(new Term(FIELDS.id, queryId)), new QueryIndex.QueryCollector() {
             @Override
             public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
                 BytesRef serializedMQ = dataValues.mq.get(dataValues.doc);
@@ -523,7 +1267,11 @@ public class Monitor implements Closeable {
      * @return the number of queries (after decomposition) stored in this Monitor
      */
     public int getDisjunctCount() {
-        return queryIndex.numDocs();
+        int count = 0;
+        for (QueryIndex shard : shards) {
+            count += shard.numDocs();
+        }
+        return count;
     }
 
     /**
@@ -540,12 +1288,14 @@ public class Monitor implements Closeable {
      */
     public Set<String> getQueryIds() throws IOException {
         final Set<String> ids = new HashSet<>();
-        queryIndex.scan(new QueryIndex.QueryCollector() {
-            @Override
-            public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
-                ids.add(id);
-            }
-        });
+        for (QueryIndex shard : shards) {
+            shard.scan(new QueryIndex.QueryCollector() {
+                @Override
+                public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
+                    ids.add(id);
+                }
+            });
+        }
         return ids;
     }
 
@@ -567,20 +1317,29 @@ public class Monitor implements Closeable {
         return doc;
     }
 
-    // For each query selected by the presearcher, pass on to a CandidateMatcher
+    // For each query selected by the presearcher, pass on to a CandidateMatcher, optionally
+    // recording the total time spent in the matcher
     private static class StandardQueryCollector<T extends QueryMatch> implements QueryIndex.QueryCollector {
 
         final CandidateMatcher<T> matcher;
+        final boolean timed;
         int queryCount = 0;
+        long matchTime = 0;
 
         private StandardQueryCollector(CandidateMatcher<T> matcher) {
+            this(matcher, false);
+        }
+
+        private StandardQueryCollector(CandidateMatcher<T> matcher, boolean timed) {
             this.matcher = matcher;
+            this.timed = timed;
         }
 
         @Override
         public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
             if (query == null)
                 return;
+            long startTime = timed ? System.nanoTime() : 0;
             try {
                 queryCount++;
                 matcher.matchQuery(id, query.matchQuery, query.metadata);
@@ -588,6 +1347,8 @@ public class Monitor implements Closeable {
             catch (Exception e) {
                 matcher.reportError(new MatchError(id, e));
             }
+            if (timed)
+                matchTime += System.nanoTime() - startTime;
         }
     }
 
@@ -613,7 +1374,10 @@ public class Monitor implements Closeable {
                 }
             }
         };
-        queryIndex.search(queryBuilder, collector);
+        // The collector needs access to each hit's Scorer, so shards are searched sequentially here
+        for (QueryIndex shard : shards) {
+            shard.searchWithScores(queryBuilder, collector);
+        }
         return collector.getMatches();
     }
 
@@ -627,7 +1391,9 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public <T extends QueryMatch> PresearcherMatches<T> debug(InputDocument doc, MatcherFactory<T> factory) throws IOException {
-        return debug(DocumentBatch.of(doc), factory);
+        try (DocumentBatch batch = DocumentBatch.reusable(doc)) {
+            return debug(batch, factory);
+        }
     }
 
     private class PresearcherQueryCollector<T extends QueryMatch> extends StandardQueryCollector<T> {
@@ -0,0 +1,85 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * Base class for recording timings and counts from a Monitor
+ *
+ * Register an implementation with {@link QueryIndexConfiguration#setMetrics(MonitorMetrics)}.
+ * All times are in nanoseconds.  Methods may be called from several threads at once, and
+ * are called on the threads doing the work, so implementations should be cheap and
+ * non-blocking; for example, updating a histogram.  By default, nothing is recorded.
+ */
+public abstract class MonitorMetrics {
+
+    /** A MonitorMetrics implementation that records nothing */
+    public static final MonitorMetrics NOOP = new MonitorMetrics() {};
+
+    /**
+     * Called when a DocumentBatch is matched, with the time taken to analyze and index its documents
+     * @param documents the number of documents in the batch
+     * @param nanos the time taken to build the batch
+     */
+    public void documentBatchBuilt(int documents, long nanos) {}
+
+    /**
+     * Called when the presearcher has built a query from a DocumentBatch, once for each queryindex shard
+     * @param nanos the time taken to build the query
+     */
+    public void presearcherQueryBuilt(long nanos) {}
+
+    /**
+     * Called when the presearcher query has been run against a queryindex shard
+     * @param nanos the time taken to select candidate queries from the shard
+     */
+    public void queryIndexSearched(long nanos) {}
+
+    /**
+     * Called when the candidate queries selected by the presearcher have been run against a DocumentBatch
+     * @param candidates the number of candidate queries run
+     * @param nanos the time taken to run the queries
+     */
+    public void candidatesMatched(int candidates, long nanos) {}
+
+    /**
+     * Called when the results of a match run have been collected
+     * @param matches the number of matches found
+     * @param nanos the time taken to collect the results
+     */
+    public void resultsAssembled(int matches, long nanos) {}
+
+    /**
+     * Called when updates or deletes have been committed to the queryindex
+     * @param documents the number of queryindex documents updated, or the number of ids deleted
+     * @param nanos the time taken to commit the changes
+     */
+    public void committed(int documents, long nanos) {}
+
+    /**
+     * Called when the query cache has been purged
+     * @param cachedQueries the number of entries in the query cache after the purge
+     * @param nanos the time taken to purge the cache
+     */
+    public void cachePurged(int cachedQueries, long nanos) {}
+
+    /**
+     * Called when the {@link BatchSizeController} of a {@link MatchStream} changes its batch size
+     * @param batchSize the new batch size
+     */
+    public void batchSizeChanged(int batchSize) {}
+
+}
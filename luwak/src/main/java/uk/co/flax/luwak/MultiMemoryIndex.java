@@ -0,0 +1,752 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+/**
+ * A multi-document analogue of lucene's MemoryIndex
+ *
+ * Documents are inverted straight from their TokenStreams into in-heap postings lists,
+ * with positions, offsets and payloads, and exposed through a single {@link LeafReader}.
+ * There is no codec, flush or merge involved, and docids are assigned in the order that
+ * documents are added.
+ *
+ * Positions, offsets, norms and index statistics are calculated in the same way as
+ * IndexWriter would calculate them, so queries match and score identically to a
+ * single-segment index over the same documents.  Doc values, points and term vectors
+ * are not supported.
+ */
+final class MultiMemoryIndex {
+
+    private final Similarity similarity;
+    private final Map<String, FieldData> fields = new LinkedHashMap<>();
+    private final List<List<IndexableField>> storedFields = new ArrayList<>();
+
+    private boolean frozen = false;
+
+    /**
+     * Create a new MultiMemoryIndex
+     * @param similarity the {@link Similarity} used to calculate norms
+     */
+    MultiMemoryIndex(Similarity similarity) {
+        this.similarity = similarity;
+    }
+
+    /**
+     * Check that a document can be held in a MultiMemoryIndex
+     * @param doc the document
+     * @return false if the document contains doc values or points
+     */
+    static boolean canIndex(InputDocument doc) {
+        for (IndexableField field : doc.getDocument()) {
+            IndexableFieldType type = field.fieldType();
+            if (type.docValuesType() != DocValuesType.NONE || type.pointDimensionCount() != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Create tasks to analyze a document's indexed fields into {@link TokenBuffer}s, so that
+     * they can be run concurrently and passed to {@link #addDocument(Iterable, Analyzer, Iterator)}
+     * @param document the document's fields
+     * @param analyzer the {@link Analyzer} to use for tokenized fields
+     * @return a task for each indexed field value, in document order
+     */
+    static List<Callable<TokenBuffer>> analysisTasks(Iterable<? extends IndexableField> document, final Analyzer analyzer) {
+        List<Callable<TokenBuffer>> tasks = new ArrayList<>();
+        for (final IndexableField field : document) {
+            if (field.fieldType().indexOptions() == IndexOptions.NONE)
+                continue;
+            tasks.add(new Callable<TokenBuffer>() {
+                @Override
+                public TokenBuffer call() throws Exception {
+                    return TokenBuffer.fill(field.tokenStream(analyzer, null));
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * Add a document to the index
+     *
+     * The document will be assigned the next docid, starting from zero
+     *
+     * @param document the document's fields
+     * @param analyzer the {@link Analyzer} to use for tokenized fields
+     * @throws IOException on analysis errors
+     */
+    void addDocument(Iterable<? extends IndexableField> document, Analyzer analyzer) throws IOException {
+        addDocument(document, analyzer, null);
+    }
+
+    /**
+     * Add a document to the index, using token streams that have already been analyzed
+     *
+     * The document will be assigned the next docid, starting from zero
+     *
+     * @param document the document's fields
+     * @param analyzer the {@link Analyzer} used for tokenized fields
+     * @param analyzed a TokenStream for each indexed field value, in document order, as
+     *                 created by {@link #analysisTasks(Iterable, Analyzer)}; or null to
+     *                 analyze the fields here
+     * @throws IOException on analysis errors
+     */
+    void addDocument(Iterable<? extends IndexableField> document, Analyzer analyzer,
+                     Iterator<? extends TokenStream> analyzed) throws IOException {
+        if (frozen)
+            throw new IllegalStateException("Cannot add documents to a MultiMemoryIndex once its reader has been created");
+
+        int docId = storedFields.size();
+        List<IndexableField> stored = new ArrayList<>();
+        Map<String, InvertState> states = new HashMap<>();
+
+        for (IndexableField field : document) {
+            IndexableFieldType type = field.fieldType();
+            if (type.docValuesType() != DocValuesType.NONE || type.pointDimensionCount() != 0)
+                throw new IllegalArgumentException("Field " + field.name() + " has doc values or points, which cannot be held in a MultiMemoryIndex");
+            FieldData data = fields.get(field.name());
+            if (data == null) {
+                data = new FieldData(field.name());
+                fields.put(field.name(), data);
+            }
+            data.update(type);
+            if (type.stored())
+                stored.add(field);
+            if (type.indexOptions() != IndexOptions.NONE) {
+                InvertState state = states.get(field.name());
+                if (state == null) {
+                    state = new InvertState();
+                    states.put(field.name(), state);
+                }
+                TokenStream stream = analyzed == null ? field.tokenStream(analyzer, null) : analyzed.next();
+                invert(docId, field, stream, analyzer, data, state);
+            }
+        }
+
+        for (Map.Entry<String, InvertState> entry : states.entrySet()) {
+            InvertState state = entry.getValue();
+            if (state.length > 0) {
+                FieldData data = fields.get(entry.getKey());
+                data.setNorm(docId, similarity.computeNorm(new FieldInvertState(entry.getKey(),
+                        state.position, state.length, state.numOverlap, state.offset, state.boost)));
+            }
+        }
+
+        storedFields.add(stored);
+    }
+
+    // Runs a single field value through its TokenStream, in the same way as IndexWriter's indexing chain
+    private static void invert(int docId, IndexableField field, TokenStream tokens, Analyzer analyzer,
+                               FieldData data, InvertState state) throws IOException {
+        try (TokenStream stream = tokens) {
+            TermToBytesRefAttribute termAtt = stream.getAttribute(TermToBytesRefAttribute.class);
+            PositionIncrementAttribute posIncrAtt = stream.addAttribute(PositionIncrementAttribute.class);
+            OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+            PayloadAttribute payloadAtt = stream.hasAttribute(PayloadAttribute.class)
+                    ? stream.getAttribute(PayloadAttribute.class) : null;
+            stream.reset();
+            while (stream.incrementToken()) {
+                int posIncr = posIncrAtt.getPositionIncrement();
+                state.position += posIncr;
+                if (posIncr == 0)
+                    state.numOverlap++;
+                state.length++;
+                BytesRef payload = payloadAtt == null ? null : payloadAtt.getPayload();
+                data.add(termAtt.getBytesRef(), docId, state.position,
+                        state.offset + offsetAtt.startOffset(), state.offset + offsetAtt.endOffset(), payload);
+            }
+            stream.end();
+            state.position += posIncrAtt.getPositionIncrement();
+            state.offset += offsetAtt.endOffset();
+        }
+        if (field.fieldType().tokenized() && analyzer != null) {
+            state.position += analyzer.getPositionIncrementGap(field.name());
+            state.offset += analyzer.getOffsetGap(field.name());
+        }
+        state.boost *= field.boost();
+    }
+
+    /**
+     * Create a {@link LeafReader} over the documents in the index
+     *
+     * No more documents may be added once the reader has been created
+     *
+     * @return a LeafReader
+     */
+    LeafReader createReader() {
+        frozen = true;
+        FieldInfo[] infos = new FieldInfo[fields.size()];
+        int number = 0;
+        TreeMap<String, FieldData> indexed = new TreeMap<>();
+        for (FieldData data : fields.values()) {
+            infos[number] = data.fieldInfo(number);
+            number++;
+            if (data.indexOptions != IndexOptions.NONE) {
+                data.freeze();
+                indexed.put(data.name, data);
+            }
+        }
+        return new Reader(new FieldInfos(infos), indexed, storedFields);
+    }
+
+    // per-document state for a field, accumulated over all its values
+    private static class InvertState {
+        int position = -1;
+        int length = 0;
+        int numOverlap = 0;
+        int offset = 0;
+        float boost = 1.0f;
+    }
+
+    private static class FieldData {
+
+        final String name;
+        final BytesRefHash terms = new BytesRefHash();
+
+        IndexOptions indexOptions = IndexOptions.NONE;
+        boolean omitNorms = false;
+        boolean hasPayloads = false;
+
+        Postings[] postings = new Postings[8];
+        long[] norms = new long[0];
+        int docCount = 0;
+        int lastDoc = -1;
+
+        int[] sortedTerms;
+        long sumDocFreq;
+        long sumTotalTermFreq;
+
+        FieldData(String name) {
+            this.name = name;
+        }
+
+        // combines field options in the same way as IndexWriter's FieldInfos
+        void update(IndexableFieldType type) {
+            if (type.indexOptions() == IndexOptions.NONE)
+                return;
+            if (indexOptions == IndexOptions.NONE) {
+                indexOptions = type.indexOptions();
+                omitNorms = type.omitNorms();
+                return;
+            }
+            if (type.indexOptions().compareTo(indexOptions) < 0)
+                indexOptions = type.indexOptions();
+            omitNorms |= type.omitNorms();
+        }
+
+        void add(BytesRef term, int docId, int position, int startOffset, int endOffset, BytesRef payload) {
+            int id = terms.add(term);
+            if (id < 0) {
+                id = -id - 1;
+            }
+            else {
+                postings = ArrayUtil.grow(postings, id + 1);
+                postings[id] = new Postings();
+            }
+            if (payload != null && payload.length > 0)
+                hasPayloads = true;
+            else
+                payload = null;
+            postings[id].add(docId, position, startOffset, endOffset, payload);
+            if (docId != lastDoc) {
+                docCount++;
+                lastDoc = docId;
+            }
+        }
+
+        void setNorm(int docId, long norm) {
+            if (norms.length <= docId)
+                norms = Arrays.copyOf(norms, ArrayUtil.oversize(docId + 1, 8));
+            norms[docId] = norm;
+        }
+
+        void freeze() {
+            sortedTerms = terms.sort();
+            for (int i = 0; i < terms.size(); i++) {
+                Postings p = postings[sortedTerms[i]];
+                sumDocFreq += p.docCount;
+                sumTotalTermFreq += p.positionCount;
+            }
+        }
+
+        boolean hasFreqs() {
+            return indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS) >= 0;
+        }
+
+        boolean hasPositions() {
+            return indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+        }
+
+        boolean hasOffsets() {
+            return indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0;
+        }
+
+        FieldInfo fieldInfo(int number) {
+            boolean indexed = indexOptions != IndexOptions.NONE;
+            return new FieldInfo(name, number, false, indexed && omitNorms, hasPayloads && hasPositions(),
+                    indexOptions, DocValuesType.NONE, -1, Collections.<String, String>emptyMap(), 0, 0);
+        }
+
+    }
+
+    // The postings list for a single term.  Documents are added in docid order, so all
+    // positions for a given document are contiguous.
+    private static class Postings {
+
+        int[] docs = new int[1];
+        int[] freqs = new int[1];
+        int[] positionStarts = new int[1];
+        int docCount = 0;
+
+        // position, start offset and end offset for each occurrence
+        int[] positions = new int[3];
+        BytesRef[] payloads = null;
+        int positionCount = 0;
+
+        void add(int docId, int position, int startOffset, int endOffset, BytesRef payload) {
+            if (docCount == 0 || docs[docCount - 1] != docId) {
+                if (docCount == docs.length) {
+                    docs = ArrayUtil.grow(docs);
+                    freqs = ArrayUtil.grow(freqs, docs.length);
+                    positionStarts = ArrayUtil.grow(positionStarts, docs.length);
+                }
+                docs[docCount] = docId;
+                freqs[docCount] = 0;
+                positionStarts[docCount] = positionCount;
+                docCount++;
+            }
+            freqs[docCount - 1]++;
+            positions = ArrayUtil.grow(positions, positionCount * 3 + 3);
+            positions[positionCount * 3] = position;
+            positions[positionCount * 3 + 1] = startOffset;
+            positions[positionCount * 3 + 2] = endOffset;
+            if (payload != null) {
+                if (payloads == null)
+                    payloads = new BytesRef[positions.length / 3];
+                payloads = ArrayUtil.grow(payloads, positionCount + 1);
+                payloads[positionCount] = BytesRef.deepCopyOf(payload);
+            }
+            positionCount++;
+        }
+
+        BytesRef payload(int position) {
+            if (payloads == null || position >= payloads.length)
+                return null;
+            return payloads[position];
+        }
+
+    }
+
+    private static class Reader extends LeafReader {
+
+        private final FieldInfos fieldInfos;
+        private final TreeMap<String, FieldData> indexed;
+        private final List<List<IndexableField>> storedFields;
+        private final Fields fields;
+
+        Reader(FieldInfos fieldInfos, TreeMap<String, FieldData> indexed, List<List<IndexableField>> storedFields) {
+            this.fieldInfos = fieldInfos;
+            this.indexed = indexed;
+            this.storedFields = storedFields;
+            this.fields = new Fields() {
+                @Override
+                public Iterator<String> iterator() {
+                    return Collections.unmodifiableSet(Reader.this.indexed.keySet()).iterator();
+                }
+
+                @Override
+                public Terms terms(String field) throws IOException {
+                    FieldData data = Reader.this.indexed.get(field);
+                    return data == null ? null : new MemoryTerms(data);
+                }
+
+                @Override
+                public int size() {
+                    return Reader.this.indexed.size();
+                }
+            };
+        }
+
+        @Override
+        public void addCoreClosedListener(CoreClosedListener listener) {
+            addCoreClosedListenerAsReaderClosedListener(this, listener);
+        }
+
+        @Override
+        public void removeCoreClosedListener(CoreClosedListener listener) {
+            removeCoreClosedListenerAsReaderClosedListener(this, listener);
+        }
+
+        @Override
+        public Fields fields() throws IOException {
+            return fields;
+        }
+
+        @Override
+        public NumericDocValues getNumericDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public BinaryDocValues getBinaryDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public SortedDocValues getSortedDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public SortedNumericDocValues getSortedNumericDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public SortedSetDocValues getSortedSetDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public Bits getDocsWithField(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public NumericDocValues getNormValues(String field) throws IOException {
+            final FieldData data = indexed.get(field);
+            if (data == null || data.omitNorms)
+                return null;
+            return new NumericDocValues() {
+                @Override
+                public long get(int docID) {
+                    return docID < data.norms.length ? data.norms[docID] : 0;
+                }
+            };
+        }
+
+        @Override
+        public FieldInfos getFieldInfos() {
+            return fieldInfos;
+        }
+
+        @Override
+        public Bits getLiveDocs() {
+            return null;
+        }
+
+        @Override
+        public PointValues getPointValues() {
+            return null;
+        }
+
+        @Override
+        public void checkIntegrity() throws IOException {
+
+        }
+
+        @Override
+        public Fields getTermVectors(int docID) throws IOException {
+            return null;
+        }
+
+        @Override
+        public int numDocs() {
+            return storedFields.size();
+        }
+
+        @Override
+        public int maxDoc() {
+            return storedFields.size();
+        }
+
+        @Override
+        public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+            for (IndexableField field : storedFields.get(docID)) {
+                FieldInfo info = fieldInfos.fieldInfo(field.name());
+                switch (visitor.needsField(info)) {
+                    case YES:
+                        break;
+                    case NO:
+                        continue;
+                    case STOP:
+                        return;
+                }
+                Number number = field.numericValue();
+                BytesRef binary = field.binaryValue();
+                if (number instanceof Long)
+                    visitor.longField(info, number.longValue());
+                else if (number instanceof Float)
+                    visitor.floatField(info, number.floatValue());
+                else if (number instanceof Double)
+                    visitor.doubleField(info, number.doubleValue());
+                else if (number != null)
+                    visitor.intField(info, number.intValue());
+                else if (binary != null)
+                    visitor.binaryField(info, Arrays.copyOfRange(binary.bytes, binary.offset, binary.offset + binary.length));
+                else
+                    visitor.stringField(info, field.stringValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        protected void doClose() throws IOException {
+
+        }
+
+        @Override
+        public String toString() {
+            return "MultiMemoryIndex.Reader(maxDoc=" + maxDoc() + ")";
+        }
+    }
+
+    private static class MemoryTerms extends Terms {
+
+        private final FieldData data;
+
+        MemoryTerms(FieldData data) {
+            this.data = data;
+        }
+
+        @Override
+        public TermsEnum iterator() throws IOException {
+            return new MemoryTermsEnum(data);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return data.terms.size();
+        }
+
+        @Override
+        public long getSumTotalTermFreq() throws IOException {
+            return data.hasFreqs() ? data.sumTotalTermFreq : -1;
+        }
+
+        @Override
+        public long getSumDocFreq() throws IOException {
+            return data.sumDocFreq;
+        }
+
+        @Override
+        public int getDocCount() throws IOException {
+            return data.docCount;
+        }
+
+        @Override
+        public boolean hasFreqs() {
+            return data.hasFreqs();
+        }
+
+        @Override
+        public boolean hasOffsets() {
+            return data.hasOffsets();
+        }
+
+        @Override
+        public boolean hasPositions() {
+            return data.hasPositions();
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return data.hasPayloads && data.hasPositions();
+        }
+    }
+
+    private static class MemoryTermsEnum extends TermsEnum {
+
+        private final FieldData data;
+        private final BytesRef scratch = new BytesRef();
+        private int ord = -1;
+
+        MemoryTermsEnum(FieldData data) {
+            this.data = data;
+        }
+
+        private BytesRef termAt(int ord, BytesRef ref) {
+            return data.terms.get(data.sortedTerms[ord], ref);
+        }
+
+        @Override
+        public SeekStatus seekCeil(BytesRef text) throws IOException {
+            int low = 0;
+            int high = data.terms.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = termAt(mid, scratch).compareTo(text);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else {
+                    ord = mid;
+                    return SeekStatus.FOUND;
+                }
+            }
+            ord = low;
+            if (ord >= data.terms.size())
+                return SeekStatus.END;
+            termAt(ord, scratch);
+            return SeekStatus.NOT_FOUND;
+        }
+
+        @Override
+        public void seekExact(long ord) throws IOException {
+            assert ord >= 0 && ord < data.terms.size();
+            this.ord = (int) ord;
+            termAt(this.ord, scratch);
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            if (ord + 1 >= data.terms.size()) {
+                ord = data.terms.size();
+                return null;
+            }
+            ord++;
+            return termAt(ord, scratch);
+        }
+
+        @Override
+        public BytesRef term() throws IOException {
+            return scratch;
+        }
+
+        @Override
+        public long ord() throws IOException {
+            return ord;
+        }
+
+        @Override
+        public int docFreq() throws IOException {
+            return data.postings[data.sortedTerms[ord]].docCount;
+        }
+
+        @Override
+        public long totalTermFreq() throws IOException {
+            return data.hasFreqs() ? data.postings[data.sortedTerms[ord]].positionCount : -1;
+        }
+
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+            return new MemoryPostingsEnum(data, data.postings[data.sortedTerms[ord]]);
+        }
+    }
+
+    private static class MemoryPostingsEnum extends PostingsEnum {
+
+        private final Postings postings;
+        private final boolean hasFreqs;
+        private final boolean hasPositions;
+        private final boolean hasOffsets;
+        private final boolean hasPayloads;
+
+        private int upto = -1;
+        private int doc = -1;
+        private int position = -1;
+
+        MemoryPostingsEnum(FieldData data, Postings postings) {
+            this.postings = postings;
+            this.hasFreqs = data.hasFreqs();
+            this.hasPositions = data.hasPositions();
+            this.hasOffsets = data.hasOffsets();
+            this.hasPayloads = data.hasPayloads && hasPositions;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return hasFreqs ? postings.freqs[upto] : 1;
+        }
+
+        @Override
+        public int nextPosition() throws IOException {
+            if (hasPositions == false)
+                return -1;
+            if (position == -1)
+                position = postings.positionStarts[upto];
+            else
+                position++;
+            assert position < postings.positionStarts[upto] + postings.freqs[upto];
+            return postings.positions[position * 3];
+        }
+
+        @Override
+        public int startOffset() throws IOException {
+            return hasOffsets && position != -1 ? postings.positions[position * 3 + 1] : -1;
+        }
+
+        @Override
+        public int endOffset() throws IOException {
+            return hasOffsets && position != -1 ? postings.positions[position * 3 + 2] : -1;
+        }
+
+        @Override
+        public BytesRef getPayload() throws IOException {
+            return hasPayloads && position != -1 ? postings.payload(position) : null;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            position = -1;
+            upto++;
+            if (upto >= postings.docCount)
+                return doc = NO_MORE_DOCS;
+            return doc = postings.docs[upto];
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            position = -1;
+            int index = Arrays.binarySearch(postings.docs, upto + 1, postings.docCount, target);
+            upto = index >= 0 ? index : -index - 1;
+            if (upto >= postings.docCount)
+                return doc = NO_MORE_DOCS;
+            return doc = postings.docs[upto];
+        }
+
+        @Override
+        public long cost() {
+            return postings.docCount;
+        }
+    }
+
+}
@@ -15,15 +15,35 @@ package uk.co.flax.luwak;
  *   limitations under the License.
  */
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
-import org.apache.lucene.search.Query;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
 
 /**
  * An entry in the query cache
  */
-public class QueryCacheEntry {
+public class QueryCacheEntry implements Accountable {
+
+    /**
+     * The estimated size of a query whose type is not known, taken from lucene's
+     * {@link LRUQueryCache}
+     */
+    static final long DEFAULT_QUERY_RAM_BYTES_USED = 1024;
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(QueryCacheEntry.class);
 
     /** The (possibly partial due to decomposition) query */
     public final Query matchQuery;
@@ -39,4 +59,93 @@ public class QueryCacheEntry {
         this.matchQuery = matchQuery;
         this.metadata = metadata;
     }
+
+    /**
+     * An estimate of the memory used by this entry
+     *
+     * Queries that implement {@link Accountable} report their own size.  The sizes of
+     * common compound and term queries are estimated from their structure, and other
+     * queries are assumed to take {@link #DEFAULT_QUERY_RAM_BYTES_USED} bytes.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES_USED + ramBytesUsed(hash) + ramBytesUsed(matchQuery) + ramBytesUsed(metadata);
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        List<Accountable> resources = new ArrayList<>();
+        resources.add(Accountables.namedAccountable("query", ramBytesUsed(matchQuery)));
+        resources.add(Accountables.namedAccountable("hash", ramBytesUsed(hash)));
+        resources.add(Accountables.namedAccountable("metadata", ramBytesUsed(metadata)));
+        return Collections.unmodifiableList(resources);
+    }
+
+    private static long ramBytesUsed(Map<String, String> metadata) {
+        long size = 0;
+        if (metadata != null) {
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                size += 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF
+                        + ramBytesUsed(entry.getKey()) + ramBytesUsed(entry.getValue());
+            }
+        }
+        return size;
+    }
+
+    static long ramBytesUsed(Query query) {
+        if (query instanceof Accountable)
+            return ((Accountable) query).ramBytesUsed();
+        long size = RamUsageEstimator.shallowSizeOf(query);
+        if (query instanceof TermQuery)
+            return size + ramBytesUsed(((TermQuery) query).getTerm());
+        if (query instanceof SpanTermQuery)
+            return size + ramBytesUsed(((SpanTermQuery) query).getTerm());
+        if (query instanceof PhraseQuery) {
+            for (Term term : ((PhraseQuery) query).getTerms()) {
+                size += Integer.BYTES + ramBytesUsed(term);
+            }
+            return size;
+        }
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                size += RamUsageEstimator.shallowSizeOf(clause) + ramBytesUsed(clause.getQuery());
+            }
+            return size;
+        }
+        if (query instanceof DisjunctionMaxQuery) {
+            for (Query disjunct : ((DisjunctionMaxQuery) query).getDisjuncts()) {
+                size += RamUsageEstimator.NUM_BYTES_OBJECT_REF + ramBytesUsed(disjunct);
+            }
+            return size;
+        }
+        if (query instanceof BoostQuery)
+            return size + ramBytesUsed(((BoostQuery) query).getQuery());
+        if (query instanceof SpanNearQuery)
+            return size + ramBytesUsed(((SpanNearQuery) query).getClauses());
+        if (query instanceof SpanOrQuery)
+            return size + ramBytesUsed(((SpanOrQuery) query).getClauses());
+        return DEFAULT_QUERY_RAM_BYTES_USED;
+    }
+
+    private static long ramBytesUsed(SpanQuery[] clauses) {
+        long size = RamUsageEstimator.shallowSizeOf(clauses);
+        for (SpanQuery clause : clauses) {
+            size += ramBytesUsed(clause);
+        }
+        return size;
+    }
+
+    private static long ramBytesUsed(Term term) {
+        // field names are generally interned, so only the term bytes are counted
+        return RamUsageEstimator.shallowSizeOf(term) + ramBytesUsed(term.bytes());
+    }
+
+    private static long ramBytesUsed(BytesRef bytes) {
+        return RamUsageEstimator.shallowSizeOf(bytes) + RamUsageEstimator.sizeOf(bytes.bytes);
+    }
+
+    static long ramBytesUsed(String s) {
+        return RamUsageEstimator.shallowSizeOf(s)
+                + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + 2L * s.length());
+    }
 }
@@ -0,0 +1,156 @@
+package uk.co.flax.luwak;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFormatTooNewException;
+import org.apache.lucene.index.IndexFormatTooOldException;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import uk.co.flax.luwak.util.QuerySerializer;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * A snapshot of the query cache, stored alongside a queryindex so that cache entries
+ * can be loaded without re-parsing their queries.
+ *
+ * The snapshot records the generation of the lucene commit it was taken from, and is
+ * ignored if the queryindex has been committed since.  Entries whose queries cannot be
+ * serialized by {@link QuerySerializer} are left out of the snapshot.
+ */
+class QueryCacheSnapshot {
+
+    static final String FILE_NAME = "luwak_cache_snapshot";
+
+    private static final String CODEC = "LuwakQueryCacheSnapshot";
+    private static final int VERSION = 0;
+
+    private QueryCacheSnapshot() {}
+
+    /**
+     * Write a snapshot of cache entries for the latest commit in a directory
+     * @param directory the queryindex Directory
+     * @param entries the cache entries
+     * @return the number of entries written to the snapshot
+     * @throws IOException on IO errors
+     */
+    static int write(Directory directory, Collection<QueryCacheEntry> entries) throws IOException {
+        long generation = SegmentInfos.getLastCommitGeneration(directory);
+        delete(directory);
+
+        List<QueryCacheEntry> snapshotEntries = new ArrayList<>();
+        List<BytesRef> queries = new ArrayList<>();
+        for (QueryCacheEntry entry : entries) {
+            BytesRef query = QuerySerializer.serialize(entry.matchQuery);
+            if (query != null) {
+                snapshotEntries.add(entry);
+                queries.add(query);
+            }
+        }
+
+        boolean success = false;
+        try {
+            try (IndexOutput out = directory.createOutput(FILE_NAME, IOContext.DEFAULT)) {
+                CodecUtil.writeHeader(out, CODEC, VERSION);
+                out.writeLong(generation);
+                out.writeVInt(snapshotEntries.size());
+                for (int i = 0; i < snapshotEntries.size(); i++) {
+                    QueryCacheEntry entry = snapshotEntries.get(i);
+                    writeBytes(entry.hash, out);
+                    Map<String, String> metadata = entry.metadata == null
+                            ? Collections.<String, String>emptyMap() : entry.metadata;
+                    out.writeVInt(metadata.size());
+                    for (Map.Entry<String, String> kv : metadata.entrySet()) {
+                        out.writeString(kv.getKey());
+                        out.writeString(kv.getValue());
+                    }
+                    writeBytes(queries.get(i), out);
+                }
+                CodecUtil.writeFooter(out);
+            }
+            directory.sync(Collections.singleton(FILE_NAME));
+            success = true;
+        }
+        finally {
+            if (success == false)
+                IOUtils.deleteFilesIgnoringExceptions(directory, FILE_NAME);
+        }
+        return snapshotEntries.size();
+    }
+
+    /**
+     * Read the snapshot from a directory
+     *
+     * @param directory the queryindex Directory
+     * @return the cache entries from the snapshot, keyed by hash, or an empty map if
+     *         there is no snapshot for the latest commit
+     * @throws IOException on IO errors
+     */
+    static Map<BytesRef, QueryCacheEntry> read(Directory directory) throws IOException {
+        Map<BytesRef, QueryCacheEntry> entries = new HashMap<>();
+        if (Arrays.asList(directory.listAll()).contains(FILE_NAME) == false)
+            return entries;
+        long generation = SegmentInfos.getLastCommitGeneration(directory);
+        try (ChecksumIndexInput in = directory.openChecksumInput(FILE_NAME, IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+            if (in.readLong() != generation)
+                return entries;     // the queryindex has been committed since the snapshot was taken
+            for (int i = in.readVInt(); i > 0; i--) {
+                BytesRef hash = readBytes(in);
+                Map<String, String> metadata = new HashMap<>();
+                for (int j = in.readVInt(); j > 0; j--) {
+                    metadata.put(in.readString(), in.readString());
+                }
+                entries.put(hash, new QueryCacheEntry(hash, QuerySerializer.deserialize(readBytes(in)), metadata));
+            }
+            CodecUtil.checkFooter(in);
+        }
+        catch (CorruptIndexException | EOFException | IndexFormatTooOldException | IndexFormatTooNewException e) {
+            // the snapshot is only an optimization, so queries are parsed as normal
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Remove any snapshot from a directory
+     * @param directory the queryindex Directory
+     * @throws IOException on IO errors
+     */
+    static void delete(Directory directory) throws IOException {
+        if (Arrays.asList(directory.listAll()).contains(FILE_NAME))
+            directory.deleteFile(FILE_NAME);
+    }
+
+    private static void writeBytes(BytesRef bytes, DataOutput out) throws IOException {
+        out.writeVInt(bytes.length);
+        out.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    private static BytesRef readBytes(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readVInt()];
+        in.readBytes(bytes, 0, bytes.length);
+        return new BytesRef(bytes);
+    }
+
+}
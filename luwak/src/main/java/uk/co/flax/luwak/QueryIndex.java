@@ -1,40 +1,116 @@
 package uk.co.flax.luwak;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
-import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.*;
 
-class QueryIndex {
+class QueryIndex implements Accountable {
     
     private final IndexWriter writer;
     private final SearcherManager manager;
 
-    /* Used to cache updates while a purge is ongoing */
-    private volatile Map<BytesRef, QueryCacheEntry> purgeCache = null;
-
-    /* Used to lock around the creation of the purgeCache */
-    private final ReadWriteLock purgeLock = new ReentrantReadWriteLock();
     private final Object commitLock = new Object();
 
-    /* The current query cache */
-    private volatile ConcurrentMap<BytesRef, QueryCacheEntry> queries = new ConcurrentHashMap<>();
-    // NB this is not final because it can be replaced by purgeCache()
+    /*
+     * The query cache.  Each segment of the queryindex has an array of QueryCacheEntry
+     * objects, indexed by docid and keyed by the segment's core cache key.  Arrays are
+     * built when a new segment is first seen by the SearcherManager, and are removed
+     * when the segment is closed.
+     */
+    private final Map<Object, QueryCacheEntry[]> segmentCaches = new ConcurrentHashMap<>();
+
+    /*
+     * Query ids decoded from each segment's id docvalues, indexed by ordinal and keyed by the
+     * segment's core cache key.  Arrays are filled lazily as ids are collected.
+     */
+    private final Map<Object, String[]> segmentIds = new ConcurrentHashMap<>();
+
+    /*
+     * The estimated size of each segment's cache array and the entries it holds, keyed by the
+     * segment's core cache key.  Sizes are recalculated whenever the arrays are filled or purged,
+     * so that reporting memory use doesn't need to walk the cache.
+     */
+    private final Map<Object, Long> segmentCacheBytes = new ConcurrentHashMap<>();
+
+    /* The estimated size of each segment's decoded ids, added to as ids are decoded */
+    private final Map<Object, AtomicLong> segmentIdBytes = new ConcurrentHashMap<>();
+
+    /* Queries that have been added to the writer but not yet seen by a refreshed searcher */
+    private final Map<BytesRef, QueryCacheEntry> pendingQueries = new HashMap<>();
 
     // package-private for testing
-    final Map<IndexReader, QueryTermFilter> termFilters = new HashMap<>();
-    
-    QueryIndex(IndexWriter indexWriter) throws IOException {
+    final Map<IndexReader, QueryTermFilter> termFilters = new ConcurrentHashMap<>();
+
+    /* The terms in each segment of the queryindex, keyed by the segment's core cache key */
+    // package-private for testing
+    final Map<Object, Map<String, BytesRefHash>> segmentTerms = new ConcurrentHashMap<>();
+
+    /* The estimated size of each segment's terms, keyed by the segment's core cache key */
+    private final Map<Object, Long> segmentTermsBytes = new ConcurrentHashMap<>();
+
+    /* Changes made since the last lucene commit, null if changes are committed immediately */
+    private final UpdateLog updateLog;
+    private final int maxUncommittedUpdates;
+    private int uncommittedUpdates = 0;
+
+    private final boolean useCacheSnapshot;
+
+    /* The query cache used instead of per-segment arrays if its size is bounded, otherwise null */
+    private final BoundedQueryCache boundedCache;
+    private final QueryLoader queryLoader;
+
+    /* Errors from parsing queries that were evicted from the bounded query cache, keyed by hash */
+    private final Map<BytesRef, QueryError> loadErrors = new ConcurrentHashMap<>();
+
+    private final MonitorMetrics metrics;
+
+    /**
+     * Create a new QueryIndex
+     * @param indexWriter the IndexWriter for the queryindex
+     * @param configuration the queryindex configuration
+     * @param queryLoader used to parse queries that have been evicted from a bounded query
+     *                    cache.  May be null if the cache is not bounded.
+     * @param shard the number of this queryindex's shard, used to take its share of the
+     *              Monitor's query cache budget
+     * @throws IOException on IO errors
+     */
+    QueryIndex(IndexWriter indexWriter, QueryIndexConfiguration configuration, QueryLoader queryLoader, int shard) throws IOException {
+        if (configuration.getMaxCachedQueries() >= 0 || configuration.getMaxQueryCacheBytes() >= 0) {
+            int shardCount = configuration.getShardCount();
+            this.boundedCache = new BoundedQueryCache(
+                    (int) BoundedQueryCache.share(configuration.getMaxCachedQueries(), shard, shardCount),
+                    BoundedQueryCache.share(configuration.getMaxQueryCacheBytes(), shard, shardCount));
+        }
+        else {
+            this.boundedCache = null;
+        }
+        this.queryLoader = queryLoader;
         this.writer = indexWriter;
         this.manager = new SearcherManager(writer, true, true, new TermsHashBuilder());
+        if (configuration.useUpdateLog()) {
+            String committedSequence = writer.getCommitData().get(UpdateLog.SEQUENCE_KEY);
+            this.updateLog = new UpdateLog(writer.getDirectory(),
+                    committedSequence == null ? 0 : Long.parseLong(committedSequence));
+        }
+        else {
+            this.updateLog = null;
+        }
+        this.maxUncommittedUpdates = configuration.getMaxUncommittedUpdates();
+        this.useCacheSnapshot = configuration.useQueryCacheSnapshot();
+        this.metrics = configuration.getMetrics();
+    }
+
+    QueryIndex(IndexWriter indexWriter) throws IOException {
+        this(indexWriter, new QueryIndexConfiguration(), null, 0);
     }
     
     QueryIndex() throws IOException {
@@ -45,7 +121,12 @@ class QueryIndex {
         @Override
         public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
             IndexSearcher searcher = super.newSearcher(reader, previousReader);
-            termFilters.put(reader, new QueryTermFilter(reader));
+            buildSegmentCaches(reader, previousReader);
+            List<Map<String, BytesRefHash>> terms = new ArrayList<>();
+            for (LeafReaderContext ctx : reader.leaves()) {
+                terms.add(segmentTerms.get(ctx.reader().getCoreCacheKey()));
+            }
+            termFilters.put(reader, new QueryTermFilter(terms));
             reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
                 @Override
                 public void onClose(IndexReader reader) throws IOException {
@@ -56,41 +137,306 @@ class QueryIndex {
         }
     }
 
+    /*
+     * Called by the SearcherManager on every refresh.  Segments that have already been
+     * seen keep their existing cache arrays and term sets; new segments (either freshly
+     * flushed, or the result of a merge) have their terms collected, and their arrays filled
+     * from the pending queries and from the cache arrays of any segments that have been
+     * merged away.  If the query cache is bounded, then no arrays are built.
+     */
+    private void buildSegmentCaches(IndexReader reader, IndexReader previousReader) throws IOException {
+
+        Set<Object> liveCores = new HashSet<>();
+        for (LeafReaderContext ctx : reader.leaves()) {
+            liveCores.add(ctx.reader().getCoreCacheKey());
+        }
+
+        Map<BytesRef, QueryCacheEntry> retiredQueries = null;
+        for (LeafReaderContext ctx : reader.leaves()) {
+            LeafReader leaf = ctx.reader();
+            if (segmentTerms.containsKey(leaf.getCoreCacheKey()))
+                continue;
+
+            QueryCacheEntry[] entries = new QueryCacheEntry[leaf.maxDoc()];
+            BinaryDocValues hashes = leaf.getBinaryDocValues(Monitor.FIELDS.hash);
+            if (hashes != null && boundedCache == null) {
+                for (int doc = 0; doc < entries.length; doc++) {
+                    BytesRef hash = hashes.get(doc);
+                    QueryCacheEntry entry = pendingQueries.get(hash);
+                    if (entry == null && previousReader != null) {
+                        if (retiredQueries == null)
+                            retiredQueries = collectRetiredQueries(previousReader, liveCores);
+                        entry = retiredQueries.get(hash);
+                    }
+                    entries[doc] = entry;
+                }
+            }
+
+            if (boundedCache == null) {
+                segmentCaches.put(leaf.getCoreCacheKey(), entries);
+                segmentCacheBytes.put(leaf.getCoreCacheKey(), ramBytesUsed(entries));
+            }
+            SortedDocValues ids = leaf.getSortedDocValues(Monitor.FIELDS.id);
+            String[] idArray = new String[ids == null ? 0 : ids.getValueCount()];
+            segmentIds.put(leaf.getCoreCacheKey(), idArray);
+            segmentIdBytes.put(leaf.getCoreCacheKey(), new AtomicLong(RamUsageEstimator.shallowSizeOf(idArray)));
+            Map<String, BytesRefHash> terms = QueryTermFilter.collectTerms(leaf);
+            segmentTerms.put(leaf.getCoreCacheKey(), terms);
+            segmentTermsBytes.put(leaf.getCoreCacheKey(), QueryTermFilter.ramBytesUsed(terms));
+            leaf.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+                @Override
+                public void onClose(Object ownerCoreCacheKey) throws IOException {
+                    segmentCaches.remove(ownerCoreCacheKey);
+                    segmentCacheBytes.remove(ownerCoreCacheKey);
+                    segmentIds.remove(ownerCoreCacheKey);
+                    segmentIdBytes.remove(ownerCoreCacheKey);
+                    segmentTerms.remove(ownerCoreCacheKey);
+                    segmentTermsBytes.remove(ownerCoreCacheKey);
+                }
+            });
+        }
+    }
+
+    // Collects the cached queries from segments that are no longer part of the index
+    private Map<BytesRef, QueryCacheEntry> collectRetiredQueries(IndexReader previousReader, Set<Object> liveCores) {
+        Map<BytesRef, QueryCacheEntry> retired = new HashMap<>();
+        for (LeafReaderContext ctx : previousReader.leaves()) {
+            if (liveCores.contains(ctx.reader().getCoreCacheKey()))
+                continue;
+            QueryCacheEntry[] entries = segmentCaches.get(ctx.reader().getCoreCacheKey());
+            if (entries == null)
+                continue;
+            for (QueryCacheEntry entry : entries) {
+                if (entry != null)
+                    retired.put(entry.hash, entry);
+            }
+        }
+        return retired;
+    }
+
+    /**
+     * Add or replace queries in the queryindex, and make them visible to searches
+     *
+     * If the update log is in use, the queries are stored in the log rather than being
+     * committed to the queryindex straight away.  This requires that the serialized
+     * MonitorQuery is stored in each document's {@link Monitor.FIELDS#mq} docvalues.
+     *
+     * @param updates the queries to add
+     * @throws IOException on IO errors
+     */
     void commit(List<Indexable> updates) throws IOException {
         synchronized (commitLock) {
-            purgeLock.readLock().lock();
-            try {
-                if (updates != null) {
-                    Set<String> ids = new HashSet<>();
-                    for (Indexable update : updates) {
-                        ids.add(update.id);
+            if (updateLog != null && updates.isEmpty() == false) {
+                Map<String, BytesRef> queries = new LinkedHashMap<>();
+                for (Indexable update : updates) {
+                    queries.put(update.id, update.document.getBinaryValue(Monitor.FIELDS.mq));
+                }
+                updateLog.logUpdates(queries.values());
+                uncommittedUpdates += queries.size();
+            }
+            addDocuments(updates);
+            publishChanges();
+        }
+    }
+
+    /**
+     * Delete queries from the queryindex
+     * @param ids the ids of the queries to delete
+     * @throws IOException on IO errors
+     */
+    void delete(Collection<String> ids) throws IOException {
+        synchronized (commitLock) {
+            if (updateLog != null) {
+                updateLog.logDeletes(ids);
+                uncommittedUpdates += ids.size();
+            }
+            for (String id : ids) {
+                writer.deleteDocuments(new Term(Monitor.FIELDS.del, id));
+            }
+            publishChanges();
+        }
+    }
+
+    /**
+     * Delete all queries from the queryindex
+     * @throws IOException on IO errors
+     */
+    void clear() throws IOException {
+        synchronized (commitLock) {
+            if (updateLog != null) {
+                updateLog.logClear();
+                uncommittedUpdates++;
+            }
+            writer.deleteDocuments(new MatchAllDocsQuery());
+            publishChanges();
+        }
+    }
+
+    /**
+     * Add queries that have been indexed into separate directories to the queryindex,
+     * replacing any existing queries with the same ids, and commit them
+     *
+     * Any changes held in the update log are committed first, as the added queries are
+     * not recorded in the log.
+     *
+     * @param directories the directories holding the indexed queries
+     * @param ids the ids of the queries in the directories
+     * @param entries cache entries for the queries in the directories
+     * @throws IOException on IO errors
+     */
+    void addIndexes(Directory[] directories, Collection<String> ids, Collection<QueryCacheEntry> entries) throws IOException {
+        synchronized (commitLock) {
+            if (updateLog != null)
+                commitUpdateLog();
+            if (writer.maxDoc() > 0) {
+                for (String id : ids) {
+                    writer.deleteDocuments(new Term(Monitor.FIELDS.del, id));
+                }
+            }
+            writer.addIndexes(directories);
+            for (QueryCacheEntry entry : entries) {
+                if (boundedCache != null)
+                    boundedCache.put(entry);
+                else
+                    pendingQueries.put(entry.hash, entry);
+            }
+            if (updateLog != null)
+                commitUpdateLog();
+            else
+                writer.commit();
+            manager.maybeRefreshBlocking();
+            pendingQueries.clear();
+        }
+    }
+
+    /**
+     * @return the analyzer used by the queryindex IndexWriter
+     */
+    Analyzer getAnalyzer() {
+        return writer.getAnalyzer();
+    }
+
+    interface IndexableBuilder {
+        /**
+         * Build the documents to be indexed for a MonitorQuery
+         * @param mq the MonitorQuery
+         * @return the documents and cache entries for the MonitorQuery
+         * @throws Exception on parse errors
+         */
+        List<Indexable> build(MonitorQuery mq) throws Exception;
+    }
+
+    /**
+     * Apply all changes recorded in the update log since the last lucene commit, and
+     * then commit them
+     * @param builder an IndexableBuilder used to rebuild updated queries
+     * @return a list of any exceptions thrown while rebuilding queries
+     * @throws IOException on IO errors
+     */
+    List<Exception> replayUpdateLog(final IndexableBuilder builder) throws IOException {
+        final List<Exception> errors = new ArrayList<>();
+        if (updateLog == null)
+            return errors;
+        synchronized (commitLock) {
+            updateLog.replay(new UpdateLog.Handler() {
+                @Override
+                public void update(MonitorQuery mq) throws IOException {
+                    try {
+                        addDocuments(builder.build(mq));
                     }
-                    for (String id : ids) {
-                        writer.deleteDocuments(new Term(Monitor.FIELDS.del, id));
+                    catch (IOException e) {
+                        throw e;
                     }
-                    for (Indexable update : updates) {
-                        this.queries.put(update.queryCacheEntry.hash, update.queryCacheEntry);
-                        writer.addDocument(update.document);
-                        if (purgeCache != null)
-                            purgeCache.put(update.queryCacheEntry.hash, update.queryCacheEntry);
+                    catch (Exception e) {
+                        errors.add(e);
                     }
                 }
-                writer.commit();
-                manager.maybeRefresh();
-            } finally {
-                purgeLock.readLock().unlock();
-            }
+
+                @Override
+                public void delete(String id) throws IOException {
+                    writer.deleteDocuments(new Term(Monitor.FIELDS.del, id));
+                }
+
+                @Override
+                public void clear() throws IOException {
+                    writer.deleteDocuments(new MatchAllDocsQuery());
+                }
+            });
+            commitUpdateLog();
+            manager.maybeRefreshBlocking();
+            pendingQueries.clear();
+        }
+        return errors;
+    }
+
+    /**
+     * Commit any changes held in the update log to the queryindex
+     * @throws IOException on IO errors
+     */
+    void flush() throws IOException {
+        if (updateLog == null)
+            return;
+        synchronized (commitLock) {
+            commitUpdateLog();
+        }
+    }
+
+    private void addDocuments(List<Indexable> updates) throws IOException {
+        Set<String> ids = new HashSet<>();
+        for (Indexable update : updates) {
+            ids.add(update.id);
+        }
+        for (String id : ids) {
+            writer.deleteDocuments(new Term(Monitor.FIELDS.del, id));
+        }
+        for (Indexable update : updates) {
+            if (boundedCache != null)
+                boundedCache.put(update.queryCacheEntry);
+            else
+                pendingQueries.put(update.queryCacheEntry.hash, update.queryCacheEntry);
+            writer.addDocument(update.document);
         }
     }
 
+    // Called under the commitLock once changes have been added to the writer
+    private void publishChanges() throws IOException {
+        if (updateLog == null)
+            writer.commit();
+        else if (uncommittedUpdates >= maxUncommittedUpdates)
+            commitUpdateLog();
+        manager.maybeRefreshBlocking();
+        // all pending queries are now visible in the current searcher's cache arrays
+        pendingQueries.clear();
+    }
+
+    private void commitUpdateLog() throws IOException {
+        long sequence = updateLog.getSequence();
+        writer.setCommitData(Collections.singletonMap(UpdateLog.SEQUENCE_KEY, Long.toString(sequence)));
+        writer.commit();
+        updateLog.truncate(sequence);
+        uncommittedUpdates = 0;
+    }
+
     interface QueryBuilder {
         Query buildQuery(QueryTermFilter termFilter) throws IOException;
     }
 
+    /**
+     * Pass every query in the queryindex to a collector
+     *
+     * If the query cache is bounded, queries that are not in the cache are passed as null
+     * rather than being parsed.
+     */
     long scan(QueryCollector matcher) throws IOException {
         return search(new MatchAllDocsQuery(), matcher);
     }
 
+    /**
+     * Pass every query matching a lucene query to a collector
+     *
+     * If the query cache is bounded, queries that are not in the cache are passed as null
+     * rather than being parsed.
+     */
     long search(final Query query, QueryCollector matcher) throws IOException {
         QueryBuilder builder = new QueryBuilder() {
             @Override
@@ -98,24 +444,64 @@ class QueryIndex {
                 return query;
             }
         };
-        return search(builder, matcher);
+        return search(builder, matcher, false, false);
     }
 
+    /**
+     * Pass every query matching a lucene query built from the queryindex terms to a collector
+     *
+     * If the query cache is bounded, queries that are not in the cache are parsed from their
+     * stored MonitorQuery and added to the cache.
+     *
+     * Hits are not scored, so {@link DataValues#scorer} cannot be used by the collector.
+     */
     long search(QueryBuilder queryBuilder, QueryCollector matcher) throws IOException {
-        IndexSearcher searcher = null;
-        try {
-            Map<BytesRef, QueryCacheEntry> queries;
+        if (metrics == MonitorMetrics.NOOP)
+            return search(queryBuilder, matcher, true, false);
+        long startTime = System.nanoTime();
+        TimedCollector timed = new TimedCollector(matcher);
+        long buildTime = search(queryBuilder, timed, true, false);
+        metrics.presearcherQueryBuilt(buildTime);
+        metrics.queryIndexSearched(System.nanoTime() - startTime - buildTime - timed.collectTime);
+        return buildTime;
+    }
 
-            purgeLock.readLock().lock();
+    // Records the time spent in a collector, so that it can be left out of the search time
+    private static class TimedCollector implements QueryCollector {
+
+        final QueryCollector collector;
+        long collectTime = 0;
+
+        TimedCollector(QueryCollector collector) {
+            this.collector = collector;
+        }
+
+        @Override
+        public void matchQuery(String id, QueryCacheEntry query, DataValues dataValues) throws IOException {
+            long startTime = System.nanoTime();
             try {
-                searcher = manager.acquire();
-                queries = this.queries;
+                collector.matchQuery(id, query, dataValues);
             }
             finally {
-                purgeLock.readLock().unlock();
+                collectTime += System.nanoTime() - startTime;
             }
+        }
+    }
+
+    /**
+     * As {@link #search(QueryBuilder, QueryCollector)}, but scoring each hit so that the
+     * collector can inspect {@link DataValues#scorer}
+     */
+    long searchWithScores(QueryBuilder queryBuilder, QueryCollector matcher) throws IOException {
+        return search(queryBuilder, matcher, true, true);
+    }
 
-            MonitorQueryCollector collector = new MonitorQueryCollector(queries, matcher);
+    private long search(QueryBuilder queryBuilder, QueryCollector matcher,
+                        boolean loadQueries, boolean needsScores) throws IOException {
+        IndexSearcher searcher = null;
+        try {
+            searcher = manager.acquire();
+            MonitorQueryCollector collector = new MonitorQueryCollector(matcher, loadQueries, needsScores);
             long buildTime = System.nanoTime();
             Query query = queryBuilder.buildQuery(termFilters.get(searcher.getIndexReader()));
             buildTime = System.nanoTime() - buildTime;
@@ -129,86 +515,405 @@ class QueryIndex {
         }
     }
     
-    interface CachePopulator {
-        void populateCacheWithIndex(Map<BytesRef, QueryCacheEntry> newCache) throws IOException;
+    interface QueryLoader {
+        /**
+         * Parse and decompose a MonitorQuery stored in the queryindex
+         * @param mq the stored MonitorQuery
+         * @return the cache entries for the MonitorQuery
+         * @throws Exception on parse errors
+         */
+        Iterable<QueryCacheEntry> load(MonitorQuery mq) throws Exception;
     }
-    
+
+    interface CacheLoader extends QueryLoader {
+
+        /**
+         * Called each time a range of documents has been loaded.  This may be called
+         * from several threads at once.
+         * @param docs the number of documents in the range
+         */
+        void rangeLoaded(int docs);
+    }
+
+    /* The number of documents loaded by a single cache population task */
+    static final int POPULATE_RANGE_SIZE = 4096;
+
     /**
-     * Remove unused queries from the query cache.
+     * Populate the query cache for queries already stored in the queryindex
      *
-     * This is normally called from a background thread at a rate set by configurePurgeFrequency().
+     * Every live document without a cache entry has its MonitorQuery deserialized from the
+     * stored {@link Monitor.FIELDS#mq} docvalues and passed to the loader.  Documents with
+     * identical query hashes share a single entry.  Each segment is split into ranges of
+     * docids, which are loaded concurrently if an executor is supplied.  If a query cache
+     * snapshot is in use, entries are taken from the snapshot where possible.
      *
+     * If the query cache is bounded, queries are instead parsed when they are first
+     * selected by a search, and this does nothing.
+     *
+     * @param loader the CacheLoader used to build cache entries
+     * @param executor an ExecutorService to load document ranges, or null to load them on the calling thread
+     * @return a list of any exceptions thrown while loading queries
      * @throws IOException on IO errors
      */
-    synchronized void purgeCache(CachePopulator populator) throws IOException {
-
-        /*
-            Note on implementation
-
-            The purge works by scanning the query index and creating a new query cache populated
-            for each query in the index.  When the scan is complete, the old query cache is swapped
-            for the new, allowing it to be garbage-collected.
+    List<Exception> populateCache(final CacheLoader loader, ExecutorService executor) throws IOException {
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        if (boundedCache != null)
+            return errors;
+        final ConcurrentMap<BytesRef, QueryCacheEntry> loaded = new ConcurrentHashMap<>();
+        if (useCacheSnapshot)
+            loaded.putAll(QueryCacheSnapshot.read(writer.getDirectory()));
+        final Set<BytesRef> failed = Collections.newSetFromMap(new ConcurrentHashMap<BytesRef, Boolean>());
+        IndexSearcher searcher = manager.acquire();
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                final LeafReader leaf = ctx.reader();
+                final QueryCacheEntry[] entries = segmentCaches.get(leaf.getCoreCacheKey());
+                for (int start = 0; start < entries.length; start += POPULATE_RANGE_SIZE) {
+                    final int min = start;
+                    final int max = Math.min(entries.length, start + POPULATE_RANGE_SIZE);
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            populateRange(leaf, entries, min, max, loader, loaded, failed, errors);
+                            loader.rangeLoaded(max - min);
+                            return null;
+                        }
+                    });
+                }
+            }
+            runTasks(tasks, executor);
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                Object coreKey = ctx.reader().getCoreCacheKey();
+                segmentCacheBytes.put(coreKey, ramBytesUsed(segmentCaches.get(coreKey)));
+            }
+        }
+        finally {
+            manager.release(searcher);
+        }
+        return errors;
+    }
 
-            In order to not drop cached queries that have been added while a purge is ongoing,
-            we use a ReadWriteLock to guard the creation and removal of an update log.  Commits take
-            the read lock.  If the update log has been created, then a purge is ongoing, and queries
-            are added to the update log within the read lock guard.
+    private static void populateRange(LeafReader leaf, QueryCacheEntry[] entries, int min, int max, CacheLoader loader,
+                                      ConcurrentMap<BytesRef, QueryCacheEntry> loaded, Set<BytesRef> failed,
+                                      List<Exception> errors) throws IOException {
+        // docvalues instances are per-thread, so each range fetches its own
+        BinaryDocValues hashes = leaf.getBinaryDocValues(Monitor.FIELDS.hash);
+        BinaryDocValues mqs = leaf.getBinaryDocValues(Monitor.FIELDS.mq);
+        Bits liveDocs = leaf.getLiveDocs();
+        if (hashes == null || mqs == null)
+            return;
+        for (int doc = min; doc < max; doc++) {
+            if (entries[doc] != null || (liveDocs != null && liveDocs.get(doc) == false))
+                continue;
+            BytesRef hash = hashes.get(doc);
+            if (failed.contains(hash))
+                continue;
+            QueryCacheEntry entry = loaded.get(hash);
+            if (entry == null) {
+                // another thread may be loading the same query; if so, the first entry added wins
+                try {
+                    for (QueryCacheEntry loadedEntry : loader.load(MonitorQuery.deserialize(mqs.get(doc)))) {
+                        QueryCacheEntry existing = loaded.putIfAbsent(loadedEntry.hash, loadedEntry);
+                        if (existing == null)
+                            existing = loadedEntry;
+                        if (existing.hash.bytesEquals(hash))
+                            entry = existing;
+                    }
+                }
+                catch (Exception e) {
+                    if (failed.add(BytesRef.deepCopyOf(hash)))
+                        errors.add(e);
+                }
+            }
+            entries[doc] = entry;
+        }
+    }
 
-            The purge takes the write lock when creating the update log, and then when swapping out
-            the old query cache.  Within the second write lock guard, the contents of the update log
-            are added to the new query cache, and the update log itself is removed.
-         */
+    private static void runTasks(List<Callable<Void>> tasks, ExecutorService executor) throws IOException {
+        try {
+            if (executor == null) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while populating query cache", e);
+        }
+        catch (IOException | RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
 
-        final ConcurrentMap<BytesRef, QueryCacheEntry> newCache = new ConcurrentHashMap<>();
+    /**
+     * Commit the queryindex, and write a snapshot of the query cache for the commit
+     * @return the number of cache entries written to the snapshot
+     * @throws IOException on IO errors
+     */
+    int writeCacheSnapshot() throws IOException {
+        synchronized (commitLock) {
+            if (updateLog != null)
+                commitUpdateLog();
+            else
+                writer.commit();
+            if (boundedCache != null)
+                return QueryCacheSnapshot.write(writer.getDirectory(), boundedCache.entries());
+            Map<BytesRef, QueryCacheEntry> entries = new HashMap<>();
+            IndexSearcher searcher = manager.acquire();
+            try {
+                for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                    Bits liveDocs = ctx.reader().getLiveDocs();
+                    QueryCacheEntry[] segmentEntries = segmentCaches.get(ctx.reader().getCoreCacheKey());
+                    for (int doc = 0; doc < segmentEntries.length; doc++) {
+                        if (segmentEntries[doc] != null && (liveDocs == null || liveDocs.get(doc)))
+                            entries.put(segmentEntries[doc].hash, segmentEntries[doc]);
+                    }
+                }
+            }
+            finally {
+                manager.release(searcher);
+            }
+            return QueryCacheSnapshot.write(writer.getDirectory(), entries.values());
+        }
+    }
 
-        purgeLock.writeLock().lock();
+    /**
+     * Remove cache entries for deleted queries from the query cache.
+     *
+     * Segments that are merged away release all their cache entries automatically, so this
+     * only needs to clear entries for deleted documents in segments that are still live.
+     * A bounded query cache is instead checked against the hashes of all live documents.
+     *
+     * @throws IOException on IO errors
+     */
+    void purgeCache() throws IOException {
+        if (boundedCache != null) {
+            purgeBoundedCache();
+            return;
+        }
+        IndexSearcher searcher = manager.acquire();
         try {
-            purgeCache = new ConcurrentHashMap<>();
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                Bits liveDocs = ctx.reader().getLiveDocs();
+                QueryCacheEntry[] entries = segmentCaches.get(ctx.reader().getCoreCacheKey());
+                if (liveDocs == null || entries == null)
+                    continue;
+                for (int doc = 0; doc < entries.length; doc++) {
+                    if (liveDocs.get(doc) == false)
+                        entries[doc] = null;
+                }
+                segmentCacheBytes.put(ctx.reader().getCoreCacheKey(), ramBytesUsed(entries));
+            }
         }
         finally {
-            purgeLock.writeLock().unlock();
+            manager.release(searcher);
+        }
+    }
+
+    /*
+     * Parse a query that isn't in the bounded cache, adding all of its disjuncts to the cache
+     * so that the query is only parsed once.  The query was parsed when it was added, so
+     * errors are only expected if the parser has changed since; in that case, the query is
+     * skipped, and the error is recorded rather than the query being parsed on every match.
+     */
+    private QueryCacheEntry loadBoundedEntry(BytesRef hash, MonitorQuery mq, QueryLoader loader) {
+        QueryCacheEntry entry = null;
+        try {
+            for (QueryCacheEntry loaded : loader.load(mq)) {
+                QueryCacheEntry cached = boundedCache.put(loaded);
+                if (loaded.hash.bytesEquals(hash))
+                    entry = cached;
+            }
+        }
+        catch (Exception e) {
+            loadErrors.put(BytesRef.deepCopyOf(hash), new QueryError(mq.getId(), mq.getQuery(), e.getMessage()));
         }
-        
-        populator.populateCacheWithIndex(newCache);
+        return entry;
+    }
+
+    /**
+     * @return errors from parsing queries that had been evicted from the bounded query cache
+     */
+    Collection<QueryError> getLoadErrors() {
+        return loadErrors.values();
+    }
 
-        purgeLock.writeLock().lock();
+    private void purgeBoundedCache() throws IOException {
+        Set<BytesRef> liveHashes = new HashSet<>();
+        IndexSearcher searcher = manager.acquire();
         try {
-            newCache.putAll(purgeCache);
-            purgeCache = null;
-            queries = newCache;
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                Bits liveDocs = ctx.reader().getLiveDocs();
+                BinaryDocValues hashes = ctx.reader().getBinaryDocValues(Monitor.FIELDS.hash);
+                if (hashes == null)
+                    continue;
+                for (int doc = 0; doc < ctx.reader().maxDoc(); doc++) {
+                    if (liveDocs == null || liveDocs.get(doc))
+                        liveHashes.add(BytesRef.deepCopyOf(hashes.get(doc)));
+                }
+            }
         }
         finally {
-            purgeLock.writeLock().unlock();
+            manager.release(searcher);
         }
+        boundedCache.retainAll(liveHashes);
+        loadErrors.keySet().retainAll(liveHashes);
     }
-    
-    
+
     // ---------------------------------------------
     //  Proxy trivial operations...
     // ---------------------------------------------
 
     void closeWhileHandlingException() throws IOException {
-        IOUtils.closeWhileHandlingException(manager, writer, writer.getDirectory());
+        IOUtils.closeWhileHandlingException(updateLog, manager, writer, writer.getDirectory());
+    }
+
+    private void releaseQuietly(IndexSearcher searcher) {
+        if (searcher == null)
+            return;
+        try {
+            manager.release(searcher);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     int numDocs() {
         return writer.numDocs();
     }
 
+    int maxDoc() {
+        return writer.maxDoc();
+    }
+
     int numRamDocs() {
         return writer.numRamDocs();
     }
 
     int cacheSize() {
-        return queries.size();
+        if (boundedCache != null)
+            return boundedCache.size();
+        int size = 0;
+        IndexSearcher searcher = null;
+        try {
+            searcher = manager.acquire();
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                QueryCacheEntry[] entries = segmentCaches.get(ctx.reader().getCoreCacheKey());
+                if (entries == null)
+                    continue;
+                for (QueryCacheEntry entry : entries) {
+                    if (entry != null)
+                        size++;
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            releaseQuietly(searcher);
+        }
+        return size;
     }
 
-    void deleteDocuments(Term term) throws IOException {
-        writer.deleteDocuments(term);
+    long cacheHits() {
+        return boundedCache == null ? 0 : boundedCache.hitCount();
     }
 
-    void deleteDocuments(Query query) throws IOException {
-        writer.deleteDocuments(query);            
+    long cacheMisses() {
+        return boundedCache == null ? 0 : boundedCache.missCount();
+    }
+
+    long cacheEvictions() {
+        return boundedCache == null ? 0 : boundedCache.evictionCount();
+    }
+
+    /**
+     * An estimate of the memory used by the query cache and the decoded query ids
+     *
+     * Entries shared between several documents of a segment are only counted once.  An entry
+     * carried over from a merged segment is counted against both segments until the old
+     * segment is closed.
+     */
+    long queryCacheRamBytesUsed() {
+        long size = 0;
+        if (boundedCache != null) {
+            size += boundedCache.ramBytesUsed();
+        }
+        else {
+            for (Long bytes : segmentCacheBytes.values()) {
+                size += bytes;
+            }
+        }
+        for (AtomicLong bytes : segmentIdBytes.values()) {
+            size += bytes.get();
+        }
+        return size;
+    }
+
+    private static long ramBytesUsed(QueryCacheEntry[] entries) {
+        long size = RamUsageEstimator.shallowSizeOf(entries);
+        Set<QueryCacheEntry> seen = Collections.newSetFromMap(new IdentityHashMap<QueryCacheEntry, Boolean>());
+        for (QueryCacheEntry entry : entries) {
+            if (entry != null && seen.add(entry))
+                size += entry.ramBytesUsed();
+        }
+        return size;
+    }
+
+    /**
+     * An estimate of the memory used by the QueryTermFilters of open searchers, and the
+     * per-segment term sets that they share
+     */
+    long termFilterRamBytesUsed() {
+        long size = 0;
+        for (Long bytes : segmentTermsBytes.values()) {
+            size += bytes;
+        }
+        for (QueryTermFilter filter : termFilters.values()) {
+            size += filter.ramBytesUsedExcludingTerms();
+        }
+        return size;
+    }
+
+    /**
+     * The memory used by documents buffered in the IndexWriter, and by the queryindex
+     * files if they are held in a RAM-resident Directory
+     */
+    long queryIndexRamBytesUsed() {
+        long size = writer.ramBytesUsed();
+        if (writer.getDirectory() instanceof Accountable)
+            size += ((Accountable) writer.getDirectory()).ramBytesUsed();
+        return size;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return queryCacheRamBytesUsed() + termFilterRamBytesUsed() + queryIndexRamBytesUsed();
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        List<Accountable> resources = new ArrayList<>();
+        resources.add(Accountables.namedAccountable("query cache", queryCacheRamBytesUsed()));
+        resources.add(Accountables.namedAccountable("term filters", termFilterRamBytesUsed()));
+        resources.add(Accountables.namedAccountable("queryindex", queryIndexRamBytesUsed()));
+        return Collections.unmodifiableList(resources);
     }
 
     interface QueryCollector {
@@ -222,7 +927,6 @@ class QueryIndex {
     // ---------------------------------------------
 
     static final class DataValues {
-        public BinaryDocValues hash;
         public SortedDocValues id;
         public BinaryDocValues mq;
         public Scorer scorer;
@@ -231,16 +935,27 @@ class QueryIndex {
 
     /**
      * A Collector that decodes the stored query for each document hit.
+     *
+     * Hits are only scored if the search needs scores.  Query ids are resolved
+     * through the docvalues ordinal of each hit, and each id is only decoded into a String
+     * once per segment.
      */
-    static final class MonitorQueryCollector extends SimpleCollector {
+    final class MonitorQueryCollector extends SimpleCollector {
 
-        private final Map<BytesRef, QueryCacheEntry> queries;
         private final QueryCollector matcher;
+        private final QueryLoader loader;
+        private final boolean needsScores;
         private final DataValues dataValues = new DataValues();
 
-        public MonitorQueryCollector(Map<BytesRef, QueryCacheEntry> queries, QueryCollector matcher) {
-            this.queries = queries;
+        private QueryCacheEntry[] queries;
+        private String[] ids;
+        private AtomicLong idBytes;
+        private BinaryDocValues hashes;
+
+        MonitorQueryCollector(QueryCollector matcher, boolean loadQueries, boolean needsScores) {
             this.matcher = matcher;
+            this.loader = loadQueries ? queryLoader : null;
+            this.needsScores = needsScores;
         }
 
         @Override
@@ -250,23 +965,47 @@ class QueryIndex {
 
         @Override
         public void collect(int doc) throws IOException {
-            BytesRef hash = dataValues.hash.get(doc);
-            BytesRef id = dataValues.id.get(doc);
-            QueryCacheEntry query = queries.get(hash);
             dataValues.doc = doc;
-            matcher.matchQuery(id.utf8ToString(), query, dataValues);
+            QueryCacheEntry query = boundedCache == null ? queries[doc] : getBoundedEntry(doc);
+            matcher.matchQuery(getId(doc), query, dataValues);
+        }
+
+        private String getId(int doc) {
+            int ord = dataValues.id.getOrd(doc);
+            String id = ids[ord];
+            if (id == null) {
+                // benign race: another thread may decode the same id concurrently
+                id = dataValues.id.lookupOrd(ord).utf8ToString();
+                ids[ord] = id;
+                idBytes.addAndGet(QueryCacheEntry.ramBytesUsed(id));
+            }
+            return id;
+        }
+
+        private QueryCacheEntry getBoundedEntry(int doc) {
+            BytesRef hash = hashes.get(doc);
+            if (loader == null)
+                return boundedCache.peek(hash);
+            QueryCacheEntry entry = boundedCache.get(hash);
+            if (entry != null || loadErrors.containsKey(hash))
+                return entry;
+            return loadBoundedEntry(hash, MonitorQuery.deserialize(dataValues.mq.get(doc)), loader);
         }
 
         @Override
         public void doSetNextReader(LeafReaderContext context) throws IOException {
-            this.dataValues.hash = context.reader().getBinaryDocValues(Monitor.FIELDS.hash);
+            Object coreKey = context.reader().getCoreCacheKey();
+            this.queries = segmentCaches.get(coreKey);
+            this.ids = segmentIds.get(coreKey);
+            this.idBytes = segmentIdBytes.get(coreKey);
+            this.hashes = context.reader().getBinaryDocValues(Monitor.FIELDS.hash);
             this.dataValues.id = context.reader().getSortedDocValues(Monitor.FIELDS.id);
             this.dataValues.mq = context.reader().getBinaryDocValues(Monitor.FIELDS.mq);
         }
 
         @Override
         public boolean needsScores() {
-            return true;
+            return needsScores;
         }
 
     }
@@ -16,6 +16,9 @@ package uk.co.flax.luwak;
  *   limitations under the License.
  */
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -28,6 +31,19 @@ public class QueryIndexConfiguration {
     private TimeUnit purgeFrequencyUnits = TimeUnit.MINUTES;
     private QueryDecomposer queryDecomposer = new QueryDecomposer();
     private boolean storeQueries = true;
+    private int shardCount = 1;
+    private boolean useUpdateLog = false;
+    private long commitFrequency = 1;
+    private TimeUnit commitFrequencyUnits = TimeUnit.MINUTES;
+    private int maxUncommittedUpdates = 10000;
+    private ExecutorService warmupExecutor = null;
+    private boolean useQueryCacheSnapshot = false;
+    private int maxCachedQueries = -1;
+    private long maxQueryCacheBytes = -1;
+    private int maxInFlightMatches = -1;
+    private int maxInFlightUpdates = -1;
+    private MonitorMetrics metrics = MonitorMetrics.NOOP;
+    private final List<QueryIndexUpdateListener> listeners = new ArrayList<>();
 
     /**
      * Set the QueryDecomposer to be used by the Monitor
@@ -102,4 +118,254 @@ public class QueryIndexConfiguration {
         return storeQueries;
     }
 
+    /**
+     * Set the number of shards the Monitor's queryindex is split into
+     *
+     * Queries are partitioned between shards by a hash of their id, and each shard
+     * is searched concurrently during a match run.  Monitors created over an explicit
+     * {@link org.apache.lucene.index.IndexWriter} or {@link org.apache.lucene.store.Directory}
+     * must be passed one IndexWriter per shard.
+     *
+     * @param shardCount the number of shards
+     */
+    public QueryIndexConfiguration setShardCount(int shardCount) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        this.shardCount = shardCount;
+        return this;
+    }
+
+    /**
+     * @return the number of shards the Monitor's queryindex is split into
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Set whether or not the Monitor should record changes to its queryindex in an update log
+     *
+     * By default, every update or delete is committed to the queryindex before it returns.
+     * With an update log, changes are made visible to searches as soon as they have been
+     * appended to the log, and are committed to the queryindex in groups, either at the
+     * frequency set by {@link #setCommitFrequency(long, TimeUnit)} or once
+     * {@link #setMaxUncommittedUpdates(int)} changes have built up.  Any changes that have
+     * not been committed when the Monitor is next opened are replayed from the log.
+     *
+     * The update log requires that queries are stored in the queryindex, and that the
+     * queryindex is held in an {@link org.apache.lucene.store.FSDirectory}.
+     */
+    public QueryIndexConfiguration useUpdateLog(boolean useUpdateLog) {
+        this.useUpdateLog = useUpdateLog;
+        return this;
+    }
+
+    /**
+     * @return whether or not the Monitor records changes in an update log
+     */
+    public boolean useUpdateLog() {
+        return useUpdateLog;
+    }
+
+    /**
+     * Set the frequency with which changes held in the update log will be committed to the queryindex
+     * @param frequency the frequency value
+     * @param units     the frequency units
+     */
+    public QueryIndexConfiguration setCommitFrequency(long frequency, TimeUnit units) {
+        this.commitFrequency = frequency;
+        this.commitFrequencyUnits = units;
+        return this;
+    }
+
+    /**
+     * Get the value of the update log commit frequency
+     */
+    public long getCommitFrequency() {
+        return commitFrequency;
+    }
+
+    /**
+     * Get the units of the update log commit frequency
+     */
+    public TimeUnit getCommitFrequencyUnits() {
+        return commitFrequencyUnits;
+    }
+
+    /**
+     * Set how many changes may be held in the update log of a queryindex shard before
+     * they are committed, regardless of the commit frequency
+     */
+    public QueryIndexConfiguration setMaxUncommittedUpdates(int maxUncommittedUpdates) {
+        this.maxUncommittedUpdates = maxUncommittedUpdates;
+        return this;
+    }
+
+    /**
+     * @return how many changes may be held in the update log before they are committed
+     */
+    public int getMaxUncommittedUpdates() {
+        return maxUncommittedUpdates;
+    }
+
+    /**
+     * Set an ExecutorService used to populate the Monitor's query cache from queries
+     * already stored in its queryindex
+     *
+     * Each segment of the queryindex is split into ranges of documents which are
+     * parsed concurrently.  By default, the query cache is populated on the thread that
+     * creates the Monitor.  The Monitor does not shut down the executor.
+     */
+    public QueryIndexConfiguration setWarmupExecutor(ExecutorService warmupExecutor) {
+        this.warmupExecutor = warmupExecutor;
+        return this;
+    }
+
+    /**
+     * @return the ExecutorService used to populate the query cache, or null if it is populated serially
+     */
+    public ExecutorService getWarmupExecutor() {
+        return warmupExecutor;
+    }
+
+    /**
+     * Set whether or not the Monitor should store a snapshot of its parsed query cache
+     *
+     * The snapshot is written when the Monitor is closed, and is used to populate the
+     * query cache when the Monitor is next opened, rather than re-parsing every stored
+     * query.  The snapshot is ignored if the queryindex has been changed since it was
+     * written, and queries that cannot be stored in the snapshot are parsed as normal.
+     *
+     * Snapshots require that queries are stored in the queryindex.
+     */
+    public QueryIndexConfiguration useQueryCacheSnapshot(boolean useQueryCacheSnapshot) {
+        this.useQueryCacheSnapshot = useQueryCacheSnapshot;
+        return this;
+    }
+
+    /**
+     * @return whether or not the Monitor stores a snapshot of its query cache
+     */
+    public boolean useQueryCacheSnapshot() {
+        return useQueryCacheSnapshot;
+    }
+
+    /**
+     * Set the maximum number of entries held in the Monitor's query cache
+     *
+     * By default, the parsed form of every query is held in memory.  If the cache is
+     * bounded, by number of entries or by size, queries are parsed from the queryindex
+     * when they are first selected by the presearcher, and infrequently used queries are
+     * evicted once the cache is full.  A bounded cache requires that queries are stored in
+     * the queryindex.  If the queryindex is sharded, each shard has its own cache, and the
+     * limit is divided evenly between them.
+     *
+     * @param maxCachedQueries the maximum number of entries, or -1 for no limit
+     */
+    public QueryIndexConfiguration setMaxCachedQueries(int maxCachedQueries) {
+        this.maxCachedQueries = maxCachedQueries;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of entries held in the query cache, or -1 if there is no limit
+     */
+    public int getMaxCachedQueries() {
+        return maxCachedQueries;
+    }
+
+    /**
+     * Set the maximum estimated size in bytes of the Monitor's query cache
+     *
+     * @param maxQueryCacheBytes the maximum size, or -1 for no limit
+     * @see #setMaxCachedQueries(int)
+     */
+    public QueryIndexConfiguration setMaxQueryCacheBytes(long maxQueryCacheBytes) {
+        this.maxQueryCacheBytes = maxQueryCacheBytes;
+        return this;
+    }
+
+    /**
+     * @return the maximum estimated size of the query cache, or -1 if there is no limit
+     */
+    public long getMaxQueryCacheBytes() {
+        return maxQueryCacheBytes;
+    }
+
+    /**
+     * Set the maximum number of asynchronous match runs that the Monitor will accept
+     * before they complete
+     *
+     * Once the limit is reached, calls to {@link Monitor#matchAsync(DocumentBatch, MatcherFactory, java.util.concurrent.Executor)}
+     * return futures that fail with a {@link java.util.concurrent.RejectedExecutionException}
+     *
+     * @param maxInFlightMatches the maximum number of incomplete match runs, or -1 for no limit
+     */
+    public QueryIndexConfiguration setMaxInFlightMatches(int maxInFlightMatches) {
+        this.maxInFlightMatches = maxInFlightMatches;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of incomplete asynchronous match runs, or -1 if there is no limit
+     */
+    public int getMaxInFlightMatches() {
+        return maxInFlightMatches;
+    }
+
+    /**
+     * Set the maximum number of asynchronous updates that the Monitor will accept
+     * before they complete
+     *
+     * Once the limit is reached, calls to {@link Monitor#updateAsync(Iterable, java.util.concurrent.Executor)}
+     * return futures that fail with a {@link java.util.concurrent.RejectedExecutionException}
+     *
+     * @param maxInFlightUpdates the maximum number of incomplete updates, or -1 for no limit
+     */
+    public QueryIndexConfiguration setMaxInFlightUpdates(int maxInFlightUpdates) {
+        this.maxInFlightUpdates = maxInFlightUpdates;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of incomplete asynchronous updates, or -1 if there is no limit
+     */
+    public int getMaxInFlightUpdates() {
+        return maxInFlightUpdates;
+    }
+
+    /**
+     * Set a {@link MonitorMetrics} implementation to record the Monitor's timings and counts
+     */
+    public QueryIndexConfiguration setMetrics(MonitorMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @return the {@link MonitorMetrics} used by the Monitor; by default, {@link MonitorMetrics#NOOP}
+     */
+    public MonitorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Register a {@link QueryIndexUpdateListener} with the Monitor when it is created
+     *
+     * Unlike {@link Monitor#addQueryIndexUpdateListener(QueryIndexUpdateListener)}, listeners
+     * registered here will be notified of events that happen while the Monitor is being
+     * created, such as the progress of query cache warm-up.
+     */
+    public QueryIndexConfiguration addQueryIndexUpdateListener(QueryIndexUpdateListener listener) {
+        this.listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * @return the listeners to be registered with the Monitor when it is created
+     */
+    public List<QueryIndexUpdateListener> getQueryIndexUpdateListeners() {
+        return listeners;
+    }
+
 }
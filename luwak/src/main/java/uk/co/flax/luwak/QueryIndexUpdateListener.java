@@ -34,4 +34,23 @@ public abstract class QueryIndexUpdateListener {
 
     public void onPurgeError(Throwable t) {}
 
+    public void afterFlush() {}
+
+    /**
+     * Called as the query cache is populated from an existing queryindex.  This may be
+     * called from several threads at once.
+     * @param processed the number of queryindex documents processed so far
+     * @param total the total number of queryindex documents
+     */
+    public void onWarmupProgress(long processed, long total) {}
+
+    /**
+     * Called once the query cache has been populated from an existing queryindex
+     * @param cachedQueries the number of entries in the query cache
+     * @param timeInNanos the time taken to populate the cache
+     */
+    public void afterWarmup(int cachedQueries, long timeInNanos) {}
+
+    public void onFlushError(Throwable t) {}
+
 }
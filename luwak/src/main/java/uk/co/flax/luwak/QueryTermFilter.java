@@ -17,12 +17,10 @@ package uk.co.flax.luwak;
  */
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 import org.apache.lucene.index.*;
-import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.*;
 
 /**
  * Class for recording terms stored in the query index.
@@ -30,11 +28,31 @@ import org.apache.lucene.util.BytesRefHash;
  * An instance of QueryTermFilter is passed to {@link Presearcher#buildQuery(LeafReader, QueryTermFilter)},
  * and can be used to restrict the presearcher's disjunction query to terms in the index.
  *
+ * Terms are held in a separate set for each segment of the query index, so that the
+ * Monitor can reuse the sets for unchanged segments when its query index is refreshed.
+ * A QueryTermFilter is a view over the union of these sets.
+ *
+ * The memory used by the term sets is estimated from their contents, as {@link BytesRefHash}
+ * does not report its own size.
+ *
  * @see uk.co.flax.luwak.analysis.BytesRefFilteredTokenFilter
  */
-public class QueryTermFilter {
+public class QueryTermFilter implements Accountable {
+
+    private static final BytesRefHash[] NO_TERMS = new BytesRefHash[0];
+
+    private static final long BYTES_REF_HASH_RAM_BYTES_USED
+            = RamUsageEstimator.shallowSizeOfInstance(BytesRefHash.class)
+            + RamUsageEstimator.shallowSizeOfInstance(ByteBlockPool.class);
 
-    private final Map<String, BytesRefHash> termsHash = new HashMap<>();
+    private static final long MAP_ENTRY_RAM_BYTES_USED
+            = RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+                + 3 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + Integer.BYTES);
+
+    private final Map<String, BytesRefHash[]> termsHash = new HashMap<>();
+
+    /* The estimated size of the term sets, calculated when first requested */
+    private volatile long termsRamBytesUsed = -1;
 
     /**
      * Create a QueryTermFilter for an IndexReader
@@ -42,10 +60,46 @@ public class QueryTermFilter {
      * @throws IOException on error
      */
     public QueryTermFilter(IndexReader reader) throws IOException {
-        Fields mf = MultiFields.getFields(reader);
-        for (String field : mf) {
+        this(collectSegmentTerms(reader));
+    }
+
+    /**
+     * Create a QueryTermFilter over the union of a set of per-segment term sets
+     * @param segmentTerms a list of term sets, one per segment, each a map of field to terms
+     */
+    QueryTermFilter(List<Map<String, BytesRefHash>> segmentTerms) {
+        Map<String, List<BytesRefHash>> fieldTerms = new HashMap<>();
+        for (Map<String, BytesRefHash> segment : segmentTerms) {
+            for (Map.Entry<String, BytesRefHash> entry : segment.entrySet()) {
+                if (fieldTerms.containsKey(entry.getKey()) == false)
+                    fieldTerms.put(entry.getKey(), new ArrayList<BytesRefHash>());
+                fieldTerms.get(entry.getKey()).add(entry.getValue());
+            }
+        }
+        for (Map.Entry<String, List<BytesRefHash>> entry : fieldTerms.entrySet()) {
+            termsHash.put(entry.getKey(), entry.getValue().toArray(new BytesRefHash[entry.getValue().size()]));
+        }
+    }
+
+    private static List<Map<String, BytesRefHash>> collectSegmentTerms(IndexReader reader) throws IOException {
+        List<Map<String, BytesRefHash>> segmentTerms = new ArrayList<>();
+        for (LeafReaderContext ctx : reader.leaves()) {
+            segmentTerms.add(collectTerms(ctx.reader()));
+        }
+        return segmentTerms;
+    }
+
+    /**
+     * Collect all terms from a single segment of the query index
+     * @param reader a {@link LeafReader} over the segment
+     * @return a map of field to terms
+     * @throws IOException on error
+     */
+    static Map<String, BytesRefHash> collectTerms(LeafReader reader) throws IOException {
+        Map<String, BytesRefHash> termsHash = new HashMap<>();
+        for (String field : reader.fields()) {
             BytesRefHash terms = new BytesRefHash();
-            Terms t = mf.terms(field);
+            Terms t = reader.terms(field);
             if (t != null) {
                 TermsEnum te = t.iterator();
                 BytesRef term;
@@ -55,17 +109,124 @@ public class QueryTermFilter {
             }
             termsHash.put(field, terms);
         }
+        return termsHash;
+    }
 
+    /**
+     * Check if a term is present in the query index
+     * @param field the field
+     * @param term  the term
+     * @return true if the term is present in any segment of the query index
+     */
+    public boolean contains(String field, BytesRef term) {
+        BytesRefHash[] segments = termsHash.get(field);
+        if (segments == null)
+            return false;
+        for (BytesRefHash terms : segments) {
+            if (terms.find(term) >= 0)
+                return true;
+        }
+        return false;
     }
 
     /**
      * Get a BytesRefHash containing all terms for a particular field
+     *
+     * Note that this copies the terms from each segment of the query index into a new
+     * BytesRefHash, so {@link #contains(String, BytesRef)} should be preferred.
+     *
      * @param field the field
      * @return a {@link BytesRefHash} containing all terms for the specified field
      */
     public BytesRefHash getTerms(String field) {
-        if (termsHash.containsKey(field))
-            return termsHash.get(field);
-        return new BytesRefHash();
+        BytesRefHash[] segments = termsHash.containsKey(field) ? termsHash.get(field) : NO_TERMS;
+        if (segments.length == 1)
+            return segments[0];
+        BytesRefHash union = new BytesRefHash();
+        BytesRef scratch = new BytesRef();
+        for (BytesRefHash terms : segments) {
+            for (int i = 0; i < terms.size(); i++) {
+                union.add(terms.get(i, scratch));
+            }
+        }
+        return union;
+    }
+
+    /**
+     * An estimate of the memory used by this filter and its term sets
+     *
+     * Term sets are shared between QueryTermFilters over the same queryindex segments,
+     * so the estimates for different filters may overlap.
+     */
+    @Override
+    public long ramBytesUsed() {
+        if (termsRamBytesUsed == -1) {
+            Set<BytesRefHash> seen = Collections.newSetFromMap(new IdentityHashMap<BytesRefHash, Boolean>());
+            long size = 0;
+            for (BytesRefHash[] segments : termsHash.values()) {
+                for (BytesRefHash terms : segments) {
+                    if (seen.add(terms))
+                        size += ramBytesUsed(terms);
+                }
+            }
+            termsRamBytesUsed = size;
+        }
+        return ramBytesUsedExcludingTerms() + termsRamBytesUsed;
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        List<Accountable> resources = new ArrayList<>();
+        for (Map.Entry<String, BytesRefHash[]> entry : termsHash.entrySet()) {
+            long size = 0;
+            for (BytesRefHash terms : entry.getValue()) {
+                size += ramBytesUsed(terms);
+            }
+            resources.add(Accountables.namedAccountable("field " + entry.getKey(), size));
+        }
+        return Collections.unmodifiableList(resources);
+    }
+
+    /**
+     * @return an estimate of the memory used by this filter, not including its term sets
+     */
+    long ramBytesUsedExcludingTerms() {
+        long size = RamUsageEstimator.shallowSizeOf(this) + RamUsageEstimator.shallowSizeOf(termsHash);
+        for (BytesRefHash[] segments : termsHash.values()) {
+            size += MAP_ENTRY_RAM_BYTES_USED + RamUsageEstimator.shallowSizeOf(segments);
+        }
+        return size;
+    }
+
+    /**
+     * Estimate the memory used by the terms collected from a single segment of the query index
+     * @param fieldTerms a map of field to terms, as returned by {@link #collectTerms(LeafReader)}
+     * @return the estimated size of the terms
+     */
+    static long ramBytesUsed(Map<String, BytesRefHash> fieldTerms) {
+        long size = RamUsageEstimator.shallowSizeOf(fieldTerms);
+        for (BytesRefHash terms : fieldTerms.values()) {
+            size += MAP_ENTRY_RAM_BYTES_USED + ramBytesUsed(terms);
+        }
+        return size;
+    }
+
+    // Terms are stored in the hash's byte blocks with a one or two byte length prefix, and
+    // the hash keeps a table of ids that is always more than twice the number of terms
+    static long ramBytesUsed(BytesRefHash terms) {
+        int count = terms.size();
+        long termBytes = 0;
+        BytesRef scratch = new BytesRef();
+        for (int i = 0; i < count; i++) {
+            int length = terms.get(i, scratch).length;
+            termBytes += length + (length < 128 ? 1 : 2);
+        }
+        long blocks = (termBytes + ByteBlockPool.BYTE_BLOCK_SIZE - 1) / ByteBlockPool.BYTE_BLOCK_SIZE;
+        int hashSize = Math.max(BytesRefHash.DEFAULT_CAPACITY, Integer.highestOneBit(count * 2) * 2);
+        return BYTES_REF_HASH_RAM_BYTES_USED
+                + blocks * RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + ByteBlockPool.BYTE_BLOCK_SIZE)
+                + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + 4L * hashSize)
+                + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                    + 4L * ArrayUtil.oversize(count + 1, Integer.BYTES));
     }
 }
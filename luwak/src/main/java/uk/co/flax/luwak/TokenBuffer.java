@@ -0,0 +1,133 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.*;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A TokenStream that replays the tokens of a TokenStream that has already been consumed
+ *
+ * Only the attributes that a {@link MultiMemoryIndex} inverts are kept: term bytes, position
+ * increments, offsets and payloads.  These are copied into flat arrays rather than captured
+ * as attribute states, so buffering a token costs little more than inverting it.  Unlike
+ * lucene's CachingTokenFilter, a TokenBuffer doesn't hold on to its source, so a field can
+ * be analyzed on one thread and inverted on another, while the analyzer reuses its
+ * components for the next field.
+ */
+final class TokenBuffer extends TokenStream {
+
+    private final BytesTermAttribute termAtt = addAttribute(BytesTermAttribute.class);
+    private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+
+    private byte[] termBytes = new byte[64];
+    // for each token, the start of its term in termBytes, then its position increment,
+    // start offset and end offset
+    private int[] tokens = new int[32];
+    private BytesRef[] payloads = null;
+    private int count = 0;
+    private int termEnd = 0;
+    private int finalPosIncr;
+    private int finalOffset;
+
+    private final BytesRef term = new BytesRef();
+    private int upto;
+
+    private TokenBuffer() {}
+
+    /**
+     * Consume and close a TokenStream, buffering its tokens
+     * @param source the TokenStream
+     * @return a TokenBuffer replaying the source's tokens
+     * @throws IOException on analysis errors
+     */
+    static TokenBuffer fill(TokenStream source) throws IOException {
+        TokenBuffer buffer = new TokenBuffer();
+        try (TokenStream stream = source) {
+            TermToBytesRefAttribute termAtt = stream.getAttribute(TermToBytesRefAttribute.class);
+            PositionIncrementAttribute posIncrAtt = stream.addAttribute(PositionIncrementAttribute.class);
+            OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+            PayloadAttribute payloadAtt = stream.hasAttribute(PayloadAttribute.class)
+                    ? stream.getAttribute(PayloadAttribute.class) : null;
+            stream.reset();
+            while (stream.incrementToken()) {
+                buffer.add(termAtt.getBytesRef(), posIncrAtt.getPositionIncrement(),
+                        offsetAtt.startOffset(), offsetAtt.endOffset(), payloadAtt == null ? null : payloadAtt.getPayload());
+            }
+            stream.end();
+            buffer.finalPosIncr = posIncrAtt.getPositionIncrement();
+            buffer.finalOffset = offsetAtt.endOffset();
+        }
+        return buffer;
+    }
+
+    private void add(BytesRef bytes, int posIncr, int startOffset, int endOffset, BytesRef payload) {
+        termBytes = ArrayUtil.grow(termBytes, termEnd + bytes.length);
+        System.arraycopy(bytes.bytes, bytes.offset, termBytes, termEnd, bytes.length);
+        tokens = ArrayUtil.grow(tokens, (count + 1) * 4);
+        tokens[count * 4] = termEnd;
+        tokens[count * 4 + 1] = posIncr;
+        tokens[count * 4 + 2] = startOffset;
+        tokens[count * 4 + 3] = endOffset;
+        termEnd += bytes.length;
+        if (payload != null) {
+            if (payloads == null)
+                payloads = new BytesRef[tokens.length / 4];
+            payloads = ArrayUtil.grow(payloads, count + 1);
+            payloads[count] = BytesRef.deepCopyOf(payload);
+        }
+        count++;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        upto = 0;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (upto >= count)
+            return false;
+        clearAttributes();
+        int start = tokens[upto * 4];
+        int end = upto + 1 < count ? tokens[(upto + 1) * 4] : termEnd;
+        term.bytes = termBytes;
+        term.offset = start;
+        term.length = end - start;
+        termAtt.setBytesRef(term);
+        posIncrAtt.setPositionIncrement(tokens[upto * 4 + 1]);
+        offsetAtt.setOffset(tokens[upto * 4 + 2], tokens[upto * 4 + 3]);
+        if (payloads != null && upto < payloads.length)
+            payloadAtt.setPayload(payloads[upto]);
+        upto++;
+        return true;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        posIncrAtt.setPositionIncrement(finalPosIncr);
+        offsetAtt.setOffset(finalOffset, finalOffset);
+    }
+
+}
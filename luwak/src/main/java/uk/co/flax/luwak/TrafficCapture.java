@@ -0,0 +1,61 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.List;
+
+/**
+ * Base class for capturing the inputs passed to a Monitor
+ *
+ * Register an implementation with {@link Monitor#setTrafficCapture(TrafficCapture)}.
+ * Methods are called on the threads calling the Monitor, before the work is done, and
+ * may be called from several threads at once.  See {@link TrafficLog} for an implementation
+ * that writes the inputs to a log that can be replayed later.  By default, nothing is captured.
+ */
+public abstract class TrafficCapture {
+
+    /** A TrafficCapture implementation that captures nothing */
+    public static final TrafficCapture NOOP = new TrafficCapture() {};
+
+    /**
+     * Called when queries are added to the Monitor
+     *
+     * Large updates are reported in several calls, one for each batch of changes committed
+     * to the queryindex.
+     *
+     * @param queries the added queries
+     */
+    public void queriesUpdated(List<MonitorQuery> queries) {}
+
+    /**
+     * Called when queries are deleted from the Monitor
+     * @param ids the ids of the deleted queries
+     */
+    public void queriesDeleted(List<String> ids) {}
+
+    /**
+     * Called when all queries are deleted from the Monitor
+     */
+    public void queriesCleared() {}
+
+    /**
+     * Called when a DocumentBatch is matched
+     * @param docs the DocumentBatch
+     */
+    public void batchMatched(DocumentBatch docs) {}
+
+}
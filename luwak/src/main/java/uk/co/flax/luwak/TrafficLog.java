@@ -0,0 +1,403 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A {@link TrafficCapture} that writes the inputs passed to a Monitor to a compact binary log
+ *
+ * Each entry records the time it was made, in nanoseconds since the log was opened, along
+ * with the added queries, the deleted ids, or the id and the text of each field of the
+ * matched documents.  Fields that were added to an {@link InputDocument} as TokenStreams, or
+ * that have no string value, cannot be captured and are left out.  Analyzers are not
+ * captured either, and must be supplied when the log is read back.
+ *
+ * If the log cannot be written to, capturing stops and the error is thrown from {@link #close()};
+ * the Monitor itself is not affected.
+ *
+ * Use a {@link TrafficLog.Reader} to read back the entries.
+ */
+public class TrafficLog extends TrafficCapture implements Closeable {
+
+    private static final String CODEC = "LuwakTrafficLog";
+    private static final int VERSION = 0;
+
+    private static final byte UPDATE = 1;
+    private static final byte DELETE = 2;
+    private static final byte CLEAR = 3;
+    private static final byte MATCH = 4;
+
+    private final OutputStream stream;
+    private final DataOutput out;
+    private final long startTime = System.nanoTime();
+
+    private long lastTimestamp = 0;
+    private IOException error;
+
+    /**
+     * Create a new TrafficLog writing to an OutputStream
+     * @param stream the OutputStream
+     * @throws IOException on IO errors
+     */
+    public TrafficLog(OutputStream stream) throws IOException {
+        this.stream = new BufferedOutputStream(stream);
+        this.out = new OutputStreamDataOutput(this.stream);
+        CodecUtil.writeHeader(out, CODEC, VERSION);
+    }
+
+    /**
+     * Create a new TrafficLog writing to a file
+     * @param path the file to write to, which is replaced if it already exists
+     * @throws IOException on IO errors
+     */
+    public TrafficLog(Path path) throws IOException {
+        this(Files.newOutputStream(path));
+    }
+
+    @Override
+    public synchronized void queriesUpdated(List<MonitorQuery> queries) {
+        try {
+            if (startEntry(UPDATE)) {
+                out.writeVInt(queries.size());
+                for (MonitorQuery query : queries) {
+                    BytesRef bytes = MonitorQuery.serialize(query);
+                    out.writeVInt(bytes.length);
+                    out.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+                }
+            }
+        }
+        catch (IOException e) {
+            error = e;
+        }
+    }
+
+    @Override
+    public synchronized void queriesDeleted(List<String> ids) {
+        try {
+            if (startEntry(DELETE)) {
+                out.writeVInt(ids.size());
+                for (String id : ids) {
+                    out.writeString(id);
+                }
+            }
+        }
+        catch (IOException e) {
+            error = e;
+        }
+    }
+
+    @Override
+    public synchronized void queriesCleared() {
+        try {
+            startEntry(CLEAR);
+        }
+        catch (IOException e) {
+            error = e;
+        }
+    }
+
+    @Override
+    public synchronized void batchMatched(DocumentBatch docs) {
+        try {
+            if (startEntry(MATCH)) {
+                out.writeVInt(docs.getBatchSize());
+                for (InputDocument doc : docs) {
+                    List<IndexableField> fields = new ArrayList<>();
+                    for (IndexableField field : doc.getDocument()) {
+                        if (field.stringValue() != null && InputDocument.ID_FIELD.equals(field.name()) == false)
+                            fields.add(field);
+                    }
+                    out.writeString(doc.getId());
+                    out.writeVInt(fields.size());
+                    for (IndexableField field : fields) {
+                        out.writeString(field.name());
+                        out.writeString(field.stringValue());
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            error = e;
+        }
+    }
+
+    // writes the type and timestamp of a new entry, returning false if capturing has stopped
+    private boolean startEntry(byte type) throws IOException {
+        if (error != null)
+            return false;
+        long timestamp = System.nanoTime() - startTime;
+        out.writeByte(type);
+        out.writeVLong(timestamp - lastTimestamp);
+        lastTimestamp = timestamp;
+        return true;
+    }
+
+    /**
+     * Flush any buffered entries to the underlying stream
+     * @throws IOException on IO errors, or if an earlier entry could not be written
+     */
+    public synchronized void flush() throws IOException {
+        if (error != null)
+            throw error;
+        stream.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (error == null)
+                stream.flush();
+        }
+        finally {
+            stream.close();
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * An entry read back from a TrafficLog
+     */
+    public static class Entry {
+
+        /** The type of an entry */
+        public enum Type { UPDATE, DELETE, CLEAR, MATCH }
+
+        private final Type type;
+        private final long timestamp;
+        private final List<MonitorQuery> queries;
+        private final List<String> ids;
+        private final List<CapturedDocument> documents;
+
+        private Entry(Type type, long timestamp, List<MonitorQuery> queries, List<String> ids, List<CapturedDocument> documents) {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.queries = queries;
+            this.ids = ids;
+            this.documents = documents;
+        }
+
+        /**
+         * @return the type of the entry
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the time at which the entry was made, in nanoseconds since the log was opened
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the added queries, for an UPDATE entry
+         */
+        public List<MonitorQuery> getQueries() {
+            return queries;
+        }
+
+        /**
+         * @return the deleted query ids, for a DELETE entry
+         */
+        public List<String> getIds() {
+            return ids;
+        }
+
+        /**
+         * @return the matched documents, for a MATCH entry
+         */
+        public List<CapturedDocument> getDocuments() {
+            return documents;
+        }
+
+        /**
+         * Rebuild the DocumentBatch matched by a MATCH entry
+         * @param analyzer the Analyzer to use for all fields
+         * @return a new DocumentBatch
+         */
+        public DocumentBatch buildBatch(Analyzer analyzer) {
+            List<InputDocument> docs = new ArrayList<>();
+            for (CapturedDocument doc : documents) {
+                docs.add(doc.build(analyzer));
+            }
+            return DocumentBatch.of(docs);
+        }
+
+    }
+
+    /**
+     * A document read back from a TrafficLog
+     */
+    public static class CapturedDocument {
+
+        private final String id;
+        private final List<String> fields;
+        private final List<String> texts;
+
+        private CapturedDocument(String id, List<String> fields, List<String> texts) {
+            this.id = id;
+            this.fields = fields;
+            this.texts = texts;
+        }
+
+        /**
+         * @return the document id
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the names of the captured fields, in the order they were added to the document
+         */
+        public List<String> getFields() {
+            return fields;
+        }
+
+        /**
+         * @return the text of each captured field, in the same order as {@link #getFields()}
+         */
+        public List<String> getTexts() {
+            return texts;
+        }
+
+        /**
+         * Rebuild the InputDocument
+         * @param analyzer the Analyzer to use for all fields
+         * @return a new InputDocument
+         */
+        public InputDocument build(Analyzer analyzer) {
+            InputDocument.Builder builder = InputDocument.builder(id);
+            for (int i = 0; i < fields.size(); i++) {
+                builder.addField(fields.get(i), texts.get(i), analyzer);
+            }
+            return builder.build();
+        }
+
+    }
+
+    /**
+     * Reads back the entries written to a TrafficLog
+     *
+     * A log that ends part-way through an entry, for example because the process writing it
+     * stopped, is read up to the last complete entry.
+     */
+    public static class Reader implements Closeable {
+
+        private final InputStream stream;
+        private final DataInput in;
+
+        private long timestamp = 0;
+
+        /**
+         * Create a new Reader over an InputStream
+         * @param stream the InputStream
+         * @throws IOException on IO errors, or if the stream does not hold a TrafficLog
+         */
+        public Reader(InputStream stream) throws IOException {
+            this.stream = new BufferedInputStream(stream);
+            this.in = new InputStreamDataInput(this.stream);
+            CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+        }
+
+        /**
+         * Create a new Reader over a file
+         * @param path the file to read
+         * @throws IOException on IO errors, or if the file does not hold a TrafficLog
+         */
+        public Reader(Path path) throws IOException {
+            this(Files.newInputStream(path));
+        }
+
+        /**
+         * @return the next entry in the log, or null if there are no more entries
+         * @throws IOException on IO errors
+         */
+        public Entry next() throws IOException {
+            try {
+                byte type = in.readByte();
+                timestamp += in.readVLong();
+                switch (type) {
+                    case UPDATE:
+                        List<MonitorQuery> queries = new ArrayList<>();
+                        for (int i = in.readVInt(); i > 0; i--) {
+                            byte[] bytes = new byte[in.readVInt()];
+                            in.readBytes(bytes, 0, bytes.length);
+                            queries.add(MonitorQuery.deserialize(new BytesRef(bytes)));
+                        }
+                        return entry(Entry.Type.UPDATE, queries, Collections.<String>emptyList(), Collections.<CapturedDocument>emptyList());
+                    case DELETE:
+                        List<String> ids = new ArrayList<>();
+                        for (int i = in.readVInt(); i > 0; i--) {
+                            ids.add(in.readString());
+                        }
+                        return entry(Entry.Type.DELETE, Collections.<MonitorQuery>emptyList(), ids, Collections.<CapturedDocument>emptyList());
+                    case CLEAR:
+                        return entry(Entry.Type.CLEAR, Collections.<MonitorQuery>emptyList(),
+                                Collections.<String>emptyList(), Collections.<CapturedDocument>emptyList());
+                    case MATCH:
+                        List<CapturedDocument> docs = new ArrayList<>();
+                        for (int i = in.readVInt(); i > 0; i--) {
+                            String id = in.readString();
+                            List<String> fields = new ArrayList<>();
+                            List<String> texts = new ArrayList<>();
+                            for (int j = in.readVInt(); j > 0; j--) {
+                                fields.add(in.readString());
+                                texts.add(in.readString());
+                            }
+                            docs.add(new CapturedDocument(id, fields, texts));
+                        }
+                        return entry(Entry.Type.MATCH, Collections.<MonitorQuery>emptyList(), Collections.<String>emptyList(), docs);
+                    default:
+                        throw new CorruptIndexException("Unknown traffic log entry type " + type, stream.toString());
+                }
+            }
+            catch (EOFException e) {
+                return null;
+            }
+        }
+
+        private Entry entry(Entry.Type type, List<MonitorQuery> queries, List<String> ids, List<CapturedDocument> docs) {
+            return new Entry(type, timestamp, queries, ids, docs);
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+
+    }
+
+}
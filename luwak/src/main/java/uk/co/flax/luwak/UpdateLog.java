@@ -0,0 +1,319 @@
+package uk.co.flax.luwak;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * An append-only log of the changes made to a queryindex since its last lucene commit.
+ *
+ * Changes are appended to a segment file in the queryindex's directory, one record for
+ * each batch of changes.  Each record is framed with its length and a checksum, and the
+ * segment is synced after every record, before the batch is made visible to searches.
+ * The segment rolls over at each lucene commit: the sequence number of the last record
+ * included in the commit is stored in the commit's user data, the segment is deleted,
+ * and the next batch starts a new segment.  When a new segment is created, the directory
+ * itself is synced as well, so that the segment can't be lost in a crash.  Any records
+ * after the committed sequence number are replayed when the queryindex is reopened.
+ *
+ * Lucene Directories can't append to files, so the log is written directly to the
+ * filesystem, and requires the queryindex to be held in an {@link FSDirectory}.
+ */
+class UpdateLog implements Closeable {
+
+    static final String FILE_PREFIX = "luwak_updates_";
+    static final String SEQUENCE_KEY = "luwak.updatelog.sequence";
+
+    private static final String CODEC = "LuwakUpdateLog";
+    private static final int VERSION = 0;
+
+    private static final byte UPDATE = 1;
+    private static final byte DELETE = 2;
+    private static final byte CLEAR = 3;
+
+    // record length, then the record, then its checksum
+    private static final int FRAME_BYTES = Integer.BYTES + Long.BYTES;
+
+    private final Path path;
+    private final RAMOutputStream buffer = new RAMOutputStream();
+    private final CRC32 crc = new CRC32();
+
+    private long committedSequence;
+    private long sequence;
+    private FileChannel segment;
+
+    /**
+     * Open the update log for a Directory
+     * @param directory the Directory holding the queryindex
+     * @param committedSequence the last record included in the latest lucene commit
+     * @throws IOException on IO errors
+     * @throws IllegalArgumentException if the Directory is not an FSDirectory
+     */
+    UpdateLog(Directory directory, long committedSequence) throws IOException {
+        Directory unwrapped = FilterDirectory.unwrap(directory);
+        if (unwrapped instanceof FSDirectory == false)
+            throw new IllegalArgumentException("An update log requires a queryindex in an FSDirectory");
+        this.path = ((FSDirectory) unwrapped).getDirectory();
+        this.committedSequence = committedSequence;
+        this.sequence = committedSequence;
+        for (Path segment : listSegments()) {
+            long first = segmentStart(segment);
+            if (first > committedSequence) {
+                sequence = Math.max(sequence, first - 1 + readSegment(segment, false).size());
+            }
+        }
+    }
+
+    /**
+     * Called for each change read back from the log
+     */
+    interface Handler {
+
+        void update(MonitorQuery mq) throws IOException;
+
+        void delete(String id) throws IOException;
+
+        void clear() throws IOException;
+
+    }
+
+    /**
+     * @return the sequence number of the last record written to the log
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Log a batch of updated queries
+     * @param queries the serialized MonitorQueries
+     * @throws IOException on IO errors
+     */
+    void logUpdates(Collection<BytesRef> queries) throws IOException {
+        buffer.reset();
+        buffer.writeByte(UPDATE);
+        buffer.writeVInt(queries.size());
+        for (BytesRef query : queries) {
+            buffer.writeVInt(query.length);
+            buffer.writeBytes(query.bytes, query.offset, query.length);
+        }
+        append();
+    }
+
+    /**
+     * Log a batch of deleted query ids
+     * @param ids the deleted ids
+     * @throws IOException on IO errors
+     */
+    void logDeletes(Collection<String> ids) throws IOException {
+        buffer.reset();
+        buffer.writeByte(DELETE);
+        buffer.writeVInt(ids.size());
+        for (String id : ids) {
+            buffer.writeString(id);
+        }
+        append();
+    }
+
+    /**
+     * Log the removal of all queries
+     * @throws IOException on IO errors
+     */
+    void logClear() throws IOException {
+        buffer.reset();
+        buffer.writeByte(CLEAR);
+        buffer.writeVInt(0);
+        append();
+    }
+
+    /**
+     * Replay all records written since the latest lucene commit
+     *
+     * A record at the end of the log that cannot be read because it was only partially
+     * written when the process stopped is ignored, as its changes were never made visible.
+     * Any other corrupt record causes a {@link CorruptIndexException} to be thrown.
+     *
+     * @param handler a Handler to apply the logged changes
+     * @throws IOException on IO errors
+     */
+    void replay(Handler handler) throws IOException {
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            long seq = segmentStart(segments.get(i));
+            // only a torn record at the very end of the log can be ignored
+            for (byte[] record : readSegment(segments.get(i), i != segments.size() - 1)) {
+                if (seq++ > committedSequence)
+                    replayRecord(record, handler);
+            }
+        }
+    }
+
+    /**
+     * Delete the log, once all its records have been included in a lucene commit
+     * @param uptoSequence the last record included in the commit
+     * @throws IOException on IO errors
+     */
+    void truncate(long uptoSequence) throws IOException {
+        committedSequence = uptoSequence;
+        IOUtils.close(segment);
+        segment = null;
+        for (Path segment : listSegments()) {
+            Files.delete(segment);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(segment);
+        segment = null;
+    }
+
+    private void append() throws IOException {
+        if (segment == null)
+            segment = createSegment(sequence + 1);
+        int length = (int) buffer.getFilePointer();
+        byte[] record = new byte[length];
+        buffer.writeTo(record, 0);
+        crc.reset();
+        crc.update(record, 0, length);
+        ByteBuffer frame = ByteBuffer.allocate(length + FRAME_BYTES);
+        frame.putInt(length).put(record).putLong(crc.getValue());
+        frame.flip();
+        while (frame.hasRemaining()) {
+            segment.write(frame);
+        }
+        segment.force(false);
+        sequence++;
+    }
+
+    private FileChannel createSegment(long first) throws IOException {
+        Path file = path.resolve(FILE_PREFIX + first);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        boolean success = false;
+        try {
+            RAMOutputStream out = new RAMOutputStream();
+            CodecUtil.writeHeader(out, CODEC, VERSION);
+            byte[] header = new byte[(int) out.getFilePointer()];
+            out.writeTo(header, 0);
+            channel.write(ByteBuffer.wrap(header));
+            channel.force(false);
+            // make the new file's directory entry durable as well as its contents
+            IOUtils.fsync(path, true);
+            success = true;
+            return channel;
+        }
+        finally {
+            if (success == false) {
+                IOUtils.closeWhileHandlingException(channel);
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // Returns the verified records in a segment, stopping at a torn record unless strict
+    private static List<byte[]> readSegment(Path file, boolean strict) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        List<byte[]> records = new ArrayList<>();
+        // a crash can leave a new segment without its full header
+        if (bytes.length < CodecUtil.headerLength(CODEC)) {
+            if (strict)
+                throw new CorruptIndexException("Update log segment has no header", file.toString());
+            return records;
+        }
+        ByteArrayDataInput in = new ByteArrayDataInput(bytes);
+        CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+        frame.position(in.getPosition());
+        CRC32 crc = new CRC32();
+        while (frame.hasRemaining()) {
+            int length = frame.remaining() >= Integer.BYTES ? frame.getInt() : -1;
+            if (length < 0 || frame.remaining() < (long) length + Long.BYTES) {
+                if (strict)
+                    throw new CorruptIndexException("Update log record is truncated", file.toString());
+                break;
+            }
+            byte[] record = new byte[length];
+            frame.get(record);
+            crc.reset();
+            crc.update(record, 0, length);
+            if (crc.getValue() != frame.getLong()) {
+                if (strict || frame.hasRemaining())
+                    throw new CorruptIndexException("Update log record has a bad checksum", file.toString());
+                break;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static void replayRecord(byte[] record, Handler handler) throws IOException {
+        ByteArrayDataInput in = new ByteArrayDataInput(record);
+        byte type = in.readByte();
+        int count = in.readVInt();
+        if (type == CLEAR) {
+            handler.clear();
+        }
+        for (int i = 0; i < count; i++) {
+            if (type == UPDATE) {
+                byte[] bytes = new byte[in.readVInt()];
+                in.readBytes(bytes, 0, bytes.length);
+                handler.update(MonitorQuery.deserialize(new BytesRef(bytes)));
+            }
+            else {
+                handler.delete(in.readString());
+            }
+        }
+    }
+
+    // Lists segments in the order they were written
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path, FILE_PREFIX + "*")) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments, new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                return Long.compare(segmentStart(a), segmentStart(b));
+            }
+        });
+        return segments;
+    }
+
+    // Segments are named after the sequence number of their first record
+    private static long segmentStart(Path segment) {
+        return Long.parseLong(segment.getFileName().toString().substring(FILE_PREFIX.length()));
+    }
+
+}
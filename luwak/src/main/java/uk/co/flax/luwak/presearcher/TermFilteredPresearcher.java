@@ -22,6 +22,7 @@ import java.util.*;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.analysis.util.FilteringTokenFilter;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
@@ -37,7 +38,6 @@ import org.apache.lucene.util.BytesRefHash;
 import org.apache.lucene.util.BytesRefIterator;
 import uk.co.flax.luwak.Presearcher;
 import uk.co.flax.luwak.QueryTermFilter;
-import uk.co.flax.luwak.analysis.BytesRefFilteredTokenFilter;
 import uk.co.flax.luwak.analysis.TermsEnumTokenStream;
 import uk.co.flax.luwak.termextractor.QueryAnalyzer;
 import uk.co.flax.luwak.termextractor.QueryTerm;
@@ -90,7 +90,7 @@ public class TermFilteredPresearcher extends Presearcher {
                     ts = component.filterDocumentTokens(field, ts);
                 }
 
-                ts = new BytesRefFilteredTokenFilter(ts, queryTermFilter.getTerms(field));
+                ts = new QueryTermFilteredTokenFilter(ts, field, queryTermFilter);
 
                 TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
                 while (ts.incrementToken()) {
@@ -117,6 +117,25 @@ public class TermFilteredPresearcher extends Presearcher {
         }
     }
 
+    // Only accepts tokens that are present in the queryindex
+    private static class QueryTermFilteredTokenFilter extends FilteringTokenFilter {
+
+        private final String field;
+        private final QueryTermFilter queryTermFilter;
+        private final TermToBytesRefAttribute bytesAtt = addAttribute(TermToBytesRefAttribute.class);
+
+        QueryTermFilteredTokenFilter(TokenStream ts, String field, QueryTermFilter queryTermFilter) {
+            super(ts);
+            this.field = field;
+            this.queryTermFilter = queryTermFilter;
+        }
+
+        @Override
+        protected boolean accept() throws IOException {
+            return queryTermFilter.contains(field, bytesAtt.getBytesRef());
+        }
+    }
+
     protected BytesRefHash buildTermsHash(String field, LeafReader reader) throws IOException {
         BytesRefHash terms = new BytesRefHash();
         Terms t = reader.terms(field);
@@ -0,0 +1,332 @@
+package uk.co.flax.luwak.util;
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.PrefixCodedTerms;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.spans.*;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Converts lucene Query trees to and from a compact binary form
+ *
+ * Supported queries are TermQuery, BooleanQuery, PhraseQuery, RegexpQuery, BoostQuery,
+ * DisjunctionMaxQuery, TermsQuery and the common SpanQuery types.  Some of these queries
+ * have state that cannot be read back from the query object (for example, the flags passed
+ * to a RegexpQuery), so a query is only serialized if it can be deserialized to an equal
+ * query.
+ */
+public class QuerySerializer {
+
+    private static final byte TERM = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte PHRASE = 3;
+    private static final byte REGEXP = 4;
+    private static final byte BOOST = 5;
+    private static final byte DISMAX = 6;
+    private static final byte TERMS = 7;
+    private static final byte SPAN_TERM = 8;
+    private static final byte SPAN_NEAR = 9;
+    private static final byte SPAN_OR = 10;
+    private static final byte SPAN_NOT = 11;
+    private static final byte SPAN_FIRST = 12;
+    private static final byte SPAN_MULTI = 13;
+    private static final byte SPAN_BOOST = 14;
+
+    private static final BooleanClause.Occur[] OCCURS = BooleanClause.Occur.values();
+
+    private QuerySerializer() {}
+
+    /**
+     * Serialize a query
+     * @param query the query
+     * @return the serialized query, or null if the query cannot be serialized
+     */
+    public static BytesRef serialize(Query query) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (OutputStreamDataOutput data = new OutputStreamDataOutput(os)) {
+            if (write(query, data) == false)
+                return null;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e); // shouldn't happen, we're writing to a bytearray!
+        }
+        BytesRef bytes = new BytesRef(os.toByteArray());
+        try {
+            if (query.equals(deserialize(bytes)) == false)
+                return null;
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return bytes;
+    }
+
+    /**
+     * Deserialize a query
+     * @param bytes the serialized query
+     * @return the query
+     * @throws IOException if the bytes do not contain a valid serialized query
+     */
+    public static Query deserialize(BytesRef bytes) throws IOException {
+        ByteArrayInputStream is = new ByteArrayInputStream(bytes.bytes, bytes.offset, bytes.length);
+        try (InputStreamDataInput data = new InputStreamDataInput(is)) {
+            return read(data);
+        }
+    }
+
+    private static boolean write(Query query, DataOutput out) throws IOException {
+        if (query instanceof TermQuery) {
+            out.writeByte(TERM);
+            writeTerm(((TermQuery) query).getTerm(), out);
+            return true;
+        }
+        if (query instanceof BooleanQuery) {
+            BooleanQuery bq = (BooleanQuery) query;
+            out.writeByte(BOOLEAN);
+            out.writeByte((byte) (bq.isCoordDisabled() ? 1 : 0));
+            out.writeVInt(bq.getMinimumNumberShouldMatch());
+            out.writeVInt(bq.clauses().size());
+            for (BooleanClause clause : bq.clauses()) {
+                out.writeByte((byte) clause.getOccur().ordinal());
+                if (write(clause.getQuery(), out) == false)
+                    return false;
+            }
+            return true;
+        }
+        if (query instanceof PhraseQuery) {
+            PhraseQuery pq = (PhraseQuery) query;
+            out.writeByte(PHRASE);
+            out.writeVInt(pq.getSlop());
+            Term[] terms = pq.getTerms();
+            int[] positions = pq.getPositions();
+            out.writeVInt(terms.length);
+            for (int i = 0; i < terms.length; i++) {
+                writeTerm(terms[i], out);
+                out.writeVInt(positions[i]);
+            }
+            return true;
+        }
+        if (query instanceof RegexpQuery) {
+            out.writeByte(REGEXP);
+            writeTerm(((RegexpQuery) query).getRegexp(), out);
+            return true;
+        }
+        if (query instanceof BoostQuery) {
+            BoostQuery boostQuery = (BoostQuery) query;
+            out.writeByte(BOOST);
+            out.writeInt(Float.floatToIntBits(boostQuery.getBoost()));
+            return write(boostQuery.getQuery(), out);
+        }
+        if (query instanceof DisjunctionMaxQuery) {
+            DisjunctionMaxQuery dmq = (DisjunctionMaxQuery) query;
+            out.writeByte(DISMAX);
+            out.writeInt(Float.floatToIntBits(dmq.getTieBreakerMultiplier()));
+            out.writeVInt(dmq.getDisjuncts().size());
+            for (Query disjunct : dmq.getDisjuncts()) {
+                if (write(disjunct, out) == false)
+                    return false;
+            }
+            return true;
+        }
+        if (query instanceof TermsQuery) {
+            List<Term> terms = new ArrayList<>();
+            PrefixCodedTerms.TermIterator it = ((TermsQuery) query).getTermData().iterator();
+            for (BytesRef term = it.next(); term != null; term = it.next()) {
+                terms.add(new Term(it.field(), BytesRef.deepCopyOf(term)));
+            }
+            out.writeByte(TERMS);
+            out.writeVInt(terms.size());
+            for (Term term : terms) {
+                writeTerm(term, out);
+            }
+            return true;
+        }
+        if (query instanceof SpanQuery)
+            return writeSpan((SpanQuery) query, out);
+        return false;
+    }
+
+    private static boolean writeSpan(SpanQuery query, DataOutput out) throws IOException {
+        if (query instanceof SpanTermQuery) {
+            out.writeByte(SPAN_TERM);
+            writeTerm(((SpanTermQuery) query).getTerm(), out);
+            return true;
+        }
+        if (query instanceof SpanNearQuery) {
+            SpanNearQuery near = (SpanNearQuery) query;
+            out.writeByte(SPAN_NEAR);
+            out.writeVInt(near.getSlop());
+            out.writeByte((byte) (near.isInOrder() ? 1 : 0));
+            return writeSpanClauses(near.getClauses(), out);
+        }
+        if (query instanceof SpanOrQuery) {
+            out.writeByte(SPAN_OR);
+            return writeSpanClauses(((SpanOrQuery) query).getClauses(), out);
+        }
+        if (query instanceof SpanNotQuery) {
+            // pre and post distances are not exposed, so only queries without them will round-trip
+            SpanNotQuery not = (SpanNotQuery) query;
+            out.writeByte(SPAN_NOT);
+            return writeSpan(not.getInclude(), out) && writeSpan(not.getExclude(), out);
+        }
+        if (query instanceof SpanFirstQuery) {
+            SpanFirstQuery first = (SpanFirstQuery) query;
+            out.writeByte(SPAN_FIRST);
+            out.writeVInt(first.getEnd());
+            return writeSpan(first.getMatch(), out);
+        }
+        if (query instanceof SpanMultiTermQueryWrapper) {
+            out.writeByte(SPAN_MULTI);
+            return write(((SpanMultiTermQueryWrapper<?>) query).getWrappedQuery(), out);
+        }
+        if (query instanceof SpanBoostQuery) {
+            SpanBoostQuery boostQuery = (SpanBoostQuery) query;
+            out.writeByte(SPAN_BOOST);
+            out.writeInt(Float.floatToIntBits(boostQuery.getBoost()));
+            return writeSpan(boostQuery.getQuery(), out);
+        }
+        return false;
+    }
+
+    private static boolean writeSpanClauses(SpanQuery[] clauses, DataOutput out) throws IOException {
+        out.writeVInt(clauses.length);
+        for (SpanQuery clause : clauses) {
+            if (writeSpan(clause, out) == false)
+                return false;
+        }
+        return true;
+    }
+
+    private static void writeTerm(Term term, DataOutput out) throws IOException {
+        out.writeString(term.field());
+        BytesRef bytes = term.bytes();
+        out.writeVInt(bytes.length);
+        out.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    private static Query read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TERM:
+                return new TermQuery(readTerm(in));
+            case BOOLEAN: {
+                BooleanQuery.Builder builder = new BooleanQuery.Builder();
+                builder.setDisableCoord(in.readByte() == 1);
+                builder.setMinimumNumberShouldMatch(in.readVInt());
+                for (int i = in.readVInt(); i > 0; i--) {
+                    BooleanClause.Occur occur = OCCURS[in.readByte()];
+                    builder.add(read(in), occur);
+                }
+                return builder.build();
+            }
+            case PHRASE: {
+                PhraseQuery.Builder builder = new PhraseQuery.Builder();
+                builder.setSlop(in.readVInt());
+                for (int i = in.readVInt(); i > 0; i--) {
+                    Term term = readTerm(in);
+                    builder.add(term, in.readVInt());
+                }
+                return builder.build();
+            }
+            case REGEXP:
+                return new RegexpQuery(readTerm(in));
+            case BOOST: {
+                float boost = Float.intBitsToFloat(in.readInt());
+                return new BoostQuery(read(in), boost);
+            }
+            case DISMAX: {
+                float tieBreaker = Float.intBitsToFloat(in.readInt());
+                List<Query> disjuncts = new ArrayList<>();
+                for (int i = in.readVInt(); i > 0; i--) {
+                    disjuncts.add(read(in));
+                }
+                return new DisjunctionMaxQuery(disjuncts, tieBreaker);
+            }
+            case TERMS: {
+                List<Term> terms = new ArrayList<>();
+                for (int i = in.readVInt(); i > 0; i--) {
+                    terms.add(readTerm(in));
+                }
+                return new TermsQuery(terms);
+            }
+            case SPAN_TERM:
+                return new SpanTermQuery(readTerm(in));
+            case SPAN_NEAR: {
+                int slop = in.readVInt();
+                boolean inOrder = in.readByte() == 1;
+                return new SpanNearQuery(readSpanClauses(in), slop, inOrder);
+            }
+            case SPAN_OR:
+                return new SpanOrQuery(readSpanClauses(in));
+            case SPAN_NOT: {
+                SpanQuery include = readSpan(in);
+                return new SpanNotQuery(include, readSpan(in));
+            }
+            case SPAN_FIRST: {
+                int end = in.readVInt();
+                return new SpanFirstQuery(readSpan(in), end);
+            }
+            case SPAN_MULTI: {
+                Query wrapped = read(in);
+                if (wrapped instanceof MultiTermQuery == false)
+                    throw new IOException("Expected a MultiTermQuery, found " + wrapped);
+                return new SpanMultiTermQueryWrapper<>((MultiTermQuery) wrapped);
+            }
+            case SPAN_BOOST: {
+                float boost = Float.intBitsToFloat(in.readInt());
+                return new SpanBoostQuery(readSpan(in), boost);
+            }
+            default:
+                throw new IOException("Unknown serialized query type " + type);
+        }
+    }
+
+    private static SpanQuery readSpan(DataInput in) throws IOException {
+        Query query = read(in);
+        if (query instanceof SpanQuery == false)
+            throw new IOException("Expected a SpanQuery, found " + query);
+        return (SpanQuery) query;
+    }
+
+    private static SpanQuery[] readSpanClauses(DataInput in) throws IOException {
+        SpanQuery[] clauses = new SpanQuery[in.readVInt()];
+        for (int i = 0; i < clauses.length; i++) {
+            clauses[i] = readSpan(in);
+        }
+        return clauses;
+    }
+
+    private static Term readTerm(DataInput in) throws IOException {
+        String field = in.readString();
+        byte[] bytes = new byte[in.readVInt()];
+        in.readBytes(bytes, 0, bytes.length);
+        return new Term(field, new BytesRef(bytes));
+    }
+
+}
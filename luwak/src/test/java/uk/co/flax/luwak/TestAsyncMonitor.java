@@ -0,0 +1,193 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/*
+ * Copyright (c) 2016 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestAsyncMonitor {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    // Holds tasks until they are explicitly run
+    static class ManualExecutor implements Executor {
+
+        final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static InputDocument doc(String id, String text) {
+        return InputDocument.builder(id).addField("f", text, new WhitespaceAnalyzer()).build();
+    }
+
+    @Test
+    public void testAsyncUpdatesAndMatches() throws Exception {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setShardCount(2);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i), "term" + i));
+            }
+            queries.add(new MonitorQuery("bad", "term ["));
+            List<QueryError> errors = monitor.updateAsync(queries, executor).get();
+            assertThat(errors).hasSize(1);
+            assertThat(monitor.getQueryCount()).isEqualTo(100);
+
+            List<CompletableFuture<Matches<QueryMatch>>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                DocumentBatch batch = DocumentBatch.of(doc("doc1", "term" + i), doc("doc2", "term" + (i + 50) + " term" + i));
+                futures.add(monitor.matchAsync(batch, SimpleMatcher.FACTORY, executor));
+            }
+            for (int i = 0; i < 50; i++) {
+                Matches<QueryMatch> matches = futures.get(i).get();
+                assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+                assertThat(matches.getMatchCount("doc2")).isEqualTo(2);
+                assertThat(matches.matches(Integer.toString(i), "doc1")).isNotNull();
+                assertThat(matches.getQueriesRun()).isEqualTo(2);
+            }
+        }
+    }
+
+    @Test
+    public void testInFlightMatchesAreLimited() throws Exception {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMaxInFlightMatches(1);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "test"));
+
+            ManualExecutor manualExecutor = new ManualExecutor();
+            CompletableFuture<Matches<QueryMatch>> first
+                    = monitor.matchAsync(doc("doc1", "test"), SimpleMatcher.FACTORY, manualExecutor);
+            CompletableFuture<Matches<QueryMatch>> second
+                    = monitor.matchAsync(doc("doc2", "test"), SimpleMatcher.FACTORY, manualExecutor);
+
+            assertThat(second.isCompletedExceptionally()).isTrue();
+            try {
+                second.get();
+                fail("Expected the second match run to be rejected");
+            }
+            catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+            }
+
+            assertThat(first.isDone()).isFalse();
+            manualExecutor.runAll();
+            assertThat(first.get().getMatchCount("doc1")).isEqualTo(1);
+
+            CompletableFuture<Matches<QueryMatch>> third
+                    = monitor.matchAsync(doc("doc3", "test"), SimpleMatcher.FACTORY, manualExecutor);
+            manualExecutor.runAll();
+            assertThat(third.get().getMatchCount("doc3")).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testInFlightUpdatesAreLimited() throws Exception {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMaxInFlightUpdates(1);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+
+            ManualExecutor manualExecutor = new ManualExecutor();
+            List<MonitorQuery> queries = new ArrayList<>();
+            queries.add(new MonitorQuery("1", "test"));
+            CompletableFuture<List<QueryError>> first = monitor.updateAsync(queries, manualExecutor);
+            CompletableFuture<List<QueryError>> second = monitor.updateAsync(queries, manualExecutor);
+            assertThat(second.isCompletedExceptionally()).isTrue();
+
+            manualExecutor.runAll();
+            assertThat(first.get()).isEmpty();
+            assertThat(monitor.getQueryCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testSingleDocumentBatchesAreClosed() throws Exception {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "test"));
+            final List<DocumentBatch> batches = new CopyOnWriteArrayList<>();
+            MatcherFactory<QueryMatch> factory = new MatcherFactory<QueryMatch>() {
+                @Override
+                public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+                    batches.add(docs);
+                    return SimpleMatcher.FACTORY.createMatcher(docs);
+                }
+            };
+            assertThat(monitor.matchAsync(doc("doc1", "test"), factory, executor).get().getMatchCount("doc1")).isEqualTo(1);
+            assertThat(batches).hasSize(1);
+            assertThat(batches.get(0).getIndexReader().getRefCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testErrorsArePassedToTheFuture() throws IOException, InterruptedException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            CompletableFuture<Matches<QueryMatch>> future = monitor.matchAsync(DocumentBatch.of(doc("doc1", "test")),
+                    new MatcherFactory<QueryMatch>() {
+                        @Override
+                        public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+                            throw new IllegalStateException("no matcher");
+                        }
+                    }, executor);
+            try {
+                future.get();
+                fail("Expected an ExecutionException");
+            }
+            catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestBatchSizeController {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Runs full batches with a fixed cost per batch plus a cost per document, and no queueing
+    private static List<Integer> simulate(BatchSizeController controller, long batchNanos, long docNanos, int windows) {
+        List<Integer> sizes = new ArrayList<>();
+        for (int i = 0; i < windows * BatchSizeController.WINDOW; i++) {
+            int size = controller.getBatchSize();
+            long service = batchNanos + docNanos * size;
+            controller.batchCompleted(size, service, service);
+            sizes.add(controller.getBatchSize());
+        }
+        return sizes;
+    }
+
+    @Test
+    public void testBatchSizeGrowsUntilLatencyTargetIsReached() {
+
+        // batches of up to 150 documents can be serviced within half the target
+        BatchSizeController controller = new BatchSizeController(50, TimeUnit.MILLISECONDS);
+        List<Integer> sizes = simulate(controller, 10 * MS, MS / 10, 200);
+
+        assertThat(sizes.get(0)).isEqualTo(1);
+        for (int size : sizes.subList(sizes.size() / 2, sizes.size())) {
+            assertThat(size).isBetween(100, 150);
+        }
+        // growth stops at the predicted limit, rather than overshooting it and being cut back
+        for (int size : sizes) {
+            assertThat(size).isLessThanOrEqualTo(150);
+        }
+    }
+
+    @Test
+    public void testBatchSizeIsRevertedIfBatchingDoesNotHelp() {
+
+        // no fixed cost per batch, so larger batches are no cheaper per document
+        BatchSizeController controller = new BatchSizeController(40, TimeUnit.MILLISECONDS);
+        List<Integer> sizes = simulate(controller, 0, MS, 100);
+
+        for (int size : sizes) {
+            assertThat(size).isBetween(1, 2);
+        }
+        assertThat(sizes.get(sizes.size() - 1)).isEqualTo(1);
+    }
+
+    @Test
+    public void testBatchSizeIsCutIfServiceTimeIsTooSlow() {
+
+        BatchSizeController controller = new BatchSizeController(10, TimeUnit.MILLISECONDS, 1, 200);
+        simulate(controller, MS / 2, MS / 100, 100);
+        int size = controller.getBatchSize();
+        assertThat(size).isEqualTo(200);
+
+        // matching becomes ten times as expensive
+        for (int i = 0; i < BatchSizeController.WINDOW; i++) {
+            controller.batchCompleted(size, MS / 2 + size * MS / 10, MS / 2 + size * MS / 10);
+        }
+        assertThat(controller.getBatchSize()).isLessThan(size);
+
+        simulate(controller, MS / 2, MS / 10, 200);
+        assertThat(controller.getBatchSize()).isLessThanOrEqualTo(50);
+    }
+
+    @Test
+    public void testBatchSizeIsCutIfDocumentsWaitTooLong() {
+
+        BatchSizeController controller = new BatchSizeController(100, TimeUnit.MILLISECONDS, 1, 50);
+        simulate(controller, 10 * MS, 0, 50);
+        int size = controller.getBatchSize();
+        assertThat(size).isEqualTo(50);
+
+        // service time is well within the target, but documents queue for longer than it
+        for (int i = 0; i < BatchSizeController.WINDOW; i++) {
+            controller.batchCompleted(size, 10 * MS, 120 * MS);
+        }
+        assertThat(controller.getBatchSize()).isLessThan(size);
+    }
+
+    @Test
+    public void testBatchSizeStaysWithinLimits() {
+
+        BatchSizeController controller = new BatchSizeController(1, TimeUnit.SECONDS, 5, 20);
+        assertThat(controller.getBatchSize()).isEqualTo(5);
+        assertThat(simulate(controller, 10 * MS, 0, 50)).containsOnly(5, 7, 10, 15, 20);
+        assertThat(controller.getBatchSize()).isEqualTo(20);
+
+        simulate(controller, 10 * MS, 100 * MS, 50);
+        assertThat(controller.getBatchSize()).isEqualTo(5);
+    }
+
+    @Test
+    public void testMatchStreamReportsBatchSizeChanges() throws Exception {
+
+        final List<Integer> reported = new CopyOnWriteArrayList<>();
+        MonitorMetrics metrics = new MonitorMetrics() {
+            @Override
+            public void batchSizeChanged(int batchSize) {
+                reported.add(batchSize);
+            }
+        };
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher(),
+                new QueryIndexConfiguration().setMetrics(metrics))) {
+            monitor.update(new MonitorQuery("1", "term"));
+
+            BatchSizeController controller = new BatchSizeController(10, TimeUnit.SECONDS);
+            List<CompletableFuture<DocumentMatches<QueryMatch>>> futures = new ArrayList<>();
+            try (MatchStream<QueryMatch> stream = monitor.stream(SimpleMatcher.FACTORY, controller, 1, TimeUnit.MILLISECONDS)) {
+                for (int i = 0; i < 50; i++) {
+                    futures.add(stream.submit(InputDocument.builder("doc" + i)
+                            .addField("field", "term", new WhitespaceAnalyzer()).build()));
+                }
+            }
+            for (int i = 0; i < 50; i++) {
+                assertThat(futures.get(i).get().getMatches()).hasSize(1);
+            }
+
+            assertThat(reported).isNotEmpty();
+            assertThat(reported.get(reported.size() - 1)).isEqualTo(controller.getBatchSize());
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/*
+ * Copyright (c) 2016 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestBoundedQueryCache {
+
+    private static QueryCacheEntry entry(int i) {
+        return new QueryCacheEntry(new BytesRef("hash" + i), new TermQuery(new Term("f", "t" + i)),
+                Collections.<String, String>emptyMap());
+    }
+
+    @Test
+    public void testFrequentlyUsedEntriesAreNotEvicted() {
+
+        BoundedQueryCache cache = new BoundedQueryCache(10, -1);
+        for (int i = 0; i < 10; i++) {
+            cache.put(entry(i));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertThat(cache.get(new BytesRef("hash" + i))).isNotNull();
+        }
+
+        for (int i = 10; i < 15; i++) {
+            cache.put(entry(i));
+        }
+
+        assertThat(cache.size()).isEqualTo(10);
+        assertThat(cache.evictionCount()).isEqualTo(5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(cache.peek(new BytesRef("hash" + i))).isNotNull();
+        }
+        for (int i = 5; i < 10; i++) {
+            assertThat(cache.get(new BytesRef("hash" + i))).isNull();
+        }
+        assertThat(cache.hitCount()).isEqualTo(5);
+        assertThat(cache.missCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void testByteBudget() {
+
+        long entrySize = entry(0).ramBytesUsed();
+        BoundedQueryCache cache = new BoundedQueryCache(-1, entrySize * 5 + entrySize / 2);
+        for (int i = 0; i < 10; i++) {
+            cache.put(entry(i));
+        }
+        assertThat(cache.size()).isEqualTo(5);
+        assertThat(cache.ramBytesUsed()).isLessThanOrEqualTo(entrySize * 5 + entrySize / 2);
+    }
+
+    @Test
+    public void testQueriesAreParsedOnDemand() throws IOException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMaxCachedQueries(20);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i), "term" + i));
+            }
+            monitor.update(queries);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(20);
+
+            InputDocument doc = InputDocument.builder("doc")
+                    .addField("f", "term1 term2 term3 term50 term99", new WhitespaceAnalyzer()).build();
+            for (int i = 0; i < 3; i++) {
+                assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(5);
+            }
+
+            Monitor.QueryCacheStats stats = monitor.getQueryCacheStats();
+            assertThat(stats.cachedQueries).isEqualTo(20);
+            assertThat(stats.cacheMisses).isBetween(1L, 5L);
+            assertThat(stats.cacheHits + stats.cacheMisses).isEqualTo(15);
+            assertThat(stats.cacheEvictions).isGreaterThanOrEqualTo(80);
+
+            // queries are still listed without being parsed
+            assertThat(monitor.getQueryCount()).isEqualTo(100);
+            assertThat(monitor.getQueryCacheStats().cacheMisses).isEqualTo(stats.cacheMisses);
+        }
+
+    }
+
+    @Test
+    public void testBudgetIsSharedBetweenShards() throws IOException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setShardCount(4).setMaxCachedQueries(22);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i), "term" + i));
+            }
+            monitor.update(queries);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(22);
+
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 200; i += 3) {
+                text.append("term").append(i).append(" ");
+            }
+            InputDocument doc = InputDocument.builder("doc")
+                    .addField("f", text.toString(), new WhitespaceAnalyzer()).build();
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(67);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(22);
+        }
+
+    }
+
+    @Test
+    public void testSharesAddUpToTheBudget() {
+        long total = 0;
+        for (int shard = 0; shard < 4; shard++) {
+            total += BoundedQueryCache.share(1003, shard, 4);
+        }
+        assertThat(total).isEqualTo(1003);
+        assertThat(BoundedQueryCache.share(-1, 2, 4)).isEqualTo(-1);
+    }
+
+    @Test
+    public void testDeletedQueriesArePurged() throws IOException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMaxCachedQueries(50);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "term1"), new MonitorQuery("2", "term2"));
+            monitor.deleteById("1");
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(2);
+            monitor.purgeCache();
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(1);
+        }
+
+    }
+
+    // Counts how often each query string is parsed, and fails to parse query strings in 'broken'
+    private static class CountingParser implements MonitorQueryParser {
+
+        final MonitorQueryParser parser = new LuceneQueryParser("f");
+        final Map<String, AtomicInteger> parses = new ConcurrentHashMap<>();
+        final List<String> broken = new ArrayList<>();
+
+        @Override
+        public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+            parses.putIfAbsent(queryString, new AtomicInteger());
+            parses.get(queryString).incrementAndGet();
+            if (broken.contains(queryString))
+                throw new IllegalStateException("Cannot parse " + queryString);
+            return parser.parse(queryString, metadata);
+        }
+
+        int parseCount(String queryString) {
+            return parses.get(queryString).get();
+        }
+    }
+
+    @Test
+    public void testEvictedQueriesAreParsedOnce() throws IOException {
+
+        CountingParser parser = new CountingParser();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMaxCachedQueries(2);
+        try (Monitor monitor = new Monitor(parser, new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "term1 term2"));
+            monitor.update(new MonitorQuery("2", "term3"), new MonitorQuery("3", "term4"));
+            assertThat(parser.parseCount("term1 term2")).isEqualTo(1);
+
+            // both disjuncts of query 1 are loaded by a single parse
+            InputDocument doc = InputDocument.builder("doc")
+                    .addField("f", "term1 term2", new WhitespaceAnalyzer()).build();
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(1);
+            assertThat(parser.parseCount("term1 term2")).isEqualTo(2);
+        }
+
+    }
+
+    @Test
+    public void testQueryLoadErrorsAreReported() throws IOException {
+
+        CountingParser parser = new CountingParser();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMaxCachedQueries(1);
+        try (Monitor monitor = new Monitor(parser, new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "term1"), new MonitorQuery("2", "term2"));
+            parser.broken.add("term1");
+
+            InputDocument doc = InputDocument.builder("doc")
+                    .addField("f", "term1", new WhitespaceAnalyzer()).build();
+            for (int i = 0; i < 3; i++) {
+                assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(0);
+            }
+            assertThat(parser.parseCount("term1")).isEqualTo(2);
+
+            List<QueryError> errors = monitor.getQueryLoadErrors();
+            assertThat(errors).hasSize(1);
+            assertThat(errors.get(0).query).isEqualTo("term1");
+            assertThat(errors.get(0).error).isEqualTo("Cannot parse term1");
+
+            monitor.deleteById("1");
+            monitor.purgeCache();
+            assertThat(monitor.getQueryLoadErrors()).isEmpty();
+        }
+
+    }
+
+    @Test
+    public void testBoundedCacheRequiresStoredQueries() throws IOException {
+        try {
+            new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                    new QueryIndexConfiguration().setMaxCachedQueries(10).storeQueries(false));
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e).hasMessage("A bounded query cache can only be used if queries are stored");
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.MMapDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+import uk.co.flax.luwak.testutils.FileUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/*
+ * Copyright (c) 2016 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestBulkLoader {
+
+    private Path tempDirectory;
+
+    @Before
+    public void setup() throws IOException {
+        tempDirectory = Files.createTempDirectory("bulk-load");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(tempDirectory);
+    }
+
+    private static class CountingParser extends LuceneQueryParser {
+
+        final AtomicInteger parses = new AtomicInteger();
+
+        CountingParser() {
+            super("f");
+        }
+
+        @Override
+        public Query parse(String query, Map<String, String> metadata) throws Exception {
+            parses.incrementAndGet();
+            return super.parse(query, metadata);
+        }
+    }
+
+    private static List<MonitorQuery> queries(int count) {
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "term" + i + " OR common"));
+        }
+        return queries;
+    }
+
+    private static InputDocument doc(String text) {
+        return InputDocument.builder("doc").addField("f", text, new WhitespaceAnalyzer()).build();
+    }
+
+    @Test
+    public void testBulkLoad() throws IOException {
+
+        CountingParser parser = new CountingParser();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setShardCount(3);
+        try (Monitor monitor = new Monitor(parser, new TermFilteredPresearcher(), config)) {
+
+            List<MonitorQuery> queries = queries(1000);
+            queries.add(new MonitorQuery("bad", "unbalanced ("));
+            List<QueryError> errors = monitor.bulkLoad(queries, 4);
+
+            assertThat(errors).hasSize(1);
+            assertThat(errors.get(0).id).isEqualTo("bad");
+            assertThat(monitor.getQueryCount()).isEqualTo(1000);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(2000);
+
+            assertThat(monitor.match(doc("term5 term999"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(2);
+            assertThat(monitor.match(doc("common"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(1000);
+
+            // the query cache was filled by the bulk load, so no queries are parsed again
+            assertThat(parser.parses.get()).isEqualTo(1001);
+        }
+    }
+
+    @Test
+    public void testExistingQueriesAreReplaced() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "old"), new MonitorQuery("2", "old"));
+
+            List<QueryError> errors = monitor.bulkLoad(queries(10), 2);
+            assertThat(errors).isEmpty();
+            assertThat(monitor.getQueryCount()).isEqualTo(10);
+            assertThat(monitor.match(doc("old"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(0);
+            assertThat(monitor.match(doc("term1"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testLastQueryWithDuplicateIdIsLoaded() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            List<MonitorQuery> queries = queries(10);
+            queries.add(new MonitorQuery("1", "duplicate"));
+
+            // whichever worker picks them up, the later query wins
+            assertThat(monitor.bulkLoad(queries, 4)).isEmpty();
+            assertThat(monitor.getQueryCount()).isEqualTo(10);
+            assertThat(monitor.getQuery("1").getQuery()).isEqualTo("duplicate");
+            assertThat(monitor.match(doc("duplicate"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(1);
+            assertThat(monitor.match(doc("term1"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testDuplicateIdsAcrossWorkers() throws IOException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setShardCount(2);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i % 100), "term" + i + " OR common"));
+            }
+
+            assertThat(monitor.bulkLoad(queries, 4)).isEmpty();
+            assertThat(monitor.getQueryCount()).isEqualTo(100);
+            // earlier versions leave nothing behind in the query cache
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(200);
+            for (int i = 0; i < 100; i++) {
+                assertThat(monitor.getQuery(Integer.toString(i)).getQuery()).isEqualTo("term" + (900 + i) + " OR common");
+            }
+            assertThat(monitor.match(doc("term5"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(0);
+            assertThat(monitor.match(doc("common"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(100);
+        }
+    }
+
+    @Test
+    public void testQueriesAreParsedWhileTheInputIsRead() throws IOException {
+
+        final CountingParser parser = new CountingParser();
+        try (Monitor monitor = new Monitor(parser, new TermFilteredPresearcher())) {
+            final List<MonitorQuery> queries = queries(1000);
+            final AtomicInteger parsedBeforeLastRead = new AtomicInteger(-1);
+            Iterable<MonitorQuery> input = new Iterable<MonitorQuery>() {
+                @Override
+                public Iterator<MonitorQuery> iterator() {
+                    final Iterator<MonitorQuery> it = queries.iterator();
+                    return new Iterator<MonitorQuery>() {
+                        int read = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public MonitorQuery next() {
+                            if (++read == queries.size())
+                                parsedBeforeLastRead.set(parser.parses.get());
+                            return it.next();
+                        }
+                    };
+                }
+            };
+
+            assertThat(monitor.bulkLoad(input, 4)).isEmpty();
+            assertThat(monitor.getQueryCount()).isEqualTo(1000);
+            // each worker holds at most one unparsed query while taking the next
+            assertThat(parsedBeforeLastRead.get()).isGreaterThanOrEqualTo(1000 - 1 - 4);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testWorkerErrorsAreRethrown() throws IOException {
+
+        LuceneQueryParser parser = new LuceneQueryParser("f") {
+            @Override
+            public Query parse(String query, Map<String, String> metadata) throws Exception {
+                if (query.startsWith("term500 "))
+                    throw new Error("parser failure");
+                return super.parse(query, metadata);
+            }
+        };
+        try (Monitor monitor = new Monitor(parser, new TermFilteredPresearcher())) {
+            try {
+                monitor.bulkLoad(queries(1000), 4);
+                fail("Expected an Error");
+            }
+            catch (Error e) {
+                assertThat(e).hasMessage("parser failure");
+            }
+            assertThat(monitor.getQueryCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testBulkLoadOnDisk() throws IOException {
+
+        Path indexDirectory = tempDirectory.resolve("index");
+        Path loadDirectory = tempDirectory.resolve("load");
+        QueryIndexConfiguration config = new QueryIndexConfiguration().useUpdateLog(true);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            monitor.update(new MonitorQuery("logged", "logged"));
+            assertThat(monitor.bulkLoad(queries(100), 4, loadDirectory)).isEmpty();
+        }
+        assertThat(loadDirectory.toFile().list()).isEmpty();
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            assertThat(monitor.getQueryCount()).isEqualTo(101);
+            assertThat(monitor.match(doc("term50 logged"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(2);
+        }
+    }
+
+}
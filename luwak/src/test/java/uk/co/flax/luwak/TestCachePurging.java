@@ -125,7 +125,10 @@ public class TestCachePurging {
                     monitor.deleteById(Integer.toString(i));
                 }
 
-                assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(200);
+                // segment merges may already have released some of the deleted entries, so
+                // purge the rest before any concurrent updates start
+                monitor.purgeCache();
+                assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(140);
 
                 logger.trace("Starting cache purge");
                 startUpdating.countDown();
@@ -149,6 +152,27 @@ public class TestCachePurging {
         return new MonitorQuery(Integer.toString(id), "+test " + Integer.toString(id));
     }
 
+    @Test
+    public void testCacheEntriesSurviveSegmentMerges() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            // one commit per query, so the queryindex will go through several merges
+            for (int i = 0; i < 100; i++) {
+                monitor.update(newMonitorQuery(i));
+            }
+            for (int i = 0; i < 100; i += 2) {
+                monitor.deleteById(Integer.toString(i));
+            }
+            monitor.purgeCache();
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(50);
+
+            InputDocument doc = InputDocument.builder("doc1").addField("field", "test", new StandardAnalyzer()).build();
+            Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+            assertThat(matches.getErrors()).isEmpty();
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(50);
+        }
+    }
+
     @Test
     public void testBackgroundPurges() throws IOException, InterruptedException {
 
@@ -16,13 +16,22 @@ package uk.co.flax.luwak;
  */
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.search.Query;
 import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
 import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
 import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 
 public class TestConcurrentQueryLoader {
 
@@ -64,4 +73,113 @@ public class TestConcurrentQueryLoader {
         }
 
     }
+
+    @Test(timeout = 30000)
+    public void testParserErrorsAreRethrownFromClose() throws Exception {
+
+        LuceneQueryParser parser = new LuceneQueryParser("f") {
+            @Override
+            public Query parse(String query, Map<String, String> metadata) throws Exception {
+                if (query.equals("test250"))
+                    throw new Error("parser failure");
+                return super.parse(query, metadata);
+            }
+        };
+        try (Monitor monitor = new Monitor(parser, new MatchAllPresearcher())) {
+            List<QueryError> errors = new ArrayList<>();
+            ConcurrentQueryLoader loader = new ConcurrentQueryLoader(monitor, errors, 4, 100);
+            for (int i = 0; i < 500; i++) {
+                loader.add(new MonitorQuery(Integer.toString(i), "test" + i));
+            }
+            try {
+                loader.close();
+                fail("Expected an Error");
+            }
+            catch (Error e) {
+                assertThat(e).hasMessage("parser failure");
+            }
+            // queries are committed in order, so nothing after the failure is loaded
+            assertThat(monitor.getQueryCount()).isLessThanOrEqualTo(250);
+        }
+
+    }
+
+    @Test
+    public void testLastVersionOfAQueryWins() throws Exception {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            List<QueryError> errors = new ArrayList<>();
+            try (ConcurrentQueryLoader loader = new ConcurrentQueryLoader(monitor, errors, 4, 100)) {
+                for (int i = 0; i < 1000; i++) {
+                    loader.add(new MonitorQuery(Integer.toString(i % 10), "test" + i));
+                }
+            }
+
+            assertThat(errors).isEmpty();
+            assertThat(monitor.getQueryCount()).isEqualTo(10);
+            for (int i = 0; i < 10; i++) {
+                assertThat(monitor.getQuery(Integer.toString(i)).getQuery()).isEqualTo("test" + (990 + i));
+            }
+
+            // earlier versions are not left in the queryindex
+            assertThat(monitor.match(InputDocument.builder("doc")
+                    .addField("f", "test5", new WhitespaceAnalyzer()).build(), SimpleMatcher.FACTORY)
+                    .getMatchCount("doc")).isEqualTo(0);
+            assertThat(monitor.match(InputDocument.builder("doc")
+                    .addField("f", "test995", new WhitespaceAnalyzer()).build(), SimpleMatcher.FACTORY)
+                    .getMatchCount("doc")).isEqualTo(1);
+        }
+
+    }
+
+    @Test
+    public void testQueriesAreCommittedByASingleWriter() throws Exception {
+
+        final Set<String> writerThreads = Collections.synchronizedSet(new HashSet<String>());
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setQueryUpdateBufferSize(100)
+                .addQueryIndexUpdateListener(new QueryIndexUpdateListener() {
+                    @Override
+                    public void beforeUpdate(List<Indexable> updates) {
+                        writerThreads.add(Thread.currentThread().getName());
+                        batches.add(updates.size());
+                    }
+                });
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher(), config)) {
+            List<QueryError> errors = new ArrayList<>();
+            try (ConcurrentQueryLoader loader = new ConcurrentQueryLoader(monitor, errors, 4, 500)) {
+                for (int i = 0; i < 2000; i++) {
+                    loader.add(new MonitorQuery(Integer.toString(i), "test" + i));
+                }
+            }
+
+            assertThat(errors).isEmpty();
+            assertThat(monitor.getQueryCount()).isEqualTo(2000);
+            assertThat(writerThreads).hasSize(1);
+            assertThat(batches.size()).isLessThan(2000);
+        }
+
+    }
+
+    @Test
+    public void testQueriesAreCommittedAfterTheCommitInterval() throws Exception {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            List<QueryError> errors = new ArrayList<>();
+            try (ConcurrentQueryLoader loader
+                         = new ConcurrentQueryLoader(monitor, errors, 2, 100, 10, TimeUnit.MILLISECONDS)) {
+                for (int i = 0; i < 10; i++) {
+                    loader.add(new MonitorQuery(Integer.toString(i), "test" + i));
+                }
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (monitor.getQueryCount() < 10 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertThat(monitor.getQueryCount()).isEqualTo(10);
+            }
+        }
+
+    }
 }
@@ -0,0 +1,159 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.HighlightingMatcher;
+import uk.co.flax.luwak.matchers.HighlightsMatch;
+import uk.co.flax.luwak.matchers.ScoringMatch;
+import uk.co.flax.luwak.matchers.ScoringMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestDocumentBatch {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private static List<InputDocument> documents() {
+        List<InputDocument> docs = new ArrayList<>();
+        docs.add(InputDocument.builder("doc1")
+                .addField("text", "the quick brown fox jumps over the lazy dog", ANALYZER)
+                .addField(new StringField("tag", "animals", Field.Store.NO))
+                .build());
+        docs.add(InputDocument.builder("doc2")
+                .addField("title", "a document with no text field", ANALYZER)
+                .build());
+        docs.add(InputDocument.builder("doc3")
+                .addField("text", "foxes and dogs, and a fox again", ANALYZER)
+                .addField("title", "the fox", ANALYZER)
+                .addField(new StringField("tag", "repetition", Field.Store.NO))
+                .build());
+        docs.add(InputDocument.builder("doc4")
+                .addField("text", "nothing to see here", ANALYZER)
+                .build());
+        return docs;
+    }
+
+    @Test
+    public void testReusableBatchesMatchLikeNewBatches() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("text", ANALYZER), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "fox"), new MonitorQuery("2", "title:fox"),
+                    new MonitorQuery("3", "\"lazy dog\""), new MonitorQuery("4", "tag:animals tag:repetition"),
+                    new MonitorQuery("5", "title:document"));
+
+            for (int i = 0; i < 2; i++) {
+                for (InputDocument doc : documents()) {
+                    Matches<ScoringMatch> expected = monitor.match(DocumentBatch.of(doc), ScoringMatcher.FACTORY);
+                    Matches<ScoringMatch> actual;
+                    try (DocumentBatch batch = DocumentBatch.reusable(doc)) {
+                        assertThat(batch.resolveDocId(0)).isEqualTo(doc.getId());
+                        actual = monitor.match(batch, ScoringMatcher.FACTORY);
+                    }
+                    assertThat(actual.getMatches(doc.getId()).getMatches())
+                            .containsOnlyElementsOf(expected.getMatches(doc.getId()).getMatches())
+                            .hasSameSizeAs(expected.getMatches(doc.getId()).getMatches());
+                    for (ScoringMatch match : actual.getMatches(doc.getId())) {
+                        assertThat(match.getScore())
+                                .isEqualTo(expected.matches(match.getQueryId(), doc.getId()).getScore());
+                    }
+                }
+            }
+
+            Matches<HighlightsMatch> highlights = monitor.match(documents().get(2), HighlightingMatcher.FACTORY);
+            assertThat(highlights.matches("1", "doc3").getHits("text"))
+                    .containsExactly(new HighlightsMatch.Hit(5, 22, 5, 25));
+        }
+    }
+
+    @Test
+    public void testReusableBatchIsOnlyReusedOnceClosed() throws IOException {
+
+        List<InputDocument> docs = documents();
+
+        DocumentBatch first = DocumentBatch.reusable(docs.get(0));
+        DocumentBatch second = DocumentBatch.reusable(docs.get(1));
+        assertThat(second).isNotSameAs(first);
+        assertThat(first.resolveDocId(0)).isEqualTo("doc1");
+        assertThat(first.getIndexReader().terms("text")).isNotNull();
+        second.close();
+
+        first.close();
+        // a closed batch doesn't hold on to its document until it is reused
+        assertThat(first.getBatchSize()).isEqualTo(0);
+        assertThat(first.getIndexReader().terms("text")).isNull();
+
+        try (DocumentBatch third = DocumentBatch.reusable(docs.get(1))) {
+            assertThat(third).isSameAs(first);
+            assertThat(third.resolveDocId(0)).isEqualTo("doc2");
+            assertThat(third.getIndexReader().terms("text")).isNull();
+            assertThat(third.getIndexReader().terms("title")).isNotNull();
+            assertThat(third.getSearcher()).isSameAs(third.getSearcher());
+            assertThat(third.getBuildTime()).isGreaterThanOrEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testParallelAnalysisMatchesLikeSerialAnalysis() throws IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("text", ANALYZER), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "fox"), new MonitorQuery("2", "title:fox"),
+                    new MonitorQuery("3", "\"lazy dog\""), new MonitorQuery("4", "tag:animals tag:repetition"),
+                    new MonitorQuery("5", "title:document"));
+
+            List<List<InputDocument>> batches = new ArrayList<>();
+            batches.add(documents());
+            batches.add(documents().subList(0, 1));
+            for (List<InputDocument> batch : batches) {
+                Matches<ScoringMatch> expected = monitor.match(DocumentBatch.of(batch), ScoringMatcher.FACTORY);
+                Matches<ScoringMatch> actual = monitor.match(new DocumentBatch.Builder()
+                        .setAnalysisExecutor(executor).addAll(batch).build(), ScoringMatcher.FACTORY);
+                for (InputDocument doc : batch) {
+                    assertThat(actual.getMatchCount(doc.getId())).isEqualTo(expected.getMatchCount(doc.getId()));
+                    for (ScoringMatch match : expected.getMatches(doc.getId())) {
+                        assertThat(actual.matches(match.getQueryId(), doc.getId()).getScore())
+                                .isEqualTo(match.getScore());
+                    }
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSearchersAreCreatedOnce() throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(documents())) {
+            assertThat(batch.getSearcher()).isSameAs(batch.getSearcher());
+        }
+    }
+
+}
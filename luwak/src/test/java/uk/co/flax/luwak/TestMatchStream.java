@@ -0,0 +1,199 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class TestMatchStream {
+
+    @Rule
+    public ExpectedException expected = ExpectedException.none();
+
+    private Monitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("even", "even"), new MonitorQuery("odd", "odd"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    private static InputDocument doc(int i) {
+        return InputDocument.builder("doc" + i)
+                .addField("field", "document " + (i % 2 == 0 ? "even" : "odd"), new WhitespaceAnalyzer())
+                .build();
+    }
+
+    @Test
+    public void testDocumentsAreMatchedInFullBatches() throws Exception {
+
+        List<CompletableFuture<DocumentMatches<QueryMatch>>> futures = new ArrayList<>();
+        // a long wait, so that batches are only matched once they are full
+        try (MatchStream<QueryMatch> stream = monitor.stream(SimpleMatcher.FACTORY, 10, 30, TimeUnit.SECONDS)) {
+            for (int i = 0; i < 30; i++) {
+                futures.add(stream.submit(doc(i)));
+            }
+            for (int i = 0; i < 30; i++) {
+                DocumentMatches<QueryMatch> matches = futures.get(i).get(10, TimeUnit.SECONDS);
+                assertThat(matches.getDocId()).isEqualTo("doc" + i);
+                assertThat(matches.getMatches()).hasSize(1);
+                assertThat(matches.iterator().next().getQueryId()).isEqualTo(i % 2 == 0 ? "even" : "odd");
+                assertThat(matches.getErrors()).isEmpty();
+            }
+            assertThat(stream.getBatchCount()).isEqualTo(3);
+            assertThat(stream.getDocumentCount()).isEqualTo(30);
+        }
+    }
+
+    @Test
+    public void testPartialBatchesAreMatchedAfterMaxWait() throws Exception {
+
+        try (MatchStream<QueryMatch> stream = monitor.stream(SimpleMatcher.FACTORY, 100, 50, TimeUnit.MILLISECONDS)) {
+            long start = System.nanoTime();
+            DocumentMatches<QueryMatch> matches = stream.submit(doc(1)).get(10, TimeUnit.SECONDS);
+            assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+            assertThat(stream.getBatchCount()).isEqualTo(1);
+            assertThat(matches.getMatches()).extracting("queryId").containsExactly("odd");
+        }
+    }
+
+    @Test
+    public void testErrorsFailOnlyTheirBatch() throws Exception {
+
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        MatcherFactory<QueryMatch> factory = new MatcherFactory<QueryMatch>() {
+            @Override
+            public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+                if (failed.getAndSet(true) == false)
+                    throw new AssertionError("first batch fails");
+                return SimpleMatcher.FACTORY.createMatcher(docs);
+            }
+        };
+
+        try (MatchStream<QueryMatch> stream = monitor.stream(factory, 1, 1, TimeUnit.MILLISECONDS)) {
+            try {
+                stream.submit(doc(1)).get(10, TimeUnit.SECONDS);
+                fail("Expected an ExecutionException");
+            }
+            catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(AssertionError.class);
+            }
+            assertThat(stream.submit(doc(2)).get(10, TimeUnit.SECONDS).getMatches()).hasSize(1);
+        }
+    }
+
+    @Test
+    public void testConcurrentSubmittersOnlySeeTheirOwnDocuments() throws Exception {
+
+        final int submitters = 4;
+        final int docsPerSubmitter = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(submitters);
+        // a long wait, so that every batch holds documents from several submitters
+        try (final MatchStream<QueryMatch> stream = monitor.stream(SimpleMatcher.FACTORY, 20, 30, TimeUnit.SECONDS)) {
+            List<Future<List<DocumentMatches<QueryMatch>>>> results = new ArrayList<>();
+            for (int s = 0; s < submitters; s++) {
+                final String prefix = "submitter" + s + "_";
+                results.add(executor.submit(new Callable<List<DocumentMatches<QueryMatch>>>() {
+                    @Override
+                    public List<DocumentMatches<QueryMatch>> call() throws Exception {
+                        List<CompletableFuture<DocumentMatches<QueryMatch>>> futures = new ArrayList<>();
+                        for (int i = 0; i < docsPerSubmitter; i++) {
+                            futures.add(stream.submit(InputDocument.builder(prefix + i)
+                                    .addField("field", "even", new WhitespaceAnalyzer()).build()));
+                        }
+                        List<DocumentMatches<QueryMatch>> matches = new ArrayList<>();
+                        for (CompletableFuture<DocumentMatches<QueryMatch>> future : futures) {
+                            matches.add(future.get(10, TimeUnit.SECONDS));
+                        }
+                        return matches;
+                    }
+                }));
+            }
+
+            for (int s = 0; s < submitters; s++) {
+                List<DocumentMatches<QueryMatch>> matches = results.get(s).get();
+                assertThat(matches).hasSize(docsPerSubmitter);
+                for (int i = 0; i < docsPerSubmitter; i++) {
+                    assertThat(matches.get(i).getDocId()).isEqualTo("submitter" + s + "_" + i);
+                    assertThat(matches.get(i).getMatches()).extracting("docId").containsExactly("submitter" + s + "_" + i);
+                }
+            }
+            assertThat(stream.getBatchCount()).isEqualTo(submitters * docsPerSubmitter / 20);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDocumentsWithTheSameIdAreMatchedSeparately() throws Exception {
+
+        try (MatchStream<QueryMatch> stream = monitor.stream(SimpleMatcher.FACTORY, 2, 30, TimeUnit.SECONDS)) {
+            CompletableFuture<DocumentMatches<QueryMatch>> first = stream.submit(InputDocument.builder("doc")
+                    .addField("field", "even", new WhitespaceAnalyzer()).build());
+            CompletableFuture<DocumentMatches<QueryMatch>> second = stream.submit(InputDocument.builder("doc")
+                    .addField("field", "odd", new WhitespaceAnalyzer()).build());
+
+            assertThat(first.get(10, TimeUnit.SECONDS).getMatches()).extracting("queryId").containsExactly("even");
+            assertThat(second.get(10, TimeUnit.SECONDS).getMatches()).extracting("queryId").containsExactly("odd");
+            assertThat(stream.getBatchCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testCloseMatchesOutstandingDocuments() throws Exception {
+
+        List<CompletableFuture<DocumentMatches<QueryMatch>>> futures = new ArrayList<>();
+        MatchStream<QueryMatch> stream
+                = new MatchStream<>(monitor, SimpleMatcher.FACTORY, 4, 30, TimeUnit.SECONDS, 2, 100);
+        for (int i = 0; i < 10; i++) {
+            futures.add(stream.submit(doc(i)));
+        }
+        stream.close();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(futures.get(i).isDone()).isTrue();
+            assertThat(futures.get(i).get().getMatches()).hasSize(1);
+        }
+        assertThat(stream.getDocumentCount()).isEqualTo(10);
+
+        expected.expect(IllegalStateException.class);
+        stream.submit(doc(11));
+    }
+
+}
@@ -0,0 +1,140 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ * Copyright (c) 2016 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestMonitorMetrics {
+
+    static class RecordingMetrics extends MonitorMetrics {
+
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger documents = new AtomicInteger();
+        final AtomicLong batchBuildTime = new AtomicLong();
+        final AtomicInteger presearcherQueries = new AtomicInteger();
+        final AtomicInteger queryIndexSearches = new AtomicInteger();
+        final AtomicInteger candidates = new AtomicInteger();
+        final AtomicInteger matches = new AtomicInteger();
+        final AtomicInteger resultAssemblies = new AtomicInteger();
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger committedDocuments = new AtomicInteger();
+        final AtomicInteger purges = new AtomicInteger();
+        final AtomicInteger cachedQueries = new AtomicInteger();
+
+        @Override
+        public void documentBatchBuilt(int documents, long nanos) {
+            batches.incrementAndGet();
+            this.documents.addAndGet(documents);
+            batchBuildTime.addAndGet(nanos);
+        }
+
+        @Override
+        public void presearcherQueryBuilt(long nanos) {
+            presearcherQueries.incrementAndGet();
+        }
+
+        @Override
+        public void queryIndexSearched(long nanos) {
+            queryIndexSearches.incrementAndGet();
+        }
+
+        @Override
+        public void candidatesMatched(int candidates, long nanos) {
+            this.candidates.addAndGet(candidates);
+        }
+
+        @Override
+        public void resultsAssembled(int matches, long nanos) {
+            resultAssemblies.incrementAndGet();
+            this.matches.addAndGet(matches);
+        }
+
+        @Override
+        public void committed(int documents, long nanos) {
+            commits.incrementAndGet();
+            committedDocuments.addAndGet(documents);
+        }
+
+        @Override
+        public void cachePurged(int cachedQueries, long nanos) {
+            purges.incrementAndGet();
+            this.cachedQueries.set(cachedQueries);
+        }
+    }
+
+    private static InputDocument doc(String id, String text) {
+        return InputDocument.builder(id).addField("f", text, new WhitespaceAnalyzer()).build();
+    }
+
+    @Test
+    public void testMatchStagesAreRecorded() throws IOException {
+
+        RecordingMetrics metrics = new RecordingMetrics();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setShardCount(2).setMetrics(metrics);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "apple"), new MonitorQuery("2", "banana"), new MonitorQuery("3", "cherry"));
+            assertThat(metrics.commits.get()).isGreaterThan(0);
+            assertThat(metrics.committedDocuments.get()).isEqualTo(3);
+
+            DocumentBatch batch = DocumentBatch.of(doc("doc1", "apple banana"), doc("doc2", "banana"));
+            assertThat(batch.getBuildTime()).isGreaterThan(0);
+
+            Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+            assertThat(matches.getMatchCount("doc2")).isEqualTo(1);
+
+            assertThat(metrics.batches.get()).isEqualTo(1);
+            assertThat(metrics.documents.get()).isEqualTo(2);
+            assertThat(metrics.batchBuildTime.get()).isEqualTo(batch.getBuildTime());
+            assertThat(metrics.presearcherQueries.get()).isEqualTo(2);
+            assertThat(metrics.queryIndexSearches.get()).isEqualTo(2);
+            assertThat(metrics.candidates.get()).isEqualTo(matches.getQueriesRun());
+            assertThat(metrics.resultAssemblies.get()).isEqualTo(1);
+            assertThat(metrics.matches.get()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void testDeletesAndPurgesAreRecorded() throws IOException {
+
+        RecordingMetrics metrics = new RecordingMetrics();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMetrics(metrics);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "apple"), new MonitorQuery("2", "banana"));
+            int commits = metrics.commits.get();
+
+            monitor.deleteById("1");
+            assertThat(metrics.commits.get()).isEqualTo(commits + 1);
+            assertThat(metrics.committedDocuments.get()).isEqualTo(3);
+
+            monitor.purgeCache();
+            assertThat(metrics.purges.get()).isEqualTo(1);
+            assertThat(metrics.cachedQueries.get()).isEqualTo(1);
+        }
+    }
+
+}
@@ -3,9 +3,17 @@ package uk.co.flax.luwak;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.ImmutableMap;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.store.MMapDirectory;
 import org.assertj.core.api.Assertions;
 import org.junit.After;
@@ -105,6 +113,119 @@ public class TestMonitorPersistence {
 
     }
 
+    @Test
+    public void testCacheIsRepopulatedConcurrently() throws IOException {
+
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+        int queryCount = QueryIndex.POPULATE_RANGE_SIZE * 2 + 100;
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory))) {
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < queryCount; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i), i % 2 == 0 ? "test" : "test" + i));
+            }
+            monitor.update(queries);
+        }
+
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicInteger cached = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setWarmupExecutor(executor)
+                .addQueryIndexUpdateListener(new QueryIndexUpdateListener() {
+                    @Override
+                    public void onWarmupProgress(long p, long t) {
+                        processed.accumulateAndGet(p, Math::max);
+                        total.set(t);
+                    }
+
+                    @Override
+                    public void afterWarmup(int cachedQueries, long timeInNanos) {
+                        cached.set(cachedQueries);
+                    }
+                });
+
+        try (Monitor monitor2 = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+
+            Assertions.assertThat(cached.get()).isEqualTo(queryCount);
+            Assertions.assertThat(processed.get()).isEqualTo(total.get());
+            Assertions.assertThat(total.get()).isGreaterThanOrEqualTo(queryCount);
+            assertThat(monitor2.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", (queryCount + 1) / 2);
+        }
+        finally {
+            executor.shutdown();
+        }
+
+    }
+
+    private static class CountingParser extends LuceneQueryParser {
+
+        final AtomicInteger parses = new AtomicInteger();
+
+        CountingParser() {
+            super("f");
+        }
+
+        @Override
+        public Query parse(String query, Map<String, String> metadata) throws Exception {
+            parses.incrementAndGet();
+            return super.parse(query, metadata);
+        }
+    }
+
+    @Test
+    public void testCacheIsLoadedFromSnapshot() throws IOException {
+
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().useQueryCacheSnapshot(true);
+
+        try (Monitor monitor = new Monitor(new CountingParser(), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            monitor.update(new MonitorQuery("1", "test"),
+                    new MonitorQuery("2", "\"test foo\"~2 OR test"),
+                    new MonitorQuery("3", "test", ImmutableMap.of("language", "en")),
+                    new MonitorQuery("4", "tes*"));
+        }
+
+        CountingParser parser = new CountingParser();
+        try (Monitor monitor2 = new Monitor(parser, new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            // the wildcard query can't be stored in the snapshot, so has to be parsed
+            Assertions.assertThat(parser.parses.get()).isEqualTo(1);
+            Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(5);
+            assertThat(monitor2.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 4);
+        }
+
+    }
+
+    @Test
+    public void testStaleSnapshotIsIgnored() throws IOException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().useQueryCacheSnapshot(true);
+
+        try (Monitor monitor = new Monitor(new CountingParser(), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test2"));
+        }
+
+        // a Monitor without snapshots commits new queries, but does not rewrite the snapshot
+        try (Monitor monitor2 = new Monitor(new CountingParser(), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory))) {
+            monitor2.update(new MonitorQuery("3", "test3"));
+        }
+
+        CountingParser parser = new CountingParser();
+        try (Monitor monitor3 = new Monitor(parser, new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            Assertions.assertThat(parser.parses.get()).isEqualTo(3);
+            Assertions.assertThat(monitor3.getQueryCount()).isEqualTo(3);
+        }
+
+    }
+
     @After
     public void teardown() throws IOException {
         FileUtils.deleteDirectory(indexDirectory);
@@ -0,0 +1,134 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.junit.Test;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ * Copyright (c) 2016 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestMonitorRamUsage {
+
+    private static List<MonitorQuery> queries(int start, int count) {
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = start; i < start + count; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "term" + i + " OR other" + i));
+        }
+        return queries;
+    }
+
+    private static long sum(Collection<Accountable> resources) {
+        long size = 0;
+        for (Accountable resource : resources) {
+            size += resource.ramBytesUsed();
+        }
+        return size;
+    }
+
+    @Test
+    public void testRamUsageGrowsWithQueries() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            monitor.update(queries(0, 10));
+            Monitor.QueryCacheStats small = monitor.getQueryCacheStats();
+            assertThat(small.queryCacheRamBytesUsed).isGreaterThan(0);
+            assertThat(small.termFilterRamBytesUsed).isGreaterThan(0);
+            assertThat(small.queryIndexRamBytesUsed).isGreaterThan(0);
+            assertThat(small.ramBytesUsed).isEqualTo(small.queryCacheRamBytesUsed
+                    + small.termFilterRamBytesUsed + small.queryIndexRamBytesUsed);
+
+            monitor.update(queries(10, 1000));
+            Monitor.QueryCacheStats large = monitor.getQueryCacheStats();
+            assertThat(large.queryCacheRamBytesUsed).isGreaterThan(small.queryCacheRamBytesUsed);
+            assertThat(large.termFilterRamBytesUsed).isGreaterThan(small.termFilterRamBytesUsed);
+
+            assertThat(monitor.ramBytesUsed()).isEqualTo(large.ramBytesUsed);
+            assertThat(monitor.getChildResources()).hasSize(3);
+            assertThat(sum(monitor.getChildResources())).isEqualTo(monitor.ramBytesUsed());
+        }
+    }
+
+    @Test
+    public void testShardsAreReportedSeparately() throws IOException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setShardCount(3);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor.update(queries(0, 100));
+            assertThat(monitor.getChildResources()).hasSize(3);
+            assertThat(sum(monitor.getChildResources())).isEqualTo(monitor.ramBytesUsed());
+        }
+    }
+
+    @Test
+    public void testBoundedCacheIsAccounted() throws IOException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMaxCachedQueries(10);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor.update(queries(0, 100));
+            Monitor.QueryCacheStats stats = monitor.getQueryCacheStats();
+            assertThat(stats.cachedQueries).isEqualTo(10);
+            assertThat(stats.queryCacheRamBytesUsed).isGreaterThan(0);
+        }
+    }
+
+    @Test
+    public void testQueryCacheEntryBreakdown() {
+
+        BooleanQuery.Builder bq = new BooleanQuery.Builder();
+        for (int i = 0; i < 10; i++) {
+            bq.add(new TermQuery(new Term("f", "term" + i)), BooleanClause.Occur.SHOULD);
+        }
+        QueryCacheEntry small = new QueryCacheEntry(new BytesRef("1"), new TermQuery(new Term("f", "term")),
+                Collections.<String, String>emptyMap());
+        QueryCacheEntry large = new QueryCacheEntry(new BytesRef("2"), bq.build(),
+                Collections.singletonMap("key", "value"));
+
+        assertThat(large.ramBytesUsed()).isGreaterThan(small.ramBytesUsed());
+        assertThat(large.getChildResources()).hasSize(3);
+        assertThat(sum(large.getChildResources())).isLessThan(large.ramBytesUsed());
+    }
+
+    @Test
+    public void testTermSetEstimates() {
+
+        BytesRefHash few = new BytesRefHash();
+        BytesRefHash many = new BytesRefHash();
+        for (int i = 0; i < 10000; i++) {
+            if (i < 10)
+                few.add(new BytesRef("term" + i));
+            many.add(new BytesRef("term" + i));
+        }
+        assertThat(QueryTermFilter.ramBytesUsed(many)).isGreaterThan(QueryTermFilter.ramBytesUsed(few));
+        // 10000 terms of at least five bytes, and a table of ids of at least 20000 ints
+        assertThat(QueryTermFilter.ramBytesUsed(many)).isGreaterThan(10000 * 5 + 20000 * 4);
+    }
+
+}
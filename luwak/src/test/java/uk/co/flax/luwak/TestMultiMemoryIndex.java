@@ -0,0 +1,309 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.IdentityEncoder;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.HighlightingMatcher;
+import uk.co.flax.luwak.matchers.HighlightsMatch;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestMultiMemoryIndex {
+
+    private static final Analyzer PAYLOADS = new Analyzer() {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer source = new WhitespaceTokenizer();
+            return new TokenStreamComponents(source, new DelimitedPayloadTokenFilter(source, '|', new IdentityEncoder()));
+        }
+    };
+
+    private static List<InputDocument> documents() {
+        List<InputDocument> docs = new ArrayList<>();
+        docs.add(InputDocument.builder("doc1")
+                .addField("text", "the quick brown fox jumps over the lazy dog", new StandardAnalyzer())
+                .addField("text", "a second value for the same field", new StandardAnalyzer())
+                .addField("payloads", "quick|fast fox|animal", PAYLOADS)
+                .addField(new StringField("tag", "animals", Field.Store.YES))
+                .build());
+        docs.add(InputDocument.builder("doc2")
+                .addField("text", "the fox and the fox and the fox", new StandardAnalyzer())
+                .addField(new StringField("tag", "repetition", Field.Store.NO))
+                .build());
+        docs.add(InputDocument.builder("doc3")
+                .addField("other", "a field that no other document has", new StandardAnalyzer())
+                .build());
+        docs.add(InputDocument.builder("doc4")
+                .addField("text", "lazy dogs sleep while quick foxes jump", new StandardAnalyzer())
+                .addField("payloads", "lazy|slow dog|animal", PAYLOADS)
+                .build());
+        return docs;
+    }
+
+    private static LeafReader referenceReader(Directory directory, List<InputDocument> docs, Similarity similarity) throws IOException {
+        Analyzer analyzer = new PerFieldAnalyzerWrapper(new StandardAnalyzer(),
+                Collections.singletonMap("payloads", PAYLOADS));
+        IndexWriterConfig iwc = new IndexWriterConfig(analyzer).setSimilarity(similarity);
+        try (IndexWriter writer = new IndexWriter(directory, iwc)) {
+            for (InputDocument doc : docs) {
+                writer.addDocument(doc.getDocument());
+            }
+            writer.forceMerge(1);
+        }
+        return DirectoryReader.open(directory).leaves().get(0).reader();
+    }
+
+    private static LeafReader memoryReader(List<InputDocument> docs, Similarity similarity) throws IOException {
+        MultiMemoryIndex index = new MultiMemoryIndex(similarity);
+        for (InputDocument doc : docs) {
+            index.addDocument(doc.getDocument(), doc.getAnalyzers());
+        }
+        return index.createReader();
+    }
+
+    @Test
+    public void testIndexMatchesIndexWriter() throws IOException {
+
+        List<InputDocument> docs = documents();
+        Similarity similarity = new BM25Similarity();
+
+        try (Directory directory = new RAMDirectory();
+             LeafReader expected = referenceReader(directory, docs, similarity);
+             LeafReader actual = memoryReader(docs, similarity)) {
+            assertReadersEqual(expected, actual);
+        }
+    }
+
+    @Test
+    public void testPreAnalyzedFieldsMatchIndexWriter() throws Exception {
+
+        List<InputDocument> docs = documents();
+        Similarity similarity = new BM25Similarity();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try (Directory directory = new RAMDirectory();
+             LeafReader expected = referenceReader(directory, docs, similarity)) {
+            MultiMemoryIndex index = new MultiMemoryIndex(similarity);
+            for (InputDocument doc : docs) {
+                List<TokenBuffer> buffers = new ArrayList<>();
+                for (Future<TokenBuffer> future : executor.invokeAll(MultiMemoryIndex.analysisTasks(doc.getDocument(), doc.getAnalyzers()))) {
+                    buffers.add(future.get());
+                }
+                index.addDocument(doc.getDocument(), doc.getAnalyzers(), buffers.iterator());
+            }
+            try (LeafReader actual = index.createReader()) {
+                assertReadersEqual(expected, actual);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertReadersEqual(LeafReader expected, LeafReader actual) throws IOException {
+        assertThat(actual.maxDoc()).isEqualTo(expected.maxDoc());
+        assertThat(actual.fields()).containsExactlyElementsOf(expected.fields());
+
+        for (String field : expected.fields()) {
+            Terms expectedTerms = expected.terms(field);
+            Terms actualTerms = actual.terms(field);
+            assertThat(actualTerms.size()).as(field).isEqualTo(expectedTerms.size());
+            assertThat(actualTerms.getDocCount()).as(field).isEqualTo(expectedTerms.getDocCount());
+            assertThat(actualTerms.getSumDocFreq()).as(field).isEqualTo(expectedTerms.getSumDocFreq());
+            assertThat(actualTerms.getSumTotalTermFreq()).as(field).isEqualTo(expectedTerms.getSumTotalTermFreq());
+            assertThat(actualTerms.hasPositions()).as(field).isEqualTo(expectedTerms.hasPositions());
+            assertThat(actualTerms.hasOffsets()).as(field).isEqualTo(expectedTerms.hasOffsets());
+            assertThat(actualTerms.hasPayloads()).as(field).isEqualTo(expectedTerms.hasPayloads());
+
+            TermsEnum expectedEnum = expectedTerms.iterator();
+            TermsEnum actualEnum = actualTerms.iterator();
+            BytesRef term;
+            while ((term = expectedEnum.next()) != null) {
+                assertThat(actualEnum.next()).isEqualTo(term);
+                assertThat(actualEnum.docFreq()).isEqualTo(expectedEnum.docFreq());
+                assertThat(actualEnum.totalTermFreq()).isEqualTo(expectedEnum.totalTermFreq());
+                assertPostingsEqual(field + ":" + term.utf8ToString(),
+                        expectedEnum.postings(null, PostingsEnum.ALL), actualEnum.postings(null, PostingsEnum.ALL));
+            }
+            assertThat(actualEnum.next()).isNull();
+
+            NumericDocValues expectedNorms = expected.getNormValues(field);
+            NumericDocValues actualNorms = actual.getNormValues(field);
+            if (expectedNorms == null) {
+                assertThat(actualNorms).as(field).isNull();
+                continue;
+            }
+            for (int i = 0; i < expected.maxDoc(); i++) {
+                assertThat(actualNorms.get(i)).as(field + " norm " + i).isEqualTo(expectedNorms.get(i));
+            }
+        }
+
+        for (int i = 0; i < expected.maxDoc(); i++) {
+            assertThat(actual.document(i).toString()).isEqualTo(expected.document(i).toString());
+        }
+    }
+
+    private static void assertPostingsEqual(String term, PostingsEnum expected, PostingsEnum actual) throws IOException {
+        int doc;
+        while ((doc = expected.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            assertThat(actual.nextDoc()).as(term).isEqualTo(doc);
+            assertThat(actual.freq()).as(term).isEqualTo(expected.freq());
+            for (int i = 0; i < expected.freq(); i++) {
+                assertThat(actual.nextPosition()).as(term).isEqualTo(expected.nextPosition());
+                assertThat(actual.startOffset()).as(term).isEqualTo(expected.startOffset());
+                assertThat(actual.endOffset()).as(term).isEqualTo(expected.endOffset());
+                assertThat(actual.getPayload()).as(term).isEqualTo(expected.getPayload());
+            }
+        }
+        assertThat(actual.nextDoc()).as(term).isEqualTo(DocIdSetIterator.NO_MORE_DOCS);
+    }
+
+    @Test
+    public void testScoresMatchIndexWriter() throws IOException {
+
+        List<InputDocument> docs = documents();
+        Similarity similarity = new BM25Similarity();
+
+        List<Query> queries = new ArrayList<>();
+        queries.add(new TermQuery(new Term("text", "fox")));
+        queries.add(new PhraseQuery("text", "lazy", "dog"));
+        queries.add(new PhraseQuery(2, "text", "quick", "fox"));
+        queries.add(new SpanNearQuery(new SpanQuery[]{
+                new SpanTermQuery(new Term("text", "value")), new SpanTermQuery(new Term("text", "field"))
+        }, 5, true));
+        queries.add(new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("text", "quick")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("tag", "animals")), BooleanClause.Occur.SHOULD)
+                .add(new PrefixQuery(new Term("payloads", "d")), BooleanClause.Occur.SHOULD)
+                .build());
+        queries.add(new WildcardQuery(new Term("text", "f*x*")));
+
+        try (Directory directory = new RAMDirectory();
+             LeafReader expected = referenceReader(directory, docs, similarity);
+             LeafReader actual = memoryReader(docs, similarity)) {
+
+            IndexSearcher expectedSearcher = new IndexSearcher(expected);
+            expectedSearcher.setSimilarity(similarity);
+            IndexSearcher actualSearcher = new IndexSearcher(actual);
+            actualSearcher.setSimilarity(similarity);
+
+            for (Query query : queries) {
+                ScoreDoc[] expectedHits = expectedSearcher.search(query, 10).scoreDocs;
+                ScoreDoc[] actualHits = actualSearcher.search(query, 10).scoreDocs;
+                assertThat(expectedHits.length).as(query.toString()).isGreaterThan(0);
+                assertThat(actualHits.length).as(query.toString()).isEqualTo(expectedHits.length);
+                for (int i = 0; i < expectedHits.length; i++) {
+                    assertThat(actualHits[i].doc).as(query.toString()).isEqualTo(expectedHits[i].doc);
+                    assertThat(actualHits[i].score).as(query.toString()).isEqualTo(expectedHits[i].score);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBatchesResolveDocIdsInInsertionOrder() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("text"), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("q1", "\"lazy dog\""), new MonitorQuery("q2", "fox"));
+
+            try (DocumentBatch batch = DocumentBatch.of(documents())) {
+                for (int i = 0; i < batch.getBatchSize(); i++) {
+                    assertThat(batch.resolveDocId(i)).isEqualTo("doc" + (i + 1));
+                }
+                Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+                assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+                assertThat(matches.getMatchCount("doc2")).isEqualTo(1);
+                assertThat(matches.getMatchCount("doc3")).isEqualTo(0);
+                assertThat(matches.getMatchCount("doc4")).isEqualTo(0);
+
+                Matches<HighlightsMatch> highlights = monitor.match(batch, HighlightingMatcher.FACTORY);
+                assertThat(highlights.matches("q1", "doc1").getHits("text"))
+                        .containsExactly(new HighlightsMatch.Hit(7, 35, 7, 39), new HighlightsMatch.Hit(8, 40, 8, 43));
+            }
+        }
+    }
+
+    @Test
+    public void testDocValuesFallBackToRAMDirectory() throws IOException {
+
+        List<InputDocument> docs = documents();
+        docs.add(InputDocument.builder("doc5")
+                .addField("text", "a fox with doc values", new StandardAnalyzer())
+                .addField(new NumericDocValuesField("number", 5))
+                .build());
+
+        try (DocumentBatch batch = DocumentBatch.of(docs)) {
+            LeafReader reader = batch.getIndexReader();
+            assertThat(reader.getNumericDocValues("number").get(4)).isEqualTo(5);
+            assertThat(batch.resolveDocId(4)).isEqualTo("doc5");
+        }
+    }
+
+    @Test
+    public void testRAMDirectoryBatchesUseEachDocumentsAnalyzers() throws IOException {
+
+        List<InputDocument> docs = new ArrayList<>();
+        docs.add(InputDocument.builder("doc1")
+                .addField("text", "Quick Fox", new KeywordAnalyzer())
+                .addField(new NumericDocValuesField("number", 1))
+                .build());
+        docs.add(InputDocument.builder("doc2")
+                .addField("text", "Quick Fox", new WhitespaceAnalyzer())
+                .addField(new NumericDocValuesField("number", 2))
+                .build());
+
+        try (DocumentBatch batch = DocumentBatch.of(docs)) {
+            LeafReader reader = batch.getIndexReader();
+            assertThat(reader.docFreq(new Term("text", "Quick Fox"))).isEqualTo(1);
+            assertThat(reader.docFreq(new Term("text", "Fox"))).isEqualTo(1);
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+import uk.co.flax.luwak.testutils.FileUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ * Copyright (c) 2016 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestPresearcherCollection {
+
+    private static final String FIELD = "presearcher";
+
+    private Path indexDirectory;
+
+    @Before
+    public void setup() throws IOException {
+        indexDirectory = Files.createTempDirectory("presearcher-collection");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(indexDirectory);
+    }
+
+    // A presearcher that records whether the queryindex search asked for scores.  It uses
+    // a span query so that debug() can rewrite it to report matching terms.
+    static class ScoreRecordingPresearcher extends Presearcher {
+
+        final List<Boolean> needsScores = new ArrayList<>();
+
+        @Override
+        public Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
+            return new SpanTermQuery(new Term(FIELD, "all")) {
+                @Override
+                public SpanWeight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+                    ScoreRecordingPresearcher.this.needsScores.add(needsScores);
+                    return super.createWeight(searcher, needsScores);
+                }
+            };
+        }
+
+        @Override
+        public Document indexQuery(Query query, Map<String, String> metadata) {
+            Document doc = new Document();
+            doc.add(new TextField(FIELD, "all", Field.Store.NO));
+            return doc;
+        }
+    }
+
+    @Test
+    public void testCandidatesAreCollectedWithoutScores() throws IOException {
+
+        ScoreRecordingPresearcher presearcher = new ScoreRecordingPresearcher();
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), presearcher)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "other"));
+            InputDocument doc = InputDocument.builder("doc").addField("f", "test", new WhitespaceAnalyzer()).build();
+
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(1);
+            assertThat(presearcher.needsScores).containsExactly(false);
+
+            // debug() reports each candidate's presearcher score, so it still needs scores
+            presearcher.needsScores.clear();
+            assertThat(monitor.debug(doc, SimpleMatcher.FACTORY).match("1", "doc")).isNotNull();
+            assertThat(presearcher.needsScores).containsExactly(true);
+        }
+    }
+
+    private static final InputDocument DOC = buildDoc();
+
+    // matches every query whose term number is a multiple of three
+    private static InputDocument buildDoc() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i += 3) {
+            text.append("term").append(i).append(" ");
+        }
+        return InputDocument.builder("doc").addField("f", text.toString(), new WhitespaceAnalyzer()).build();
+    }
+
+    private static void assertMatches(Monitor monitor, Set<Integer> queries) throws IOException {
+        Set<String> expected = new TreeSet<>();
+        for (int i : queries) {
+            if (i % 3 == 0)
+                expected.add("q" + i);
+        }
+        Set<String> matched = new TreeSet<>();
+        for (QueryMatch match : monitor.match(DOC, SimpleMatcher.FACTORY).getMatches("doc")) {
+            matched.add(match.getQueryId());
+        }
+        assertThat(matched).isEqualTo(expected);
+    }
+
+    @Test
+    public void testQueryIdsSurviveMergesDeletesAndReopening() throws IOException {
+
+        Set<Integer> queries = new TreeSet<>();
+        IndexWriter writer = Monitor.defaultIndexWriter(new NIOFSDirectory(indexDirectory));
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), writer)) {
+
+            // one segment for each update
+            for (int batch = 0; batch < 10; batch++) {
+                List<MonitorQuery> updates = new ArrayList<>();
+                for (int i = batch * 10; i < batch * 10 + 10; i++) {
+                    updates.add(new MonitorQuery("q" + i, "term" + i));
+                    queries.add(i);
+                }
+                monitor.update(updates);
+                assertMatches(monitor, queries);
+            }
+
+            for (int i = 0; i < 100; i += 4) {
+                monitor.deleteById("q" + i);
+                queries.remove(i);
+            }
+            assertMatches(monitor, queries);
+
+            // merge the remaining queries into a single segment; the next update refreshes the searcher
+            writer.forceMerge(1);
+            monitor.update(new MonitorQuery("q150", "term150"));
+            queries.add(150);
+            assertMatches(monitor, queries);
+        }
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new NIOFSDirectory(indexDirectory))) {
+            assertThat(monitor.getQueryCount()).isEqualTo(queries.size());
+            assertMatches(monitor, queries);
+        }
+    }
+
+}
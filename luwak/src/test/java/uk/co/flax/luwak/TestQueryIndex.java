@@ -2,8 +2,8 @@ package uk.co.flax.luwak;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -61,11 +61,7 @@ public class TestQueryIndex {
         
         assertThat(getSumOfIds()[0]).isEqualTo(12);
         
-        queryIndex.deleteDocuments(createDelete(12));
-        
-        assertThat(getSumOfIds()[0]).isEqualTo(12);
-        
-        queryIndex.commit(null);
+        queryIndex.delete(createDelete(12));
         
         assertThat(getSumOfIds()[0]).isEqualTo(0);
         
@@ -191,24 +187,11 @@ public class TestQueryIndex {
         }
         
         private void delete() throws IOException {
-            queryIndex.deleteDocuments(createDelete(r.nextInt(MAX_ID)));
+            queryIndex.delete(createDelete(r.nextInt(MAX_ID)));
         }
         
         private void purgeCache() throws IOException {
-            
-            queryIndex.purgeCache(new QueryIndex.CachePopulator() {
-                
-                @Override
-                public void populateCacheWithIndex(final Map<BytesRef, QueryCacheEntry> newCache) throws IOException {
-                    queryIndex.scan(new QueryIndex.QueryCollector() {
-                        @Override
-                        public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
-                            newCache.put(BytesRef.deepCopyOf(query.hash), query);
-                        }
-                    });
-                }
-                
-            });
+            queryIndex.purgeCache();
         }
     }
 
@@ -289,7 +272,7 @@ public class TestQueryIndex {
         return updates;
     }
     
-    private Term createDelete(int id) {
-        return new Term(Monitor.FIELDS.del, String.valueOf(id));
+    private List<String> createDelete(int id) {
+        return Collections.singletonList(String.valueOf(id));
     }
 }
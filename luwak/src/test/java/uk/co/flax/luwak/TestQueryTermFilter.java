@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -29,6 +30,7 @@ import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -64,4 +66,23 @@ public class TestQueryTermFilter {
         assertThat(tf.getTerms(FIELD).size()).isEqualTo(2);
     }
 
+    @Test
+    public void testSegmentTermsAreReusedAcrossRefreshes() throws IOException {
+
+        QueryIndex qi = new QueryIndex();
+        qi.commit(indexable("1", "term"));
+        assertThat(qi.segmentTerms).hasSize(1);
+        Map<String, BytesRefHash> firstSegment = Iterables.getOnlyElement(qi.segmentTerms.values());
+
+        qi.commit(indexable("2", "term2"));
+        assertThat(qi.segmentTerms).hasSize(2);
+        assertThat(qi.segmentTerms).containsValue(firstSegment);
+
+        QueryTermFilter tf = Iterables.getOnlyElement(qi.termFilters.values());
+        assertThat(tf.contains(FIELD, new BytesRef("term"))).isTrue();
+        assertThat(tf.contains(FIELD, new BytesRef("term2"))).isTrue();
+        assertThat(tf.contains(FIELD, new BytesRef("term3"))).isFalse();
+        assertThat(tf.contains("otherfield", new BytesRef("term"))).isFalse();
+    }
+
 }
@@ -0,0 +1,147 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.PresearcherMatches;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class TestShardedMonitor {
+
+    private static final String FIELD = "f";
+
+    private static Monitor newMonitor(int shards) throws IOException {
+        return new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher(),
+                new QueryIndexConfiguration().setShardCount(shards));
+    }
+
+    private static InputDocument doc(String id, String text) {
+        return InputDocument.builder(id).addField(FIELD, text, new WhitespaceAnalyzer()).build();
+    }
+
+    @Test
+    public void testQueriesAreDistributedAcrossShards() throws IOException {
+
+        try (Monitor monitor = newMonitor(4)) {
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i), "test" + (i % 10) + " common"));
+            }
+            monitor.update(queries);
+
+            assertThat(monitor.getQueryCount()).isEqualTo(100);
+            assertThat(monitor.getDisjunctCount()).isEqualTo(200);
+            assertThat(monitor.getQueryCacheStats().queries).isEqualTo(200);
+            assertThat(monitor.getQuery("42").getQuery()).isEqualTo("test2 common");
+
+            Matches<QueryMatch> matches = monitor.match(doc("doc1", "test3"), SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(10);
+            assertThat(matches.getQueriesRun()).isEqualTo(10);
+
+            matches = monitor.match(DocumentBatch.of(doc("doc1", "common"), doc("doc2", "test1")), SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(100);
+            assertThat(matches.getMatchCount("doc2")).isEqualTo(10);
+        }
+
+    }
+
+    @Test
+    public void testDeletesAndUpdatesAreRoutedToTheCorrectShard() throws IOException {
+
+        try (Monitor monitor = newMonitor(3)) {
+            for (int i = 0; i < 30; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "test"));
+            }
+            monitor.update(new MonitorQuery("5", "updated"));
+            monitor.deleteById("6", "7", "8");
+
+            assertThat(monitor.getQueryCount()).isEqualTo(27);
+            assertThat(monitor.match(doc("doc", "test"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(26);
+            assertThat(monitor.match(doc("doc", "updated"), SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(1);
+
+            monitor.clear();
+            assertThat(monitor.getQueryCount()).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testDebugSearchesAllShards() throws IOException {
+
+        try (Monitor monitor = newMonitor(2)) {
+            for (int i = 0; i < 10; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "test"));
+            }
+            PresearcherMatches<QueryMatch> matches = monitor.debug(doc("doc", "test"), SimpleMatcher.FACTORY);
+            assertThat(matches.matcher.getMatchCount("doc")).isEqualTo(10);
+            assertThat(matches.getPresearcherMatchCount()).isEqualTo(10);
+            assertThat(matches.match("3", "doc")).isNotNull();
+        }
+
+    }
+
+    @Test
+    public void testWriterCountMustMatchShardCount() throws IOException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setShardCount(2);
+        IndexWriter writer = Monitor.defaultIndexWriter(new RAMDirectory());
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher(), writer, config)) {
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e).hasMessage("Configuration specifies 2 shards, but 1 IndexWriters were supplied");
+        }
+        finally {
+            writer.close();
+        }
+
+    }
+
+    @Test
+    public void testWritersAreClosedIfTheConfigurationIsInvalid() throws IOException {
+
+        RAMDirectory directory = new RAMDirectory();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setShardCount(2);
+        try {
+            new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher(), directory, config);
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e).hasMessage("Configuration specifies 2 shards, but 1 IndexWriters were supplied");
+        }
+
+        // the write lock has been released, so the directory can be used by another Monitor
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher(), directory)) {
+            monitor.update(new MonitorQuery("1", "test"));
+            assertThat(monitor.getQueryCount()).isEqualTo(1);
+        }
+
+    }
+
+}
@@ -0,0 +1,164 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.HighlightingMatcher;
+import uk.co.flax.luwak.matchers.HighlightsMatch;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ * Copyright (c) 2016 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestSharedMatches {
+
+    static final String FIELD = "f";
+
+    static class CountingMatcher extends SimpleMatcher {
+
+        final List<String> queriesRun = new ArrayList<>();
+
+        CountingMatcher(DocumentBatch docs) {
+            super(docs);
+        }
+
+        @Override
+        protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+            queriesRun.add(queryId);
+            super.doMatchQuery(queryId, matchQuery, metadata);
+        }
+    }
+
+    // a slow query that is equal to every other SlowQuery
+    static class SlowQuery extends Query {
+
+        @Override
+        public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return new MatchAllDocsQuery().createWeight(searcher, needsScores);
+        }
+
+        @Override
+        public String toString(String field) {
+            return "slow";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SlowQuery;
+        }
+
+        @Override
+        public int hashCode() {
+            return SlowQuery.class.hashCode();
+        }
+    }
+
+    private static InputDocument doc(String text) {
+        return InputDocument.builder("doc").addField(FIELD, text, new WhitespaceAnalyzer()).build();
+    }
+
+    private static Monitor newMonitor() throws IOException {
+        Monitor monitor = new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher());
+        monitor.update(new MonitorQuery("1", "brand OR apples"),
+                       new MonitorQuery("2", "brand OR oranges"),
+                       new MonitorQuery("3", "brand"));
+        return monitor;
+    }
+
+    @Test
+    public void testIdenticalSubqueriesAreRunForEachOwner() throws IOException {
+        try (Monitor monitor = newMonitor()) {
+            final List<CountingMatcher> matchers = new ArrayList<>();
+            Matches<QueryMatch> matches = monitor.match(doc("brand new apples"), new MatcherFactory<QueryMatch>() {
+                @Override
+                public CandidateMatcher<QueryMatch> createMatcher(DocumentBatch docs) {
+                    CountingMatcher matcher = new CountingMatcher(docs);
+                    matchers.add(matcher);
+                    return matcher;
+                }
+            });
+
+            assertThat(matches.getMatchCount("doc")).isEqualTo(3);
+            assertThat(matches.getPresearcherHits()).containsOnly("1", "2", "3");
+            // 'brand' for each of its three owners, plus 'apples'
+            assertThat(matchers.get(0).queriesRun).containsOnly("1", "2", "3").hasSize(4);
+        }
+    }
+
+    @Test
+    public void testDeletingAnOwnerDoesNotAffectOtherOwners() throws IOException {
+        try (Monitor monitor = newMonitor()) {
+            monitor.deleteById("1");
+            Matches<QueryMatch> matches = monitor.match(doc("brand"), SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc")).isEqualTo(2);
+            assertThat(matches.matches("1", "doc")).isNull();
+            assertThat(matches.matches("2", "doc")).isNotNull();
+            assertThat(matches.matches("3", "doc")).isNotNull();
+        }
+    }
+
+    @Test
+    public void testIdenticalSubqueriesAreHighlightedForEachOwner() throws IOException {
+        try (Monitor monitor = newMonitor()) {
+            Matches<HighlightsMatch> matches = monitor.match(doc("new brand"), HighlightingMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc")).isEqualTo(3);
+            for (String id : new String[]{ "1", "2", "3" }) {
+                HighlightsMatch match = matches.matches(id, "doc");
+                assertThat(match.getQueryId()).isEqualTo(id);
+                assertThat(match.getHits(FIELD)).containsExactly(new HighlightsMatch.Hit(1, 4, 1, 9));
+            }
+        }
+    }
+
+    @Test
+    public void testIdenticalSlowQueriesAreLoggedForEachOwner() throws IOException {
+        MonitorQueryParser parser = new MonitorQueryParser() {
+            @Override
+            public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+                return queryString.equals("slow") ? new SlowQuery() : new MatchAllDocsQuery();
+            }
+        };
+        try (Monitor monitor = new Monitor(parser, new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "slow"), new MonitorQuery("3", "fast"));
+
+            Matches<QueryMatch> matches = monitor.match(InputDocument.builder("doc").build(), SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc")).isEqualTo(3);
+            assertThat(matches.getSlowLog().toString())
+                    .contains("1 [")
+                    .contains("2 [")
+                    .doesNotContain("3 [");
+        }
+    }
+
+}
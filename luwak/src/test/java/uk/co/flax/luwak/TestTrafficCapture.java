@@ -0,0 +1,159 @@
+package uk.co.flax.luwak;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ * Copyright (c) 2016 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestTrafficCapture {
+
+    private static final WhitespaceAnalyzer ANALYZER = new WhitespaceAnalyzer();
+
+    private static List<TrafficLog.Entry> read(byte[] bytes) throws IOException {
+        List<TrafficLog.Entry> entries = new ArrayList<>();
+        try (TrafficLog.Reader reader = new TrafficLog.Reader(new ByteArrayInputStream(bytes))) {
+            TrafficLog.Entry entry;
+            while ((entry = reader.next()) != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    public void testMonitorTrafficIsCaptured() throws IOException {
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher());
+             TrafficLog log = new TrafficLog(os)) {
+
+            monitor.update(new MonitorQuery("ignored", "f:ignored"));
+            monitor.setTrafficCapture(log);
+
+            monitor.update(new MonitorQuery("1", "f:test"), new MonitorQuery("2", "f:other"));
+            InputDocument doc = InputDocument.builder("doc1")
+                    .addField("f", "this is a test", ANALYZER)
+                    .addField("g", "another field", ANALYZER)
+                    .build();
+            monitor.match(doc, SimpleMatcher.FACTORY);
+            monitor.deleteById("2");
+            monitor.clear();
+
+            monitor.setTrafficCapture(TrafficCapture.NOOP);
+            monitor.update(new MonitorQuery("3", "f:ignored"));
+        }
+
+        List<TrafficLog.Entry> entries = read(os.toByteArray());
+        assertThat(entries).hasSize(4);
+
+        assertThat(entries.get(0).getType()).isEqualTo(TrafficLog.Entry.Type.UPDATE);
+        assertThat(entries.get(0).getQueries())
+                .containsExactly(new MonitorQuery("1", "f:test"), new MonitorQuery("2", "f:other"));
+
+        TrafficLog.Entry match = entries.get(1);
+        assertThat(match.getType()).isEqualTo(TrafficLog.Entry.Type.MATCH);
+        assertThat(match.getDocuments()).hasSize(1);
+        assertThat(match.getDocuments().get(0).getId()).isEqualTo("doc1");
+        assertThat(match.getDocuments().get(0).getFields()).containsExactly("f", "g");
+        assertThat(match.getDocuments().get(0).getTexts()).containsExactly("this is a test", "another field");
+
+        assertThat(entries.get(2).getType()).isEqualTo(TrafficLog.Entry.Type.DELETE);
+        assertThat(entries.get(2).getIds()).containsExactly("2");
+        assertThat(entries.get(3).getType()).isEqualTo(TrafficLog.Entry.Type.CLEAR);
+
+        for (int i = 1; i < entries.size(); i++) {
+            assertThat(entries.get(i).getTimestamp()).isGreaterThanOrEqualTo(entries.get(i - 1).getTimestamp());
+        }
+    }
+
+    @Test
+    public void testCapturedDocumentsCanBeMatchedAgain() throws IOException {
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher());
+             TrafficLog log = new TrafficLog(os)) {
+            monitor.setTrafficCapture(log);
+            monitor.match(DocumentBatch.of(
+                    InputDocument.builder("doc1").addField("f", "hello world", ANALYZER).build(),
+                    InputDocument.builder("doc2").addField("f", "goodbye world", ANALYZER).build()),
+                    SimpleMatcher.FACTORY);
+        }
+
+        TrafficLog.Entry entry = read(os.toByteArray()).get(0);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher());
+             DocumentBatch batch = entry.buildBatch(ANALYZER)) {
+            monitor.update(new MonitorQuery("1", "hello"), new MonitorQuery("2", "world"));
+            Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+            assertThat(matches.getMatchCount("doc2")).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testBulkLoadsAreCapturedInBatches() throws IOException {
+
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "f:term" + i));
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setQueryUpdateBufferSize(10);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config);
+             TrafficLog log = new TrafficLog(os)) {
+            monitor.setTrafficCapture(log);
+            monitor.bulkLoad(queries, 2);
+        }
+
+        List<MonitorQuery> captured = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        for (TrafficLog.Entry entry : read(os.toByteArray())) {
+            captured.addAll(entry.getQueries());
+            sizes.add(entry.getQueries().size());
+        }
+        assertThat(captured).isEqualTo(queries);
+        assertThat(sizes).isEqualTo(Arrays.asList(10, 10, 5));
+    }
+
+    @Test
+    public void testTruncatedLogsAreReadToTheLastCompleteEntry() throws IOException {
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (TrafficLog log = new TrafficLog(os)) {
+            log.queriesDeleted(Arrays.asList("1", "2"));
+            log.queriesUpdated(Arrays.asList(new MonitorQuery("1", "f:test")));
+        }
+
+        byte[] bytes = os.toByteArray();
+        List<TrafficLog.Entry> entries = read(Arrays.copyOf(bytes, bytes.length - 3));
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).getIds()).containsExactly("1", "2");
+    }
+
+}
@@ -0,0 +1,277 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+import uk.co.flax.luwak.testutils.FileUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/*
+ * Copyright (c) 2016 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestUpdateLog {
+
+    private Path tempDirectory;
+
+    @Before
+    public void setup() throws IOException {
+        tempDirectory = Files.createTempDirectory("update-log");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(tempDirectory);
+    }
+
+    private Directory newDirectory(String name) throws IOException {
+        return new NIOFSDirectory(tempDirectory.resolve(name));
+    }
+
+    private static final InputDocument DOC
+            = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+
+    private static QueryIndexConfiguration logConfig() {
+        return new QueryIndexConfiguration().useUpdateLog(true).setCommitFrequency(1, TimeUnit.HOURS);
+    }
+
+    private static Monitor newMonitor(Directory directory, QueryIndexConfiguration config) throws IOException {
+        return new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), directory, config);
+    }
+
+    private static Path segment(Directory directory) throws IOException {
+        for (String file : directory.listAll()) {
+            if (file.startsWith(UpdateLog.FILE_PREFIX))
+                return ((NIOFSDirectory) directory).getDirectory().resolve(file);
+        }
+        throw new AssertionError("No update log segment found");
+    }
+
+    private static int logFiles(Directory directory) throws IOException {
+        int count = 0;
+        for (String file : directory.listAll()) {
+            if (file.startsWith(UpdateLog.FILE_PREFIX))
+                count++;
+        }
+        return count;
+    }
+
+    private static int committedDocs(Directory directory) throws IOException {
+        if (DirectoryReader.indexExists(directory) == false)
+            return 0;
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            return reader.numDocs();
+        }
+    }
+
+    // Copies everything but the write lock, as if the process had stopped without closing the Monitor
+    private Directory crashCopy(Directory directory) throws IOException {
+        Directory copy = newDirectory("copy");
+        for (String file : directory.listAll()) {
+            if (file.equals("write.lock") == false)
+                copy.copyFrom(directory, file, file, IOContext.DEFAULT);
+        }
+        return copy;
+    }
+
+    @Test
+    public void testUpdatesAreVisibleBeforeCommit() throws IOException {
+
+        Directory directory = newDirectory("index");
+        try (Monitor monitor = newMonitor(directory, logConfig())) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+            monitor.deleteById("2");
+
+            assertThat(monitor.match(DOC, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(1);
+            assertThat(committedDocs(directory)).isEqualTo(0);
+            // both batches are appended to the same segment
+            assertThat(logFiles(directory)).isEqualTo(1);
+
+            monitor.flush();
+            assertThat(committedDocs(directory)).isEqualTo(1);
+            assertThat(logFiles(directory)).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testUncommittedUpdatesAreReplayed() throws IOException {
+
+        Directory directory = newDirectory("index");
+        Directory copy;
+        try (Monitor monitor = newMonitor(directory, logConfig())) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+            monitor.flush();
+            monitor.update(new MonitorQuery("3", "test"), new MonitorQuery("2", "nomatch"));
+            monitor.deleteById("1");
+            copy = crashCopy(directory);
+        }
+
+        try (Monitor monitor = newMonitor(copy, logConfig())) {
+            assertThat(monitor.getQueryIds()).containsOnly("2", "3");
+            assertThat(monitor.getQuery("2").getQuery()).isEqualTo("nomatch");
+            assertThat(monitor.match(DOC, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(1);
+            // replayed changes are committed straight away
+            assertThat(logFiles(copy)).isEqualTo(0);
+            assertThat(committedDocs(copy)).isEqualTo(2);
+        }
+
+    }
+
+    @Test
+    public void testClearIsReplayed() throws IOException {
+
+        Directory directory = newDirectory("index");
+        Directory copy;
+        try (Monitor monitor = newMonitor(directory, logConfig())) {
+            monitor.update(new MonitorQuery("1", "test"));
+            monitor.flush();
+            monitor.clear();
+            monitor.update(new MonitorQuery("2", "test"));
+            copy = crashCopy(directory);
+        }
+
+        try (Monitor monitor = newMonitor(copy, logConfig())) {
+            assertThat(monitor.getQueryIds()).containsOnly("2");
+        }
+
+    }
+
+    @Test
+    public void testManyBatchesShareASegmentUntilCommit() throws IOException {
+
+        Directory directory = newDirectory("index");
+        try (Monitor monitor = newMonitor(directory, logConfig())) {
+            for (int i = 0; i < 100; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "test"));
+            }
+            assertThat(logFiles(directory)).isEqualTo(1);
+
+            monitor.flush();
+            assertThat(logFiles(directory)).isEqualTo(0);
+            monitor.update(new MonitorQuery("100", "test"));
+            assertThat(logFiles(directory)).isEqualTo(1);
+            assertThat(segment(directory).getFileName().toString()).isEqualTo(UpdateLog.FILE_PREFIX + 101);
+        }
+
+    }
+
+    @Test
+    public void testPartiallyWrittenRecordIsIgnored() throws IOException {
+
+        Directory directory = newDirectory("index");
+        Directory copy;
+        try (Monitor monitor = newMonitor(directory, logConfig())) {
+            monitor.update(new MonitorQuery("1", "test"));
+            monitor.update(new MonitorQuery("2", "test"));
+            copy = crashCopy(directory);
+        }
+
+        // the process stopped part of the way through appending a record
+        Files.write(segment(copy), new byte[]{ 0, 0, 0, 20, 1, 1 }, StandardOpenOption.APPEND);
+
+        try (Monitor monitor = newMonitor(copy, logConfig())) {
+            assertThat(monitor.getQueryIds()).containsOnly("1", "2");
+            assertThat(logFiles(copy)).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testCorruptRecordIsDetected() throws IOException {
+
+        Directory directory = newDirectory("index");
+        Directory copy;
+        try (Monitor monitor = newMonitor(directory, logConfig())) {
+            monitor.update(new MonitorQuery("1", "test"));
+            monitor.update(new MonitorQuery("2", "test"));
+            copy = crashCopy(directory);
+        }
+
+        // flip a byte in the first of the two records, just after the segment header and record length
+        Path segment = segment(copy);
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[CodecUtil.headerLength("LuwakUpdateLog") + Integer.BYTES + 2] ^= 1;
+        Files.write(segment, bytes);
+
+        try {
+            newMonitor(copy, logConfig()).close();
+            fail("Expected a CorruptIndexException");
+        }
+        catch (CorruptIndexException e) {
+            assertThat(e.getMessage()).contains("checksum");
+        }
+
+    }
+
+    @Test
+    public void testUpdateLogRequiresAFilesystemDirectory() throws IOException {
+        Directory directory = new RAMDirectory();
+        try {
+            newMonitor(directory, logConfig());
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e).hasMessage("An update log requires a queryindex in an FSDirectory");
+        }
+        // the Monitor's IndexWriter has been closed, releasing its write lock
+        Monitor.defaultIndexWriter(directory).close();
+    }
+
+    @Test
+    public void testChangesAreCommittedWhenThresholdIsReached() throws IOException {
+
+        Directory directory = newDirectory("index");
+        try (Monitor monitor = newMonitor(directory, logConfig().setMaxUncommittedUpdates(3))) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+            assertThat(committedDocs(directory)).isEqualTo(0);
+            monitor.update(new MonitorQuery("3", "test"));
+            assertThat(committedDocs(directory)).isEqualTo(3);
+            assertThat(logFiles(directory)).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testUpdateLogRequiresStoredQueries() throws IOException {
+        try {
+            newMonitor(newDirectory("index"), logConfig().storeQueries(false));
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e).hasMessage("An update log can only be used if queries are stored");
+        }
+    }
+
+}
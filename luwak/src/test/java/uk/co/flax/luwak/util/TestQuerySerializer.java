@@ -0,0 +1,85 @@
+package uk.co.flax.luwak.util;
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.spans.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.RegExp;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestQuerySerializer {
+
+    private static void assertRoundTrip(Query query) throws IOException {
+        BytesRef bytes = QuerySerializer.serialize(query);
+        assertThat(bytes).isNotNull();
+        assertThat(QuerySerializer.deserialize(bytes)).isEqualTo(query);
+    }
+
+    private static SpanQuery span(String term) {
+        return new SpanTermQuery(new Term("f", term));
+    }
+
+    @Test
+    public void testSimpleQueries() throws IOException {
+        assertRoundTrip(new TermQuery(new Term("f", "term")));
+        assertRoundTrip(new PhraseQuery(2, "f", "term1", "term2", "term3"));
+        assertRoundTrip(new RegexpQuery(new Term("f", "te[sx]t.*")));
+        assertRoundTrip(new TermsQuery(new Term("f1", "t1"), new Term("f2", "t2"), new Term("f2", "t3")));
+    }
+
+    @Test
+    public void testCompoundQueries() throws IOException {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(new TermQuery(new Term("f", "must")), BooleanClause.Occur.MUST);
+        builder.add(new BoostQuery(new TermQuery(new Term("f", "should")), 2.5f), BooleanClause.Occur.SHOULD);
+        builder.add(new TermQuery(new Term("f", "filter")), BooleanClause.Occur.FILTER);
+        builder.add(new TermQuery(new Term("f", "not")), BooleanClause.Occur.MUST_NOT);
+        builder.setMinimumNumberShouldMatch(1);
+        builder.setDisableCoord(true);
+        assertRoundTrip(builder.build());
+
+        assertRoundTrip(new DisjunctionMaxQuery(Arrays.<Query>asList(
+                new TermQuery(new Term("f1", "t")), new PhraseQuery("f2", "t1", "t2")), 0.1f));
+    }
+
+    @Test
+    public void testSpanQueries() throws IOException {
+        SpanQuery near = new SpanNearQuery(new SpanQuery[]{ span("a"), span("b") }, 3, true);
+        SpanQuery or = new SpanOrQuery(near, span("c"));
+        assertRoundTrip(new SpanNotQuery(or, span("d")));
+        assertRoundTrip(new SpanFirstQuery(new SpanBoostQuery(near, 2), 5));
+        assertRoundTrip(new SpanMultiTermQueryWrapper<>(new RegexpQuery(new Term("f", "a.*"))));
+    }
+
+    @Test
+    public void testUnsupportedQueries() {
+        assertThat(QuerySerializer.serialize(new WildcardQuery(new Term("f", "te*t")))).isNull();
+        assertThat(QuerySerializer.serialize(new BooleanQuery.Builder()
+                .add(new PrefixQuery(new Term("f", "te")), BooleanClause.Occur.SHOULD).build())).isNull();
+        // state that can't be read back from the query is detected
+        assertThat(QuerySerializer.serialize(new RegexpQuery(new Term("f", "te<1-5>t"), RegExp.NONE))).isNull();
+        assertThat(QuerySerializer.serialize(new SpanNotQuery(span("a"), span("b"), 2))).isNull();
+    }
+
+}